@@ -0,0 +1,65 @@
+package org.grameenfoundation.consulteca.services;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.grameenfoundation.consulteca.ApplicationRegistry;
+import org.grameenfoundation.consulteca.model.Farmer;
+import org.grameenfoundation.consulteca.storage.DatabaseHelperConstants;
+import org.grameenfoundation.consulteca.storage.StorageManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the farmer queries of the {@link MenuItemService} against the database of the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MenuItemServiceTest {
+    private final MenuItemService menuItemService = new MenuItemService();
+
+    @Before
+    public void setUp() {
+        ApplicationRegistry.setApplicationContext(InstrumentationRegistry.getTargetContext());
+        StorageManager.getInstance().deleteAll(DatabaseHelperConstants.FARMER_LOCAL_DATABASE_TABLE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        StorageManager.getInstance().deleteAll(DatabaseHelperConstants.FARMER_LOCAL_DATABASE_TABLE_NAME);
+    }
+
+    @Test
+    public void deletesFarmersByTheirStringIds() {
+        menuItemService.save(createFarmer("F100"), createFarmer("O'Neil"), createFarmer("12"),
+                createFarmer("012"), createFarmer("F101"));
+
+        menuItemService.deleteFarmers(Arrays.asList("F100", "O'Neil", "012", "unknown"));
+
+        List<String> farmerIds = new ArrayList<String>();
+        for (Farmer farmer : menuItemService.getAllFarmers()) {
+            farmerIds.add(farmer.getId());
+        }
+        Collections.sort(farmerIds);
+        assertEquals(Arrays.asList("12", "F101"), farmerIds);
+    }
+
+    private static Farmer createFarmer(String id) {
+        Farmer farmer = new Farmer();
+        farmer.setId(id);
+        farmer.setFirstName("First " + id);
+        farmer.setLastName("Last " + id);
+        farmer.setCreationDate("2015-01-01");
+        farmer.setSubcounty("Subcounty");
+        farmer.setVillage("Village");
+        return farmer;
+    }
+}
@@ -2,6 +2,7 @@ package org.grameenfoundation.consulteca;
 
 import android.app.*;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.os.Bundle;
@@ -20,11 +21,13 @@ import org.grameenfoundation.consulteca.services.MenuItemService;
 import org.grameenfoundation.consulteca.settings.SettingsActivity;
 import org.grameenfoundation.consulteca.settings.SettingsManager;
 import org.grameenfoundation.consulteca.synchronization.BackgroundSynchronizationConfigurer;
-import org.grameenfoundation.consulteca.synchronization.SynchronizationListener;
+import org.grameenfoundation.consulteca.synchronization.SynchronizationContentListener;
 import org.grameenfoundation.consulteca.synchronization.SynchronizationManager;
 import org.grameenfoundation.consulteca.ui.AboutActivity;
 import org.grameenfoundation.consulteca.utils.DeviceMetadata;
 
+import java.io.File;
+
 public class MainActivity extends Activity implements ActionMode.Callback {
 
     private ProgressDialog progressDialog = null;
@@ -48,6 +51,7 @@ public class MainActivity extends Activity implements ActionMode.Callback {
     public void onCreate(Bundle savedInstanceState) {
         try {
             super.onCreate(savedInstanceState);
+            requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
             activityContext = this;
             ApplicationRegistry.setApplicationContext(this.getApplicationContext());
             ApplicationRegistry.setMainActivity(this);
@@ -73,6 +77,9 @@ public class MainActivity extends Activity implements ActionMode.Callback {
             //setup background synchronization
             initiateBackgroundSyncConfiguration();
 
+            //connect to the server ahead of the first request
+            SynchronizationManager.getInstance().warmUp();
+
             handler = new Handler();
 
             //initMainListView();
@@ -173,6 +180,11 @@ public class MainActivity extends Activity implements ActionMode.Callback {
                 listViewBackNavigation();
             } */ else if (item.getItemId() == R.id.action_synchronise) {
                 startSynchronization();
+            } else if (item.getItemId() == R.id.action_import_bundle) {
+                importBundle();
+            } else if (item.getItemId() == R.id.action_export_bundle) {
+                registerSynchronizationListener();
+                SynchronizationManager.getInstance().exportBundle(SynchronizationManager.getDefaultBundleFile());
             } else if (item.getItemId() == R.id.action_about) {
                 Intent intent = new Intent().setClass(this, AboutActivity.class);
                 intent.setFlags(Intent.FLAG_ACTIVITY_TASK_ON_HOME);
@@ -189,7 +201,33 @@ public class MainActivity extends Activity implements ActionMode.Callback {
     }
 
     private void startSynchronization() {
-        SynchronizationManager.getInstance().registerListener(new SynchronizationListener() {
+        registerSynchronizationListener();
+        SynchronizationManager.getInstance().start();
+    }
+
+    /**
+     * imports the bundle at the root of the SD card, to provision a device without a connection.
+     */
+    private void importBundle() {
+        File bundleFile = SynchronizationManager.getDefaultBundleFile();
+        if (!bundleFile.exists()) {
+            showErrorDialog(getString(R.string.error_bundle_not_found, bundleFile.getPath()));
+            return;
+        }
+
+        registerSynchronizationListener();
+        SynchronizationManager.getInstance().importBundle(bundleFile);
+    }
+
+    /**
+     * registers a listener that shows the progress of a synchronization, or of the import or
+     * export of a bundle, until it completes or fails.
+     */
+    private void registerSynchronizationListener() {
+        SynchronizationManager.getInstance().registerListener(new SynchronizationContentListener() {
+            // set once the menus can be browsed, the progress dialog is no longer shown after that
+            private boolean showingContent = false;
+
             @Override
             public void synchronizationStart() {
                 handler.post(new Runnable() {
@@ -209,7 +247,7 @@ public class MainActivity extends Activity implements ActionMode.Callback {
                         progressDialog.setMax(max);
                         progressDialog.setProgress(step);
                         progressDialog.setIndeterminate(false);
-                        if (!progressDialog.isShowing()) {
+                        if (!showingContent && !progressDialog.isShowing()) {
                             progressDialog.show();
                         }
                     }
@@ -223,31 +261,36 @@ public class MainActivity extends Activity implements ActionMode.Callback {
                     public void run() {
                         progressDialog.setMessage(message);
                         progressDialog.setIndeterminate(true);
-                        if (!progressDialog.isShowing()) {
+                        if (!showingContent && !progressDialog.isShowing()) {
                             progressDialog.show();
                         }
                     }
                 });
             }
 
+            @Override
+            public void synchronizationContentAvailable() {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!showingContent) {
+                            showingContent = true;
+                            progressDialog.dismiss();
+                            setProgressBarIndeterminateVisibility(true);
+                        }
+                        refreshMainList();
+                    }
+                });
+            }
+
             @Override
             public void synchronizationComplete() {
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
                         progressDialog.dismiss();
-                        if (defaultFragment == null) {
-                            FragmentManager fragmentManager = getFragmentManager();
-                            defaultFragment = (DefaultViewFragment) fragmentManager.findFragmentByTag(DefaultViewFragment.FRAGMENT_TAG);
-                        }
-                        //we refresh the UI
-                        ListView mainListView = defaultFragment.getMainListView();
-                        if(mainListView != null) {
-                            BaseAdapter adapter = (BaseAdapter)mainListView.getAdapter();
-                            if(adapter != null){
-                                adapter.notifyDataSetChanged();
-                            }
-                        }
+                        setProgressBarIndeterminateVisibility(false);
+                        refreshMainList();
                     }
 
                 });
@@ -263,23 +306,46 @@ public class MainActivity extends Activity implements ActionMode.Callback {
                         if (progressDialog != null) {
                             progressDialog.dismiss();
                         }
-
-                        AlertDialog alertDialog =
-                                new AlertDialog.Builder(MainActivity.this).create();
-                        alertDialog.setMessage(throwable.getMessage());
-                        alertDialog.setIcon(android.R.drawable.stat_sys_warning);
-
-                        alertDialog.setTitle(R.string.error_title);
-                        alertDialog.setCancelable(true);
-                        alertDialog.show();
+                        setProgressBarIndeterminateVisibility(false);
+                        showErrorDialog(throwable.getMessage());
                     }
                 });
 
                 SynchronizationManager.getInstance().unRegisterListener(this);
             }
         });
+    }
 
-        SynchronizationManager.getInstance().start();
+    private void showErrorDialog(String message) {
+        AlertDialog alertDialog =
+                new AlertDialog.Builder(MainActivity.this).create();
+        alertDialog.setMessage(message);
+        alertDialog.setIcon(android.R.drawable.stat_sys_warning);
+
+        alertDialog.setTitle(R.string.error_title);
+        alertDialog.setCancelable(true);
+        alertDialog.show();
+    }
+
+    /**
+     * refreshes the main list with the menus that are in the data store.
+     */
+    private void refreshMainList() {
+        if (defaultFragment == null) {
+            FragmentManager fragmentManager = getFragmentManager();
+            defaultFragment = (DefaultViewFragment) fragmentManager.findFragmentByTag(DefaultViewFragment.FRAGMENT_TAG);
+        }
+        if (defaultFragment == null) {
+            return;
+        }
+
+        ListView mainListView = defaultFragment.getMainListView();
+        if (mainListView != null) {
+            BaseAdapter adapter = (BaseAdapter) mainListView.getAdapter();
+            if (adapter != null) {
+                adapter.notifyDataSetChanged();
+            }
+        }
     }
 
     private void createProgressBar() {
@@ -295,6 +361,13 @@ public class MainActivity extends Activity implements ActionMode.Callback {
                 progressDialog.setMessage("Please Wait...");
                 progressDialog.setIcon(R.drawable.ic_refresh);
                 progressDialog.setProgressNumberFormat(null);
+                progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                SynchronizationManager.getInstance().stop();
+                            }
+                        });
 
                 if (SynchronizationManager.getInstance().isSynchronizing()) {
                     progressDialog.show();
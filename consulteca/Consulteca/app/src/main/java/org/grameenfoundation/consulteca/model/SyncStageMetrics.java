@@ -0,0 +1,152 @@
+package org.grameenfoundation.consulteca.model;
+
+import org.grameenfoundation.consulteca.utils.HttpStatistics;
+
+import java.io.Serializable;
+
+/**
+ * The performance measurements of one stage of a synchronization run.
+ */
+public class SyncStageMetrics implements Serializable {
+    private Integer id;
+    private long runStarted;
+    private String stage;
+    private long durationMillis;
+    private long bytesReceived;
+    private long bytesSent;
+    private long rowsWritten;
+    private long peakHeapBytes;
+    private long requestRetries;
+    private long requestTimeouts;
+    private long requestsRejected;
+    private boolean successful;
+    private HttpStatistics httpStatistics;
+
+    public SyncStageMetrics() {
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    /**
+     * gets the time at which the synchronization run that this stage belongs to was started,
+     * in milliseconds since the epoch. It identifies the run.
+     *
+     * @return
+     */
+    public long getRunStarted() {
+        return runStarted;
+    }
+
+    public void setRunStarted(long runStarted) {
+        this.runStarted = runStarted;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public void setStage(String stage) {
+        this.stage = stage;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public void setBytesReceived(long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    public void setRowsWritten(long rowsWritten) {
+        this.rowsWritten = rowsWritten;
+    }
+
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    public void setPeakHeapBytes(long peakHeapBytes) {
+        this.peakHeapBytes = peakHeapBytes;
+    }
+
+    public long getRequestRetries() {
+        return requestRetries;
+    }
+
+    public void setRequestRetries(long requestRetries) {
+        this.requestRetries = requestRetries;
+    }
+
+    public long getRequestTimeouts() {
+        return requestTimeouts;
+    }
+
+    public void setRequestTimeouts(long requestTimeouts) {
+        this.requestTimeouts = requestTimeouts;
+    }
+
+    public long getRequestsRejected() {
+        return requestsRejected;
+    }
+
+    public void setRequestsRejected(long requestsRejected) {
+        this.requestsRejected = requestsRejected;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public void setSuccessful(boolean successful) {
+        this.successful = successful;
+    }
+
+    /**
+     * gets the statistics of the requests to one endpoint during the run, for the stages named
+     * http.&lt;endpoint&gt;.
+     *
+     * @return the statistics, or null for the other stages.
+     */
+    public HttpStatistics getHttpStatistics() {
+        return httpStatistics;
+    }
+
+    public void setHttpStatistics(HttpStatistics httpStatistics) {
+        this.httpStatistics = httpStatistics;
+    }
+
+    /**
+     * gets the number of rows written per second during this stage.
+     *
+     * @return
+     */
+    public long getRowsPerSecond() {
+        return durationMillis == 0 ? rowsWritten : rowsWritten * 1000 / durationMillis;
+    }
+}
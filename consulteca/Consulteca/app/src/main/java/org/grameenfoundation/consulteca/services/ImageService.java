@@ -0,0 +1,154 @@
+package org.grameenfoundation.consulteca.services;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import org.grameenfoundation.consulteca.storage.DatabaseHelperConstants;
+import org.grameenfoundation.consulteca.storage.StorageManager;
+import org.grameenfoundation.consulteca.storage.TemporaryIdSet;
+import org.grameenfoundation.consulteca.storage.search.Search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Service class to handle the mapping of image ids to the digest of the image file they refer to.
+ * Images with the same content share one file in the image store, the number of image ids that
+ * map to a digest is the reference count of that file.
+ */
+public class ImageService {
+
+    /**
+     * gets the digest of the image with the given id.
+     *
+     * @param imageId the image id
+     * @return the digest or null if the image is not in the image store.
+     */
+    public String getDigest(String imageId) {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        search.addFilterEqual(DatabaseHelperConstants.IMAGE_STORE_IMAGE_ID_COLUMN, imageId.toLowerCase());
+
+        return getFirstDigest(search);
+    }
+
+    /**
+     * gets the digest of the first image whose id contains the given part of an image id.
+     *
+     * @param partialImageId part of the image id, usually the id of the menu item it belongs to.
+     * @return the digest or null if no such image is in the image store.
+     */
+    public String findDigest(String partialImageId) {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        // the search processor appends the trailing wildcard
+        search.addFilterLike(DatabaseHelperConstants.IMAGE_STORE_IMAGE_ID_COLUMN, "%" + partialImageId.toLowerCase());
+        search.setMaxResults(1);
+
+        return getFirstDigest(search);
+    }
+
+    private String getFirstDigest(Search search) {
+        Cursor cursor = StorageManager.getInstance().getRecords(search);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getString(cursor.getColumnIndex(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN));
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * gets the mappings of image ids to digests starting at the given offset and ending at the
+     * given limit.
+     *
+     * @param offset
+     * @param limit
+     * @return the digests by image id.
+     */
+    public Map<String, String> getImages(int offset, int limit) {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        search.setFirstResult(offset);
+        search.setMaxResults(limit);
+
+        Map<String, String> images = new LinkedHashMap<String, String>();
+        Cursor cursor = StorageManager.getInstance().getRecords(search);
+        try {
+            int imageIdColumn = cursor.getColumnIndex(DatabaseHelperConstants.IMAGE_STORE_IMAGE_ID_COLUMN);
+            int digestColumn = cursor.getColumnIndex(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN);
+            while (cursor.moveToNext()) {
+                images.put(cursor.getString(imageIdColumn), cursor.getString(digestColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return images;
+    }
+
+    /**
+     * maps the given image id to the given digest, replacing the existing mapping.
+     *
+     * @param imageId the image id
+     * @param digest  digest of the image file
+     */
+    public void saveImage(String imageId, String digest) {
+        ContentValues contentValue = new ContentValues();
+        contentValue.put(DatabaseHelperConstants.IMAGE_STORE_IMAGE_ID_COLUMN, imageId.toLowerCase());
+        contentValue.put(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN, digest);
+
+        StorageManager.getInstance().replace(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME, contentValue);
+    }
+
+    /**
+     * removes the mapping of the given image id.
+     *
+     * @param imageId the image id
+     */
+    public void deleteImage(String imageId) {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        search.addFilterEqual(DatabaseHelperConstants.IMAGE_STORE_IMAGE_ID_COLUMN, imageId.toLowerCase());
+
+        StorageManager.getInstance().delete(search);
+    }
+
+    /**
+     * removes the mappings of the image ids in the given set.
+     *
+     * @param imageIds the image ids
+     * @return the digests of the image files that no image id refers to any more.
+     */
+    public List<String> deleteImages(TemporaryIdSet imageIds) {
+        String inCondition = imageIds.getInCondition(DatabaseHelperConstants.IMAGE_STORE_IMAGE_ID_COLUMN);
+
+        StringBuilder queryBuilder = new StringBuilder("SELECT DISTINCT ");
+        queryBuilder.append(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN);
+        queryBuilder.append(" FROM ").append(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        queryBuilder.append(" WHERE ").append(inCondition);
+        queryBuilder.append(" AND ").append(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN).append(" NOT IN (SELECT ");
+        queryBuilder.append(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN);
+        queryBuilder.append(" FROM ").append(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        queryBuilder.append(" WHERE NOT ").append(inCondition);
+        queryBuilder.append(" AND ").append(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN).append(" IS NOT NULL)");
+
+        List<String> digests = new ArrayList<String>();
+        Cursor cursor = StorageManager.getInstance().sqlSearch(queryBuilder.toString());
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) {
+                    digests.add(cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        StorageManager.getInstance().execSql("DELETE FROM " + DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME +
+                " WHERE " + inCondition);
+        return digests;
+    }
+}
@@ -6,6 +6,7 @@ import android.util.Log;
 import org.grameenfoundation.consulteca.model.*;
 import org.grameenfoundation.consulteca.storage.DatabaseHelperConstants;
 import org.grameenfoundation.consulteca.storage.StorageManager;
+import org.grameenfoundation.consulteca.storage.TemporaryIdSet;
 import org.grameenfoundation.consulteca.storage.search.Filter;
 import org.grameenfoundation.consulteca.storage.search.Search;
 
@@ -275,6 +276,42 @@ public class MenuItemService {
     }
 
 
+    /**
+     * deletes the search menu items whose ids are in the given set.
+     *
+     * @param searchMenuItemIds
+     */
+    public void deleteSearchMenuItems(TemporaryIdSet searchMenuItemIds) {
+        StorageManager.getInstance().execSql("DELETE FROM " + DatabaseHelperConstants.MENU_ITEM_TABLE_NAME +
+                " WHERE " + searchMenuItemIds.getInCondition(DatabaseHelperConstants.MENU_ITEM_ROWID_COLUMN));
+    }
+
+    /**
+     * deletes the search menus whose ids are in the given set, together with their search menu
+     * items.
+     *
+     * @param searchMenuIds
+     */
+    public void deleteSearchMenus(TemporaryIdSet searchMenuIds) {
+        StorageManager.getInstance().execSql("DELETE FROM " + DatabaseHelperConstants.MENU_TABLE_NAME +
+                " WHERE " + searchMenuIds.getInCondition(DatabaseHelperConstants.MENU_ROWID_COLUMN));
+        StorageManager.getInstance().execSql("DELETE FROM " + DatabaseHelperConstants.MENU_ITEM_TABLE_NAME +
+                " WHERE " + searchMenuIds.getInCondition(DatabaseHelperConstants.MENU_ITEM_MENUID_COLUMN));
+    }
+
+    /**
+     * deletes the search menus whose ids are not in the given set, together with their search
+     * menu items.
+     *
+     * @param searchMenuIds ids of the search menus to keep.
+     */
+    public void deleteOtherSearchMenus(TemporaryIdSet searchMenuIds) {
+        StorageManager.getInstance().execSql("DELETE FROM " + DatabaseHelperConstants.MENU_TABLE_NAME +
+                " WHERE " + searchMenuIds.getNotInCondition(DatabaseHelperConstants.MENU_ROWID_COLUMN));
+        StorageManager.getInstance().execSql("DELETE FROM " + DatabaseHelperConstants.MENU_ITEM_TABLE_NAME +
+                " WHERE " + searchMenuIds.getNotInCondition(DatabaseHelperConstants.MENU_ITEM_MENUID_COLUMN));
+    }
+
     /**
      * delete search menu items for the given search menu.
      *
@@ -474,6 +511,24 @@ public class MenuItemService {
         return buildSearchLogs(StorageManager.getInstance().getRecords(search));
     }
 
+    /**
+     * gets the search logs whose identifier is greater than the given identifier, in the order
+     * in which they were created.
+     *
+     * @param afterId identifier after which the search logs are required.
+     * @param limit   maximum number of search logs to return.
+     * @return list of search logs
+     */
+    public List<SearchLog> getSearchLogs(int afterId, int limit) {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.SEARCH_LOG_TABLE_NAME);
+        search.addFilterGreaterThan(DatabaseHelperConstants.SEARCH_LOG_ROW_ID_COLUMN, afterId);
+        search.addSortAsc(DatabaseHelperConstants.SEARCH_LOG_ROW_ID_COLUMN);
+        search.setMaxResults(limit);
+
+        return buildSearchLogs(StorageManager.getInstance().getRecords(search));
+    }
+
     private List<SearchLog> buildSearchLogs(Cursor cursor) {
         List<SearchLog> searchLogs = new ArrayList<SearchLog>();
         while (cursor.moveToNext()) {
@@ -544,6 +599,21 @@ public class MenuItemService {
         StorageManager.getInstance().delete(search);
     }
 
+    /**
+     * deletes the search logs whose identifiers are within the given range in one statement.
+     *
+     * @param firstId identifier of the first search log to delete
+     * @param lastId  identifier of the last search log to delete
+     */
+    public void deleteSearchLogs(int firstId, int lastId) {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.SEARCH_LOG_TABLE_NAME);
+        search.addFilterGreaterOrEqual(DatabaseHelperConstants.SEARCH_LOG_ROW_ID_COLUMN, firstId);
+        search.addFilterLessOrEqual(DatabaseHelperConstants.SEARCH_LOG_ROW_ID_COLUMN, lastId);
+
+        StorageManager.getInstance().delete(search);
+    }
+
     /**
      * deletes the given search log from the data store.
      *
@@ -654,6 +724,29 @@ public class MenuItemService {
                 values.toArray(new ContentValues[]{}));
     }
 
+    /**
+     * deletes the farmer records with the given identifiers in one statement. The identifiers are
+     * bound through a {@link TemporaryIdSet}, they are not written into the statement.
+     *
+     * @param farmerIds identifiers of the farmers to delete
+     */
+    public void deleteFarmers(List<String> farmerIds) {
+        if (farmerIds == null || farmerIds.isEmpty()) {
+            return;
+        }
+
+        TemporaryIdSet deletedFarmerIds = new TemporaryIdSet("deletedFarmers", false);
+        try {
+            for (String farmerId : farmerIds) {
+                deletedFarmerIds.add(farmerId);
+            }
+            StorageManager.getInstance().execSql("DELETE FROM " + DatabaseHelperConstants.FARMER_LOCAL_DATABASE_TABLE_NAME
+                    + " WHERE " + deletedFarmerIds.getInCondition(DatabaseHelperConstants.FARMERS_ROWID_COLUMN));
+        } finally {
+            deletedFarmerIds.close();
+        }
+    }
+
     private List<ContentValues> getContentValues(Farmer[] farmers) {
         List<ContentValues> values = new ArrayList<ContentValues>();
         for (Farmer item : farmers) {
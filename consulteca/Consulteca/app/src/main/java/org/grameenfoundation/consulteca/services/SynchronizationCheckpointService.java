@@ -0,0 +1,82 @@
+package org.grameenfoundation.consulteca.services;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import org.grameenfoundation.consulteca.storage.DatabaseHelperConstants;
+import org.grameenfoundation.consulteca.storage.StorageManager;
+import org.grameenfoundation.consulteca.storage.search.Search;
+
+import java.util.UUID;
+
+/**
+ * Service class to handle synchronization checkpoints. Checkpoints are kept in the database
+ * (and not in the settings) so that they can be written in the same transaction as the data
+ * they describe.
+ */
+public class SynchronizationCheckpointService {
+
+    /**
+     * gets the value of the checkpoint with the given key.
+     *
+     * @param key the checkpoint key
+     * @return the checkpoint value or null if the checkpoint does not exist.
+     */
+    public String getCheckpoint(String key) {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.SYNC_CHECKPOINT_TABLE_NAME);
+        search.addFilterEqual(DatabaseHelperConstants.SYNC_CHECKPOINT_KEY_COLUMN, key);
+
+        Cursor cursor = StorageManager.getInstance().getRecords(search);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getString(cursor.getColumnIndex(DatabaseHelperConstants.SYNC_CHECKPOINT_VALUE_COLUMN));
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * gets the random id of the database, which is created with its tables. It tells the rows of
+     * this database apart from those of a database that was created before it, e.g. before the
+     * application data was cleared, whose row ids were the same.
+     *
+     * @return
+     */
+    public String getDatabaseId() {
+        String databaseId = getCheckpoint(DatabaseHelperConstants.SYNC_CHECKPOINT_DATABASE_ID_KEY);
+        if (databaseId == null) {
+            databaseId = UUID.randomUUID().toString();
+            setCheckpoint(DatabaseHelperConstants.SYNC_CHECKPOINT_DATABASE_ID_KEY, databaseId);
+        }
+        return databaseId;
+    }
+
+    /**
+     * saves the checkpoint with the given key and value, replacing the existing value.
+     *
+     * @param key   the checkpoint key
+     * @param value the checkpoint value
+     */
+    public void setCheckpoint(String key, String value) {
+        ContentValues contentValue = new ContentValues();
+        contentValue.put(DatabaseHelperConstants.SYNC_CHECKPOINT_KEY_COLUMN, key);
+        contentValue.put(DatabaseHelperConstants.SYNC_CHECKPOINT_VALUE_COLUMN, value);
+
+        StorageManager.getInstance().replace(DatabaseHelperConstants.SYNC_CHECKPOINT_TABLE_NAME, contentValue);
+    }
+
+    /**
+     * removes the checkpoint with the given key.
+     *
+     * @param key the checkpoint key
+     */
+    public void clearCheckpoint(String key) {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.SYNC_CHECKPOINT_TABLE_NAME);
+        search.addFilterEqual(DatabaseHelperConstants.SYNC_CHECKPOINT_KEY_COLUMN, key);
+
+        StorageManager.getInstance().delete(search);
+    }
+}
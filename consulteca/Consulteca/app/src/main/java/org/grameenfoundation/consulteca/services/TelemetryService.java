@@ -0,0 +1,152 @@
+package org.grameenfoundation.consulteca.services;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.grameenfoundation.consulteca.model.SyncStageMetrics;
+import org.grameenfoundation.consulteca.storage.DatabaseHelperConstants;
+import org.grameenfoundation.consulteca.storage.StorageManager;
+import org.grameenfoundation.consulteca.storage.search.Search;
+import org.grameenfoundation.consulteca.utils.HttpStatistics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Service class to handle the performance measurements of the synchronization runs. Only the
+ * measurements of the last {@link #MAX_RUNS} runs are kept.
+ */
+public class TelemetryService {
+    public static final int MAX_RUNS = 10;
+
+    /**
+     * saves the measurements of the stages of a synchronization run and removes the measurements
+     * of the runs that are no longer among the last {@link #MAX_RUNS}.
+     *
+     * @param stages
+     */
+    public void saveRun(List<SyncStageMetrics> stages) {
+        Gson gson = new Gson();
+        ContentValues[] contentValues = new ContentValues[stages.size()];
+        for (int index = 0; index < stages.size(); index++) {
+            SyncStageMetrics stage = stages.get(index);
+            ContentValues contentValue = new ContentValues();
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_RUN_STARTED_COLUMN, stage.getRunStarted());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_STAGE_COLUMN, stage.getStage());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_DURATION_COLUMN, stage.getDurationMillis());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_BYTES_RECEIVED_COLUMN, stage.getBytesReceived());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_BYTES_SENT_COLUMN, stage.getBytesSent());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_ROWS_WRITTEN_COLUMN, stage.getRowsWritten());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_PEAK_HEAP_COLUMN, stage.getPeakHeapBytes());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_REQUEST_RETRIES_COLUMN, stage.getRequestRetries());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_REQUEST_TIMEOUTS_COLUMN, stage.getRequestTimeouts());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_REQUESTS_REJECTED_COLUMN, stage.getRequestsRejected());
+            contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_SUCCESSFUL_COLUMN, stage.isSuccessful() ? 1 : 0);
+            if (stage.getHttpStatistics() != null) {
+                contentValue.put(DatabaseHelperConstants.SYNC_TELEMETRY_HTTP_STATISTICS_COLUMN,
+                        gson.toJson(stage.getHttpStatistics()));
+            }
+            contentValues[index] = contentValue;
+        }
+        StorageManager.getInstance().insert(DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME, contentValues);
+
+        StringBuilder sqlCommand = new StringBuilder();
+        sqlCommand.append("DELETE FROM ").append(DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME);
+        sqlCommand.append(" WHERE ").append(DatabaseHelperConstants.SYNC_TELEMETRY_RUN_STARTED_COLUMN);
+        sqlCommand.append(" NOT IN (SELECT DISTINCT ").append(DatabaseHelperConstants.SYNC_TELEMETRY_RUN_STARTED_COLUMN);
+        sqlCommand.append(" FROM ").append(DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME);
+        sqlCommand.append(" ORDER BY ").append(DatabaseHelperConstants.SYNC_TELEMETRY_RUN_STARTED_COLUMN);
+        sqlCommand.append(" DESC LIMIT ").append(MAX_RUNS).append(")");
+        StorageManager.getInstance().execSql(sqlCommand.toString());
+    }
+
+    /**
+     * gets the measurements of the kept runs, the latest run first.
+     *
+     * @return
+     */
+    public List<SyncStageMetrics> getRecentStages() {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME);
+        search.addSortDesc(DatabaseHelperConstants.SYNC_TELEMETRY_RUN_STARTED_COLUMN);
+        search.addSortAsc(DatabaseHelperConstants.SYNC_TELEMETRY_ROW_ID_COLUMN);
+
+        return buildStages(StorageManager.getInstance().getRecords(search));
+    }
+
+    /**
+     * gets the measurements that have not been uploaded to the server yet.
+     *
+     * @return
+     */
+    public List<SyncStageMetrics> getStagesToUpload() {
+        Search search = new Search();
+        search.setTableName(DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME);
+        search.addFilterEqual(DatabaseHelperConstants.SYNC_TELEMETRY_UPLOADED_COLUMN, 0);
+        search.addSortAsc(DatabaseHelperConstants.SYNC_TELEMETRY_ROW_ID_COLUMN);
+
+        return buildStages(StorageManager.getInstance().getRecords(search));
+    }
+
+    /**
+     * marks the measurements up to and including the given id as uploaded.
+     *
+     * @param lastId
+     */
+    public void markUploaded(int lastId) {
+        StringBuilder sqlCommand = new StringBuilder();
+        sqlCommand.append("UPDATE ").append(DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME);
+        sqlCommand.append(" SET ").append(DatabaseHelperConstants.SYNC_TELEMETRY_UPLOADED_COLUMN).append(" = 1");
+        sqlCommand.append(" WHERE ").append(DatabaseHelperConstants.SYNC_TELEMETRY_ROW_ID_COLUMN);
+        sqlCommand.append(" <= ").append(lastId);
+        StorageManager.getInstance().execSql(sqlCommand.toString());
+    }
+
+    private List<SyncStageMetrics> buildStages(Cursor cursor) {
+        Gson gson = new Gson();
+        List<SyncStageMetrics> stages = new ArrayList<SyncStageMetrics>();
+        try {
+            while (cursor.moveToNext()) {
+                SyncStageMetrics stage = new SyncStageMetrics();
+                stage.setId(cursor.getInt(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_ROW_ID_COLUMN)));
+                stage.setRunStarted(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_RUN_STARTED_COLUMN)));
+                stage.setStage(cursor.getString(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_STAGE_COLUMN)));
+                stage.setDurationMillis(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_DURATION_COLUMN)));
+                stage.setBytesReceived(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_BYTES_RECEIVED_COLUMN)));
+                stage.setBytesSent(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_BYTES_SENT_COLUMN)));
+                stage.setRowsWritten(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_ROWS_WRITTEN_COLUMN)));
+                stage.setPeakHeapBytes(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_PEAK_HEAP_COLUMN)));
+                stage.setRequestRetries(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_REQUEST_RETRIES_COLUMN)));
+                stage.setRequestTimeouts(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_REQUEST_TIMEOUTS_COLUMN)));
+                stage.setRequestsRejected(cursor.getLong(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_REQUESTS_REJECTED_COLUMN)));
+                stage.setSuccessful(cursor.getInt(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_SUCCESSFUL_COLUMN)) > 0);
+                String httpStatistics = cursor.getString(cursor.
+                        getColumnIndex(DatabaseHelperConstants.SYNC_TELEMETRY_HTTP_STATISTICS_COLUMN));
+                if (httpStatistics != null) {
+                    try {
+                        stage.setHttpStatistics(gson.fromJson(httpStatistics, HttpStatistics.class));
+                    } catch (JsonParseException ex) {
+                        // the stage is kept without its statistics
+                    }
+                }
+                stages.add(stage);
+            }
+        } finally {
+            cursor.close();
+        }
+        return stages;
+    }
+}
@@ -19,12 +19,17 @@ public final class SettingsConstants {
     public  static final String REQUEST_GET_COUNTRY_CODE = "countryCode";
     public  static final String REQUEST_DOWNLOAD_IMAGES = "images";
     public  static final String REQUEST_DOWNLOAD_KEYWORDS = "keywords";
+    public  static final String REQUEST_RECONCILE_KEYWORDS = "reconcileKeywords";
     public  static final String REQUEST_METHODNAME = "method";
     public  static final String REQUEST_DATA = "data";
 
     public static final String KEY_BACKGROUND_SYNC_INTERVAL = "background_sync_interval";
     public static final String KEY_BACKGROUND_SYNC_INTERVAL_UNITS = "background_sync_interval_units";
     public static final String KEY_BACKGROUND_SYNC_ENABLED = "background_sync_enabled";
+    public static final String KEY_BACKGROUND_SYNC_FAILURES = "background_sync_failures";
+    public static final String KEY_BACKGROUND_SYNC_PENDING_CHANGES = "background_sync_pending_changes";
+    public static final String KEY_BACKGROUND_SYNC_RATE_LIMIT = "background_sync_rate_limit";
+    public static final String KEY_SYNC_RATE_LIMIT = "sync_rate_limit";
 
     public static final String KEY_CLIENT_IDENTIFIER_PROMPTING_ENABLED = "prompt_for_clientid_enabled";
     public static final String KEY_TEST_SEARCHING_ENABLED = "test_searching_enabled";
@@ -5,6 +5,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import java.util.UUID;
+
 /**
  * utility class responsible for initializing and upgrading the database the database
  *
@@ -45,6 +47,151 @@ final class DatabaseHelper extends SQLiteOpenHelper {
 
         //add test log column
         database.execSQL(getSearchLogTestColumnSql());
+
+        createVersion5Tables(database);
+        createVersion6Tables(database);
+        createVersion7Tables(database);
+        createVersion8Columns(database);
+        createVersion9Columns(database);
+        createVersion10Rows(database);
+    }
+
+    /**
+     * creates the tables added in database version 5.
+     *
+     * @param database
+     */
+    private void createVersion5Tables(SQLiteDatabase database) {
+        //create the synchronization checkpoint table
+        database.execSQL(getSyncCheckpointTableInitializationSql());
+    }
+
+    /**
+     * creates the tables added in database version 6.
+     *
+     * @param database
+     */
+    private void createVersion6Tables(SQLiteDatabase database) {
+        //create the image store table and the index used to count the references to an image file
+        database.execSQL(getImageStoreTableInitializationSql());
+        database.execSQL(getImageStoreDigestIndexSql());
+    }
+
+    /**
+     * creates the tables added in database version 7.
+     *
+     * @param database
+     */
+    private void createVersion7Tables(SQLiteDatabase database) {
+        //create the synchronization telemetry table
+        database.execSQL(getSyncTelemetryTableInitializationSql());
+    }
+
+    /**
+     * adds the columns added in database version 8.
+     *
+     * @param database
+     */
+    private void createVersion8Columns(SQLiteDatabase database) {
+        //add the request failure counts to the synchronization telemetry
+        for (String column : new String[]{DatabaseHelperConstants.SYNC_TELEMETRY_REQUEST_RETRIES_COLUMN,
+                DatabaseHelperConstants.SYNC_TELEMETRY_REQUEST_TIMEOUTS_COLUMN,
+                DatabaseHelperConstants.SYNC_TELEMETRY_REQUESTS_REJECTED_COLUMN}) {
+            database.execSQL("ALTER TABLE " + DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME
+                    + " ADD COLUMN " + column + " INTEGER DEFAULT 0");
+        }
+    }
+
+    /**
+     * adds the columns added in database version 9.
+     *
+     * @param database
+     */
+    private void createVersion9Columns(SQLiteDatabase database) {
+        //add the statistics of the requests to an endpoint to the synchronization telemetry
+        database.execSQL("ALTER TABLE " + DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME
+                + " ADD COLUMN " + DatabaseHelperConstants.SYNC_TELEMETRY_HTTP_STATISTICS_COLUMN + " TEXT");
+    }
+
+    /**
+     * adds the rows added in database version 10.
+     *
+     * @param database
+     */
+    private void createVersion10Rows(SQLiteDatabase database) {
+        //give the database a new random id, the ids of the search logs start again with its tables
+        database.execSQL("INSERT OR REPLACE INTO " + DatabaseHelperConstants.SYNC_CHECKPOINT_TABLE_NAME
+                + " (" + DatabaseHelperConstants.SYNC_CHECKPOINT_KEY_COLUMN + ", "
+                + DatabaseHelperConstants.SYNC_CHECKPOINT_VALUE_COLUMN + ") VALUES (?, ?)",
+                new Object[]{DatabaseHelperConstants.SYNC_CHECKPOINT_DATABASE_ID_KEY, UUID.randomUUID().toString()});
+    }
+
+    /**
+     * gets the SQL statement for creating the table that holds the performance measurements of
+     * the stages of the last synchronization runs.
+     *
+     * @return
+     */
+    private String getSyncTelemetryTableInitializationSql() {
+        StringBuilder sqlCommand = new StringBuilder();
+        sqlCommand.append("CREATE TABLE IF NOT EXISTS ").append(DatabaseHelperConstants.SYNC_TELEMETRY_TABLE_NAME);
+        sqlCommand.append("(");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_ROW_ID_COLUMN).append(" INTEGER PRIMARY KEY AUTOINCREMENT, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_RUN_STARTED_COLUMN).append(" INTEGER NOT NULL, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_STAGE_COLUMN).append(" VARCHAR NOT NULL, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_DURATION_COLUMN).append(" INTEGER, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_BYTES_RECEIVED_COLUMN).append(" INTEGER, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_BYTES_SENT_COLUMN).append(" INTEGER, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_ROWS_WRITTEN_COLUMN).append(" INTEGER, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_PEAK_HEAP_COLUMN).append(" INTEGER, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_SUCCESSFUL_COLUMN).append(" INTEGER DEFAULT 0, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_TELEMETRY_UPLOADED_COLUMN).append(" INTEGER DEFAULT 0");
+        sqlCommand.append(" );");
+
+        return sqlCommand.toString();
+    }
+
+    /**
+     * gets the SQL statement for creating the table that maps image ids to the digest of the
+     * image file they refer to.
+     *
+     * @return
+     */
+    private String getImageStoreTableInitializationSql() {
+        StringBuilder sqlCommand = new StringBuilder();
+        sqlCommand.append("CREATE TABLE IF NOT EXISTS ").append(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        sqlCommand.append("(");
+        sqlCommand.append(DatabaseHelperConstants.IMAGE_STORE_IMAGE_ID_COLUMN).append(" VARCHAR PRIMARY KEY, ");
+        sqlCommand.append(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN).append(" VARCHAR NOT NULL");
+        sqlCommand.append(" );");
+
+        return sqlCommand.toString();
+    }
+
+    private String getImageStoreDigestIndexSql() {
+        StringBuilder sqlCommand = new StringBuilder();
+        sqlCommand.append("CREATE INDEX IF NOT EXISTS ").append(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        sqlCommand.append("_digest ON ").append(DatabaseHelperConstants.IMAGE_STORE_TABLE_NAME);
+        sqlCommand.append("(").append(DatabaseHelperConstants.IMAGE_STORE_DIGEST_COLUMN).append(");");
+
+        return sqlCommand.toString();
+    }
+
+    /**
+     * gets the SQL statement for creating the table that holds the synchronization checkpoints
+     * i.e. the continuation token of a paged download.
+     *
+     * @return
+     */
+    private String getSyncCheckpointTableInitializationSql() {
+        StringBuilder sqlCommand = new StringBuilder();
+        sqlCommand.append("CREATE TABLE IF NOT EXISTS ").append(DatabaseHelperConstants.SYNC_CHECKPOINT_TABLE_NAME);
+        sqlCommand.append("(");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_CHECKPOINT_KEY_COLUMN).append(" VARCHAR PRIMARY KEY, ");
+        sqlCommand.append(DatabaseHelperConstants.SYNC_CHECKPOINT_VALUE_COLUMN).append(" TEXT");
+        sqlCommand.append(" );");
+
+        return sqlCommand.toString();
     }
 
     /**
@@ -188,7 +335,34 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                 + oldVersion + " to " + newVersion
                 + ", which will destroy all old data");
 
-        createDatabaseTables(database);
+        if (oldVersion < 4) {
+            createDatabaseTables(database);
+            return;
+        }
+
+        if (oldVersion < 5) {
+            createVersion5Tables(database);
+        }
+
+        if (oldVersion < 6) {
+            createVersion6Tables(database);
+        }
+
+        if (oldVersion < 7) {
+            createVersion7Tables(database);
+        }
+
+        if (oldVersion < 8) {
+            createVersion8Columns(database);
+        }
+
+        if (oldVersion < 9) {
+            createVersion9Columns(database);
+        }
+
+        if (oldVersion < 10) {
+            createVersion10Rows(database);
+        }
     }
 
     /**
@@ -74,6 +74,41 @@ public final class DatabaseHelperConstants {
     public static final String FAVOURITE_RECORD_DATE_CREATED_COLUMN = "date_created";
     public static final String FAVOURITE_RECORD_MENU_ITEM_ID_COLUMN = "menu_item_id";
 
+    /**
+     * synchronization checkpoint table columns
+     */
+    public static final String SYNC_CHECKPOINT_KEY_COLUMN = "checkpoint_key";
+    public static final String SYNC_CHECKPOINT_VALUE_COLUMN = "value";
+
+    /**
+     * the key of the checkpoint that holds the random id of the database, created with its tables
+     */
+    public static final String SYNC_CHECKPOINT_DATABASE_ID_KEY = "database.id";
+
+    /**
+     * image store table columns
+     */
+    public static final String IMAGE_STORE_IMAGE_ID_COLUMN = "image_id";
+    public static final String IMAGE_STORE_DIGEST_COLUMN = "digest";
+
+    /**
+     * synchronization telemetry table columns
+     */
+    public static final String SYNC_TELEMETRY_ROW_ID_COLUMN = "id";
+    public static final String SYNC_TELEMETRY_RUN_STARTED_COLUMN = "run_started";
+    public static final String SYNC_TELEMETRY_STAGE_COLUMN = "stage";
+    public static final String SYNC_TELEMETRY_DURATION_COLUMN = "duration_ms";
+    public static final String SYNC_TELEMETRY_BYTES_RECEIVED_COLUMN = "bytes_received";
+    public static final String SYNC_TELEMETRY_BYTES_SENT_COLUMN = "bytes_sent";
+    public static final String SYNC_TELEMETRY_ROWS_WRITTEN_COLUMN = "rows_written";
+    public static final String SYNC_TELEMETRY_PEAK_HEAP_COLUMN = "peak_heap_bytes";
+    public static final String SYNC_TELEMETRY_REQUEST_RETRIES_COLUMN = "request_retries";
+    public static final String SYNC_TELEMETRY_REQUEST_TIMEOUTS_COLUMN = "request_timeouts";
+    public static final String SYNC_TELEMETRY_REQUESTS_REJECTED_COLUMN = "requests_rejected";
+    public static final String SYNC_TELEMETRY_HTTP_STATISTICS_COLUMN = "http_statistics";
+    public static final String SYNC_TELEMETRY_SUCCESSFUL_COLUMN = "successful";
+    public static final String SYNC_TELEMETRY_UPLOADED_COLUMN = "uploaded";
+
     /**
      * table names
      */
@@ -84,7 +119,10 @@ public final class DatabaseHelperConstants {
     public static final String FARMER_LOCAL_DATABASE_TABLE_NAME = "farmer_local_database";
     public static final String SEARCH_LOG_TABLE_NAME = "search_log";
     public static final String FAVOURITE_RECORD_TABLE_NAME = "favourite_record";
+    public static final String SYNC_CHECKPOINT_TABLE_NAME = "sync_checkpoint";
+    public static final String IMAGE_STORE_TABLE_NAME = "image_store";
+    public static final String SYNC_TELEMETRY_TABLE_NAME = "sync_telemetry";
 
     public static final String DATABASE_NAME = "gfsearch";
-    public static final int DATABASE_VERSION = 4;
+    public static final int DATABASE_VERSION = 10;
 }
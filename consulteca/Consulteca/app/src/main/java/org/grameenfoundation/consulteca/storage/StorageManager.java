@@ -4,8 +4,12 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import org.grameenfoundation.consulteca.ApplicationRegistry;
 import org.grameenfoundation.consulteca.storage.search.Search;
+import org.grameenfoundation.consulteca.utils.PerformanceCounters;
+
+import java.util.Collection;
 
 /**
  * A Facade that handles data storage operations like storage, retrieval etc.
@@ -50,6 +54,33 @@ public class StorageManager {
         databaseHelper.close();
     }
 
+    /**
+     * begins a transaction. Transactions can be nested, the outer most transaction
+     * determines whether the changes are committed.
+     *
+     * @see #setTransactionSuccessful()
+     * @see #endTransaction()
+     */
+    public void beginTransaction() {
+        database.beginTransaction();
+    }
+
+    /**
+     * marks the current transaction as successful so that it is committed
+     * when it ends.
+     */
+    public void setTransactionSuccessful() {
+        database.setTransactionSuccessful();
+    }
+
+    /**
+     * ends the current transaction. The changes are rolled back if the transaction
+     * was not marked as successful.
+     */
+    public void endTransaction() {
+        database.endTransaction();
+    }
+
     /**
      * checks whether the data store is open.
      *
@@ -95,6 +126,49 @@ public class StorageManager {
         database.execSQL(sql);
     }
 
+    /**
+     * creates the given temporary table with a single text id column, or empties it if it already
+     * exists. Temporary tables are only visible to this data store and are dropped when it is closed.
+     *
+     * @param table name of the temporary table.
+     */
+    public void createTemporaryIdTable(String table) {
+        database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + table + " (id TEXT PRIMARY KEY)");
+        database.execSQL("DELETE FROM " + table);
+    }
+
+    /**
+     * inserts the given ids into the given temporary id table within a transaction. Ids that are
+     * already in the table are ignored.
+     *
+     * @param table name of the temporary table.
+     * @param ids   ids to insert.
+     */
+    public void insertIds(String table, Collection<String> ids) {
+        SQLiteStatement statement = database.compileStatement("INSERT OR IGNORE INTO " + table + " (id) VALUES (?)");
+        try {
+            database.beginTransaction();
+            for (String id : ids) {
+                statement.bindString(1, id);
+                statement.executeInsert();
+            }
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
+        }
+    }
+
+    /**
+     * drops the given temporary table.
+     *
+     * @param table name of the temporary table.
+     */
+    public void dropTemporaryTable(String table) {
+        database.execSQL("DROP TABLE IF EXISTS temp." + table);
+    }
+
     /**
      * inserts the given content values into the given table
      *
@@ -103,6 +177,7 @@ public class StorageManager {
      * @return true if the operation was successful.
      */
     public boolean insert(String table, ContentValues contentValues) {
+        PerformanceCounters.addRowsWritten(1);
         return database.insert(table, null, contentValues) > 0;
     }
 
@@ -117,12 +192,12 @@ public class StorageManager {
         try {
             database.beginTransaction();
 
+            PerformanceCounters.addRowsWritten(contentValueList.length);
             for (ContentValues contentValues : contentValueList) {
                 database.insert(table, null, contentValues);
             }
 
             database.setTransactionSuccessful();
-            database.endTransaction();
             return true;
         } finally {
             database.endTransaction();
@@ -137,6 +212,7 @@ public class StorageManager {
      * @return true if the operation was successful.
      */
     public boolean replace(String table, ContentValues contentValues) {
+        PerformanceCounters.addRowsWritten(1);
         return database.replace(table, null, contentValues) > 0;
     }
 
@@ -151,6 +227,7 @@ public class StorageManager {
         try {
             database.beginTransaction();
 
+            PerformanceCounters.addRowsWritten(contentValueList.length);
             for (ContentValues contentValues : contentValueList) {
                 database.replace(table, null, contentValues);
             }
@@ -170,6 +247,7 @@ public class StorageManager {
      * @return true if the operation was successful.
      */
     public boolean update(String table, ContentValues contentValues) {
+        PerformanceCounters.addRowsWritten(1);
         return database.replace(table, null, contentValues) > 0;
     }
 
@@ -184,6 +262,7 @@ public class StorageManager {
         try {
             database.beginTransaction();
 
+            PerformanceCounters.addRowsWritten(contentValueList.length);
             for (ContentValues contentValues : contentValueList) {
                 database.replace(table, null, contentValues);
             }
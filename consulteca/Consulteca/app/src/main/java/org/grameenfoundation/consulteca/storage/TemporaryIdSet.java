@@ -0,0 +1,93 @@
+package org.grameenfoundation.consulteca.storage;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A set of record ids held in a temporary table, e.g. the ids that a synchronization has seen or
+ * that it has been told to remove. The records of a table whose ids are, or are not, in the set are
+ * then selected or deleted with one statement, instead of comparing or deleting the records one at
+ * a time. Added ids are buffered and written to the table in batches.
+ */
+public class TemporaryIdSet {
+    private static final int BATCH_SIZE = 500;
+
+    private final String tableName;
+    private final boolean ignoreCase;
+    private final Set<String> pendingIds = new HashSet<String>();
+
+    /**
+     * creates an empty set.
+     *
+     * @param name       name of the set, unique among the sets that are open at the same time.
+     * @param ignoreCase whether ids that only differ in case are the same id.
+     */
+    public TemporaryIdSet(String name, boolean ignoreCase) {
+        this.tableName = "ids_" + name;
+        this.ignoreCase = ignoreCase;
+        StorageManager.getInstance().createTemporaryIdTable(tableName);
+    }
+
+    /**
+     * adds the given id to the set.
+     *
+     * @param id
+     */
+    public void add(String id) {
+        if (id == null) {
+            return;
+        }
+
+        pendingIds.add(ignoreCase ? id.toLowerCase(Locale.US) : id);
+        if (pendingIds.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * gets an sql condition that is true for the records whose value of the given column is in
+     * this set.
+     *
+     * @param column the column that holds the ids.
+     * @return
+     */
+    public String getInCondition(String column) {
+        flush();
+
+        StringBuilder conditionBuilder = new StringBuilder();
+        if (ignoreCase) {
+            conditionBuilder.append("lower(").append(column).append(")");
+        } else {
+            conditionBuilder.append(column);
+        }
+        conditionBuilder.append(" IN (SELECT id FROM ").append(tableName).append(")");
+        return conditionBuilder.toString();
+    }
+
+    /**
+     * gets an sql condition that is true for the records whose value of the given column is not
+     * in this set.
+     *
+     * @param column the column that holds the ids.
+     * @return
+     */
+    public String getNotInCondition(String column) {
+        return "NOT " + getInCondition(column);
+    }
+
+    /**
+     * drops the temporary table of this set, the set cannot be used any more.
+     */
+    public void close() {
+        pendingIds.clear();
+        StorageManager.getInstance().dropTemporaryTable(tableName);
+    }
+
+    private void flush() {
+        if (!pendingIds.isEmpty()) {
+            StorageManager.getInstance().insertIds(tableName, pendingIds);
+            pendingIds.clear();
+        }
+    }
+}
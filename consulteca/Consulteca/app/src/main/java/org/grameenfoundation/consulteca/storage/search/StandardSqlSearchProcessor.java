@@ -18,12 +18,14 @@ public class StandardSqlSearchProcessor implements SearchProcessor {
         String where = generateWhereClause(search);
         String orderBy = generateOrderByClause(search);
         String from = generateFromClause(search);
+        String limit = generateLimitClause(search);
 
         StringBuilder sb = new StringBuilder();
         sb.append(select);
         sb.append(from);
         sb.append(where);
         sb.append(orderBy);
+        sb.append(limit);
 
         return sb.toString();
     }
@@ -421,6 +423,26 @@ public class StandardSqlSearchProcessor implements SearchProcessor {
         return sb.toString();
     }
 
+    /**
+     * method for generating the limit clause from the first and max results of the search.
+     *
+     * @param search
+     * @return
+     */
+    protected String generateLimitClause(Search search) {
+        if (search.getMaxResults() < 0 && search.getFirstResult() < 0) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder(" limit ");
+        sb.append(search.getMaxResults() < 0 ? -1 : search.getMaxResults());
+        if (search.getFirstResult() > 0) {
+            sb.append(" offset ").append(search.getFirstResult());
+        }
+
+        return sb.toString();
+    }
+
     /**
      * method for generating the from clause.
      *
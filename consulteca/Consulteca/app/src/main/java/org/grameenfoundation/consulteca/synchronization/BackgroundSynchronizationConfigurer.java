@@ -5,14 +5,15 @@ import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.util.Log;
 import org.grameenfoundation.consulteca.settings.SettingsConstants;
 import org.grameenfoundation.consulteca.settings.SettingsManager;
 
-import java.util.Calendar;
-
 /**
  * Responsible for configuring the background synchronization process. It interacts with the
- * AlarmManager to determine how often the background synchronization process will run.
+ * AlarmManager to determine when the background synchronization process will run next, based on
+ * the configured interval and the result of the previous synchronizations.
+ * See {@link SynchronizationSchedule}.
  * <p/>
  * This broadcast configurer is a broadcast listener of
  * BOOT_COMPLETED, TIME_CHANGED, TIME_ZONE_CHANGED, PACKAGE_INSTALL and
@@ -24,8 +25,8 @@ public class BackgroundSynchronizationConfigurer extends BroadcastReceiver {
             "org.grameenfoundation.consulteca.synchronization.BACKGROUND_SYNC_CONFIGURATION";
 
     private AlarmManager alarmManager = null;
-    private final static Integer DEFAULT_SYNCHRONIZATION_INTERVAL_MILLISECONDS = 30 * 60 * 1000; //30 minutes
     private final static Integer DEFAULT_SYNCHRONIZATION_INTERVAL_MINUTES = 30;
+    private final static SynchronizationSchedule schedule = new SynchronizationSchedule();
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -48,55 +49,102 @@ public class BackgroundSynchronizationConfigurer extends BroadcastReceiver {
     }
 
     private void applyBackgroundSynchronizationSettings(Context context) {
-        boolean syncEnabled = SettingsManager
-                .getInstance().getBooleanValue(SettingsConstants.KEY_BACKGROUND_SYNC_ENABLED, true);
-
-        int interval = Integer.parseInt(SettingsManager
-                .getInstance().getValue(SettingsConstants.KEY_BACKGROUND_SYNC_INTERVAL,
-                        String.valueOf(DEFAULT_SYNCHRONIZATION_INTERVAL_MINUTES)));
-
-        int units = Integer.parseInt(SettingsManager
-                .getInstance().getValue(SettingsConstants.KEY_BACKGROUND_SYNC_INTERVAL_UNITS,
-                        String.valueOf(SettingsConstants.INTERVAL_UNITS_MINUTES)));
-
-        if (syncEnabled) {
-            setRepeatingAlarm(context, interval, units);
+        if (isBackgroundSynchronizationEnabled()) {
+            scheduleNextSynchronization(context);
         } else {
             removeAlarm(context);
         }
     }
 
+    private static boolean isBackgroundSynchronizationEnabled() {
+        return SettingsManager
+                .getInstance().getBooleanValue(SettingsConstants.KEY_BACKGROUND_SYNC_ENABLED, true);
+    }
+
     private void removeAlarm(Context context) {
         Intent intent = new Intent(ACTION_BACKGROUND_SYNC);
         PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE);
         if (pendingIntent != null) {
             alarmManager.cancel(pendingIntent);
+            pendingIntent.cancel();
         }
     }
 
     /**
-     * sets up a repeating alarm and configures it
+     * records the result of a background synchronization and schedules the next one accordingly.
+     * A synchronization that was cancelled by the user is neither a success nor a failure, the
+     * next one is scheduled as if it had not run.
      *
      * @param context
+     * @param successful     whether the synchronization succeeded.
+     * @param pendingChanges whether the server reported more changes for the device.
      */
-    private void setRepeatingAlarm(Context context, int interval, int units) {
-        int syncInterval = 0;
-        if (units == SettingsConstants.INTERVAL_UNITS_HOURS) {
-            syncInterval = interval * (3600 * 1000);
-        } else if (units == SettingsConstants.INTERVAL_UNITS_MINUTES) {
-            syncInterval = interval * (60 * 1000);
-        } else if (units == SettingsConstants.INTERVAL_UNITS_SECONDS) {
-            syncInterval = interval * 1000;
+    public static void recordSynchronizationResult(Context context, boolean successful, boolean pendingChanges) {
+        SettingsManager settingsManager = SettingsManager.getInstance();
+        int failures = getConsecutiveFailures();
+        settingsManager.setValue(SettingsConstants.KEY_BACKGROUND_SYNC_FAILURES,
+                String.valueOf(successful ? 0 : failures + 1));
+        if (successful) {
+            settingsManager.setValue(SettingsConstants.KEY_BACKGROUND_SYNC_PENDING_CHANGES,
+                    String.valueOf(pendingChanges));
         }
 
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(System.currentTimeMillis());
+        if (isBackgroundSynchronizationEnabled()) {
+            scheduleNextSynchronization(context);
+        }
+    }
 
+    /**
+     * schedules the next background synchronization, replacing the one that is scheduled. The
+     * alarm is inexact so that the system can batch it with the alarms of other applications
+     * instead of waking the device up just for it.
+     *
+     * @param context
+     */
+    public static void scheduleNextSynchronization(Context context) {
+        boolean pendingChanges = Boolean.parseBoolean(SettingsManager.getInstance()
+                .getValue(SettingsConstants.KEY_BACKGROUND_SYNC_PENDING_CHANGES, "false"));
+        long nextSynchronizationTime = schedule.getNextSynchronizationTime(getSynchronizationInterval(),
+                getConsecutiveFailures(), pendingChanges);
 
         Intent intent = new Intent(ACTION_BACKGROUND_SYNC);
         PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
-        alarmManager.setRepeating(AlarmManager.RTC_WAKEUP, calendar.getTimeInMillis(),
-                syncInterval, pendingIntent);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC_WAKEUP, nextSynchronizationTime, pendingIntent);
+
+        Log.i(BackgroundSynchronizationConfigurer.class.getName(), "Next background synchronization in "
+                + (nextSynchronizationTime - System.currentTimeMillis()) / 1000 + " seconds");
+    }
+
+    /**
+     * gets the configured synchronization interval in milliseconds.
+     *
+     * @return
+     */
+    private static long getSynchronizationInterval() {
+        int interval = Integer.parseInt(SettingsManager
+                .getInstance().getValue(SettingsConstants.KEY_BACKGROUND_SYNC_INTERVAL,
+                        String.valueOf(DEFAULT_SYNCHRONIZATION_INTERVAL_MINUTES)));
+
+        int units = Integer.parseInt(SettingsManager
+                .getInstance().getValue(SettingsConstants.KEY_BACKGROUND_SYNC_INTERVAL_UNITS,
+                        String.valueOf(SettingsConstants.INTERVAL_UNITS_MINUTES)));
+
+        if (units == SettingsConstants.INTERVAL_UNITS_HOURS) {
+            return interval * (3600 * 1000L);
+        } else if (units == SettingsConstants.INTERVAL_UNITS_SECONDS) {
+            return interval * 1000L;
+        }
+        return interval * (60 * 1000L);
+    }
+
+    private static int getConsecutiveFailures() {
+        try {
+            return Integer.parseInt(SettingsManager.getInstance()
+                    .getValue(SettingsConstants.KEY_BACKGROUND_SYNC_FAILURES, "0"));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
     }
 
     /**
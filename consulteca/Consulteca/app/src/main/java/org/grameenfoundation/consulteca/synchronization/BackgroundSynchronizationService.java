@@ -4,16 +4,19 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.IBinder;
 import android.util.Log;
 import org.grameenfoundation.consulteca.R;
+import org.grameenfoundation.consulteca.utils.NetworkScheduler;
 
 /**
  * Background Service that initiates the synchronization process in the background.
  */
-public class BackgroundSynchronizationService extends Service implements SynchronizationListener {
+public class BackgroundSynchronizationService extends Service implements SynchronizationResultListener {
     private NotificationManager notificationManager;
+    private Bitmap largeIcon;
     private static final String NOTIFICATION_TAG = "70eHGpKGfU2QO8Q50Dp1";
     private static final int NOTIFICATION_ID = 1;
 
@@ -22,6 +25,7 @@ public class BackgroundSynchronizationService extends Service implements Synchro
     public void onCreate() {
         super.onCreate();
         notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        largeIcon = BitmapFactory.decodeResource(this.getResources(), R.drawable.mobile_app_icon);
     }
 
     @Override
@@ -29,7 +33,7 @@ public class BackgroundSynchronizationService extends Service implements Synchro
         super.onStartCommand(intent, flags, startId);
 
         SynchronizationManager.getInstance().registerListener(this);
-        SynchronizationManager.getInstance().start();
+        SynchronizationManager.getInstance().start(NetworkScheduler.Priority.BACKGROUND);
 
         return START_NOT_STICKY;
     }
@@ -60,7 +64,7 @@ public class BackgroundSynchronizationService extends Service implements Synchro
                 .setContentTitle(message)
                 .setContentText(message)
                 .setSmallIcon(R.drawable.mobile_app_icon)
-                .setLargeIcon(BitmapFactory.decodeResource(this.getResources(), R.drawable.mobile_app_icon))
+                .setLargeIcon(largeIcon)
                 .setProgress(max, step, false).getNotification();
 
         notificationManager.notify(NOTIFICATION_TAG, NOTIFICATION_ID, notification);
@@ -73,7 +77,7 @@ public class BackgroundSynchronizationService extends Service implements Synchro
                 .setContentTitle(message)
                 .setContentText(message)
                 .setSmallIcon(R.drawable.mobile_app_icon)
-                .setLargeIcon(BitmapFactory.decodeResource(this.getResources(), R.drawable.mobile_app_icon))
+                .setLargeIcon(largeIcon)
                 .setProgress(0, 0, indeterminate).getNotification();
 
         notificationManager.notify(NOTIFICATION_TAG, NOTIFICATION_ID, notification);
@@ -86,7 +90,7 @@ public class BackgroundSynchronizationService extends Service implements Synchro
                 .setContentText(this.getResources().getString(R.string.synchronization_complete_msg))
                 .setContentTitle(this.getResources().getString(R.string.synchronization_progress_bar_title))
                 .setSmallIcon(R.drawable.mobile_app_icon)
-                .setLargeIcon(BitmapFactory.decodeResource(this.getResources(), R.drawable.mobile_app_icon))
+                .setLargeIcon(largeIcon)
                 .getNotification();
 
         notificationManager.notify(NOTIFICATION_TAG, NOTIFICATION_ID, notification);
@@ -103,4 +107,15 @@ public class BackgroundSynchronizationService extends Service implements Synchro
                 .getNotification();
         notificationManager.notify(NOTIFICATION_TAG, NOTIFICATION_ID, notification);
     }
+
+    @Override
+    public void synchronizationEnded(boolean successful, boolean cancelled) {
+        if (cancelled) {
+            // a stopped synchronization neither resets nor extends the back off
+            BackgroundSynchronizationConfigurer.scheduleNextSynchronization(this);
+        } else {
+            BackgroundSynchronizationConfigurer.recordSynchronizationResult(this, successful,
+                    successful && SynchronizationManager.getInstance().hasPendingChanges());
+        }
+    }
 }
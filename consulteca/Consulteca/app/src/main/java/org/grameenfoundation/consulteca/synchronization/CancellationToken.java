@@ -0,0 +1,56 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+/**
+ * Signals a running synchronization that it should stop. The synchronization checks the token
+ * in its read, parse and write loops and stops at the next check after {@link #cancel()} is called.
+ */
+class CancellationToken {
+    private volatile boolean cancelled = false;
+
+    /**
+     * requests the synchronization that owns this token to stop.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * gets a value indicating whether cancellation has been requested.
+     *
+     * @return
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * throws a {@link SynchronizationCancelledException} if cancellation has been requested.
+     */
+    void throwIfCancelled() {
+        if (cancelled) {
+            throw new SynchronizationCancelledException();
+        }
+    }
+
+    /**
+     * waits for the given time, or less if cancellation is requested in the meantime.
+     *
+     * @param millis
+     * @throws SynchronizationCancelledException if cancellation has been requested.
+     */
+    synchronized void sleep(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (!cancelled && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SynchronizationCancelledException();
+            }
+            remaining = end - System.currentTimeMillis();
+        }
+        throwIfCancelled();
+    }
+}
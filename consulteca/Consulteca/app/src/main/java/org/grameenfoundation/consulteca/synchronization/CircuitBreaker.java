@@ -0,0 +1,120 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+/**
+ * Stops requests to a server that keeps failing. After {@link #failureThreshold} consecutive
+ * failures the breaker opens and rejects every request for a cool-down period. Once the period
+ * is over a single trial request is let through: if it succeeds the breaker closes, if it fails
+ * the breaker opens again for twice as long, up to {@link #maxOpenMillis}.
+ * <p/>
+ * The times are passed in by the callers, so that the breaker can be tested without waiting.
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final long maxOpenMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long currentOpenMillis;
+    private long openedAt;
+    private boolean trialRunning = false;
+
+    /**
+     * @param failureThreshold the number of consecutive failures that opens the breaker.
+     * @param openMillis       how long the breaker stays open the first time.
+     * @param maxOpenMillis    how long the breaker stays open at most.
+     */
+    CircuitBreaker(int failureThreshold, long openMillis, long maxOpenMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.currentOpenMillis = openMillis;
+    }
+
+    /**
+     * checks whether a request may be sent now. A request that is allowed must be followed by a
+     * call to {@link #recordSuccess()} or {@link #recordFailure(long)}.
+     *
+     * @param now
+     * @return
+     */
+    synchronized boolean allowRequest(long now) {
+        if (state == State.OPEN && now - openedAt >= currentOpenMillis) {
+            state = State.HALF_OPEN;
+            trialRunning = false;
+        }
+
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                // the other requests wait for the outcome of the trial
+                if (trialRunning) {
+                    return false;
+                }
+                trialRunning = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        currentOpenMillis = openMillis;
+        trialRunning = false;
+    }
+
+    /**
+     * records that an allowed request was given up before its outcome was known, e.g. because the
+     * synchronization was cancelled.
+     */
+    synchronized void recordAbandoned() {
+        trialRunning = false;
+    }
+
+    /**
+     * records a failed request.
+     *
+     * @param now
+     * @return true if the failure opened the breaker.
+     */
+    synchronized boolean recordFailure(long now) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            currentOpenMillis = Math.min(currentOpenMillis * 2, maxOpenMillis);
+            open(now);
+            return true;
+        }
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open(now);
+            return true;
+        }
+        return false;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * gets how long the breaker stays open from the given time.
+     *
+     * @param now
+     * @return
+     */
+    synchronized long getRemainingOpenMillis(long now) {
+        return state == State.OPEN ? Math.max(0, openedAt + currentOpenMillis - now) : 0;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+        trialRunning = false;
+    }
+}
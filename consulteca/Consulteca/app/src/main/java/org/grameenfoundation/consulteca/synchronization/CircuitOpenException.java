@@ -0,0 +1,13 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a server whose {@link CircuitBreaker} is open.
+ */
+class CircuitOpenException extends IOException {
+
+    CircuitOpenException(String host, long remainingMillis) {
+        super("Requests to " + host + " are suspended for " + remainingMillis / 1000 + " s after repeated failures");
+    }
+}
@@ -0,0 +1,80 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+
+import java.io.IOException;
+
+/**
+ * Posts the requests of an upload, compressed with gzip once the server has announced that it
+ * accepts compressed requests, see {@link HttpHelpers#acceptsGzipRequests(HttpResponse)}. The
+ * url of that server is kept by the listener.
+ * <p/>
+ * A compressed request that the server rejects with 415 Unsupported Media Type or 411 Length
+ * Required is sent again uncompressed, and the server is sent uncompressed requests until it
+ * announces again that it accepts compressed ones. Sending a request again is only safe for an
+ * upload whose requests the server ignores once it has received them.
+ */
+class CompressedUploader {
+
+    /**
+     * keeps the url of the server that accepts compressed requests.
+     */
+    interface Listener {
+
+        /**
+         * gets the url of the server that accepts compressed requests.
+         *
+         * @return the url, or null if no server is known to accept them.
+         */
+        String getCompressedUploadUrl();
+
+        /**
+         * saves the url of the server that accepts compressed requests.
+         *
+         * @param url the url, or null if the server no longer accepts them.
+         */
+        void setCompressedUploadUrl(String url);
+    }
+
+    private final Listener listener;
+
+    CompressedUploader(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * posts a request of the synchronization protocol, see
+     * {@link HttpHelpers#postJsonFormRequest(String, String, Object, Gson, int, java.util.HashMap, boolean)}.
+     *
+     * @param url
+     * @param method         the method of the request.
+     * @param data           the object to send as the data of the request.
+     * @param gson           the gson to write the object with.
+     * @param networkTimeout
+     * @return
+     * @throws IOException
+     */
+    HttpResponse post(String url, String method, Object data, Gson gson, int networkTimeout) throws IOException {
+        boolean compress = url.equals(listener.getCompressedUploadUrl());
+        HttpResponse httpResponse = HttpHelpers.postJsonFormRequest(url, method, data, gson, networkTimeout, null,
+                compress);
+
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        if (compress && (statusCode == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE || statusCode == HttpStatus.SC_LENGTH_REQUIRED)) {
+            Log.i(CompressedUploader.class.getName(), "Compressed upload rejected with " + statusCode);
+            HttpHelpers.consume(httpResponse);
+            compress = false;
+            listener.setCompressedUploadUrl(null);
+            httpResponse = HttpHelpers.postJsonFormRequest(url, method, data, gson, networkTimeout, null, false);
+        }
+
+        if (!compress && HttpHelpers.acceptsGzipRequests(httpResponse)) {
+            listener.setCompressedUploadUrl(url);
+        }
+        return httpResponse;
+    }
+}
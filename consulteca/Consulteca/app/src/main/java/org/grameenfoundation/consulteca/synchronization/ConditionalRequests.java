@@ -0,0 +1,150 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.grameenfoundation.consulteca.services.SynchronizationCheckpointService;
+import org.grameenfoundation.consulteca.utils.BinaryFeedFormat;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+import org.grameenfoundation.consulteca.utils.JsonSimpleBaseParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Makes the requests of the synchronization endpoints conditional. The validators (ETag and
+ * Last-Modified) of the last response of an endpoint that was fully processed describe the data
+ * that the device holds. They are kept as checkpoints, in the same database as that data, and are
+ * sent with the next request to the same server. If the data has not changed the server answers
+ * with 304 Not Modified, or with a short response whose result code is
+ * {@link #RESULT_CODE_NOT_MODIFIED}, instead of the full data.
+ */
+class ConditionalRequests {
+    static final String RESULT_CODE_NOT_MODIFIED = "304";
+    private static final int MAX_NOT_MODIFIED_RESPONSE_LENGTH = 512;
+    private static final String CHECKPOINT_PREFIX = "http.";
+
+    private final SynchronizationCheckpointService checkpointService;
+
+    ConditionalRequests(SynchronizationCheckpointService checkpointService) {
+        this.checkpointService = checkpointService;
+    }
+
+    /**
+     * gets the conditional request headers for the given endpoint. No headers are returned if the
+     * kept validators were sent by another server.
+     *
+     * @param endpoint the name of the endpoint.
+     * @param url      the url of the server.
+     * @return
+     */
+    HashMap<String, String> getHeaders(String endpoint, String url) {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        if (!url.equals(checkpointService.getCheckpoint(CHECKPOINT_PREFIX + endpoint + ".url"))) {
+            return headers;
+        }
+
+        String entityTag = checkpointService.getCheckpoint(CHECKPOINT_PREFIX + endpoint + ".etag");
+        if (entityTag != null) {
+            headers.put("If-None-Match", entityTag);
+        }
+        String lastModified = checkpointService.getCheckpoint(CHECKPOINT_PREFIX + endpoint + ".lastModified");
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return headers;
+    }
+
+    /**
+     * keeps the validators of the given response. It must only be called once the response has
+     * been fully processed, otherwise the data it carries would never be requested again.
+     *
+     * @param endpoint the name of the endpoint.
+     * @param url      the url of the server that sent the response.
+     * @param response
+     */
+    void saveValidators(String endpoint, String url, HttpResponse response) {
+        Header entityTag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        if (entityTag == null && lastModified == null) {
+            clearValidators(endpoint);
+            return;
+        }
+
+        checkpointService.setCheckpoint(CHECKPOINT_PREFIX + endpoint + ".url", url);
+        setCheckpoint(CHECKPOINT_PREFIX + endpoint + ".etag", entityTag);
+        setCheckpoint(CHECKPOINT_PREFIX + endpoint + ".lastModified", lastModified);
+    }
+
+    void clearValidators(String endpoint) {
+        checkpointService.clearCheckpoint(CHECKPOINT_PREFIX + endpoint + ".url");
+        checkpointService.clearCheckpoint(CHECKPOINT_PREFIX + endpoint + ".etag");
+        checkpointService.clearCheckpoint(CHECKPOINT_PREFIX + endpoint + ".lastModified");
+    }
+
+    /**
+     * gets the content of the given response, or null if the server reported that the data has not
+     * changed. Only a response short enough to be a result code is looked into, the content of a
+     * longer response is returned unread.
+     *
+     * @param response
+     * @return
+     * @throws IOException
+     */
+    InputStream getChangedContent(HttpResponse response) throws IOException {
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            HttpHelpers.consume(response);
+            return null;
+        }
+
+        InputStream inputStream = new BufferedInputStream(HttpHelpers.getInputStream(response));
+        inputStream.mark(MAX_NOT_MODIFIED_RESPONSE_LENGTH + 1);
+        byte[] buffer = new byte[MAX_NOT_MODIFIED_RESPONSE_LENGTH + 1];
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+
+        if (length <= MAX_NOT_MODIFIED_RESPONSE_LENGTH && isNotModifiedResult(buffer, length)) {
+            inputStream.close();
+            return null;
+        }
+
+        inputStream.reset();
+        return inputStream;
+    }
+
+    private boolean isNotModifiedResult(byte[] content, int length) {
+        final String[] resultCode = new String[1];
+        try {
+            BinaryFeedFormat.parse(new ByteArrayInputStream(content, 0, length), new JsonSimpleBaseParser() {
+                @Override
+                public boolean primitive(Object value) {
+                    if ("resultCode".equals(key)) {
+                        resultCode[0] = String.valueOf(value);
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        } catch (ParseException ex) {
+            return false;
+        } catch (IOException ex) {
+            return false;
+        }
+        return RESULT_CODE_NOT_MODIFIED.equals(resultCode[0]);
+    }
+
+    private void setCheckpoint(String key, Header header) {
+        if (header != null) {
+            checkpointService.setCheckpoint(key, header.getValue());
+        } else {
+            checkpointService.clearCheckpoint(key);
+        }
+    }
+}
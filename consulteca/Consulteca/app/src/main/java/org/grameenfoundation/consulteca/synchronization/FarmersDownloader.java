@@ -0,0 +1,189 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.model.Farmer;
+import org.grameenfoundation.consulteca.settings.SettingsConstants;
+import org.grameenfoundation.consulteca.utils.BinaryFeedFormat;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Downloads the farmers in pages of {@link #PAGE_SIZE} records. Each page is committed together
+ * with the continuation token of the next page, so that an interrupted download resumes from the
+ * last committed page.
+ * <p/>
+ * A page with more than {@link #PAGE_SIZE} farmers, e.g. from a server that does not page its
+ * response, is saved in batches as it is parsed. The batches leave the continuation token alone,
+ * so a page that breaks off is requested again from its own token and its farmers are saved again.
+ */
+class FarmersDownloader {
+    static final int PAGE_SIZE = 1000;
+
+    /**
+     * requests the pages of the farmers feed.
+     */
+    interface Exchange {
+
+        /**
+         * requests the page of farmers that starts at the given continuation token.
+         *
+         * @param continuationToken the token of the page, null for the first page.
+         * @param networkTimeout
+         * @return the content of the page, or null if the farmers have not been modified since the
+         * last download.
+         * @throws IOException
+         */
+        InputStream requestPage(String continuationToken, int networkTimeout) throws IOException;
+    }
+
+    /**
+     * stores the downloaded farmers and the continuation token.
+     */
+    interface Listener {
+
+        /**
+         * gets the continuation token of the page a download resumes from.
+         *
+         * @return the token, or null if the download starts from the first page.
+         */
+        String getContinuationToken();
+
+        /**
+         * saves a full batch of farmers of a page that is still being parsed. The continuation
+         * token must not be changed, the page is not complete yet.
+         *
+         * @param farmers
+         */
+        void saveFarmers(List<Farmer> farmers);
+
+        /**
+         * saves the last farmers of a page, removes its deleted farmers and saves the continuation
+         * token of the next page in one transaction.
+         *
+         * @param farmers
+         * @param deletedFarmerIds
+         * @param nextToken        the token of the next page, null when the last page is committed.
+         */
+        void commitPage(List<Farmer> farmers, List<String> deletedFarmerIds, String nextToken);
+
+        void progress(int step, int max);
+    }
+
+    private final CancellationToken cancellationToken;
+    private final Listener listener;
+    private boolean pendingChanges = false;
+
+    FarmersDownloader(CancellationToken cancellationToken, Listener listener) {
+        this.cancellationToken = cancellationToken;
+        this.listener = listener;
+    }
+
+    /**
+     * downloads the pages of farmers from the continuation token of the listener to the last page.
+     *
+     * @param requestExecutor
+     * @param url             the url the exchange sends its requests to.
+     * @param exchange
+     * @return the last page, or null if the farmers have not been modified or the server reported
+     * a failure.
+     * @throws IOException    if a page could not be downloaded, the pages before it stay committed.
+     * @throws ParseException
+     */
+    Page download(RequestExecutor requestExecutor, String url, final Exchange exchange)
+            throws IOException, ParseException {
+        String continuationToken = listener.getContinuationToken();
+        Page page;
+        do {
+            cancellationToken.throwIfCancelled();
+            final String pageToken = continuationToken;
+            page = requestExecutor.execute(SettingsConstants.REQUEST_DOWNLOAD_FARMERS, url,
+                    new RequestExecutor.Call<Page>() {
+                        @Override
+                        public Page call(int networkTimeout) throws IOException, ParseException {
+                            InputStream inputStream = exchange.requestPage(pageToken, networkTimeout);
+                            if (inputStream == null) {
+                                return null;
+                            }
+
+                            try {
+                                return processPage(inputStream);
+                            } finally {
+                                inputStream.close();
+                            }
+                        }
+                    });
+            if (page == null) {
+                return null;
+            }
+            if (page.nextToken != null && page.nextToken.equals(continuationToken)) {
+                throw new IOException("The server returned the same farmers continuation token twice");
+            }
+            continuationToken = page.nextToken;
+        } while (continuationToken != null);
+        return page;
+    }
+
+    /**
+     * parses a page of farmers and commits it with the continuation token of the next page.
+     *
+     * @param inputStream the page, in JSON or in the {@link BinaryFeedFormat}.
+     * @return the page, or null if the server reported a failure.
+     * @throws IOException    if the page broke off, the batches it already saved are saved again
+     *                        when it is requested again.
+     * @throws ParseException
+     */
+    Page processPage(InputStream inputStream) throws IOException, ParseException {
+        FarmersFeedHandler handler = new FarmersFeedHandler(PAGE_SIZE, cancellationToken,
+                new FarmersFeedHandler.Listener() {
+                    @Override
+                    public void farmers(List<Farmer> farmers) {
+                        listener.saveFarmers(farmers);
+                    }
+
+                    @Override
+                    public void progress(int step, int max) {
+                        listener.progress(step, max);
+                    }
+                });
+        BinaryFeedFormat.parse(inputStream, handler);
+        pendingChanges = pendingChanges || handler.hasPendingChanges();
+
+        if (!handler.isSuccessful()) {
+            return null;
+        }
+
+        listener.commitPage(handler.getFarmers(), handler.getDeletedFarmerIds(), handler.getNextToken());
+
+        Page page = new Page();
+        page.farmersVersion = handler.getFarmersVersion();
+        page.nextToken = handler.getNextToken();
+        return page;
+    }
+
+    /**
+     * checks whether a page said that the server has changes it has not sent yet.
+     *
+     * @return
+     */
+    boolean hasPendingChanges() {
+        return pendingChanges;
+    }
+
+    /**
+     * details of a page of farmers returned by the server.
+     */
+    static class Page {
+        private String farmersVersion;
+        private String nextToken;
+
+        String getFarmersVersion() {
+            return farmersVersion;
+        }
+
+        String getNextToken() {
+            return nextToken;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import android.util.Log;
+import org.grameenfoundation.consulteca.model.Farmer;
+import org.grameenfoundation.consulteca.utils.JsonSimpleBaseParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a page of the farmers feed. The changed farmers of a page larger than a batch are reported
+ * to a {@link Listener} in batches, the last batch, the deleted farmers (tombstones) and the
+ * continuation token of the next page are kept until the page has been parsed so that they can be
+ * committed together. A page that fits in a batch is never reported in batches.
+ */
+class FarmersFeedHandler extends JsonSimpleBaseParser {
+
+    /**
+     * stores what the feed carries.
+     */
+    interface Listener {
+
+        /**
+         * called with a full batch of farmers. The list is cleared once the call returns.
+         *
+         * @param farmers
+         */
+        void farmers(List<Farmer> farmers);
+
+        void progress(int step, int max);
+    }
+
+    private final int batchSize;
+    private final CancellationToken cancellationToken;
+    private final Listener listener;
+    private final List<Farmer> farmers = new ArrayList<Farmer>();
+    private final List<String> deletedFarmerIds = new ArrayList<String>();
+    private Object farmerObject = null;
+    private String keywordType = "";
+    private int farmersCounter = 0;
+    private int farmersCount = 0;
+    private boolean successful = true;
+    private String farmersVersion;
+    private String nextToken;
+    private boolean pendingChanges = false;
+
+    FarmersFeedHandler(int batchSize, CancellationToken cancellationToken, Listener listener) {
+        this.batchSize = batchSize;
+        this.cancellationToken = cancellationToken;
+        this.listener = listener;
+    }
+
+    /**
+     * checks whether the server reported success, the page is only partly parsed otherwise.
+     *
+     * @return
+     */
+    boolean isSuccessful() {
+        return successful;
+    }
+
+    String getFarmersVersion() {
+        return farmersVersion;
+    }
+
+    /**
+     * gets the continuation token of the next page.
+     *
+     * @return the token, or null if this is the last page.
+     */
+    String getNextToken() {
+        return nextToken;
+    }
+
+    boolean hasPendingChanges() {
+        return pendingChanges;
+    }
+
+    /**
+     * gets the farmers that have been parsed since the last full batch.
+     *
+     * @return
+     */
+    List<Farmer> getFarmers() {
+        return farmers;
+    }
+
+    List<String> getDeletedFarmerIds() {
+        return deletedFarmerIds;
+    }
+
+    @Override
+    public boolean primitive(Object value) throws ParseException {
+        if (null != key && value != null && !"deletedFarmers".equalsIgnoreCase(keywordType)) {
+            if (key.equals("resultCode")) {
+                if (!value.toString().equals("0")) {
+                    successful = false;
+                    return false;//request wasn't successfull
+                }
+            } else if (key.equals("resultMessage")) {
+                Log.i(FarmersFeedHandler.class.getName(), value.toString());
+            } else if (key.equals("farmerVersion")) {
+                farmersVersion = value.toString();
+            } else if (key.equals("nextToken")) {
+                nextToken = value.toString().length() > 0 ? value.toString() : null;
+            } else if (key.equals("pendingChanges")) {
+                pendingChanges = pendingChanges || Boolean.parseBoolean(value.toString());
+            } else if (key.equals("farmerCount")) {
+                farmersCount = Integer.parseInt(value.toString());
+                listener.progress(farmersCounter++, farmersCount);
+            } else {
+                if (farmerObject instanceof Farmer) {
+                    populateFarmer((Farmer) farmerObject, key, value.toString());
+                }
+            }
+        } else if (value != null && "deletedFarmers".equalsIgnoreCase(keywordType)) {
+            // tombstones are sent either as plain ids or as objects with a farmerId
+            if (farmerObject == null || "farmerId".equalsIgnoreCase(key)) {
+                deletedFarmerIds.add(value.toString());
+            }
+        }
+        key = null;
+        return true;
+    }
+
+    @Override
+    public boolean startArray() throws ParseException {
+        keywordType = key;
+        return true;
+    }
+
+    @Override
+    public boolean endArray() throws ParseException {
+        keywordType = "";
+        return true;
+    }
+
+    @Override
+    public boolean startObject() throws ParseException {
+        if ("afarmerResults".equalsIgnoreCase(keywordType)) {
+            farmerObject = new Farmer();
+        } else if ("deletedFarmers".equalsIgnoreCase(keywordType)) {
+            farmerObject = keywordType;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObject() throws ParseException {
+        cancellationToken.throwIfCancelled();
+        if (farmerObject != null) {
+            if (farmerObject instanceof Farmer) {
+                // a full batch is only reported once the page turns out to be larger, so that a page
+                // that fits in a batch is committed whole
+                if (farmers.size() >= batchSize) {
+                    listener.farmers(farmers);
+                    farmers.clear();
+                }
+
+                farmers.add((Farmer) farmerObject);
+                listener.progress(farmersCounter++, farmersCount);
+            }
+        }
+
+        farmerObject = null;
+        return true;
+    }
+
+    private static void populateFarmer(Farmer farmer, String property, String value) {
+        if ("farmerId".equalsIgnoreCase(property)) {
+            farmer.setId(value);
+        } else if ("firstName".equalsIgnoreCase(property)) {
+            farmer.setFirstName(value);
+        } else if ("lastName".equalsIgnoreCase(property)) {
+            farmer.setLastName(value);
+        } else if ("creationDate".equalsIgnoreCase(property)) {
+            farmer.setCreationDate(value);
+        } else if ("subcounty".equalsIgnoreCase(property)) {
+            farmer.setSubcounty(value);
+        } else if ("village".equalsIgnoreCase(property)) {
+            farmer.setVillage(value);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server answers a request with an error status.
+ */
+class HttpStatusException extends IOException {
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    /**
+     * @param statusCode
+     * @param retryAfterMillis the delay the server asked for with a Retry-After header, or -1.
+     */
+    HttpStatusException(int statusCode, long retryAfterMillis) {
+        super("The server answered with status " + statusCode);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,272 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import org.apache.http.HttpResponse;
+import org.grameenfoundation.consulteca.ApplicationRegistry;
+import org.grameenfoundation.consulteca.R;
+import org.grameenfoundation.consulteca.services.ImageService;
+import org.grameenfoundation.consulteca.settings.SettingsConstants;
+import org.grameenfoundation.consulteca.settings.SettingsManager;
+import org.grameenfoundation.consulteca.utils.DeviceMetadata;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+import org.grameenfoundation.consulteca.utils.ImageUtils;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads images in batches. The missing image ids are grouped into requests of at most
+ * {@link #BATCH_SIZE} ids and up to {@link #MAX_CONCURRENT_REQUESTS} requests are run at the same time.
+ * <p/>
+ * Each image is written to the image folder as soon as it has been parsed from the response and
+ * only the ids that were not written are retried, within a request by its {@link RequestExecutor}
+ * and across requests by the attempts of {@link #download(List, Map)}. The image data is decoded from Base64 straight
+ * to the image file, the bytes sent by the server are stored as they are without being decoded
+ * into a Bitmap and compressed again.
+ * <p/>
+ * Images are saved in the content-addressable image store: an image whose content is already
+ * stored under another id is only mapped to the existing file, and an image whose digest is
+ * advertised by the server and already stored is not downloaded at all.
+ */
+class ImageDownloader {
+    static final int BATCH_SIZE = 20;
+    static final int MAX_CONCURRENT_REQUESTS = 4;
+    static final int MAX_ATTEMPTS = 3;
+
+    private final SynchronizationManager synchronizationManager;
+    private final AtomicInteger completed = new AtomicInteger(0);
+    private final AtomicInteger duplicates = new AtomicInteger(0);
+    private final AtomicLong duplicateBytes = new AtomicLong(0);
+    private final ImageService imageService = new ImageService();
+    private int total;
+    private final String progressMessage;
+
+    ImageDownloader(SynchronizationManager synchronizationManager) {
+        this.synchronizationManager = synchronizationManager;
+        this.progressMessage = ApplicationRegistry.getApplicationContext().
+                getResources().getString(R.string.downloading_images_msg);
+    }
+
+    /**
+     * downloads the images with the given identifiers that do not already exist on the device.
+     *
+     * @param imageIds      identifiers of the images referenced by the menu items.
+     * @param imageDigests  SHA-1 digests of the images by image id, for the images whose digest the
+     *                      server sent along with the id.
+     * @return true if all the missing images were downloaded.
+     */
+    boolean download(List<String> imageIds, Map<String, String> imageDigests) throws InterruptedException {
+        List<String> pending = new ArrayList<String>();
+        int reused = 0;
+        long reusedBytes = 0;
+        for (String imageId : imageIds) {
+            if (imageId == null || imageId.trim().length() == 0
+                    || ImageUtils.imageExists(imageId.toLowerCase(), false)) {
+                continue;
+            }
+
+            String digest = imageDigests.get(imageId);
+            File storedImage = digest == null ? null : ImageUtils.getStoredImageFile(digest.toLowerCase());
+            if (storedImage != null && storedImage.exists()) {
+                imageService.saveImage(imageId, digest.toLowerCase());
+                reused++;
+                reusedBytes += storedImage.length();
+            } else {
+                pending.add(imageId);
+            }
+        }
+        if (reused > 0) {
+            Log.i(ImageDownloader.class.getName(), reused + " images were already stored, "
+                    + reusedBytes + " bytes were not downloaded");
+        }
+
+        total = pending.size();
+        completed.set(0);
+        if (pending.isEmpty()) {
+            return true;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+        try {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS && !pending.isEmpty(); attempt++) {
+                synchronizationManager.getCancellationToken().throwIfCancelled();
+                pending = downloadBatches(executor, pending);
+                if (!pending.isEmpty()) {
+                    Log.w(ImageDownloader.class.getName(), pending.size() + " images failed on attempt " + attempt);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Log.i(ImageDownloader.class.getName(), completed.get() + " images downloaded, " + duplicates.get()
+                + " were duplicates of stored images, " + duplicateBytes.get() + " bytes of storage saved");
+        return pending.isEmpty();
+    }
+
+    /**
+     * runs one request per batch on the given executor and returns the ids that were not written.
+     */
+    private List<String> downloadBatches(ExecutorService executor, List<String> imageIds)
+            throws InterruptedException {
+        List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+        for (int index = 0; index < imageIds.size(); index += BATCH_SIZE) {
+            final List<String> batch = new ArrayList<String>(
+                    imageIds.subList(index, Math.min(index + BATCH_SIZE, imageIds.size())));
+            futures.add(executor.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    return downloadBatch(batch);
+                }
+            }));
+        }
+
+        List<String> failed = new ArrayList<String>();
+        for (int index = 0; index < futures.size(); index++) {
+            int start = index * BATCH_SIZE;
+            try {
+                failed.addAll(futures.get(index).get());
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof SynchronizationCancelledException) {
+                    throw (SynchronizationCancelledException) ex.getCause();
+                }
+                Log.e(ImageDownloader.class.getName(), "Error downloading image batch", ex.getCause());
+                failed.addAll(imageIds.subList(start, Math.min(start + BATCH_SIZE, imageIds.size())));
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * requests the given batch of images and writes each image as it is parsed from the response.
+     *
+     * @return the ids in the batch that were not written.
+     */
+    private List<String> downloadBatch(final List<String> batch) throws IOException {
+        final CancellationToken cancellationToken = synchronizationManager.getCancellationToken();
+        cancellationToken.throwIfCancelled();
+
+        final Map<String, String> localIds = new HashMap<String, String>();
+        for (String imageId : batch) {
+            localIds.put(getServerImageId(imageId).toLowerCase(), imageId);
+            localIds.put(imageId.toLowerCase(), imageId);
+        }
+
+        final String url = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
+        final Set<String> written = new HashSet<String>();
+        try {
+            synchronizationManager.getRequestExecutor().execute(SettingsConstants.REQUEST_DOWNLOAD_IMAGES, url,
+                    new RequestExecutor.Call<Void>() {
+                        @Override
+                        public Void call(int networkTimeout) throws IOException {
+                            // a response that broke off is requested again for the images it did not carry
+                            HttpResponse response = HttpHelpers.postJsonFormRequest(url,
+                                    SettingsConstants.REQUEST_DOWNLOAD_IMAGES, buildRequest(batch, written),
+                                    new Gson(), networkTimeout, null, false);
+                            RequestExecutor.checkStatus(response);
+                            InputStream inputStream = HttpHelpers.getInputStream(response);
+                            try {
+                                new ImageResponseParser(new File(ImageUtils.IMAGE_ROOT)).parse(inputStream,
+                                        new ImageResponseParser.ImageListener() {
+                                            @Override
+                                            public void imageParsed(String imageId, File file, String digest)
+                                                    throws IOException {
+                                                if (cancellationToken.isCancelled()) {
+                                                    file.delete();
+                                                    cancellationToken.throwIfCancelled();
+                                                }
+                                                String localId = localIds.get(imageId.toLowerCase());
+                                                if (localId != null && saveImage(localId, file, digest)) {
+                                                    written.add(localId);
+                                                    imageDownloaded();
+                                                } else {
+                                                    file.delete();
+                                                }
+                                            }
+                                        });
+                            } finally {
+                                inputStream.close();
+                            }
+                            return null;
+                        }
+                    });
+        } catch (ParseException ex) {
+            throw new IOException("Invalid images response", ex);
+        }
+
+        List<String> failed = new ArrayList<String>();
+        for (String imageId : batch) {
+            if (!written.contains(imageId)) {
+                failed.add(imageId);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * builds a request for the images of the given batch that were not written yet.
+     */
+    private static SynchronizationManager.ImagesRequestWrapper buildRequest(List<String> batch, Set<String> written) {
+        List<String> serverIds = new ArrayList<String>();
+        for (String imageId : batch) {
+            if (!written.contains(imageId)) {
+                serverIds.add(getServerImageId(imageId));
+            }
+        }
+
+        SynchronizationManager.ImagesRequestWrapper request = new SynchronizationManager.ImagesRequestWrapper();
+        request.setRequest(SettingsConstants.REQUEST_DOWNLOAD_IMAGES);
+        request.setImei(DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext()));
+        request.setImageIds(serverIds);
+        return request;
+    }
+
+    /**
+     * moves the given decoded image file to the image store if it holds a supported image and maps
+     * the image id to it. When the store already has a file with the same digest, the decoded file
+     * is dropped and the id is mapped to the stored file. The stored files keep the .jpg extension,
+     * the image decoder does not depend on the extension.
+     */
+    private boolean saveImage(String imageId, File file, String digest) {
+        String format = ImageUtils.getImageFormat(file);
+        if (format == null) {
+            Log.e(ImageDownloader.class.getName(), "Image " + imageId + " is not in a supported format");
+            return false;
+        }
+
+        File storedImage = ImageUtils.getStoredImageFile(digest);
+        if (storedImage.exists()) {
+            duplicates.incrementAndGet();
+            duplicateBytes.addAndGet(file.length());
+            file.delete();
+        } else if (!file.renameTo(storedImage)) {
+            return false;
+        }
+        imageService.saveImage(imageId, digest);
+
+        // the image was stored by id before the image store existed
+        File legacyImageFile = new File(ImageUtils.IMAGE_ROOT, imageId + ".jpg");
+        if (legacyImageFile.exists()) {
+            legacyImageFile.delete();
+        }
+        return true;
+    }
+
+    private void imageDownloaded() {
+        synchronizationManager.notifySynchronizationListeners(
+                SynchronizationEvent.progress(completed.incrementAndGet(), total, progressMessage, true));
+    }
+
+    /**
+     * the server identifies images by the part of the local image id after the first '-'.
+     */
+    private static String getServerImageId(String imageId) {
+        String[] parts = imageId.split("-");
+        return parts.length > 1 ? parts[1] : imageId;
+    }
+}
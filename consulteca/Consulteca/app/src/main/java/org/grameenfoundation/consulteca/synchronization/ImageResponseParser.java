@@ -0,0 +1,287 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.utils.Base64DecodingOutputStream;
+import org.grameenfoundation.consulteca.utils.DigestUtils;
+
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Streaming parser for the images response. The Base64 <code>imageData</code> of each image is
+ * decoded while it is being read and written straight to a temporary file in the given directory,
+ * so neither the encoded string nor the decoded image is ever held in memory. The SHA-1 digest of
+ * the decoded image is computed while it is being written.
+ * <p/>
+ * Since <code>imageId</code> may come after <code>imageData</code> in an image object, the
+ * {@link ImageListener} is only called once the whole object has been read.
+ */
+class ImageResponseParser {
+    private static final int FILE_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * receives the images parsed from the response.
+     */
+    interface ImageListener {
+
+        /**
+         * called when an image has been written to the given temporary file. The listener
+         * is responsible for moving or deleting the file.
+         *
+         * @param imageId identifier of the image as sent by the server.
+         * @param file    temporary file that contains the decoded image.
+         * @param digest  SHA-1 digest of the decoded image as a hex string.
+         */
+        void imageParsed(String imageId, File file, String digest) throws IOException;
+    }
+
+    private final File directory;
+    private Reader reader;
+    private final char[] buffer = new char[8 * 1024];
+    private int position = 0;
+    private int limit = 0;
+    private boolean successful = true;
+
+    /**
+     * @param directory directory in which the temporary image files are created.
+     */
+    ImageResponseParser(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * parses the given images response.
+     *
+     * @return false if the server returned a result code other than 0.
+     */
+    boolean parse(InputStream inputStream, ImageListener listener) throws IOException {
+        reader = new InputStreamReader(inputStream, "UTF-8");
+        successful = true;
+        parseValue(null, listener);
+        return successful;
+    }
+
+    /**
+     * parses the value that follows the given key.
+     *
+     * @return false if parsing should stop.
+     */
+    private boolean parseValue(String key, ImageListener listener) throws IOException {
+        int character = peek();
+        if (character == '{') {
+            return parseObject(listener);
+        } else if (character == '[') {
+            return parseArray(listener);
+        } else if (character == '"') {
+            String value = readString();
+            return !"resultCode".equals(key) || checkResultCode(value);
+        } else {
+            String value = readLiteral();
+            return !"resultCode".equals(key) || checkResultCode(value);
+        }
+    }
+
+    private boolean checkResultCode(String value) {
+        successful = "0".equals(value);
+        return successful;
+    }
+
+    private boolean parseObject(ImageListener listener) throws IOException {
+        expect('{');
+        String imageId = null;
+        File imageFile = null;
+        MessageDigest digest = DigestUtils.newSha1Digest();
+
+        try {
+            if (peek() == '}') {
+                read();
+                return true;
+            }
+
+            while (true) {
+                String key = readString();
+                expect(':');
+
+                if ("imageData".equalsIgnoreCase(key) && peek() == '"') {
+                    imageFile = writeImageData(digest);
+                } else if ("imageId".equalsIgnoreCase(key) && peek() == '"') {
+                    imageId = readString();
+                } else if (!parseValue(key, listener)) {
+                    return false;
+                }
+
+                int character = next();
+                if (character == '}') {
+                    break;
+                } else if (character != ',') {
+                    throw new IOException("Expected ',' or '}' but found " + (char) character);
+                }
+            }
+
+            if (imageFile != null && imageId != null) {
+                File file = imageFile;
+                imageFile = null;
+                listener.imageParsed(imageId, file, DigestUtils.toHexString(digest.digest()));
+            }
+            return true;
+        } finally {
+            if (imageFile != null) {
+                imageFile.delete();
+            }
+        }
+    }
+
+    private boolean parseArray(ImageListener listener) throws IOException {
+        expect('[');
+        if (peek() == ']') {
+            read();
+            return true;
+        }
+
+        while (true) {
+            if (!parseValue(null, listener)) {
+                return false;
+            }
+
+            int character = next();
+            if (character == ']') {
+                return true;
+            } else if (character != ',') {
+                throw new IOException("Expected ',' or ']' but found " + (char) character);
+            }
+        }
+    }
+
+    /**
+     * decodes the Base64 string at the current position into a new temporary file, updating the
+     * given digest with the decoded bytes.
+     */
+    private File writeImageData(MessageDigest digest) throws IOException {
+        expect('"');
+        File file = File.createTempFile("image", ".part", directory);
+        digest.reset();
+        OutputStream out = new Base64DecodingOutputStream(new DigestOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE), digest));
+        boolean complete = false;
+        try {
+            int character;
+            while ((character = read()) != '"') {
+                if (character == '\\') {
+                    character = readEscape();
+                }
+                out.write(character);
+            }
+            complete = true;
+        } finally {
+            out.close();
+            if (!complete) {
+                file.delete();
+            }
+        }
+        return file;
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        StringBuilder builder = new StringBuilder();
+        int character;
+        while ((character = read()) != '"') {
+            if (character == '\\') {
+                character = readEscape();
+            }
+            builder.append((char) character);
+        }
+        return builder.toString();
+    }
+
+    private int readEscape() throws IOException {
+        int character = read();
+        switch (character) {
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'u':
+                char[] hex = new char[4];
+                for (int index = 0; index < hex.length; index++) {
+                    hex[index] = (char) read();
+                }
+                return Integer.parseInt(new String(hex), 16);
+            default:
+                return character;
+        }
+    }
+
+    /**
+     * reads a number, true, false or null.
+     */
+    private String readLiteral() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int character = peek();
+        while (character != ',' && character != '}' && character != ']' && !isWhitespace(character)) {
+            builder.append((char) read());
+            character = peekRaw();
+        }
+
+        if (builder.length() == 0) {
+            throw new IOException("Unexpected character " + (char) character);
+        }
+        return builder.toString();
+    }
+
+    private void expect(char expected) throws IOException {
+        int character = next();
+        if (character != expected) {
+            throw new IOException("Expected '" + expected + "' but found " + (char) character);
+        }
+    }
+
+    /**
+     * reads the next character that is not white space.
+     */
+    private int next() throws IOException {
+        peek();
+        return read();
+    }
+
+    /**
+     * skips white space and returns the next character without consuming it.
+     */
+    private int peek() throws IOException {
+        int character = peekRaw();
+        while (isWhitespace(character)) {
+            position++;
+            character = peekRaw();
+        }
+        return character;
+    }
+
+    private int peekRaw() throws IOException {
+        if (position >= limit && !fill()) {
+            throw new EOFException("Unexpected end of images response");
+        }
+        return buffer[position];
+    }
+
+    private int read() throws IOException {
+        int character = peekRaw();
+        position++;
+        return character;
+    }
+
+    private boolean fill() throws IOException {
+        limit = reader.read(buffer, 0, buffer.length);
+        position = 0;
+        return limit > 0;
+    }
+
+    private static boolean isWhitespace(int character) {
+        return character == ' ' || character == '\n' || character == '\r' || character == '\t';
+    }
+}
@@ -0,0 +1,251 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import android.util.Log;
+import org.grameenfoundation.consulteca.model.SearchMenu;
+import org.grameenfoundation.consulteca.model.SearchMenuItem;
+import org.grameenfoundation.consulteca.utils.JsonSimpleBaseParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the keywords feed and reports the menus, menu items and images it carries to a
+ * {@link Listener}, which stores them. The menu items are reported in batches. A progressive feed
+ * sends the top level menu items first, their batch is reported as soon as the first deeper menu
+ * item arrives so that they can be shown while the rest is processed.
+ */
+class KeywordsFeedHandler extends JsonSimpleBaseParser {
+    static final int MENU_ITEMS_BATCH_SIZE = 200;
+
+    /**
+     * stores what the feed carries.
+     */
+    interface Listener {
+
+        void searchMenu(SearchMenu searchMenu);
+
+        /**
+         * called once all the menus have been reported. The menus are sent in full, so the menus
+         * that were not reported have been removed.
+         */
+        void searchMenusComplete();
+
+        /**
+         * called with a batch of menu items. The list is cleared once the call returns.
+         *
+         * @param searchMenuItems
+         * @param levelComplete   whether the batch completes the top level or all the menu items.
+         */
+        void searchMenuItems(List<SearchMenuItem> searchMenuItems, boolean levelComplete);
+
+        void deletedSearchMenuItem(String id);
+
+        /**
+         * called once all the deleted menu items have been reported, after the menu items that
+         * came before them.
+         */
+        void deletedSearchMenuItemsComplete();
+
+        /**
+         * @param imageId
+         * @param digest  SHA-1 digest of the image, or null if the server did not send it.
+         */
+        void image(String imageId, String digest);
+
+        void deletedImage(String imageId);
+
+        void progress(int step, int max);
+    }
+
+    private final CancellationToken cancellationToken;
+    private final Listener listener;
+    private final List<SearchMenuItem> pendingMenuItems = new ArrayList<SearchMenuItem>();
+    private Object keywordObject = null;
+    private String keywordType = "";
+    private String imageDigest = null;
+    private int keywordCounter = 0;
+    private int keywordCount = 0;
+    private boolean topLevelItemsReported = false;
+    private boolean successful = true;
+    private String version;
+    private boolean pendingChanges = false;
+
+    KeywordsFeedHandler(CancellationToken cancellationToken, Listener listener) {
+        this.cancellationToken = cancellationToken;
+        this.listener = listener;
+    }
+
+    /**
+     * checks whether the server reported success, the feed is only partly parsed otherwise.
+     *
+     * @return
+     */
+    boolean isSuccessful() {
+        return successful;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * checks whether the server has more changes than it sent.
+     *
+     * @return
+     */
+    boolean hasPendingChanges() {
+        return pendingChanges;
+    }
+
+    @Override
+    public boolean primitive(Object value) throws ParseException {
+        if (null != key && value != null) {
+            if (key.equals("resultCode")) {
+                if (!value.toString().equals("0")) {
+                    successful = false;
+                    return false;//request wasn't successfull
+                }
+            } else if (key.equals("resultMessage")) {
+                Log.i(KeywordsFeedHandler.class.getName(), value.toString());
+            } else if (key.equals("total")) {
+                keywordCount = Integer.parseInt(value.toString());
+                listener.progress(keywordCounter++, keywordCount);
+            } else if (key.equals("version")) {
+                version = value.toString();
+            } else if (key.equals("pendingChanges")) {
+                pendingChanges = pendingChanges || Boolean.parseBoolean(value.toString());
+            } else {
+                if (keywordObject instanceof SearchMenu) {
+                    populateSearchMenu((SearchMenu) keywordObject, key, value.toString());
+                } else if (keywordObject instanceof SearchMenuItem) {
+                    populateSearchMenuItem((SearchMenuItem) keywordObject, key, value.toString());
+                } else if ("id".equalsIgnoreCase(key) && keywordObject instanceof String
+                        && keywordType.equalsIgnoreCase("images")) {
+                    keywordObject = value;
+                } else if ("id".equalsIgnoreCase(key) && keywordObject instanceof String
+                        && keywordType.equalsIgnoreCase("deletedImages")) {
+                    keywordObject = value;
+                } else if ("sha1".equalsIgnoreCase(key) && keywordType.equalsIgnoreCase("images")) {
+                    imageDigest = value.toString();
+                } else {
+                    Log.i(KeywordsFeedHandler.class.getName(), "no implementation to process " + key);
+                }
+            }
+        }
+
+        key = null;
+        return true;
+    }
+
+    @Override
+    public boolean startArray() throws ParseException {
+        keywordType = key;
+        return true;
+    }
+
+    @Override
+    public boolean endArray() throws ParseException {
+        if ("menus".equalsIgnoreCase(keywordType)) {
+            listener.searchMenusComplete();
+        } else if ("menuItems".equalsIgnoreCase(keywordType)) {
+            reportMenuItems(true);
+        } else if ("deletedMenuItems".equalsIgnoreCase(keywordType)) {
+            reportMenuItems(false);
+            listener.deletedSearchMenuItemsComplete();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startObject() throws ParseException {
+        if ("menus".equalsIgnoreCase(keywordType)) {
+            keywordObject = new SearchMenu();
+        } else if ("menuItems".equalsIgnoreCase(keywordType)
+                || "deletedMenuItems".equalsIgnoreCase(keywordType)) {
+            keywordObject = new SearchMenuItem();
+        } else if ("images".equalsIgnoreCase(keywordType)) {
+            keywordObject = new String();
+        } else if ("deletedImages".equalsIgnoreCase(keywordType)) {
+            keywordObject = new String();
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean endObject() throws ParseException {
+        cancellationToken.throwIfCancelled();
+        if (keywordObject != null) {
+            if (keywordObject instanceof SearchMenu) {
+                listener.searchMenu((SearchMenu) keywordObject);
+            } else if (keywordObject instanceof SearchMenuItem &&
+                    keywordType.equalsIgnoreCase("menuItems")) {
+                SearchMenuItem searchMenuItem = (SearchMenuItem) keywordObject;
+                boolean topLevel = searchMenuItem.getParentId() == null
+                        || searchMenuItem.getParentId().length() == 0;
+
+                // a progressive response sends the top level items first, they are
+                // shown as soon as the first deeper item arrives
+                if (!topLevel && !topLevelItemsReported) {
+                    topLevelItemsReported = true;
+                    reportMenuItems(true);
+                }
+
+                pendingMenuItems.add(searchMenuItem);
+                if (pendingMenuItems.size() >= MENU_ITEMS_BATCH_SIZE) {
+                    reportMenuItems(false);
+                }
+
+                listener.progress(keywordCounter++, keywordCount);
+            } else if (keywordObject instanceof SearchMenuItem &&
+                    keywordType.equalsIgnoreCase("deletedMenuItems")) {
+                listener.deletedSearchMenuItem(((SearchMenuItem) keywordObject).getId());
+            } else if (keywordObject instanceof String &&
+                    keywordType.equalsIgnoreCase("images")) {
+                listener.image((String) keywordObject, imageDigest);
+            } else if (keywordObject instanceof String &&
+                    keywordType.equalsIgnoreCase("deletedImages")) {
+                listener.deletedImage((String) keywordObject);
+            }
+        }
+
+        keywordObject = null;
+        imageDigest = null;
+        return true;
+    }
+
+    /**
+     * reports the menu items that have not been reported yet, if any or if they complete a level.
+     */
+    private void reportMenuItems(boolean levelComplete) {
+        if (levelComplete || !pendingMenuItems.isEmpty()) {
+            listener.searchMenuItems(pendingMenuItems, levelComplete);
+            pendingMenuItems.clear();
+        }
+    }
+
+    private static void populateSearchMenuItem(SearchMenuItem searchMenuItem, String property, String value) {
+        if ("id".equalsIgnoreCase(property)) {
+            searchMenuItem.setId(value);
+        } else if ("position".equalsIgnoreCase(property)) {
+            searchMenuItem.setPosition(Integer.parseInt(value));
+        } else if ("parent_id".equalsIgnoreCase(property)) {
+            searchMenuItem.setParentId(value);
+        } else if ("menu_id".equalsIgnoreCase(property)) {
+            searchMenuItem.setMenuId(value);
+        } else if ("label".equalsIgnoreCase(property)) {
+            searchMenuItem.setLabel(value);
+        } else if ("content".equalsIgnoreCase(property)) {
+            searchMenuItem.setContent(value);
+        }
+    }
+
+    private static void populateSearchMenu(SearchMenu searchMenu, String property, String value) {
+        if ("id".equalsIgnoreCase(property)) {
+            searchMenu.setId(value);
+        } else if ("label".equalsIgnoreCase(property)) {
+            searchMenu.setLabel(value);
+        }
+    }
+}
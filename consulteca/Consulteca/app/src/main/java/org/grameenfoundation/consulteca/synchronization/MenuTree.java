@@ -0,0 +1,247 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.model.SearchMenu;
+import org.grameenfoundation.consulteca.model.SearchMenuItem;
+import org.grameenfoundation.consulteca.utils.DigestUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The menus and menu items as a tree of content hashes, used to find the branches in which the
+ * menus held by the device differ from those of the server. The root has the menus as its
+ * children, a menu has its top level menu items and a menu item the menu items whose parent it is.
+ * <p/>
+ * The row hash of a node is the SHA-1 digest of its own fields, the hash of a node is the digest of
+ * its row hash and of the ids and hashes of its children in the order of their ids. Two nodes with
+ * the same hash have the same content in their whole subtree. The server computes the hashes of its
+ * menus the same way, so menu ids and menu item ids must not clash.
+ */
+class MenuTree {
+    static final String ROOT_ID = "";
+
+    private final Map<String, Node> nodes = new HashMap<String, Node>();
+    private boolean indexed = false;
+
+    MenuTree() {
+        nodes.put(ROOT_ID, new Node(null, digest(new String[]{"root"})));
+    }
+
+    /**
+     * adds the given menu, replacing the menu with the same id.
+     *
+     * @param searchMenu
+     */
+    void addMenu(SearchMenu searchMenu) {
+        add(searchMenu.getId(), ROOT_ID, getRowHash(searchMenu));
+    }
+
+    /**
+     * adds the given menu item, replacing the menu item with the same id.
+     *
+     * @param searchMenuItem
+     */
+    void addMenuItem(SearchMenuItem searchMenuItem) {
+        String parentId = searchMenuItem.getParentId();
+        if (parentId == null || parentId.length() == 0) {
+            parentId = searchMenuItem.getMenuId();
+        }
+        add(searchMenuItem.getId(), parentId, getRowHash(searchMenuItem));
+    }
+
+    private void add(String id, String parentId, String rowHash) {
+        if (id == null || id.length() == 0 || id.equals(parentId)) {
+            return;
+        }
+        nodes.put(id, new Node(parentId, rowHash));
+        indexed = false;
+    }
+
+    boolean contains(String id) {
+        return nodes.containsKey(id);
+    }
+
+    /**
+     * checks whether the node with the given id is a menu.
+     *
+     * @param id
+     * @return
+     */
+    boolean isMenu(String id) {
+        Node node = nodes.get(id);
+        return node != null && ROOT_ID.equals(node.parentId);
+    }
+
+    /**
+     * gets the number of menus and menu items in the tree.
+     *
+     * @return
+     */
+    int size() {
+        return nodes.size() - 1;
+    }
+
+    /**
+     * gets the hash of the subtree of the node with the given id.
+     *
+     * @param id
+     * @return the hash, or null if the node is not in the tree.
+     */
+    String getHash(String id) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            return null;
+        }
+        index();
+        return computeHash(node);
+    }
+
+    /**
+     * gets the hash of the own fields of the node with the given id.
+     *
+     * @param id
+     * @return the hash, or null if the node is not in the tree.
+     */
+    String getRowHash(String id) {
+        Node node = nodes.get(id);
+        return node == null ? null : node.rowHash;
+    }
+
+    /**
+     * gets the ids of the children of the node with the given id, in order.
+     *
+     * @param id
+     * @return
+     */
+    List<String> getChildren(String id) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        index();
+        return node.children;
+    }
+
+    /**
+     * adds the ids of the node with the given id and of all its descendants to the given collection.
+     *
+     * @param id
+     * @param ids
+     */
+    void collectSubtree(String id, Collection<String> ids) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            return;
+        }
+        index();
+
+        List<String> pending = new ArrayList<String>();
+        pending.add(id);
+        while (!pending.isEmpty()) {
+            String nextId = pending.remove(pending.size() - 1);
+            if (!ROOT_ID.equals(nextId) && !ids.contains(nextId)) {
+                ids.add(nextId);
+            }
+            pending.addAll(nodes.get(nextId).children);
+        }
+    }
+
+    /**
+     * links the nodes to their parents and clears the computed hashes.
+     */
+    private void index() {
+        if (indexed) {
+            return;
+        }
+
+        for (Node node : nodes.values()) {
+            node.children.clear();
+            node.hash = null;
+        }
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            Node parent = entry.getValue().parentId == null ? null : nodes.get(entry.getValue().parentId);
+            if (parent != null && !entry.getKey().equals(entry.getValue().parentId)) {
+                parent.children.add(entry.getKey());
+            }
+        }
+        for (Node node : nodes.values()) {
+            Collections.sort(node.children);
+        }
+
+        // a node whose parent chain loops is cut off from its parent
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            String ancestorId = entry.getValue().parentId;
+            for (int depth = 0; ancestorId != null && depth <= nodes.size(); depth++) {
+                if (ancestorId.equals(entry.getKey())) {
+                    nodes.get(entry.getValue().parentId).children.remove(entry.getKey());
+                    break;
+                }
+                Node ancestor = nodes.get(ancestorId);
+                ancestorId = ancestor == null ? null : ancestor.parentId;
+            }
+        }
+        indexed = true;
+    }
+
+    private String computeHash(Node node) {
+        if (node.hash == null) {
+            String[] fields = new String[1 + node.children.size() * 2];
+            fields[0] = node.rowHash;
+            for (int index = 0; index < node.children.size(); index++) {
+                String childId = node.children.get(index);
+                fields[1 + index * 2] = childId;
+                fields[2 + index * 2] = computeHash(nodes.get(childId));
+            }
+            node.hash = digest(fields);
+        }
+        return node.hash;
+    }
+
+    static String getRowHash(SearchMenu searchMenu) {
+        return digest(new String[]{"menu", searchMenu.getId(), searchMenu.getLabel()});
+    }
+
+    static String getRowHash(SearchMenuItem searchMenuItem) {
+        return digest(new String[]{"menuItem", searchMenuItem.getId(), searchMenuItem.getLabel(),
+                String.valueOf(searchMenuItem.getPosition()), searchMenuItem.getContent(),
+                searchMenuItem.getMenuId(), searchMenuItem.getParentId(), searchMenuItem.getAttachmentId()});
+    }
+
+    /**
+     * gets the hex SHA-1 digest of the given fields, each prefixed with its length so that the
+     * boundaries between fields are part of the digest. A null field is the same as an empty one.
+     */
+    private static String digest(String[] fields) {
+        MessageDigest digest = DigestUtils.newSha1Digest();
+        try {
+            for (String field : fields) {
+                byte[] bytes = field == null ? new byte[0] : field.getBytes("UTF-8");
+                digest.update(new byte[]{(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                        (byte) (bytes.length >>> 8), (byte) bytes.length});
+                digest.update(bytes);
+            }
+        } catch (UnsupportedEncodingException ex) {
+            // every java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+        return DigestUtils.toHexString(digest.digest());
+    }
+
+    private static class Node {
+        private final String parentId;
+        private final String rowHash;
+        private final List<String> children = new ArrayList<String>();
+        private String hash;
+
+        private Node(String parentId, String rowHash) {
+            this.parentId = parentId;
+            this.rowHash = rowHash;
+        }
+    }
+}
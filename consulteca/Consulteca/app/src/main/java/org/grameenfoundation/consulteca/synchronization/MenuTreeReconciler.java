@@ -0,0 +1,250 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.model.SearchMenu;
+import org.grameenfoundation.consulteca.model.SearchMenuItem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the changes between the menus held by the device and those of the server by comparing the
+ * hashes of their {@link MenuTree}s, one level at a time. The client sends the hashes of the nodes
+ * it wants to compare, starting with the root. For each node whose hash differs the server sends
+ * the ids and hashes of its children, and the record of the node if its own fields differ. The
+ * client then only descends into the children whose hashes differ, so that a change costs the
+ * hashes along its path instead of a download of every menu item changed since a version.
+ * <p/>
+ * A node that the client does not have is sent with its whole subtree in one response. The local
+ * children that the server no longer has are removed with their subtrees, unless the server sent
+ * them again under another parent.
+ */
+class MenuTreeReconciler {
+    static final String RESULT_CODE_SUCCESS = "0";
+    private static final int MAX_ROUNDS = 32;
+
+    /**
+     * sends the hashes of a round to the server.
+     */
+    interface Exchange {
+        /**
+         * sends the given node hashes to the server.
+         *
+         * @param nodes
+         * @return the response of the server, or null if the server does not support reconciliation.
+         * @throws IOException
+         */
+        Response send(List<NodeHash> nodes) throws IOException;
+    }
+
+    private final MenuTree localTree;
+    private final Exchange exchange;
+    private final List<SearchMenu> changedMenus = new ArrayList<SearchMenu>();
+    private final List<SearchMenuItem> changedMenuItems = new ArrayList<SearchMenuItem>();
+    private final List<String> deletedMenuIds = new ArrayList<String>();
+    private final List<String> deletedMenuItemIds = new ArrayList<String>();
+    private String version;
+    private int rounds;
+
+    MenuTreeReconciler(MenuTree localTree, Exchange exchange) {
+        this.localTree = localTree;
+        this.exchange = exchange;
+    }
+
+    /**
+     * compares the local tree with that of the server and collects the changes.
+     *
+     * @return false if the server does not support reconciliation, or the trees could not be
+     * reconciled, in which case no changes have been collected.
+     * @throws IOException
+     */
+    boolean reconcile() throws IOException {
+        Set<String> receivedIds = new HashSet<String>();
+        Set<String> removedIds = new HashSet<String>();
+
+        List<NodeHash> pending = new ArrayList<NodeHash>();
+        pending.add(new NodeHash(MenuTree.ROOT_ID, localTree.getHash(MenuTree.ROOT_ID),
+                localTree.getRowHash(MenuTree.ROOT_ID)));
+        for (rounds = 0; rounds < MAX_ROUNDS && !pending.isEmpty(); rounds++) {
+            Response response = exchange.send(pending);
+            if (response == null || !RESULT_CODE_SUCCESS.equals(response.resultCode)) {
+                clear();
+                return false;
+            }
+            if (response.version != null) {
+                version = response.version;
+            }
+
+            if (response.menus != null) {
+                for (MenuRecord record : response.menus) {
+                    changedMenus.add(record.toSearchMenu());
+                    receivedIds.add(record.id);
+                }
+            }
+            if (response.menuItems != null) {
+                for (MenuItemRecord record : response.menuItems) {
+                    changedMenuItems.add(record.toSearchMenuItem());
+                    receivedIds.add(record.id);
+                }
+            }
+
+            pending = new ArrayList<NodeHash>();
+            if (response.nodes != null) {
+                for (Node node : response.nodes) {
+                    compareChildren(node, pending, removedIds);
+                }
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            clear();
+            return false;
+        }
+
+        removedIds.removeAll(receivedIds);
+        for (String id : removedIds) {
+            if (localTree.isMenu(id)) {
+                deletedMenuIds.add(id);
+            } else {
+                deletedMenuItemIds.add(id);
+            }
+        }
+        return true;
+    }
+
+    private void compareChildren(Node node, List<NodeHash> pending, Set<String> removedIds) {
+        Set<String> serverChildren = new HashSet<String>();
+        if (node.children != null) {
+            for (NodeHash child : node.children) {
+                serverChildren.add(child.id);
+                String localHash = localTree.getHash(child.id);
+                if (child.hash == null || !child.hash.equals(localHash)) {
+                    pending.add(new NodeHash(child.id, localHash, localTree.getRowHash(child.id)));
+                }
+            }
+        }
+
+        for (String localChild : localTree.getChildren(node.id)) {
+            if (!serverChildren.contains(localChild)) {
+                localTree.collectSubtree(localChild, removedIds);
+            }
+        }
+    }
+
+    private void clear() {
+        changedMenus.clear();
+        changedMenuItems.clear();
+        deletedMenuIds.clear();
+        deletedMenuItemIds.clear();
+    }
+
+    List<SearchMenu> getChangedMenus() {
+        return changedMenus;
+    }
+
+    List<SearchMenuItem> getChangedMenuItems() {
+        return changedMenuItems;
+    }
+
+    List<String> getDeletedMenuIds() {
+        return deletedMenuIds;
+    }
+
+    List<String> getDeletedMenuItemIds() {
+        return deletedMenuItemIds;
+    }
+
+    /**
+     * gets the keywords version of the server at the time of the reconciliation.
+     *
+     * @return
+     */
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * gets the number of exchanges with the server that the reconciliation took.
+     *
+     * @return
+     */
+    int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * The hashes of a node. A node that the client does not have is sent without hashes.
+     */
+    static class NodeHash {
+        String id;
+        String hash;
+        String rowHash;
+
+        NodeHash() {
+        }
+
+        NodeHash(String id, String hash, String rowHash) {
+            this.id = id;
+            this.hash = hash;
+            this.rowHash = rowHash;
+        }
+    }
+
+    /**
+     * A node of the server whose hash differs from that sent by the client, with the hashes of its
+     * children.
+     */
+    static class Node {
+        String id;
+        List<NodeHash> children;
+    }
+
+    static class MenuRecord {
+        String id;
+        String label;
+
+        SearchMenu toSearchMenu() {
+            SearchMenu searchMenu = new SearchMenu();
+            searchMenu.setId(id);
+            searchMenu.setLabel(label);
+            return searchMenu;
+        }
+    }
+
+    static class MenuItemRecord {
+        String id;
+        String label;
+        int position;
+        String content;
+        String menuId;
+        String parentId;
+        String attachmentId;
+
+        SearchMenuItem toSearchMenuItem() {
+            SearchMenuItem searchMenuItem = new SearchMenuItem();
+            searchMenuItem.setId(id);
+            searchMenuItem.setLabel(label);
+            searchMenuItem.setPosition(position);
+            searchMenuItem.setContent(content);
+            searchMenuItem.setMenuId(menuId);
+            searchMenuItem.setParentId(parentId);
+            searchMenuItem.setAttachmentId(attachmentId);
+            return searchMenuItem;
+        }
+    }
+
+    /**
+     * The response of the server to a round, with the records of the nodes whose own fields differ
+     * or that the client does not have.
+     */
+    static class Response {
+        String resultCode;
+        String resultMessage;
+        String version;
+        List<Node> nodes;
+        List<MenuRecord> menus;
+        List<MenuItemRecord> menuItems;
+    }
+}
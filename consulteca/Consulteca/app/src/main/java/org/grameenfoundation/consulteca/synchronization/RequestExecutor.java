@@ -0,0 +1,318 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import android.util.Log;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.MalformedChunkCodingException;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.grameenfoundation.consulteca.settings.SettingsConstants;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+import org.grameenfoundation.consulteca.utils.NetworkScheduler;
+import org.grameenfoundation.consulteca.utils.PerformanceCounters;
+import org.json.simple.parser.ParseException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Executes the requests of a synchronization with the timeout of their endpoint, retries and a
+ * circuit breaker, so that a dropped connection or a busy server does not fail the whole
+ * synchronization.
+ * <ul>
+ * <li>A request that fails with a network error or a 408, 429 or 5xx status is retried after an
+ * exponential backoff with jitter, or after the delay the server asked for with Retry-After. Any
+ * other failure, e.g. a content that cannot be parsed, is neither retried nor counted against the
+ * server.</li>
+ * <li>A request that is not idempotent is only retried if it failed before it reached the
+ * server, i.e. while connecting.</li>
+ * <li>The failures of the requests to a server are counted by a {@link CircuitBreaker} shared
+ * by all the synchronizations of the process. While it is open the requests fail at once with a
+ * {@link CircuitOpenException} instead of waiting for timeouts from a server that is down.</li>
+ * </ul>
+ * The requests are made with the priority of the synchronization, see {@link NetworkScheduler}.
+ * The retries, timeouts and rejected requests are counted in the {@link PerformanceCounters}.
+ */
+class RequestExecutor {
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+
+    private static final int BREAKER_FAILURE_THRESHOLD = 5;
+    private static final long BREAKER_OPEN_MILLIS = 30 * 1000;
+    private static final long BREAKER_MAX_OPEN_MILLIS = 5 * 60 * 1000;
+
+    private static final Policy DEFAULT_POLICY = new Policy(60 * 1000, 3, true);
+    private static final Map<String, Policy> POLICIES = new HashMap<String, Policy>();
+
+    static {
+        // the keywords feed may take the server a while to start sending
+        POLICIES.put(SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS, new Policy(2 * 60 * 1000, 3, true));
+        POLICIES.put(SettingsConstants.REQUEST_DOWNLOAD_FARMERS, new Policy(60 * 1000, 4, true));
+        POLICIES.put(SettingsConstants.REQUEST_DOWNLOAD_IMAGES, new Policy(60 * 1000, 3, true));
+        POLICIES.put(SettingsConstants.REQUEST_RECONCILE_KEYWORDS, new Policy(30 * 1000, 2, true));
+        // the server ignores a chunk of search logs it has already received, see its idempotency key
+        POLICIES.put(SettingsConstants.REQUEST_UPLOAD_SEARCHLOGS, new Policy(60 * 1000, 4, true));
+        POLICIES.put(SettingsConstants.REQUEST_GET_COUNTRY_CODE, new Policy(30 * 1000, 3, true));
+    }
+
+    private static final Map<String, CircuitBreaker> circuitBreakers = new HashMap<String, CircuitBreaker>();
+
+    private final CancellationToken cancellationToken;
+    private final NetworkScheduler.Priority priority;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random random = new Random();
+
+    RequestExecutor(CancellationToken cancellationToken) {
+        this(cancellationToken, NetworkScheduler.Priority.FOREGROUND);
+    }
+
+    RequestExecutor(CancellationToken cancellationToken, NetworkScheduler.Priority priority) {
+        this(cancellationToken, priority, BASE_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+    }
+
+    RequestExecutor(CancellationToken cancellationToken, long baseBackoffMillis, long maxBackoffMillis) {
+        this(cancellationToken, NetworkScheduler.Priority.FOREGROUND, baseBackoffMillis, maxBackoffMillis);
+    }
+
+    RequestExecutor(CancellationToken cancellationToken, NetworkScheduler.Priority priority, long baseBackoffMillis,
+                    long maxBackoffMillis) {
+        this.cancellationToken = cancellationToken;
+        this.priority = priority;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * gets the policy of the given endpoint.
+     *
+     * @param endpoint one of the request names of {@link SettingsConstants}.
+     * @return
+     */
+    static Policy getPolicy(String endpoint) {
+        Policy policy = POLICIES.get(endpoint);
+        return policy == null ? DEFAULT_POLICY : policy;
+    }
+
+    /**
+     * gets the circuit breaker of the server of the given url.
+     *
+     * @param url
+     * @return
+     */
+    static CircuitBreaker getCircuitBreaker(String url) {
+        String host = getHost(url);
+        synchronized (circuitBreakers) {
+            CircuitBreaker circuitBreaker = circuitBreakers.get(host);
+            if (circuitBreaker == null) {
+                circuitBreaker = new CircuitBreaker(BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MILLIS,
+                        BREAKER_MAX_OPEN_MILLIS);
+                circuitBreakers.put(host, circuitBreaker);
+            }
+            return circuitBreaker;
+        }
+    }
+
+    /**
+     * executes the given call with the policy of the given endpoint.
+     *
+     * @see #execute(Policy, String, Call)
+     */
+    <T> T execute(String endpoint, String url, Call<T> call) throws IOException, ParseException {
+        return execute(getPolicy(endpoint), url, call);
+    }
+
+    /**
+     * executes the given call, retrying it as the given policy allows. The call must send the
+     * request and read the response, so that a response that breaks off is retried as well, and
+     * must throw an {@link HttpStatusException} for an error status, see {@link #checkStatus(HttpResponse)}.
+     *
+     * @param policy
+     * @param url    the url the call sends its request to.
+     * @param call
+     * @return the result of the call.
+     * @throws IOException the failure of the last attempt, or a {@link CircuitOpenException}.
+     */
+    <T> T execute(Policy policy, String url, Call<T> call) throws IOException, ParseException {
+        NetworkScheduler scheduler = NetworkScheduler.getInstance();
+        NetworkScheduler.Priority threadPriority = scheduler.getThreadPriority();
+        scheduler.setThreadPriority(priority);
+        try {
+            return executeAttempts(policy, url, call);
+        } finally {
+            scheduler.setThreadPriority(threadPriority);
+        }
+    }
+
+    private <T> T executeAttempts(Policy policy, String url, Call<T> call) throws IOException, ParseException {
+        CircuitBreaker circuitBreaker = getCircuitBreaker(url);
+        for (int attempt = 1; ; attempt++) {
+            cancellationToken.throwIfCancelled();
+            long now = System.currentTimeMillis();
+            if (!circuitBreaker.allowRequest(now)) {
+                PerformanceCounters.addRequestRejected();
+                throw new CircuitOpenException(getHost(url), circuitBreaker.getRemainingOpenMillis(now));
+            }
+
+            IOException failure;
+            try {
+                T result = call.call(policy.networkTimeout);
+                circuitBreaker.recordSuccess();
+                return result;
+            } catch (IOException ex) {
+                failure = ex;
+            } catch (ParseException ex) {
+                // the server is up, the content it sent is the problem
+                circuitBreaker.recordSuccess();
+                throw ex;
+            } catch (RuntimeException ex) {
+                circuitBreaker.recordAbandoned();
+                throw ex;
+            }
+
+            boolean transientFailure = isTransient(failure);
+            if (failure instanceof InterruptedIOException) {
+                PerformanceCounters.addRequestTimeout();
+            }
+            if (!transientFailure) {
+                // the server is up, it just did not like the request
+                circuitBreaker.recordSuccess();
+                throw failure;
+            }
+            if (circuitBreaker.recordFailure(System.currentTimeMillis())) {
+                Log.w(RequestExecutor.class.getName(), "Suspending requests to " + getHost(url)
+                        + " after repeated failures");
+            }
+            if (attempt >= policy.maxAttempts || (!policy.idempotent && !isConnectFailure(failure))) {
+                throw failure;
+            }
+
+            long delay = getBackoff(attempt, failure);
+            Log.w(RequestExecutor.class.getName(), "Attempt " + attempt + " of " + policy.maxAttempts
+                    + " failed (" + failure + "), retrying in " + delay + " ms");
+            PerformanceCounters.addRequestRetry();
+            cancellationToken.sleep(delay);
+        }
+    }
+
+    /**
+     * throws an {@link HttpStatusException} if the given response has an error status, after
+     * consuming its content so that its connection can be reused.
+     *
+     * @param response
+     * @throws HttpStatusException
+     */
+    static void checkStatus(HttpResponse response) throws HttpStatusException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode < HttpStatus.SC_BAD_REQUEST) {
+            return;
+        }
+
+        long retryAfterMillis = -1;
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            try {
+                retryAfterMillis = Long.parseLong(retryAfter.getValue().trim()) * 1000;
+            } catch (NumberFormatException ex) {
+                // an HTTP date, the backoff is used instead
+            }
+        }
+        HttpHelpers.consume(response);
+        throw new HttpStatusException(statusCode, retryAfterMillis);
+    }
+
+    /**
+     * gets the delay before the attempt after the given one: an exponential backoff with equal
+     * jitter, so that devices that failed together do not retry together, or the delay the server
+     * asked for.
+     */
+    long getBackoff(int attempt, IOException ex) {
+        if (ex instanceof HttpStatusException && ((HttpStatusException) ex).getRetryAfterMillis() >= 0) {
+            return Math.min(((HttpStatusException) ex).getRetryAfterMillis(), maxBackoffMillis);
+        }
+
+        long backoff = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+        return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    /**
+     * checks whether the given failure may go away if the request is sent again, i.e. whether it is
+     * an error status that may or a failure of the connection. A content the client cannot read or
+     * a file it cannot write fails the same way on every attempt, and says nothing about the
+     * server, nor does a certificate that is not trusted.
+     */
+    static boolean isTransient(IOException ex) {
+        if (ex instanceof HttpStatusException) {
+            return isTransientStatus(((HttpStatusException) ex).getStatusCode());
+        }
+        return isConnectFailure(ex) || ex instanceof InterruptedIOException
+                || ex instanceof SocketException
+                || ex instanceof NoHttpResponseException || ex instanceof ConnectionClosedException
+                || ex instanceof MalformedChunkCodingException
+                // the response broke off before the end of its content
+                || ex instanceof EOFException;
+    }
+
+    /**
+     * checks whether a response with the given status may succeed if the request is sent again.
+     */
+    static boolean isTransientStatus(int statusCode) {
+        return statusCode == HttpStatus.SC_REQUEST_TIMEOUT || statusCode == 429
+                || statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * checks whether the given failure happened before the request was sent.
+     */
+    private static boolean isConnectFailure(IOException ex) {
+        return ex instanceof ConnectException || ex instanceof ConnectTimeoutException
+                || ex instanceof UnknownHostException;
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = URI.create(url).getAuthority();
+            return host == null ? url : host;
+        } catch (IllegalArgumentException ex) {
+            return url;
+        }
+    }
+
+    /**
+     * A request, sent and read by {@link #call(int)} with the given timeout.
+     */
+    interface Call<T> {
+        T call(int networkTimeout) throws IOException, ParseException;
+    }
+
+    /**
+     * How the requests to an endpoint are executed.
+     */
+    static class Policy {
+        final int networkTimeout;
+        final int maxAttempts;
+        final boolean idempotent;
+
+        /**
+         * @param networkTimeout the connection and socket timeout of a request, in milliseconds.
+         * @param maxAttempts    the number of times a request is sent at most.
+         * @param idempotent     whether sending the request again has no other effect than sending
+         *                       it once.
+         */
+        Policy(int networkTimeout, int maxAttempts, boolean idempotent) {
+            this.networkTimeout = networkTimeout;
+            this.maxAttempts = maxAttempts;
+            this.idempotent = idempotent;
+        }
+    }
+}
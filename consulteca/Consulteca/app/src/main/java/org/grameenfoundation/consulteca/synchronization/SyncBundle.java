@@ -0,0 +1,46 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sync bundle carries everything a synchronization downloads in a single zip file, so that a
+ * device without a data connection can be provisioned from a file copied to its SD card. The
+ * bundle holds:
+ * <ul>
+ * <li><code>manifest.json</code>, the {@link Manifest} with the versions of the content and the
+ * digests of the images by image id;</li>
+ * <li><code>keywords</code>, a keywords feed as the server sends it, in JSON or in the
+ * {@link org.grameenfoundation.consulteca.utils.BinaryFeedFormat};</li>
+ * <li><code>farmers/00000</code>, <code>farmers/00001</code>, ..., the pages of the farmers feed;</li>
+ * <li><code>images/&lt;sha1&gt;</code>, the image files, one entry per distinct content.</li>
+ * </ul>
+ * Bundles are written by {@link SyncBundleWriter}, either on a synchronized device or on a
+ * workstation by the <code>SyncBundleTool</code> of the tools module from responses saved from
+ * the server, and imported with
+ * {@link SynchronizationManager#importBundle(java.io.File)}.
+ */
+class SyncBundle {
+    static final int FORMAT = 1;
+    static final String DEFAULT_FILE_NAME = "consulteca-bundle.zip";
+    static final String MANIFEST_ENTRY = "manifest.json";
+    static final String KEYWORDS_ENTRY = "keywords";
+    static final String FARMERS_ENTRY_PREFIX = "farmers/";
+    static final String IMAGES_ENTRY_PREFIX = "images/";
+
+    private SyncBundle() {
+    }
+
+    /**
+     * The versions of the content of a bundle. Once the bundle has been imported they are the
+     * versions of the device, so the next synchronization only downloads what changed since.
+     */
+    static class Manifest {
+        int format = FORMAT;
+        long created;
+        String keywordsVersion;
+        String imagesVersion;
+        String farmersVersion;
+        Map<String, String> images = new HashMap<String, String>();
+    }
+}
@@ -0,0 +1,161 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.grameenfoundation.consulteca.utils.DigestUtils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads a {@link SyncBundle}. The entries are read in place from the zip file, in any order, so
+ * the bundle is never extracted as a whole.
+ */
+class SyncBundleReader implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ZipFile zipFile;
+    private final SyncBundle.Manifest manifest;
+    private final List<String> farmersPages = new ArrayList<String>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * opens the given bundle and reads its manifest.
+     *
+     * @param file
+     * @throws IOException if the file is not a bundle or has a format this version cannot read.
+     */
+    SyncBundleReader(File file) throws IOException {
+        zipFile = new ZipFile(file);
+        try {
+            ZipEntry manifestEntry = zipFile.getEntry(SyncBundle.MANIFEST_ENTRY);
+            if (manifestEntry == null) {
+                throw new IOException(file + " is not a sync bundle");
+            }
+
+            InputStreamReader reader = new InputStreamReader(zipFile.getInputStream(manifestEntry), "UTF-8");
+            try {
+                manifest = new Gson().fromJson(reader, SyncBundle.Manifest.class);
+            } catch (JsonParseException ex) {
+                throw new IOException("The manifest of " + file + " is not valid: " + ex.getMessage());
+            } finally {
+                reader.close();
+            }
+            if (manifest == null || manifest.format != SyncBundle.FORMAT) {
+                throw new IOException("The sync bundle " + file + " has an unsupported format");
+            }
+
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.startsWith(SyncBundle.FARMERS_ENTRY_PREFIX)) {
+                    farmersPages.add(name);
+                }
+            }
+            Collections.sort(farmersPages);
+        } catch (IOException ex) {
+            zipFile.close();
+            throw ex;
+        }
+    }
+
+    SyncBundle.Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * gets the keywords feed.
+     *
+     * @return the feed, or null if the bundle has none.
+     * @throws IOException
+     */
+    InputStream getKeywords() throws IOException {
+        return getEntry(SyncBundle.KEYWORDS_ENTRY);
+    }
+
+    /**
+     * gets the names of the pages of the farmers feed, in order.
+     *
+     * @return
+     */
+    List<String> getFarmersPages() {
+        return farmersPages;
+    }
+
+    /**
+     * gets the content of the given entry.
+     *
+     * @param name
+     * @return the content, or null if the bundle has no such entry.
+     * @throws IOException
+     */
+    InputStream getEntry(String name) throws IOException {
+        ZipEntry entry = zipFile.getEntry(name);
+        return entry == null ? null : new BufferedInputStream(zipFile.getInputStream(entry), BUFFER_SIZE);
+    }
+
+    /**
+     * gets the digest of the image with the given id.
+     *
+     * @param imageId
+     * @return the digest, or null if the bundle does not have the image.
+     */
+    String getImageDigest(String imageId) {
+        return manifest.images == null ? null : manifest.images.get(imageId.toLowerCase(Locale.US));
+    }
+
+    /**
+     * writes the image with the given digest to the given file and checks its digest.
+     *
+     * @param digest
+     * @param destination
+     * @return false if the bundle does not have the image or its content does not match the digest,
+     * in which case the file is not left behind.
+     * @throws IOException
+     */
+    boolean extractImage(String digest, File destination) throws IOException {
+        ZipEntry entry = zipFile.getEntry(SyncBundle.IMAGES_ENTRY_PREFIX + digest.toLowerCase(Locale.US));
+        if (entry == null) {
+            return false;
+        }
+
+        MessageDigest messageDigest = DigestUtils.newSha1Digest();
+        InputStream inputStream = zipFile.getInputStream(entry);
+        OutputStream outputStream = new DigestOutputStream(new FileOutputStream(destination), messageDigest);
+        boolean matches = false;
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            matches = digest.equalsIgnoreCase(DigestUtils.toHexString(messageDigest.digest()));
+        } finally {
+            inputStream.close();
+            outputStream.close();
+            if (!matches) {
+                destination.delete();
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipFile.close();
+    }
+}
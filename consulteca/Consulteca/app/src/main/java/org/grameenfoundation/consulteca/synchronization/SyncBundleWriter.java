@@ -0,0 +1,146 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.Gson;
+import org.grameenfoundation.consulteca.utils.DigestUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a {@link SyncBundle}. The feeds are written to the streams returned by
+ * {@link #startKeywords()} and {@link #startFarmersPage()}, which stay valid until the next entry
+ * is started, and the manifest is written last by {@link #finish(String, String, String)}. The
+ * feeds are compressed, the images are stored as they are since they are compressed already.
+ */
+class SyncBundleWriter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ZipOutputStream zipOutputStream;
+    private final OutputStream entryOutputStream;
+    private final Set<String> storedDigests = new HashSet<String>();
+    private final SyncBundle.Manifest manifest = new SyncBundle.Manifest();
+    private final byte[] buffer = new byte[16 * 1024];
+    private int farmersPages = 0;
+
+    SyncBundleWriter(OutputStream outputStream) {
+        zipOutputStream = new ZipOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+        // the feed writers close their streams, which must not close the bundle
+        entryOutputStream = new FilterOutputStream(zipOutputStream) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * starts the keywords feed.
+     *
+     * @return the stream to write the feed to.
+     * @throws IOException
+     */
+    OutputStream startKeywords() throws IOException {
+        startEntry(SyncBundle.KEYWORDS_ENTRY, Deflater.BEST_SPEED);
+        return entryOutputStream;
+    }
+
+    /**
+     * starts the next page of the farmers feed.
+     *
+     * @return the stream to write the page to.
+     * @throws IOException
+     */
+    OutputStream startFarmersPage() throws IOException {
+        startEntry(SyncBundle.FARMERS_ENTRY_PREFIX + String.format(Locale.US, "%05d", farmersPages++),
+                Deflater.BEST_SPEED);
+        return entryOutputStream;
+    }
+
+    /**
+     * adds the image with the given id. The content of an image is only stored once, however many
+     * ids refer to it.
+     *
+     * @param imageId
+     * @param digest  SHA-1 digest of the image, or null to compute it from the file.
+     * @param file
+     * @return the digest of the image.
+     * @throws IOException
+     */
+    String addImage(String imageId, String digest, File file) throws IOException {
+        if (digest == null) {
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                digest = DigestUtils.sha1Hex(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+        digest = digest.toLowerCase(Locale.US);
+
+        if (storedDigests.add(digest)) {
+            startEntry(SyncBundle.IMAGES_ENTRY_PREFIX + digest, Deflater.NO_COMPRESSION);
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    zipOutputStream.write(buffer, 0, read);
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+        manifest.images.put(imageId.toLowerCase(Locale.US), digest);
+        return digest;
+    }
+
+    /**
+     * writes the manifest with the given versions and completes the bundle.
+     *
+     * @param keywordsVersion
+     * @param imagesVersion
+     * @param farmersVersion
+     * @throws IOException
+     */
+    void finish(String keywordsVersion, String imagesVersion, String farmersVersion) throws IOException {
+        manifest.created = System.currentTimeMillis();
+        manifest.keywordsVersion = keywordsVersion;
+        manifest.imagesVersion = imagesVersion;
+        manifest.farmersVersion = farmersVersion;
+
+        startEntry(SyncBundle.MANIFEST_ENTRY, Deflater.BEST_SPEED);
+        Writer writer = new OutputStreamWriter(entryOutputStream, "UTF-8");
+        new Gson().toJson(manifest, writer);
+        writer.flush();
+        zipOutputStream.closeEntry();
+        zipOutputStream.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipOutputStream.close();
+    }
+
+    private void startEntry(String name, int level) throws IOException {
+        zipOutputStream.setLevel(level);
+        zipOutputStream.putNextEntry(new ZipEntry(name));
+    }
+}
@@ -3,15 +3,23 @@ package org.grameenfoundation.consulteca.synchronization;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
 import org.grameenfoundation.consulteca.ApplicationRegistry;
 import org.grameenfoundation.consulteca.GlobalConstants;
 import org.grameenfoundation.consulteca.R;
 import org.grameenfoundation.consulteca.utils.DeviceMetadata;
 
 /**
- * Handler the broadcast message to start background synchronization.
+ * Handler the broadcast message to start background synchronization. The synchronization is
+ * skipped when the device is offline or its battery is low and not charging, it will be tried
+ * again at the next scheduled time.
  */
 public class SynchBroadcastReceiver extends BroadcastReceiver {
+    private static final int LOW_BATTERY_PERCENTAGE = 15;
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -27,7 +35,48 @@ public class SynchBroadcastReceiver extends BroadcastReceiver {
         ApplicationRegistry.register(GlobalConstants.KEY_CACHED_APPLICATION_VERSION,
                 context.getResources().getString(R.string.app_name) + "/" + R.string.app_version);
 
+        // schedules the next synchronization now, in case this one never reports its result.
+        // The background synchronization service reschedules it when the synchronization ends.
+        BackgroundSynchronizationConfigurer.scheduleNextSynchronization(context);
+
+        if (!isNetworkAvailable(context)) {
+            Log.i(SynchBroadcastReceiver.class.getName(), "Skipping background synchronization, device is offline");
+            return;
+        }
+        if (isBatteryLow(context)) {
+            Log.i(SynchBroadcastReceiver.class.getName(), "Skipping background synchronization, battery is low");
+            return;
+        }
+
+        // connects to the server while the service starts
+        SynchronizationManager.getInstance().warmUp();
+
         Intent backgroundServiceIntent = new Intent(context, BackgroundSynchronizationService.class);
         context.startService(backgroundServiceIntent);
     }
+
+    private boolean isNetworkAvailable(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    private boolean isBatteryLow(Context context) {
+        // the battery status is a sticky broadcast, it can be read without registering a receiver
+        Intent batteryStatus = context.getApplicationContext()
+                .registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (batteryStatus == null) {
+            return false;
+        }
+
+        int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return false;
+        }
+
+        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENTAGE;
+    }
 }
@@ -0,0 +1,13 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+/**
+ * Thrown from within a synchronization when it has been stopped. It is unchecked so that it can
+ * leave the json parser callbacks, and it must not be swallowed by the error handling of the
+ * synchronization stages.
+ */
+public class SynchronizationCancelledException extends RuntimeException {
+
+    public SynchronizationCancelledException() {
+        super("The synchronization has been cancelled");
+    }
+}
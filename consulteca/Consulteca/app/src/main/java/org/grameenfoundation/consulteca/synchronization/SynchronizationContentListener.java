@@ -0,0 +1,15 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+/**
+ * Interface implemented by synchronization listeners that would like to show the downloaded
+ * content while the synchronization is still running.
+ */
+public interface SynchronizationContentListener extends SynchronizationListener {
+
+    /**
+     * called when a part of the downloaded content has been committed and can be shown, e.g.
+     * the menus and their top level items, while the deeper levels and the images are still
+     * being downloaded.
+     */
+    void synchronizationContentAvailable();
+}
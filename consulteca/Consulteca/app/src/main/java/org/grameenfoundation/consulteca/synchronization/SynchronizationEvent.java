@@ -0,0 +1,201 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+/**
+ * An event raised by the {@link SynchronizationManager}. Each event knows which
+ * {@link SynchronizationListener} method it is delivered to.
+ *
+ * @see SynchronizationEventDispatcher
+ */
+public abstract class SynchronizationEvent {
+
+    /**
+     * delivers this event to the given listener.
+     *
+     * @param listener
+     */
+    abstract void dispatch(SynchronizationListener listener);
+
+    /**
+     * gets a value indicating whether this event reports progress.
+     *
+     * @return
+     */
+    boolean isProgress() {
+        return false;
+    }
+
+    /**
+     * gets a value indicating whether this event only reports progress within a stage and can
+     * therefore be coalesced with the progress events that follow it.
+     *
+     * @return
+     */
+    boolean isCoalescable() {
+        return false;
+    }
+
+    /**
+     * gets a value indicating whether this event reports a failure.
+     *
+     * @return
+     */
+    boolean isFailure() {
+        return false;
+    }
+
+    public static SynchronizationEvent started() {
+        return new Started();
+    }
+
+    public static SynchronizationEvent progress(int step, int max, String message, boolean reset) {
+        return new Progress(step, max, message, reset, false);
+    }
+
+    /**
+     * creates a progress event that reports the start or the end of a stage. It is delivered like
+     * any other progress event but is never coalesced, so the listeners see every stage.
+     *
+     * @param step
+     * @param max
+     * @param message
+     * @param reset
+     * @return
+     */
+    public static SynchronizationEvent stageProgress(int step, int max, String message, boolean reset) {
+        return new Progress(step, max, message, reset, true);
+    }
+
+    public static SynchronizationEvent progress(String message, boolean indeterminate) {
+        return new IndeterminateProgress(message, indeterminate);
+    }
+
+    public static SynchronizationEvent contentAvailable() {
+        return new ContentAvailable();
+    }
+
+    public static SynchronizationEvent completed() {
+        return new Completed();
+    }
+
+    public static SynchronizationEvent failed(Throwable throwable) {
+        return new Failed(throwable);
+    }
+
+    public static SynchronizationEvent ended(boolean successful, boolean cancelled) {
+        return new Ended(successful, cancelled);
+    }
+
+    static final class Started extends SynchronizationEvent {
+        @Override
+        void dispatch(SynchronizationListener listener) {
+            listener.synchronizationStart();
+        }
+    }
+
+    static final class Progress extends SynchronizationEvent {
+        private final int step;
+        private final int max;
+        private final String message;
+        private final boolean reset;
+        private final boolean stage;
+
+        Progress(int step, int max, String message, boolean reset, boolean stage) {
+            this.step = step;
+            this.max = max;
+            this.message = message;
+            this.reset = reset;
+            this.stage = stage;
+        }
+
+        @Override
+        void dispatch(SynchronizationListener listener) {
+            listener.synchronizationUpdate(step, max, message, reset);
+        }
+
+        @Override
+        boolean isProgress() {
+            return true;
+        }
+
+        @Override
+        boolean isCoalescable() {
+            return !stage;
+        }
+    }
+
+    static final class IndeterminateProgress extends SynchronizationEvent {
+        private final String message;
+        private final boolean indeterminate;
+
+        IndeterminateProgress(String message, boolean indeterminate) {
+            this.message = message;
+            this.indeterminate = indeterminate;
+        }
+
+        @Override
+        void dispatch(SynchronizationListener listener) {
+            listener.synchronizationUpdate(message, indeterminate);
+        }
+
+        @Override
+        boolean isProgress() {
+            return true;
+        }
+
+        @Override
+        boolean isCoalescable() {
+            return true;
+        }
+    }
+
+    static final class ContentAvailable extends SynchronizationEvent {
+        @Override
+        void dispatch(SynchronizationListener listener) {
+            if (listener instanceof SynchronizationContentListener) {
+                ((SynchronizationContentListener) listener).synchronizationContentAvailable();
+            }
+        }
+    }
+
+    static final class Completed extends SynchronizationEvent {
+        @Override
+        void dispatch(SynchronizationListener listener) {
+            listener.synchronizationComplete();
+        }
+    }
+
+    static final class Failed extends SynchronizationEvent {
+        private final Throwable throwable;
+
+        Failed(Throwable throwable) {
+            this.throwable = throwable;
+        }
+
+        @Override
+        void dispatch(SynchronizationListener listener) {
+            listener.onSynchronizationError(throwable);
+        }
+
+        @Override
+        boolean isFailure() {
+            return true;
+        }
+    }
+
+    static final class Ended extends SynchronizationEvent {
+        private final boolean successful;
+        private final boolean cancelled;
+
+        Ended(boolean successful, boolean cancelled) {
+            this.successful = successful;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        void dispatch(SynchronizationListener listener) {
+            if (listener instanceof SynchronizationResultListener) {
+                ((SynchronizationResultListener) listener).synchronizationEnded(successful, cancelled);
+            }
+        }
+    }
+}
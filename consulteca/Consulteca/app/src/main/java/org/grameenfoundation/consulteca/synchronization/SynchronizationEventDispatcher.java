@@ -0,0 +1,125 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import android.util.Log;
+import org.grameenfoundation.consulteca.utils.Clock;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers {@link SynchronizationEvent}s to the registered listeners.
+ * <p/>
+ * The listeners are kept in a copy-on-write list so events can be dispatched from any thread
+ * without locking, and listeners may un register themselves while an event is being delivered.
+ * Progress events within a stage are coalesced to at most {@link #MAX_PROGRESS_EVENTS_PER_SECOND}
+ * per second; the last suppressed progress event is delivered before the next event that cannot
+ * be coalesced so the listeners always see the final progress of a stage. Stage changes and the
+ * started, completed, failed and ended events are never coalesced and are delivered in the order
+ * they were dispatched.
+ */
+class SynchronizationEventDispatcher {
+    static final int MAX_PROGRESS_EVENTS_PER_SECOND = 10;
+    static final long MIN_PROGRESS_INTERVAL_MILLIS = 1000L / MAX_PROGRESS_EVENTS_PER_SECOND;
+
+    private final Clock clock;
+    private final List<SynchronizationListener> listeners = new CopyOnWriteArrayList<SynchronizationListener>();
+    private long lastProgressTime = 0;
+    private SynchronizationEvent pendingProgress = null;
+    private int dispatchedCount = 0;
+    private int coalescedCount = 0;
+
+    SynchronizationEventDispatcher() {
+        this(Clock.SYSTEM);
+    }
+
+    SynchronizationEventDispatcher(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * registers the given listener, replacing a registered listener of the same class.
+     *
+     * @param listener
+     */
+    synchronized void register(SynchronizationListener listener) {
+        for (SynchronizationListener registered : listeners) {
+            if (registered.getClass().equals(listener.getClass())) {
+                listeners.remove(registered);
+            }
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * un registers the listener of the same class as the given listener.
+     *
+     * @param listener
+     */
+    synchronized void unRegister(SynchronizationListener listener) {
+        for (SynchronizationListener registered : listeners) {
+            if (registered.getClass().equals(listener.getClass())) {
+                listeners.remove(registered);
+            }
+        }
+    }
+
+    /**
+     * delivers the given event to all the registered listeners, unless it is a progress
+     * event within a stage that arrives too soon after the previous one.
+     *
+     * @param event
+     */
+    void dispatch(SynchronizationEvent event) {
+        SynchronizationEvent pending = null;
+        synchronized (this) {
+            if (event.isCoalescable()) {
+                long now = clock.currentTimeMillis();
+                long elapsed = now - lastProgressTime;
+                // a clock that was set back does not hold the progress back
+                if (lastProgressTime != 0 && elapsed >= 0 && elapsed < MIN_PROGRESS_INTERVAL_MILLIS) {
+                    pendingProgress = event;
+                    coalescedCount++;
+                    return;
+                }
+                lastProgressTime = now;
+                pendingProgress = null;
+            } else {
+                pending = pendingProgress;
+                pendingProgress = null;
+                lastProgressTime = 0;
+            }
+        }
+
+        if (pending != null) {
+            deliver(pending);
+        }
+        deliver(event);
+    }
+
+    private void deliver(SynchronizationEvent event) {
+        for (SynchronizationListener listener : listeners) {
+            try {
+                event.dispatch(listener);
+            } catch (Exception ex) {
+                Log.e(SynchronizationEventDispatcher.class.getName(), "Error executing listener method", ex);
+            }
+        }
+
+        synchronized (this) {
+            dispatchedCount++;
+        }
+    }
+
+    /**
+     * resets the counters of dispatched and coalesced events and returns a summary of their values.
+     *
+     * @return
+     */
+    synchronized String resetStatistics() {
+        String statistics = "dispatched " + dispatchedCount + " events, coalesced " + coalescedCount
+                + " progress events";
+        dispatchedCount = 0;
+        coalescedCount = 0;
+        return statistics;
+    }
+}
@@ -1,15 +1,12 @@
 package org.grameenfoundation.consulteca.synchronization;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Base64;
+import android.os.Environment;
 import android.util.Log;
 import com.google.gson.*;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.entity.AbstractHttpEntity;
-import org.apache.http.message.BasicNameValuePair;
 import org.grameenfoundation.consulteca.ApplicationRegistry;
 import org.grameenfoundation.consulteca.R;
 import org.grameenfoundation.consulteca.location.GpsManager;
@@ -17,17 +14,25 @@ import org.grameenfoundation.consulteca.model.Farmer;
 import org.grameenfoundation.consulteca.model.SearchLog;
 import org.grameenfoundation.consulteca.model.SearchMenu;
 import org.grameenfoundation.consulteca.model.SearchMenuItem;
+import org.grameenfoundation.consulteca.model.SyncStageMetrics;
+import org.grameenfoundation.consulteca.services.ImageService;
 import org.grameenfoundation.consulteca.services.MenuItemService;
+import org.grameenfoundation.consulteca.services.SynchronizationCheckpointService;
+import org.grameenfoundation.consulteca.services.TelemetryService;
 import org.grameenfoundation.consulteca.settings.SettingsConstants;
 import org.grameenfoundation.consulteca.settings.SettingsManager;
 import org.grameenfoundation.consulteca.storage.DatabaseHelperConstants;
+import org.grameenfoundation.consulteca.storage.StorageManager;
+import org.grameenfoundation.consulteca.storage.TemporaryIdSet;
 import org.grameenfoundation.consulteca.utils.*;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A Facade that handles synchronization of search menus and menu items.
@@ -43,15 +48,34 @@ public class SynchronizationManager {
     private final static String DEFAULT_KEYWORDS_VERSION = "2010-04-04 00:00:00";
     private final static String DEFAULT_IMAGES_VERSION = "2010-04-04 00:00:00";
     private final static String DEFAULT_FARMERS_VERSION = "2014-11-03 00:00:00";
+    private final static String CHECKPOINT_FARMERS_TOKEN = "farmers.continuationToken";
+    private final static int SEARCH_LOGS_CHUNK_SIZE = 200;
+    private final static int MENU_ITEMS_BATCH_SIZE = 200;
+    private final static long CONTENT_NOTIFICATION_INTERVAL = 2000;
+    private final static String CHECKPOINT_COMPLETED_STAGE = "sync.completedStage";
+    private final static String CHECKPOINT_COMPLETED_STAGE_TIME = "sync.completedStageTime";
+    private final static String CHECKPOINT_KEYWORDS_CACHE_VERSION = "keywords.cacheVersion";
+    private final static String CHECKPOINT_GZIP_UPLOAD_URL = "searchLogs.gzipUploadUrl";
+    private final static String CHECKPOINT_RECONCILE_UNSUPPORTED_URL = "keywords.reconcileUnsupportedUrl";
+    private final static long COMPLETED_STAGE_EXPIRY = 24 * 60 * 60 * 1000L;
     private MenuItemService menuItemService = new MenuItemService();
-
-    private boolean synchronizing = false;
+    private SynchronizationCheckpointService checkpointService = new SynchronizationCheckpointService();
+    private ConditionalRequests conditionalRequests = new ConditionalRequests(checkpointService);
+    private ImageService imageService = new ImageService();
+    private TelemetryService telemetryService = new TelemetryService();
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.IDLE);
+    private volatile CancellationToken cancellationToken = new CancellationToken();
+    private volatile RequestExecutor requestExecutor = new RequestExecutor(cancellationToken);
+    private volatile boolean stageFailed = false;
+    private volatile boolean runFailed = false;
+    private volatile boolean pendingChanges = false;
+    private long lastContentNotification = 0;
+    private volatile SynchronizationTelemetry telemetry = new SynchronizationTelemetry();
     private static final SynchronizationManager INSTANCE = new SynchronizationManager();
     private Context applicationContext;
-    private Map<String, SynchronizationListener> synchronizationListenerList =
-            new HashMap<String, SynchronizationListener>();
+    private final SynchronizationEventDispatcher eventDispatcher = new SynchronizationEventDispatcher();
 
-    private static final int DEFAULT_NETWORK_TIMEOUT = 3 * 60 * 1000;
 
     private SynchronizationManager() {
         applicationContext = ApplicationRegistry.getApplicationContext();
@@ -73,117 +97,640 @@ public class SynchronizationManager {
      * thread only if it's not running. The synchronization manager gives feedback through the
      * synchronization listener events.
      * <p/>
+     * The cheap stages always run. The keywords committed by a synchronization that was stopped or
+     * killed less than a day ago are not downloaded again, and the farmers resume from the last page
+     * that was committed.
+     * <p/>
      * This method is non-blocking and therefore returns immediately.
      *
      * @see #registerListener(SynchronizationListener)
+     * @see #stop()
      */
     public synchronized void start() {
-        if (this.isSynchronizing())
+        start(NetworkScheduler.Priority.FOREGROUND);
+    }
+
+    /**
+     * called to start the synchronization process like {@link #start()}, with its requests made
+     * with the given priority. Each priority keeps to its own rate limit, see
+     * {@link NetworkScheduler}.
+     *
+     * @param priority
+     */
+    public synchronized void start(NetworkScheduler.Priority priority) {
+        if (!state.compareAndSet(State.IDLE, State.RUNNING))
             return;
 
+        applyRateLimits();
+        final CancellationToken token = new CancellationToken();
+        cancellationToken = token;
+        requestExecutor = new RequestExecutor(token, priority);
+        final SynchronizationTelemetry runTelemetry = new SynchronizationTelemetry();
+        telemetry = runTelemetry;
+        HttpHelpers.addRequestListener(runTelemetry);
+        pendingChanges = false;
+        runFailed = false;
+
         /*
         starts a new thread to begin the synchronization. The synchronization manager
          */
         new Thread(new Runnable() {
             @Override
             public void run() {
+                boolean cancelled = false;
                 try {
-                    notifySynchronizationListeners("synchronizationStart");
-                    synchronizing = true;
-
-                    int maxSynchronizationSteps = 5;
-                    notifySynchronizationListeners("synchronizationUpdate", 1, maxSynchronizationSteps,
-                            ApplicationRegistry.getApplicationContext().
-                                    getResources().getString(R.string.country_code_download_msg), false);
-                    downloadCountryCode();
+                    notifySynchronizationListeners(SynchronizationEvent.started());
+
+                    Stage completedStage = getCompletedStage();
+                    int maxSynchronizationSteps = Stage.values().length + 1;
+                    for (Stage stage : Stage.values()) {
+                        token.throwIfCancelled();
+                        if (stage.skippedOnResume && completedStage != null
+                                && stage.ordinal() <= completedStage.ordinal()) {
+                            Log.i(SynchronizationManager.class.getName(), "Resuming after stage " + stage);
+                            continue;
+                        }
 
-                    notifySynchronizationListeners("synchronizationUpdate", 2, maxSynchronizationSteps,
-                            ApplicationRegistry.getApplicationContext().
-                                    getResources().getString(R.string.upload_search_logs_download_msg), false);
-                    uploadBulkSearchLogs();
+                        notifySynchronizationListeners(SynchronizationEvent.stageProgress(stage.ordinal() + 1,
+                                maxSynchronizationSteps, applicationContext.getString(stage.messageId), false));
+                        stageFailed = false;
+                        telemetry.startStage(stage.name());
+                        runStage(stage);
+                        telemetry.endStage(stage.name(), !stageFailed);
 
-                    notifySynchronizationListeners("synchronizationUpdate", 3, maxSynchronizationSteps,
-                            ApplicationRegistry.getApplicationContext().
-                                    getResources().getString(R.string.keyword_download_msg), false);
-                    downloadSearchMenus();
-
-                    notifySynchronizationListeners("synchronizationUpdate", 4, maxSynchronizationSteps,
-                            ApplicationRegistry.getApplicationContext().
-                                    getResources().getString(R.string.farmer_download_msg), false);
-                    downloadFarmers();
+                        // only the committed work of a run that is interrupted is skipped by the next one
+                        if (stage.skippedOnResume && !stageFailed) {
+                            setCompletedStage(stage);
+                        }
+                    }
+                    // the run reached the end, even with failed stages, the next one runs every stage
+                    clearCompletedStage();
 
-                    notifySynchronizationListeners("synchronizationUpdate", maxSynchronizationSteps,
+                    notifySynchronizationListeners(SynchronizationEvent.stageProgress(maxSynchronizationSteps,
                             maxSynchronizationSteps,
                             ApplicationRegistry.getApplicationContext().
-                                    getResources().getString(R.string.synchronization_complete_msg), true);
-
-                    notifySynchronizationListeners("synchronizationComplete");
+                                    getResources().getString(R.string.synchronization_complete_msg), true));
+
+                    notifySynchronizationListeners(SynchronizationEvent.completed());
+                    Log.i(SynchronizationManager.class.getName(),
+                            "Synchronization events: " + eventDispatcher.resetStatistics());
+                } catch (SynchronizationCancelledException ex) {
+                    Log.i(SynchronizationManager.class.getName(), "Synchronization cancelled");
+                    cancelled = true;
+                    notifySynchronizationListeners(SynchronizationEvent.failed(
+                            new Throwable(applicationContext.getString(R.string.synchronization_cancelled_msg), ex)));
                 } catch (Exception e) {
                     Log.e(SynchronizationManager.class.getName(), "IOException", e);
-                    notifySynchronizationListeners("onSynchronizationError",
-                            new Throwable(applicationContext.getString(R.string.error_connecting_to_server)));
+                    notifySynchronizationListeners(SynchronizationEvent.failed(
+                            new Throwable(applicationContext.getString(R.string.error_connecting_to_server))));
                 } finally {
-                    synchronizing = false;
+                    HttpHelpers.removeRequestListener(runTelemetry);
+                    telemetry.endAllStages(false);
+                    saveTelemetry();
+                    boolean successful = !runFailed;
+                    state.set(State.IDLE);
+                    // one result per synchronization, whether it completed with failed stages or not
+                    notifySynchronizationListeners(SynchronizationEvent.ended(successful, cancelled));
                 }
             }
         }).start();
     }
 
     /**
-     * uploads multiple search logs to the server in one request.
+     * resolves the name of the server and opens a connection to it, so that a synchronization
+     * started soon after does not wait for either, see {@link HttpHelpers#warmUp(String)}.
+     * <p/>
+     * This method is non-blocking and therefore returns immediately.
      */
-    protected void uploadBulkSearchLogs() throws Exception {
-
-        List<SearchLog> searchLogs = menuItemService.getAllSearchLogs();
-        if(searchLogs.size() == 0){
+    public void warmUp() {
+        final String serverUrl = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
+        if (serverUrl == null || serverUrl.length() == 0) {
             return;
         }
-        GpsManager.getInstance().update();
-        for(SearchLog log : searchLogs) {
-            log.setSubmissionLocation(GpsManager.getInstance().getLocationAsString());
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HttpHelpers.warmUp(serverUrl);
+            }
+        }).start();
+    }
+
+    /**
+     * gives the network scheduler the rate limits of the synchronizations from the settings, in
+     * kilobytes per second.
+     */
+    private static void applyRateLimits() {
+        NetworkScheduler.getInstance().setRateLimit(NetworkScheduler.Priority.FOREGROUND,
+                getRateLimit(SettingsConstants.KEY_SYNC_RATE_LIMIT));
+        NetworkScheduler.getInstance().setRateLimit(NetworkScheduler.Priority.BACKGROUND,
+                getRateLimit(SettingsConstants.KEY_BACKGROUND_SYNC_RATE_LIMIT));
+    }
+
+    private static long getRateLimit(String settingKey) {
+        try {
+            return Long.parseLong(SettingsManager.getInstance().getValue(settingKey, "0").trim()) * 1024;
+        } catch (NumberFormatException ex) {
+            Log.w(SynchronizationManager.class.getName(), "Invalid rate limit in " + settingKey);
+            return 0;
         }
+    }
+
+    /**
+     * gets the file that bundles are imported from and exported to, at the root of the SD card.
+     *
+     * @return
+     */
+    public static File getDefaultBundleFile() {
+        return new File(Environment.getExternalStorageDirectory(), SyncBundle.DEFAULT_FILE_NAME);
+    }
 
-        SearchLogRequest request = new SearchLogRequest();
-        request.setRequest(SettingsConstants.REQUEST_UPLOAD_SEARCHLOGS);
-        request.setImei(DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext()));
-        request.setSearchLogs(searchLogs);
+    /**
+     * called to import the given sync bundle in a new thread, only if no synchronization is
+     * running. The keywords, images and farmers of the bundle are stored as if they had been
+     * downloaded and the versions of the bundle become those of the device, so that the next
+     * synchronization only downloads what changed since the bundle was made. The listeners are
+     * notified as for a synchronization.
+     * <p/>
+     * This method is non-blocking and therefore returns immediately.
+     *
+     * @param bundleFile
+     * @see SyncBundle
+     */
+    public synchronized void importBundle(final File bundleFile) {
+        startTask("BUNDLE_IMPORT", R.string.error_importing_bundle, R.string.bundle_imported_msg, new Task() {
+            @Override
+            public void run() throws Exception {
+                importBundleContent(bundleFile);
+            }
+        });
+    }
 
-        Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss").create();
-        String jsonRequest = gson.toJson(request);
+    /**
+     * called to export what this device has synchronized to the given sync bundle in a new thread,
+     * only if no synchronization is running, so that other devices can be provisioned from it.
+     * <p/>
+     * This method is non-blocking and therefore returns immediately.
+     *
+     * @param bundleFile
+     * @see SyncBundle
+     */
+    public synchronized void exportBundle(final File bundleFile) {
+        startTask("BUNDLE_EXPORT", R.string.error_exporting_bundle, R.string.bundle_exported_msg, new Task() {
+            @Override
+            public void run() throws Exception {
+                exportBundleContent(bundleFile);
+            }
+        });
+    }
 
-        String url = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
-        url = url.substring(0, url.lastIndexOf("/") + 1) + SettingsConstants.REQUEST_SUBMIT_SEARCHLOGS_PAGE;
-        int networkTimeout = 10 * 60 * 1000;
+    /**
+     * runs the given task in a new thread, as a measured stage with the given name, like a
+     * synchronization.
+     */
+    private void startTask(final String name, final int errorMessageId, final int completeMessageId,
+                           final Task task) {
+        if (!state.compareAndSet(State.IDLE, State.RUNNING))
+            return;
 
-        List<NameValuePair> params = new ArrayList<NameValuePair>(2);
-        params.add(new BasicNameValuePair(SettingsConstants.REQUEST_METHODNAME, SettingsConstants.REQUEST_UPLOAD_SEARCHLOGS));
-        params.add(new BasicNameValuePair(SettingsConstants.REQUEST_DATA, jsonRequest));
+        cancellationToken = new CancellationToken();
+        requestExecutor = new RequestExecutor(cancellationToken);
+        telemetry = new SynchronizationTelemetry();
+        pendingChanges = false;
 
-        InputStream inputStream = HttpHelpers.postFormRequestAndGetStream(url, new UrlEncodedFormEntity(params),
-                networkTimeout);
-        StringBuilder stringBuilder = HttpHelpers.getUncompressedResponseString(new BufferedReader(
-                new InputStreamReader(inputStream)));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    notifySynchronizationListeners(SynchronizationEvent.started());
+                    stageFailed = false;
+                    telemetry.startStage(name);
+                    task.run();
+                    telemetry.endStage(name, !stageFailed);
+
+                    notifySynchronizationListeners(SynchronizationEvent.stageProgress(1, 1,
+                            applicationContext.getString(completeMessageId), true));
+                    notifySynchronizationListeners(SynchronizationEvent.completed());
+                } catch (SynchronizationCancelledException ex) {
+                    Log.i(SynchronizationManager.class.getName(), name + " cancelled");
+                    notifySynchronizationListeners(SynchronizationEvent.failed(
+                            new Throwable(applicationContext.getString(R.string.synchronization_cancelled_msg), ex)));
+                } catch (Exception ex) {
+                    Log.e(SynchronizationManager.class.getName(), name + " failed", ex);
+                    notifySynchronizationListeners(SynchronizationEvent.failed(
+                            new Throwable(applicationContext.getString(errorMessageId))));
+                } finally {
+                    telemetry.endAllStages(false);
+                    saveTelemetry();
+                    state.set(State.IDLE);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * imports the keywords, images and farmers of the given bundle. Each part is imported in
+     * batches like a download, the versions of a part are only saved once it has been imported
+     * in full.
+     */
+    private void importBundleContent(File bundleFile) throws IOException, ParseException {
+        if (!bundleFile.exists()) {
+            throw new FileNotFoundException(bundleFile.getPath());
+        }
+
+        SyncBundleReader bundle = new SyncBundleReader(bundleFile);
         try {
-            String responseJson = stringBuilder.toString();
-            SearchLogResponse response = new Gson().fromJson(responseJson, SearchLogResponse.class);
-            if (response != null && response.getResultCode().equals("0")) {
-                for (SearchLog searchLog : searchLogs) {
-                    menuItemService.deleteSearchLog(searchLog);
-                    notifySynchronizationListeners("synchronizationUpdate",
-                            ApplicationRegistry.getApplicationContext().
-                                    getResources().getString(R.string.uploading_search_logs), true);
+            SyncBundle.Manifest manifest = bundle.getManifest();
+            InputStream keywords = bundle.getKeywords();
+            if (keywords != null) {
+                telemetry.startStage("keywords");
+                try {
+                    processKeywords(keywords, bundle);
+                } finally {
+                    keywords.close();
+                }
+                conditionalRequests.clearValidators(SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS);
+                telemetry.endStage("keywords", !stageFailed);
+            }
+
+            if (!bundle.getFarmersPages().isEmpty()) {
+                telemetry.startStage("farmers");
+                String farmersVersion = null;
+                boolean complete = true;
+                FarmersDownloader downloader = createFarmersDownloader();
+                for (String pageName : bundle.getFarmersPages()) {
+                    cancellationToken.throwIfCancelled();
+                    InputStream inputStream = bundle.getEntry(pageName);
+                    FarmersDownloader.Page page;
+                    try {
+                        page = processFarmers(downloader, inputStream);
+                    } finally {
+                        inputStream.close();
+                    }
+                    if (page == null) {
+                        complete = false;
+                        break;
+                    }
+                    if (page.getFarmersVersion() != null && page.getFarmersVersion().length() > 0) {
+                        farmersVersion = page.getFarmersVersion();
+                    }
                 }
+
+                // the continuation tokens of the pages are those of the server that made the bundle
+                checkpointService.clearCheckpoint(CHECKPOINT_FARMERS_TOKEN);
+                if (complete) {
+                    if (manifest.farmersVersion != null) {
+                        farmersVersion = manifest.farmersVersion;
+                    }
+                    if (farmersVersion != null && farmersVersion.length() > 0) {
+                        SettingsManager.getInstance().setValue(SettingsConstants.KEY_FARMERS_VERSION, farmersVersion);
+                    }
+                    conditionalRequests.clearValidators(SettingsConstants.REQUEST_DOWNLOAD_FARMERS);
+                }
+                telemetry.endStage("farmers", complete && !stageFailed);
+            }
+        } finally {
+            bundle.close();
+        }
+    }
+
+    /**
+     * writes the menus, menu items, images and farmers of this device to the given bundle in the
+     * {@link BinaryFeedFormat}. The bundle is written to a temporary file first, so that an
+     * incomplete bundle never replaces a complete one.
+     */
+    private void exportBundleContent(File bundleFile) throws IOException, ParseException {
+        String keywordsVersion = SettingsManager.getInstance().getValue(SettingsConstants.KEY_KEYWORDS_VERSION,
+                DEFAULT_KEYWORDS_VERSION);
+        String imagesVersion = SettingsManager.getInstance().getValue(SettingsConstants.KEY_IMAGES_VERSION,
+                DEFAULT_IMAGES_VERSION);
+        String farmersVersion = SettingsManager.getInstance().getValue(SettingsConstants.KEY_FARMERS_VERSION,
+                DEFAULT_FARMERS_VERSION);
+        String exportingMessage = applicationContext.getString(R.string.exporting_bundle_msg);
+
+        File tempFile = new File(bundleFile.getPath() + ".tmp");
+        SyncBundleWriter writer = new SyncBundleWriter(new FileOutputStream(tempFile));
+        boolean written = false;
+        try {
+            notifySynchronizationListeners(SynchronizationEvent.progress(exportingMessage, true));
+            writeKeywordsFeed(new BinaryFeedWriter(writer.startKeywords()), keywordsVersion);
+
+            int farmersCount = menuItemService.countFarmers();
+            List<Farmer> farmers;
+            for (int offset = 0; !(farmers = menuItemService.getFarmers(offset, FarmersDownloader.PAGE_SIZE)).isEmpty();
+                 offset += farmers.size()) {
+                cancellationToken.throwIfCancelled();
+                writeFarmersPage(new BinaryFeedWriter(writer.startFarmersPage()), farmers, farmersVersion);
+                notifySynchronizationListeners(SynchronizationEvent.progress(offset + farmers.size(),
+                        farmersCount, exportingMessage, true));
+            }
+
+            Map<String, String> images;
+            for (int offset = 0; !(images = imageService.getImages(offset, MENU_ITEMS_BATCH_SIZE)).isEmpty();
+                 offset += images.size()) {
+                cancellationToken.throwIfCancelled();
+                for (Map.Entry<String, String> image : images.entrySet()) {
+                    File storedImage = ImageUtils.getStoredImageFile(image.getValue());
+                    if (storedImage.exists()) {
+                        writer.addImage(image.getKey(), image.getValue(), storedImage);
+                    }
+                }
+            }
+
+            writer.finish(keywordsVersion, imagesVersion, farmersVersion);
+            written = true;
+        } finally {
+            writer.close();
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+
+        if ((bundleFile.exists() && !bundleFile.delete()) || !tempFile.renameTo(bundleFile)) {
+            tempFile.delete();
+            throw new IOException("The bundle could not be written to " + bundleFile);
+        }
+    }
+
+    /**
+     * writes the menus, menu items and image digests of this device as a keywords feed.
+     */
+    private void writeKeywordsFeed(ContentHandler feed, String version) throws IOException, ParseException {
+        feed.startJSON();
+        feed.startObject();
+        writeEntry(feed, "resultCode", "0");
+        writeEntry(feed, "version", version);
+        writeEntry(feed, "total", (long) menuItemService.countSearchMenuItems());
+
+        feed.startObjectEntry("menus");
+        feed.startArray();
+        for (SearchMenu searchMenu : menuItemService.getAllSearchMenus()) {
+            feed.startObject();
+            writeEntry(feed, "id", searchMenu.getId());
+            writeEntry(feed, "label", searchMenu.getLabel());
+            feed.endObject();
+        }
+        feed.endArray();
+        feed.endObjectEntry();
+
+        feed.startObjectEntry("menuItems");
+        feed.startArray();
+        List<SearchMenuItem> searchMenuItems;
+        for (int offset = 0; !(searchMenuItems = menuItemService.getSearchMenuItems(offset,
+                MENU_ITEMS_BATCH_SIZE)).isEmpty(); offset += searchMenuItems.size()) {
+            cancellationToken.throwIfCancelled();
+            for (SearchMenuItem searchMenuItem : searchMenuItems) {
+                feed.startObject();
+                writeEntry(feed, "id", searchMenuItem.getId());
+                writeEntry(feed, "label", searchMenuItem.getLabel());
+                writeEntry(feed, "position", (long) searchMenuItem.getPosition());
+                writeEntry(feed, "content", searchMenuItem.getContent());
+                writeEntry(feed, "menu_id", searchMenuItem.getMenuId());
+                writeEntry(feed, "parent_id", searchMenuItem.getParentId());
+                feed.endObject();
+            }
+        }
+        feed.endArray();
+        feed.endObjectEntry();
+
+        feed.startObjectEntry("images");
+        feed.startArray();
+        Map<String, String> images;
+        for (int offset = 0; !(images = imageService.getImages(offset, MENU_ITEMS_BATCH_SIZE)).isEmpty();
+             offset += images.size()) {
+            for (Map.Entry<String, String> image : images.entrySet()) {
+                feed.startObject();
+                writeEntry(feed, "id", image.getKey());
+                writeEntry(feed, "sha1", image.getValue());
+                feed.endObject();
+            }
+        }
+        feed.endArray();
+        feed.endObjectEntry();
+
+        feed.endObject();
+        feed.endJSON();
+    }
+
+    private void writeFarmersPage(ContentHandler feed, List<Farmer> farmers, String version)
+            throws IOException, ParseException {
+        feed.startJSON();
+        feed.startObject();
+        writeEntry(feed, "resultCode", "0");
+        writeEntry(feed, "farmerVersion", version);
+        feed.startObjectEntry("afarmerResults");
+        feed.startArray();
+        for (Farmer farmer : farmers) {
+            feed.startObject();
+            writeEntry(feed, "farmerId", farmer.getId());
+            writeEntry(feed, "firstName", farmer.getFirstName());
+            writeEntry(feed, "lastName", farmer.getLastName());
+            writeEntry(feed, "creationDate", farmer.getCreationDate());
+            writeEntry(feed, "subcounty", farmer.getSubcounty());
+            writeEntry(feed, "village", farmer.getVillage());
+            feed.endObject();
+        }
+        feed.endArray();
+        feed.endObjectEntry();
+        feed.endObject();
+        feed.endJSON();
+    }
+
+    private static void writeEntry(ContentHandler feed, String key, Object value) throws IOException, ParseException {
+        if (value == null) {
+            return;
+        }
+        feed.startObjectEntry(key);
+        feed.primitive(value);
+        feed.endObjectEntry();
+    }
+
+    /**
+     * saves the measurements of the synchronization run that has just ended.
+     */
+    private void saveTelemetry() {
+        try {
+            telemetry.recordNetworkStatistics();
+            List<SyncStageMetrics> stages = telemetry.getStages();
+            for (SyncStageMetrics stage : stages) {
+                Log.i(SynchronizationManager.class.getName(), stage.getStage() + ": " + stage.getDurationMillis()
+                        + "ms, " + stage.getBytesReceived() + " bytes received, " + stage.getBytesSent()
+                        + " bytes sent, " + stage.getRowsWritten() + " rows (" + stage.getRowsPerSecond()
+                        + " rows/s), peak heap " + stage.getPeakHeapBytes() + " bytes");
+            }
+            if (!stages.isEmpty()) {
+                telemetryService.saveRun(stages);
+            }
+        } catch (Exception ex) {
+            Log.e(SynchronizationManager.class.getName(), "Error saving the synchronization telemetry", ex);
+        }
+    }
+
+    private void runStage(Stage stage) throws Exception {
+        switch (stage) {
+            case COUNTRY_CODE:
+                downloadCountryCode();
+                break;
+            case SEARCH_LOGS:
+                uploadBulkSearchLogs();
+                break;
+            case KEYWORDS:
+                downloadSearchMenus();
+                break;
+            case FARMERS:
+                downloadFarmers();
+                break;
+        }
+    }
+
+    /**
+     * gets the last stage that was committed by a synchronization that did not reach the end, or
+     * null if no stage is skipped.
+     */
+    private Stage getCompletedStage() {
+        String stage = checkpointService.getCheckpoint(CHECKPOINT_COMPLETED_STAGE);
+        String time = checkpointService.getCheckpoint(CHECKPOINT_COMPLETED_STAGE_TIME);
+        if (stage == null || time == null) {
+            return null;
+        }
+
+        try {
+            if (System.currentTimeMillis() - Long.parseLong(time) > COMPLETED_STAGE_EXPIRY) {
+                return null;
+            }
+            return Stage.valueOf(stage);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private void setCompletedStage(Stage stage) {
+        StorageManager.getInstance().beginTransaction();
+        try {
+            checkpointService.setCheckpoint(CHECKPOINT_COMPLETED_STAGE, stage.name());
+            checkpointService.setCheckpoint(CHECKPOINT_COMPLETED_STAGE_TIME, String.valueOf(System.currentTimeMillis()));
+            StorageManager.getInstance().setTransactionSuccessful();
+        } finally {
+            StorageManager.getInstance().endTransaction();
+        }
+    }
+
+    private void clearCompletedStage() {
+        checkpointService.clearCheckpoint(CHECKPOINT_COMPLETED_STAGE);
+        checkpointService.clearCheckpoint(CHECKPOINT_COMPLETED_STAGE_TIME);
+    }
+
+    /**
+     * gets the cancellation token of the current synchronization.
+     *
+     * @return
+     */
+    CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * gets the executor of the requests of the current synchronization.
+     *
+     * @return
+     */
+    RequestExecutor getRequestExecutor() {
+        return requestExecutor;
+    }
+
+    /**
+     * uploads the search logs to the server in chunks of at most {@link #SEARCH_LOGS_CHUNK_SIZE} logs.
+     * Each chunk carries an idempotency key built from the id of the database and its range of
+     * search log ids so that the server can ignore a chunk it has already received, and an
+     * acknowledged chunk is deleted with a single statement. The measurements of the previous synchronization runs go with the first chunk, or
+     * on their own when there are no search logs to upload.
+     */
+    protected void uploadBulkSearchLogs() throws Exception {
+        List<SyncStageMetrics> telemetryToUpload = telemetryService.getStagesToUpload();
+        if (menuItemService.countSearchLogs() == 0 && telemetryToUpload.isEmpty()) {
+            return;
+        }
+
+        GpsManager.getInstance().update();
+        String submissionLocation = GpsManager.getInstance().getLocationAsString();
+        String imei = DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext());
+        // the ids start again with a new database, the keys of its chunks must not be those of an older one
+        String keyPrefix = imei + ":" + checkpointService.getDatabaseId() + ":";
+
+        String serverUrl = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
+        final String url = serverUrl.substring(0, serverUrl.lastIndexOf("/") + 1)
+                + SettingsConstants.REQUEST_SUBMIT_SEARCHLOGS_PAGE;
+        final Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss").create();
+        // a rejected compressed chunk is sent again uncompressed, the server ignores a chunk it has received
+        final CompressedUploader uploader = createCompressedUploader();
+
+        int lastUploadedId = 0;
+        List<SearchLog> searchLogs = menuItemService.getSearchLogs(lastUploadedId, SEARCH_LOGS_CHUNK_SIZE);
+        while (!searchLogs.isEmpty() || !telemetryToUpload.isEmpty()) {
+            cancellationToken.throwIfCancelled();
+            int firstId = 0;
+            int lastId = 0;
+            String idempotencyKey;
+            if (searchLogs.isEmpty()) {
+                // only the measurements are left, keyed by the last of them
+                idempotencyKey = keyPrefix + "telemetry-" + telemetryToUpload.get(telemetryToUpload.size() - 1).getId();
+            } else {
+                firstId = searchLogs.get(0).getId();
+                lastId = searchLogs.get(searchLogs.size() - 1).getId();
+                idempotencyKey = keyPrefix + firstId + "-" + lastId;
             }
-            else {
-                notifySynchronizationListeners("onSynchronizationError",
-                        new Throwable(applicationContext.getString(R.string.error_uploading_searchlogs),
-                                new Exception(responseJson)));
+            for (SearchLog log : searchLogs) {
+                log.setSubmissionLocation(submissionLocation);
             }
-        }catch (Exception ex){
-            Log.e(SynchronizationManager.class.getName(), "Error uploading search logs", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_uploading_searchlogs)));
 
+            final SearchLogRequest request = new SearchLogRequest();
+            request.setRequest(SettingsConstants.REQUEST_UPLOAD_SEARCHLOGS);
+            request.setImei(imei);
+            request.setIdempotencyKey(idempotencyKey);
+            request.setSearchLogs(searchLogs);
+            if (!telemetryToUpload.isEmpty()) {
+                request.setSyncTelemetry(telemetryToUpload);
+            }
+
+            String responseJson = requestExecutor.execute(SettingsConstants.REQUEST_UPLOAD_SEARCHLOGS, url,
+                    new RequestExecutor.Call<String>() {
+                        @Override
+                        public String call(int networkTimeout) throws IOException {
+                            HttpResponse httpResponse = uploader.post(url, SettingsConstants.REQUEST_UPLOAD_SEARCHLOGS,
+                                    request, gson, networkTimeout);
+                            RequestExecutor.checkStatus(httpResponse);
+                            return HttpHelpers.getUncompressedResponseString(httpResponse);
+                        }
+                    });
+            try {
+                SearchLogResponse response = new Gson().fromJson(responseJson, SearchLogResponse.class);
+                if (response != null && response.getResultCode().equals("0")) {
+                    if (!searchLogs.isEmpty()) {
+                        menuItemService.deleteSearchLogs(firstId, lastId);
+                        lastUploadedId = lastId;
+                    }
+                    if (!telemetryToUpload.isEmpty()) {
+                        telemetryService.markUploaded(telemetryToUpload.get(telemetryToUpload.size() - 1).getId());
+                        telemetryToUpload = Collections.emptyList();
+                    }
+                    notifySynchronizationListeners(SynchronizationEvent.progress(ApplicationRegistry.getApplicationContext().
+                                    getResources().getString(R.string.uploading_search_logs), true));
+                }
+                else {
+                    notifySynchronizationListeners(SynchronizationEvent.failed(
+                            new Throwable(applicationContext.getString(R.string.error_uploading_searchlogs),
+                                    new Exception(responseJson))));
+                    return;
+                }
+            } catch (SynchronizationCancelledException ex) {
+                throw ex;
+            } catch (Exception ex){
+                Log.e(SynchronizationManager.class.getName(), "Error uploading search logs", ex);
+                notifySynchronizationListeners(SynchronizationEvent.failed(
+                        new Throwable(applicationContext.getString(R.string.error_uploading_searchlogs))));
+                return;
+            }
+            searchLogs = menuItemService.getSearchLogs(lastUploadedId, SEARCH_LOGS_CHUNK_SIZE);
         }
     }
 
@@ -219,9 +766,43 @@ public class SynchronizationManager {
         }
     }
 
+    /**
+     * sends a request of the menu reconciliation. The first request of every synchronization
+     * carries the same root hash as long as the menus of the device do not change, so its answer
+     * is kept in the {@link ResponseCache} and only revalidated with the server.
+     *
+     * @return the response, or null if the server does not support reconciliation.
+     * @throws HttpStatusException for a status that is worth retrying.
+     */
+    private MenuTreeReconciler.Response sendReconciliation(String url, MenuTreeRequestWrapper request,
+                                                           int networkTimeout) throws IOException {
+        HttpResponse response = HttpHelpers.postJsonFormRequest(url, SettingsConstants.REQUEST_RECONCILE_KEYWORDS,
+                request, new Gson(), networkTimeout, new HashMap<String, String>(), false,
+                ResponseCache.Policy.DEFAULT);
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != HttpStatus.SC_OK) {
+            if (RequestExecutor.isTransientStatus(statusCode)) {
+                RequestExecutor.checkStatus(response);
+            }
+            HttpHelpers.consume(response);
+            return null;
+        }
+
+        Reader reader = new InputStreamReader(HttpHelpers.getInputStream(response), "UTF-8");
+        try {
+            return new Gson().fromJson(reader, MenuTreeReconciler.Response.class);
+        } catch (JsonParseException ex) {
+            Log.e(SynchronizationManager.class.getName(), "Invalid reconciliation response", ex);
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
     protected void downloadSearchMenus() throws IOException {
         try {
             String url = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
+            reconcileMenuTree(url);
 
             String keywordVersion =
                     SettingsManager.getInstance().getValue(SettingsConstants.KEY_KEYWORDS_VERSION,
@@ -230,11 +811,13 @@ public class SynchronizationManager {
                     SettingsManager.getInstance().getValue(SettingsConstants.KEY_IMAGES_VERSION,
                             DEFAULT_IMAGES_VERSION);
 
-            KeywordsRequestWrapper request = new KeywordsRequestWrapper();
+            final KeywordsRequestWrapper request = new KeywordsRequestWrapper();
             request.setRequest(SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS);
             request.setImei(DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext()));
             request.setKeywordsVersion(keywordVersion);
             request.setImagesLastUpdatedDate(imagesVersion);
+            request.setResponseFormat(BinaryFeedFormat.NAME);
+            request.setProgressive(true);
 
             List<SearchMenu> menus = menuItemService.getAllSearchMenus();
             ArrayList<String> menuArr = new ArrayList();
@@ -243,335 +826,568 @@ public class SynchronizationManager {
             }
             request.setMenuIds(menuArr);
 
-            Gson gson = new Gson();
-            String jsonRequest = gson.toJson(request);
-
-            int networkTimeout = 10 * 60 * 1000;
-            List<NameValuePair> params = new ArrayList<NameValuePair>(2);
-            params.add(new BasicNameValuePair(SettingsConstants.REQUEST_METHODNAME,
-                    SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS));
-            params.add(new BasicNameValuePair(SettingsConstants.REQUEST_DATA, jsonRequest));
-
-            InputStream inputStream = HttpHelpers.postFormRequestAndGetStream(url, new UrlEncodedFormEntity(params),
-                    networkTimeout);
+            final Gson gson = new Gson();
 
             String searchCacheFile = ApplicationRegistry.getApplicationContext().getCacheDir() + "/keywords.cache";
-            File cacheFile = new File(searchCacheFile);
-            if (cacheFile.exists()) {
-                boolean deleted = cacheFile.delete();
-                if (deleted) {
-                    Log.i(SynchronizationManager.class.getName(), "Cache File Deleted.");
+            final File cacheFile = new File(searchCacheFile);
+
+            // a response that was fully downloaded by a stopped synchronization is processed again
+            // instead of being downloaded again.
+            boolean downloadComplete = cacheFile.exists()
+                    && keywordVersion.equals(checkpointService.getCheckpoint(CHECKPOINT_KEYWORDS_CACHE_VERSION));
+            final HttpResponse[] response = new HttpResponse[1];
+            if (!downloadComplete) {
+                checkpointService.clearCheckpoint(CHECKPOINT_KEYWORDS_CACHE_VERSION);
+                if (cacheFile.exists()) {
+                    boolean deleted = cacheFile.delete();
+                    if (deleted) {
+                        Log.i(SynchronizationManager.class.getName(), "Cache File Deleted.");
+                    }
+                }
+
+                telemetry.startStage("download");
+                final String keywordsUrl = url;
+                boolean modified = requestExecutor.execute(SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS, keywordsUrl,
+                        new RequestExecutor.Call<Boolean>() {
+                            @Override
+                            public Boolean call(int networkTimeout) throws IOException {
+                                response[0] = HttpHelpers.postJsonFormRequest(keywordsUrl,
+                                        SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS, request, gson, networkTimeout,
+                                        conditionalRequests.getHeaders(SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS,
+                                                keywordsUrl), false);
+                                RequestExecutor.checkStatus(response[0]);
+                                InputStream inputStream = conditionalRequests.getChangedContent(response[0]);
+                                if (inputStream == null) {
+                                    return false;
+                                }
+                                downloadToFile(inputStream, cacheFile, HttpHelpers.getContentLength(response[0]),
+                                        applicationContext.getString(R.string.keyword_download_msg));
+                                return true;
+                            }
+                        });
+                if (!modified) {
+                    telemetry.endStage("download", true);
+                    Log.i(SynchronizationManager.class.getName(), "Keywords not modified since version " + keywordVersion);
+                    return;
                 }
+                downloadComplete = true;
+                telemetry.endStage("download", !stageFailed);
+                checkpointService.setCheckpoint(CHECKPOINT_KEYWORDS_CACHE_VERSION, keywordVersion);
+            } else {
+                Log.i(SynchronizationManager.class.getName(), "Resuming from the downloaded keywords.");
             }
 
-            boolean downloadComplete = writeStreamToTempFile(inputStream, searchCacheFile,
-                    ApplicationRegistry.getApplicationContext().getResources().getString(R.string.keyword_download_msg));
+            boolean parsed;
             FileInputStream fileInputStream = new FileInputStream(cacheFile);
             try {
-                if (downloadComplete && fileInputStream != null) {
-                    processKeywords(fileInputStream);
-                }
+                parsed = processKeywords(fileInputStream, null);
             } finally {
                 fileInputStream.close();
-                inputStream.close();
+            }
+            if (!parsed) {
+                // a cache file that cannot be parsed is downloaded again by the next synchronization
+                checkpointService.clearCheckpoint(CHECKPOINT_KEYWORDS_CACHE_VERSION);
+                if (!cacheFile.delete()) {
+                    Log.w(SynchronizationManager.class.getName(), "Could not delete the keywords cache file");
+                }
+                return;
+            }
+
+            // a response that was resumed from the cache file has no validators to keep
+            if (response[0] != null && !stageFailed) {
+                conditionalRequests.saveValidators(SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS, url, response[0]);
             }
         } catch (IOException e) {
             throw e;
+        } catch (SynchronizationCancelledException ex) {
+            throw ex;
         } catch (Exception ex) {
             Log.e(SynchronizationManager.class.getName(), "Error downloading keywords", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_downloading_keywords)));
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_downloading_keywords))));
         }
     }
 
     /**
-     * Downloads farmer details for caching on local device
+     * brings the menus in line with those of the server by comparing the hashes of their subtrees,
+     * see {@link MenuTreeReconciler}, and moves the keywords version to that of the server. Only the
+     * branches that changed are sent, the keywords download that follows then only carries the
+     * menus and the images. Nothing is done if there are no menu items yet, in which case the
+     * download is cheaper, or if the server does not support reconciliation.
+     *
+     * @param url
+     * @throws IOException
+     */
+    private void reconcileMenuTree(final String url) throws IOException {
+        if (url.equals(checkpointService.getCheckpoint(CHECKPOINT_RECONCILE_UNSUPPORTED_URL))
+                || menuItemService.countSearchMenuItems() == 0) {
+            return;
+        }
+
+        telemetry.startStage("reconcile");
+        notifySynchronizationListeners(SynchronizationEvent.progress(applicationContext.getString(
+                R.string.keyword_download_msg), true));
+
+        MenuTreeReconciler reconciler = new MenuTreeReconciler(buildMenuTree(), new MenuTreeReconciler.Exchange() {
+            @Override
+            public MenuTreeReconciler.Response send(List<MenuTreeReconciler.NodeHash> nodes) throws IOException {
+                cancellationToken.throwIfCancelled();
+
+                final MenuTreeRequestWrapper request = new MenuTreeRequestWrapper();
+                request.setRequest(SettingsConstants.REQUEST_RECONCILE_KEYWORDS);
+                request.setImei(DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext()));
+                request.setNodes(nodes);
+
+                try {
+                    return requestExecutor.execute(SettingsConstants.REQUEST_RECONCILE_KEYWORDS, url,
+                            new RequestExecutor.Call<MenuTreeReconciler.Response>() {
+                                @Override
+                                public MenuTreeReconciler.Response call(int networkTimeout) throws IOException {
+                                    return sendReconciliation(url, request, networkTimeout);
+                                }
+                            });
+                } catch (ParseException ex) {
+                    throw new IOException("Invalid reconciliation response", ex);
+                }
+            }
+        });
+
+        if (!reconciler.reconcile()) {
+            Log.i(SynchronizationManager.class.getName(), "Menu reconciliation not supported by " + url);
+            checkpointService.setCheckpoint(CHECKPOINT_RECONCILE_UNSUPPORTED_URL, url);
+            telemetry.endStage("reconcile", true);
+            return;
+        }
+
+        StorageManager.getInstance().beginTransaction();
+        TemporaryIdSet deletedSearchMenuItemIds = new TemporaryIdSet("reconciledMenuItems", false);
+        TemporaryIdSet deletedSearchMenuIds = new TemporaryIdSet("reconciledMenus", false);
+        try {
+            for (SearchMenu searchMenu : reconciler.getChangedMenus()) {
+                menuItemService.save(searchMenu);
+            }
+            List<SearchMenuItem> searchMenuItems = reconciler.getChangedMenuItems();
+            menuItemService.save(searchMenuItems.toArray(new SearchMenuItem[searchMenuItems.size()]));
+
+            for (String id : reconciler.getDeletedMenuItemIds()) {
+                deletedSearchMenuItemIds.add(id);
+            }
+            menuItemService.deleteSearchMenuItems(deletedSearchMenuItemIds);
+            for (String id : reconciler.getDeletedMenuIds()) {
+                deletedSearchMenuIds.add(id);
+            }
+            menuItemService.deleteSearchMenus(deletedSearchMenuIds);
+
+            StorageManager.getInstance().setTransactionSuccessful();
+        } finally {
+            deletedSearchMenuIds.close();
+            deletedSearchMenuItemIds.close();
+            StorageManager.getInstance().endTransaction();
+        }
+
+        // the settings are not part of the transaction, the version is only saved once the menus are committed
+        if (reconciler.getVersion() != null) {
+            SettingsManager.getInstance().setValue(SettingsConstants.KEY_KEYWORDS_VERSION, reconciler.getVersion());
+        }
+
+        Log.i(SynchronizationManager.class.getName(), "Reconciled menus in " + reconciler.getRounds() + " rounds, "
+                + reconciler.getChangedMenuItems().size() + " changed and "
+                + reconciler.getDeletedMenuItemIds().size() + " deleted menu items");
+        telemetry.endStage("reconcile", true);
+    }
+
+    /**
+     * builds the hash tree of the menus and menu items in the data store. The menu items are read a
+     * page at a time, only their hashes are kept.
+     *
+     * @return
+     */
+    private MenuTree buildMenuTree() {
+        MenuTree menuTree = new MenuTree();
+        for (SearchMenu searchMenu : menuItemService.getAllSearchMenus()) {
+            menuTree.addMenu(searchMenu);
+        }
+
+        int offset = 0;
+        List<SearchMenuItem> searchMenuItems;
+        do {
+            cancellationToken.throwIfCancelled();
+            searchMenuItems = menuItemService.getSearchMenuItems(offset, MENU_ITEMS_BATCH_SIZE);
+            for (SearchMenuItem searchMenuItem : searchMenuItems) {
+                menuTree.addMenuItem(searchMenuItem);
+            }
+            offset += searchMenuItems.size();
+        } while (searchMenuItems.size() == MENU_ITEMS_BATCH_SIZE);
+        return menuTree;
+    }
+
+    /**
+     * Downloads farmer details for caching on local device. The farmers are requested in pages, see
+     * {@link FarmersDownloader}, and an interrupted download resumes from the last committed page.
      * @throws IOException
      */
     protected void downloadFarmers() throws IOException {
         try {
-            String url = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
+            final String url = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
 
-            String farmersVersion =
+            final String farmersVersion =
                     SettingsManager.getInstance().getValue(SettingsConstants.KEY_FARMERS_VERSION,
                             DEFAULT_FARMERS_VERSION);
 
-            FarmersRequestWrapper request = new FarmersRequestWrapper();
-            request.setRequest(SettingsConstants.REQUEST_UPLOAD_SEARCHLOGS);
-            request.setImei(DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext()));
-            request.setFarmersVersion(farmersVersion);
-
-            Gson gson = new Gson();
-            String jsonRequest = gson.toJson(request);
-
-            int networkTimeout = 10 * 60 * 1000;
-            List<NameValuePair> params = new ArrayList<NameValuePair>(2);
-            params.add(new BasicNameValuePair(SettingsConstants.REQUEST_METHODNAME,
-                    SettingsConstants.REQUEST_DOWNLOAD_FARMERS));
-            params.add(new BasicNameValuePair(SettingsConstants.REQUEST_DATA, jsonRequest));
-            InputStream inputStream = HttpHelpers.postJsonRequestAndGetStream(url, networkTimeout, params);
-
-            String searchFarmerCacheFile = ApplicationRegistry.getApplicationContext().getCacheDir() + "/farmers.cache";
-            File cacheFile = new File(searchFarmerCacheFile);
-            if (cacheFile.exists()) {
-                boolean deleted = cacheFile.delete();
-                if (deleted) {
-                    Log.i(SynchronizationManager.class.getName(), "Farmers Cache File Deleted.");
+            final Gson gson = new Gson();
+            // only the first page of a download can be requested conditionally
+            final HttpResponse[] firstPageResponse = new HttpResponse[1];
+            FarmersDownloader downloader = createFarmersDownloader();
+            FarmersDownloader.Page page = downloader.download(requestExecutor, url, new FarmersDownloader.Exchange() {
+                @Override
+                public InputStream requestPage(String continuationToken, int networkTimeout) throws IOException {
+                    FarmersRequestWrapper request = new FarmersRequestWrapper();
+                    request.setRequest(SettingsConstants.REQUEST_DOWNLOAD_FARMERS);
+                    request.setImei(DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext()));
+                    request.setFarmersVersion(farmersVersion);
+                    request.setPageSize(FarmersDownloader.PAGE_SIZE);
+                    request.setContinuationToken(continuationToken);
+                    request.setResponseFormat(BinaryFeedFormat.NAME);
+
+                    HashMap<String, String> headers = continuationToken == null
+                            ? conditionalRequests.getHeaders(SettingsConstants.REQUEST_DOWNLOAD_FARMERS, url) : null;
+                    HttpResponse response = HttpHelpers.postJsonFormRequest(url,
+                            SettingsConstants.REQUEST_DOWNLOAD_FARMERS, request, gson, networkTimeout, headers, false);
+                    RequestExecutor.checkStatus(response);
+                    if (continuationToken == null) {
+                        firstPageResponse[0] = response;
+                    }
+
+                    InputStream inputStream = conditionalRequests.getChangedContent(response);
+                    if (inputStream == null) {
+                        Log.i(SynchronizationManager.class.getName(), "Farmers not modified since version "
+                                + farmersVersion);
+                    }
+                    return inputStream;
                 }
+            });
+            pendingChanges = pendingChanges || downloader.hasPendingChanges();
+            if (page == null) {
+                return;
             }
 
-            boolean downloadComplete = writeStreamToTempFile(inputStream, searchFarmerCacheFile,
-                    ApplicationRegistry.getApplicationContext().getResources().getString(R.string.farmer_download_msg));
-            FileInputStream fileInputStream = new FileInputStream(cacheFile);
-            try {
-                if (downloadComplete && fileInputStream != null) {
-                    processFarmers(fileInputStream);
-                }
-            } finally {
-                fileInputStream.close();
-                inputStream.close();
+            if (page.getFarmersVersion() != null && page.getFarmersVersion().length() > 0) {
+                SettingsManager.getInstance().setValue(SettingsConstants.KEY_FARMERS_VERSION, page.getFarmersVersion());
+            }
+            if (firstPageResponse[0] != null) {
+                conditionalRequests.saveValidators(SettingsConstants.REQUEST_DOWNLOAD_FARMERS, url, firstPageResponse[0]);
             }
         } catch (IOException e) {
             throw e;
+        } catch (SynchronizationCancelledException ex) {
+            throw ex;
+        } catch (ParseException ex) {
+            Log.e(SynchronizationManager.class.getName(), "Parsing Error", ex);
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_processing_farmers))));
         } catch (Exception ex) {
             Log.e(SynchronizationManager.class.getName(), "Error downloading farmers", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_downloading_farmers)));
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_downloading_farmers))));
         }
     }
 
-    public Boolean writeStreamToTempFile(InputStream inputStream, String filePath, String message) throws IOException {
-        File tempFile = new File(filePath);
-        FileOutputStream stream = new FileOutputStream(tempFile);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-
-        int read = 0;
-        byte[] bytes = new byte[2048];
-        while ((read = inputStream.read(bytes)) != -1) {
-            stream.write(bytes, 0, read);
-            notifySynchronizationListeners("synchronizationUpdate", message, true);
-        }
-
-        stream.flush();
-        stream.close();
-        reader.close();
-
-        return true;
+    /**
+     * writes the given download to the given file, reporting its progress by kilobytes when its
+     * length is known. The stream is closed.
+     *
+     * @param inputStream
+     * @param file
+     * @param contentLength the length of the download, or -1 if it is not known.
+     * @param message       the progress message.
+     * @return the number of bytes written.
+     * @throws IOException
+     */
+    private long downloadToFile(InputStream inputStream, File file, long contentLength, final String message)
+            throws IOException {
+        return HttpHelpers.copyToFile(inputStream, file, contentLength, new HttpHelpers.DownloadListener() {
+            @Override
+            public void progress(long bytesWritten, long contentLength) {
+                cancellationToken.throwIfCancelled();
+                if (contentLength > 0) {
+                    notifySynchronizationListeners(SynchronizationEvent.progress((int) (bytesWritten / 1024),
+                            (int) (contentLength / 1024), message, true));
+                } else {
+                    notifySynchronizationListeners(SynchronizationEvent.progress(message, true));
+                }
+            }
+        });
     }
 
-    private void processKeywords(InputStream inputStream) throws IOException, ParseException {
-        final List<SearchMenu> searchMenus = new ArrayList<SearchMenu>();
-        List<SearchMenu> oldSearchMenus = menuItemService.getAllSearchMenus();
-        final List<SearchMenuItem> searchMenuItems = new ArrayList<SearchMenuItem>();
-        final List<SearchMenuItem> deletedSearchMenuItems = new ArrayList<SearchMenuItem>();
-        final List<String> imageIdz = new ArrayList<String>();
-        final List<String> deleteImageIz = new ArrayList<String>();
-        final String[] keywordVersion = new String[1];
-        final String[] imagesVersion = new String[1];
-        final int[] keywordCount = new int[1];
-
-        try {
-            new JSONParser().parse(new InputStreamReader(inputStream), new JsonSimpleBaseParser() {
-                private Object keywordObject = null;
-                private String keywordType = "";
-                private int keywordCounter = 0;
-
-                @Override
-                public boolean primitive(Object value) throws ParseException {
-                    if (null != key && value != null) {
-                        if (key.equals("resultCode")) {
-                            if(!value.toString().equals("0")){
-                                return false;//request wasn't successfull
-                            }
-                        } else if (key.equals("resultMessage")) {
-                            Log.i(SynchronizationManager.class.getName(), value.toString());
-                        } else if (key.equals("total")) {
-                            keywordCount[0] = Integer.parseInt(value.toString());
-                            notifySynchronizationListeners("synchronizationUpdate", keywordCounter++, keywordCount[0],
-                                    ApplicationRegistry.getApplicationContext().
-                                            getResources().getString(R.string.processing_keywords_msg), true);
-                        } else if (key.equals("version")) {
-                            keywordVersion[0] = value.toString();
-                            imagesVersion[0] = value.toString();
-                        }  else {
-                            if (keywordObject instanceof SearchMenu) {
-                                populateSearchMenu((SearchMenu) keywordObject, key, value.toString());
-                            } else if (keywordObject instanceof SearchMenuItem) {
-                                populateSearchMenuItem((SearchMenuItem) keywordObject, key, value.toString());
-                            } else if ("id".equalsIgnoreCase(key) && keywordObject instanceof String
-                                    && keywordType.equalsIgnoreCase("images")) {
-                                keywordObject = value;
-                            } else if ("id".equalsIgnoreCase(key) && keywordObject instanceof String
-                                    && keywordType.equalsIgnoreCase("deletedImages")) {
-                                keywordObject = value;
-                            }
-                            else{
-                                Log.i(SynchronizationManager.class.getName(), "no implementation to process " + key);
-                            }
-                        }
-                    }
+    /**
+     * parses the given keywords feed and stores what it carries. The images it refers to are
+     * downloaded, or imported from the given bundle.
+     *
+     * @param inputStream
+     * @param bundle      the bundle the feed comes from, or null if it was downloaded.
+     * @return false if the feed could not be parsed, the failure has been reported to the listeners.
+     */
+    private boolean processKeywords(InputStream inputStream, SyncBundleReader bundle) {
+        final TemporaryIdSet searchMenuIds = new TemporaryIdSet("menus", true);
+        final TemporaryIdSet deletedSearchMenuItemIds = new TemporaryIdSet("deletedMenuItems", false);
+        final TemporaryIdSet deletedImageIds = new TemporaryIdSet("deletedImages", true);
+        final boolean[] searchMenusComplete = new boolean[1];
+        final List<String> imageIdz = new ArrayList<String>();
+        final Map<String, String> imageDigests = new HashMap<String, String>();
+        final List<String> deleteImageIz = new ArrayList<String>();
+        final String processingMessage = applicationContext.getString(R.string.processing_keywords_msg);
+        lastContentNotification = 0;
 
-                    key = null;
-                    return true;
+        boolean parsed = false;
+        try {
+            telemetry.startStage("parse");
+            KeywordsFeedHandler handler = new KeywordsFeedHandler(cancellationToken, new KeywordsFeedHandler.Listener() {
+                @Override
+                public void searchMenu(SearchMenu searchMenu) {
+                    searchMenuIds.add(searchMenu.getId());
+                    menuItemService.save(searchMenu);
                 }
 
                 @Override
-                public boolean startArray() throws ParseException {
-                    keywordType = key;
-                    return true;
+                public void searchMenusComplete() {
+                    searchMenusComplete[0] = true;
+                    notifyContentAvailable(true);
                 }
 
                 @Override
-                public boolean startObject() throws ParseException {
-                    if ("menus".equalsIgnoreCase(keywordType)) {
-                        keywordObject = new SearchMenu();
-                    } else if ("menuItems".equalsIgnoreCase(keywordType)
-                            || "deletedMenuItems".equalsIgnoreCase(keywordType)) {
-                        keywordObject = new SearchMenuItem();
-                    } else if ("images".equalsIgnoreCase(keywordType)) {
-                        keywordObject = new String();
-                    } else if ("deletedImages".equalsIgnoreCase(keywordType)) {
-                        keywordObject = new String();
-                    }
+                public void searchMenuItems(List<SearchMenuItem> searchMenuItems, boolean levelComplete) {
+                    commitMenuItems(searchMenuItems);
+                    notifyContentAvailable(levelComplete);
+                }
 
-                    return true;
+                @Override
+                public void deletedSearchMenuItem(String id) {
+                    deletedSearchMenuItemIds.add(id);
                 }
 
                 @Override
-                public boolean endObject() throws ParseException {
-                    if (keywordObject != null) {
-                        if (keywordObject instanceof SearchMenu) {
-                            searchMenus.add((SearchMenu) keywordObject);
-
-                            menuItemService.save((SearchMenu) keywordObject);
-                        } else if (keywordObject instanceof SearchMenuItem &&
-                                keywordType.equalsIgnoreCase("menuItems")) {
-                            //searchMenuItems.add((SearchMenuItem) keywordObject);
-                            menuItemService.save((SearchMenuItem) keywordObject);
-
-                            notifySynchronizationListeners("synchronizationUpdate", keywordCounter++, keywordCount[0],
-                                    ApplicationRegistry.getApplicationContext().
-                                            getResources().getString(R.string.processing_keywords_msg), true);
-
-                        } else if (keywordObject instanceof SearchMenuItem &&
-                                keywordType.equalsIgnoreCase("deletedMenuItems")) {
-                            //deletedSearchMenuItems.add((SearchMenuItem) keywordObject);
-                            notifySynchronizationListeners("synchronizationUpdate", 1, 1,
-                                    ApplicationRegistry.getApplicationContext().
-                                            getResources().getString(R.string.removing_keywords_msg), true);
-
-                            menuItemService.deleteSearchMenuItems((SearchMenuItem) keywordObject);
-                        } else if (keywordObject instanceof String &&
-                                keywordType.equalsIgnoreCase("images")) {
-                            imageIdz.add((String) keywordObject);
-                        } else if (keywordObject instanceof String &&
-                                keywordType.equalsIgnoreCase("deletedImages")) {
-                            deleteImageIz.add((String) keywordObject);
-                        }
+                public void deletedSearchMenuItemsComplete() {
+                    notifySynchronizationListeners(SynchronizationEvent.progress(1, 1,
+                            ApplicationRegistry.getApplicationContext().
+                                    getResources().getString(R.string.removing_keywords_msg), true));
+                    menuItemService.deleteSearchMenuItems(deletedSearchMenuItemIds);
+                }
+
+                @Override
+                public void image(String imageId, String digest) {
+                    imageIdz.add(imageId);
+                    if (digest != null) {
+                        imageDigests.put(imageId, digest);
                     }
+                }
 
-                    keywordObject = null;
-                    return true;
+                @Override
+                public void deletedImage(String imageId) {
+                    deleteImageIz.add(imageId);
+                    deletedImageIds.add(imageId);
+                }
+
+                @Override
+                public void progress(int step, int max) {
+                    notifySynchronizationListeners(SynchronizationEvent.progress(step, max, processingMessage, true));
                 }
             });
+            BinaryFeedFormat.parse(inputStream, handler);
+            parsed = true;
+            pendingChanges = pendingChanges || handler.hasPendingChanges();
 
-            deleteOldMenus(oldSearchMenus, searchMenus);
-            SettingsManager.getInstance().setValue(SettingsConstants.KEY_KEYWORDS_VERSION, keywordVersion[0]);
+            // the menus are sent in full, the menus that were not sent have been removed
+            if (searchMenusComplete[0]) {
+                menuItemService.deleteOtherSearchMenus(searchMenuIds);
+            }
+            SettingsManager.getInstance().setValue(SettingsConstants.KEY_KEYWORDS_VERSION, handler.getVersion());
+            telemetry.endStage("parse", !stageFailed);
+
+            checkpointService.clearCheckpoint(CHECKPOINT_KEYWORDS_CACHE_VERSION);
 
-            downloadImages(imageIdz, imagesVersion[0]);
-            deleteUnusedImages(deleteImageIz);
+            telemetry.startStage("images");
+            if (bundle == null) {
+                downloadImages(imageIdz, imageDigests, handler.getVersion());
+            } else {
+                importImages(bundle, imageIdz, imageDigests, bundle.getManifest().imagesVersion != null
+                        ? bundle.getManifest().imagesVersion : handler.getVersion());
+            }
+            deleteUnusedImages(deleteImageIz, deletedImageIds);
+            telemetry.endStage("images", !stageFailed);
+        } catch (SynchronizationCancelledException ex) {
+            throw ex;
         } catch (ParseException ex) {
             Log.e(SynchronizationManager.class.getName(), "Parsing Error", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_processing_keywords)));
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_processing_keywords))));
         } catch (IOException ex) {
             Log.e(SynchronizationManager.class.getName(), "IOException Error", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_connecting_to_server)));
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_connecting_to_server))));
         } catch (Exception ex) {
             Log.e(SynchronizationManager.class.getName(), "Exception", ex);
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_processing_keywords))));
+        } finally {
+            searchMenuIds.close();
+            deletedSearchMenuItemIds.close();
+            deletedImageIds.close();
         }
+        return parsed;
     }
 
-    private void deleteUnusedImages(List<String> deleteImageIz) {
-        if (deleteImageIz != null) {
-            for (String imageId : deleteImageIz) {
-                if (imageId != null && imageId.trim().length() > 0) {
-                    File file = new File(ImageUtils.IMAGE_ROOT, imageId + ".jpg");
-                    ImageUtils.deleteFile(file);
-                }
+    /**
+     * saves the given menu items in one transaction and clears the list.
+     */
+    private void commitMenuItems(List<SearchMenuItem> menuItems) {
+        if (menuItems.isEmpty()) {
+            return;
+        }
+
+        StorageManager.getInstance().beginTransaction();
+        try {
+            menuItemService.save(menuItems.toArray(new SearchMenuItem[menuItems.size()]));
+            StorageManager.getInstance().setTransactionSuccessful();
+        } finally {
+            StorageManager.getInstance().endTransaction();
+        }
+        menuItems.clear();
+    }
+
+    /**
+     * tells the listeners that committed content can be shown. Unless the content completes a
+     * level of the menus, the listeners are told at most every
+     * {@link #CONTENT_NOTIFICATION_INTERVAL} milliseconds.
+     *
+     * @param levelComplete
+     */
+    private void notifyContentAvailable(boolean levelComplete) {
+        long now = System.currentTimeMillis();
+        if (!levelComplete && now - lastContentNotification < CONTENT_NOTIFICATION_INTERVAL) {
+            return;
+        }
+
+        if (lastContentNotification == 0) {
+            telemetry.recordMilestone("firstContent");
+        }
+        lastContentNotification = now;
+        notifySynchronizationListeners(SynchronizationEvent.contentAvailable());
+    }
+
+    /**
+     * removes the given images. An image file in the image store is only deleted once no image id
+     * refers to it any more.
+     */
+    private void deleteUnusedImages(List<String> deleteImageIz, TemporaryIdSet deletedImageIds) {
+        if (deleteImageIz == null || deleteImageIz.isEmpty()) {
+            return;
+        }
+
+        for (String imageId : deleteImageIz) {
+            if (imageId != null && imageId.trim().length() > 0) {
+                ImageUtils.deleteFile(new File(ImageUtils.IMAGE_ROOT, imageId + ".jpg"));
             }
         }
+
+        for (String digest : imageService.deleteImages(deletedImageIds)) {
+            ImageUtils.deleteFile(ImageUtils.getStoredImageFile(digest));
+        }
     }
 
-    private void downloadImages(List<String> imageIds, String imagesVersion) throws IOException, ParseException {
+    private void downloadImages(List<String> imageIds, Map<String, String> imageDigests, String imagesVersion)
+            throws IOException, ParseException {
         if (imageIds != null) {
-            int count = imageIds.size(), counter = 0;
-            boolean complete = true;
-
             if (ImageUtils.storageReady() && ImageUtils.createRootFolder()) {
-                for (final String imageId : imageIds) {
-                    notifySynchronizationListeners("synchronizationUpdate", counter++, count,
-                            ApplicationRegistry.getApplicationContext().
-                                    getResources().getString(R.string.downloading_images_msg), true);
-
-                    if (imageId != null || imageId.trim().length() > 0) {
-                        // Only download image if image does not already exist!
-                        if (!ImageUtils.imageExists(imageId.toLowerCase(), false)) {
-                            Log.d("Image Download", "Getting " + imageId);
-
-                            String url = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
-
-                            ImagesRequestWrapper request = new ImagesRequestWrapper();
-                            request.setRequest(SettingsConstants.REQUEST_DOWNLOAD_IMAGES);
-                            request.setImei(DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext()));
-                            List<String> ids = new ArrayList<String>();
-                            ids.add(imageId.split("-")[1]);
-                            request.setImageIds(ids);
-
-                            Gson gson = new Gson();
-                            String jsonRequest = gson.toJson(request);
-
-                            int networkTimeout = 10 * 60 * 1000;
-                            List<NameValuePair> params = new ArrayList<NameValuePair>(2);
-                            params.add(new BasicNameValuePair(SettingsConstants.REQUEST_METHODNAME,
-                                    SettingsConstants.REQUEST_DOWNLOAD_IMAGES));
-                            params.add(new BasicNameValuePair(SettingsConstants.REQUEST_DATA, jsonRequest));
-                            InputStream inputStream = HttpHelpers.postJsonRequestAndGetStream(url, networkTimeout, params);
-
-                            String jsonResponse = new java.util.Scanner(inputStream).useDelimiter("\\A").next();
-                            ImagesResponseWrapper res = gson.fromJson(jsonResponse, ImagesResponseWrapper.class);
-                            FileOutputStream out = null;
-                            try {
-                                if (res != null && res.getResultCode().equals("0")) {
-                                    for (ImageData image : res.getImageResults()) {
-                                        byte[] arr = Base64.decode((image.getImageData()), Base64.DEFAULT);
-                                        Bitmap png = BitmapFactory.decodeByteArray(arr, 0, arr.length);
-                                        out = new FileOutputStream(new File(ImageUtils.IMAGE_ROOT, imageId + ".jpg"));
-                                        png.compress(Bitmap.CompressFormat.JPEG, 100, out);
-                                    }
-                                }
-                            } catch (Exception ex) {
-                                complete = false;
-                                Log.e(SynchronizationManager.class.getName(), "Image parsing Error", ex);
-                                notifySynchronizationListeners("onSynchronizationError",
-                                        new Throwable(applicationContext.getString(R.string.error_downloading_images)));
-                            } finally {
-                                out.close();
-                                inputStream.close();
-                            }
-                        }
-                    }
+                notifySynchronizationListeners(SynchronizationEvent.progress(0, imageIds.size(),
+                        ApplicationRegistry.getApplicationContext().
+                                getResources().getString(R.string.downloading_images_msg), true));
+
+                boolean complete;
+                try {
+                    complete = new ImageDownloader(this).download(imageIds, imageDigests);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    complete = false;
                 }
-                if(complete){
+                cancellationToken.throwIfCancelled();
+
+                if (complete) {
                     SettingsManager.getInstance().setValue(SettingsConstants.KEY_IMAGES_VERSION, imagesVersion);
+                } else {
+                    notifySynchronizationListeners(SynchronizationEvent.failed(
+                            new Throwable(applicationContext.getString(R.string.error_downloading_images))));
                 }
             }
         }
     }
 
+    /**
+     * copies the given images from the bundle to the image store and maps their ids, in batches of
+     * {@link #MENU_ITEMS_BATCH_SIZE} per transaction. An image whose content is already stored is
+     * only mapped. The images version is only saved if the bundle has all the images, the missing
+     * images are downloaded by the next synchronization otherwise.
+     */
+    private void importImages(SyncBundleReader bundle, List<String> imageIds, Map<String, String> imageDigests,
+                              String imagesVersion) throws IOException {
+        if (!ImageUtils.storageReady() || !ImageUtils.createRootFolder()) {
+            return;
+        }
+
+        String importingMessage = applicationContext.getString(R.string.importing_images_msg);
+        int missing = 0;
+        for (int start = 0; start < imageIds.size(); start += MENU_ITEMS_BATCH_SIZE) {
+            cancellationToken.throwIfCancelled();
+            int end = Math.min(start + MENU_ITEMS_BATCH_SIZE, imageIds.size());
+            StorageManager.getInstance().beginTransaction();
+            try {
+                for (String imageId : imageIds.subList(start, end)) {
+                    if (imageId != null && imageId.trim().length() > 0 && !importImage(bundle, imageId, imageDigests)) {
+                        missing++;
+                    }
+                }
+                StorageManager.getInstance().setTransactionSuccessful();
+            } finally {
+                StorageManager.getInstance().endTransaction();
+            }
+            notifySynchronizationListeners(SynchronizationEvent.progress(end, imageIds.size(), importingMessage, true));
+        }
+
+        if (missing == 0) {
+            SettingsManager.getInstance().setValue(SettingsConstants.KEY_IMAGES_VERSION, imagesVersion);
+        } else {
+            Log.w(SynchronizationManager.class.getName(), missing + " images are not in the bundle");
+        }
+    }
+
+    private boolean importImage(SyncBundleReader bundle, String imageId, Map<String, String> imageDigests)
+            throws IOException {
+        String digest = bundle.getImageDigest(imageId);
+        if (digest == null) {
+            digest = imageDigests.get(imageId);
+        }
+        if (digest == null) {
+            return false;
+        }
+
+        digest = digest.toLowerCase();
+        File storedImage = ImageUtils.getStoredImageFile(digest);
+        if (!storedImage.exists()) {
+            File tempFile = new File(ImageUtils.IMAGE_ROOT, digest + ".tmp");
+            if (!bundle.extractImage(digest, tempFile)) {
+                return false;
+            }
+            if (!tempFile.renameTo(storedImage)) {
+                tempFile.delete();
+                return false;
+            }
+        }
+        imageService.saveImage(imageId, digest);
+        return true;
+    }
+
     private void processImages(InputStream inputStream, final String imageId) throws IOException, ParseException {
         final int[] imagesCount = new int[1];
+        final String processingMessage = applicationContext.getString(R.string.processing_images_msg);
 
         try {
             new JSONParser().parse(new InputStreamReader(inputStream), new JsonSimpleBaseParser() {
@@ -590,9 +1406,8 @@ public class SynchronizationManager {
                             Log.i(SynchronizationManager.class.getName(), value.toString());
                         } else if (key.equals("total")) {
                             imagesCount[0] = Integer.parseInt(value.toString());
-                            notifySynchronizationListeners("synchronizationUpdate", imageCounter++, imagesCount[0],
-                                    ApplicationRegistry.getApplicationContext().
-                                            getResources().getString(R.string.processing_images_msg), true);
+                            notifySynchronizationListeners(SynchronizationEvent.progress(imageCounter++, imagesCount[0],
+                                    processingMessage, true));
                         } else {
                             if (imageObject instanceof ImageData) {
                                 populateImageData((ImageData) imageObject, key, value.toString());
@@ -638,9 +1453,8 @@ public class SynchronizationManager {
                                 //saveImage((ImageData) imageObject, imageId);
                                 //ImageUtils.writeFile(imageId + ".jpg", new ByteArrayInputStream(Base64.decode(((ImageData) imageObject).getImageData())));
 
-                                notifySynchronizationListeners("synchronizationUpdate", imageCounter++, imagesCount[0],
-                                        ApplicationRegistry.getApplicationContext().
-                                                getResources().getString(R.string.processing_images_msg), true);
+                                notifySynchronizationListeners(SynchronizationEvent.progress(imageCounter++, imagesCount[0],
+                                        processingMessage, true));
 
                             }catch (Exception ex){
                                 new Throwable(applicationContext.getString(R.string.error_connecting_to_server), ex);
@@ -655,12 +1469,12 @@ public class SynchronizationManager {
         }
         catch (ParseException ex) {
             Log.e(SynchronizationManager.class.getName(), "Parsing Error", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_downloading_images)));
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_downloading_images))));
         } catch (IOException ex) {
             Log.e(SynchronizationManager.class.getName(), "IOException Error", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_connecting_to_server)));
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_connecting_to_server))));
         } catch (Exception ex) {
             Log.e(SynchronizationManager.class.getName(), "Exception", ex);
         }
@@ -674,143 +1488,112 @@ public class SynchronizationManager {
         }
     }
 
-    private void deleteOldMenus(List<SearchMenu> oldSearchMenus, List<SearchMenu> searchMenus) {
-        for (SearchMenu searchMenu : oldSearchMenus) {
-            boolean exists = false;
-            for (SearchMenu newSearchMenu : searchMenus) {
-                if (newSearchMenu.getId().equalsIgnoreCase(searchMenu.getId())) {
-                    exists = true;
-                }
+    /**
+     * creates a farmers downloader that commits the farmers and the continuation token of the next
+     * page to the database.
+     *
+     * @return
+     */
+    private FarmersDownloader createFarmersDownloader() {
+        final String processingMessage = applicationContext.getString(R.string.processing_farmers_msg);
+        return new FarmersDownloader(cancellationToken, new FarmersDownloader.Listener() {
+            @Override
+            public String getContinuationToken() {
+                return checkpointService.getCheckpoint(CHECKPOINT_FARMERS_TOKEN);
             }
 
-            if (!exists) {
-                menuItemService.deleteSearchMenus(searchMenu);
-                menuItemService.deleteSearchMenuItems(searchMenu);
+            @Override
+            public void saveFarmers(List<Farmer> farmers) {
+                // the page is not complete, its continuation token is committed with its last batch
+                menuItemService.save(farmers.toArray(new Farmer[farmers.size()]));
             }
-        }
-    }
 
-    private void populateSearchMenuItem(SearchMenuItem searchMenuItem, String property, String value) {
-        if ("id".equalsIgnoreCase(property)) {
-            searchMenuItem.setId(value);
-        } else if ("position".equalsIgnoreCase(property)) {
-            searchMenuItem.setPosition(Integer.parseInt(value));
-        } else if ("parent_id".equalsIgnoreCase(property)) {
-            searchMenuItem.setParentId(value);
-        } else if ("menu_id".equalsIgnoreCase(property)) {
-            searchMenuItem.setMenuId(value);
-        } else if ("label".equalsIgnoreCase(property)) {
-            searchMenuItem.setLabel(value);
-        } else if ("content".equalsIgnoreCase(property)) {
-            searchMenuItem.setContent(value);
-        }
-    }
+            @Override
+            public void commitPage(List<Farmer> farmers, List<String> deletedFarmerIds, String nextToken) {
+                commitFarmers(farmers, deletedFarmerIds, nextToken);
+            }
 
-    private void populateSearchMenu(SearchMenu searchMenu, String property, String value) {
-        if ("id".equalsIgnoreCase(property)) {
-            searchMenu.setId(value);
-        } else if ("label".equalsIgnoreCase(property)) {
-            searchMenu.setLabel(value);
-        }
+            @Override
+            public void progress(int step, int max) {
+                notifySynchronizationListeners(SynchronizationEvent.progress(step, max, processingMessage, true));
+            }
+        });
     }
 
-    private void processFarmers(InputStream inputStream) throws IOException, ParseException {
-        final String[] farmersVersion = new String[]{ "" };
-        final int[] farmersCount = new int[]{ 0 };
-
-        final List<Farmer> farmers = new ArrayList<Farmer>();
-
-        try {
-            new JSONParser().parse(new InputStreamReader(inputStream), new JsonSimpleBaseParser() {
-                private Object farmerObject = null;
-                private String keywordType = "";
-                private int farmersCounter = 0;
-
-                @Override
-                public boolean primitive(Object value) throws ParseException {
-                    if (null != key && value != null) {
-                        if (key.equals("resultCode")) {
-                            if(!value.toString().equals("0")){
-                                return false;//request wasn't successfull
-                            }
-                        } else if (key.equals("resultMessage")) {
-                            Log.i(SynchronizationManager.class.getName(), value.toString());
-                        } else if (key.equals("farmerVersion")) {
-                            farmersVersion[0] = value.toString();
-                        } else if (key.equals("farmerCount")) {
-                            farmersCount[0] = Integer.parseInt(value.toString());
-
-                            notifySynchronizationListeners("synchronizationUpdate", farmersCounter++, farmersCount[0],
-                                    ApplicationRegistry.getApplicationContext().
-                                            getResources().getString(R.string.processing_farmers_msg), true);
-                        } else {
-                            if (farmerObject instanceof Farmer) {
-                                populateFarmer((Farmer) farmerObject, key, value.toString());
-                            }
-                        }
-                    }
-                    key = null;
-                    return true;
-                }
-
-                @Override
-                public boolean startArray() throws ParseException {
-                    keywordType = key;
-                    return true;
-                }
-
-                @Override
-                public boolean startObject() throws ParseException {
-                    if ("afarmerResults".equalsIgnoreCase(keywordType)) {
-                        farmerObject = new Farmer();
-                    }
-                    return true;
-                }
-
-                @Override
-                public boolean endObject() throws ParseException {
-                    if (farmerObject != null) {
-                        if (farmerObject instanceof Farmer) {
-                            farmers.add((Farmer) farmerObject);
-                            menuItemService.save((Farmer) farmerObject);
-                            notifySynchronizationListeners("synchronizationUpdate", farmersCounter++, farmersCount[0],
-                                    ApplicationRegistry.getApplicationContext().
-                                            getResources().getString(R.string.processing_farmers_msg), true);
-                        }
-                    }
+    /**
+     * creates an uploader that keeps the url of the server that accepts compressed search logs in
+     * the checkpoints.
+     *
+     * @return
+     */
+    private CompressedUploader createCompressedUploader() {
+        return new CompressedUploader(new CompressedUploader.Listener() {
+            @Override
+            public String getCompressedUploadUrl() {
+                return checkpointService.getCheckpoint(CHECKPOINT_GZIP_UPLOAD_URL);
+            }
 
-                    farmerObject = null;
-                    return true;
+            @Override
+            public void setCompressedUploadUrl(String url) {
+                if (url == null) {
+                    checkpointService.clearCheckpoint(CHECKPOINT_GZIP_UPLOAD_URL);
+                } else {
+                    checkpointService.setCheckpoint(CHECKPOINT_GZIP_UPLOAD_URL, url);
                 }
-            });
+            }
+        });
+    }
 
-            SettingsManager.getInstance().setValue(SettingsConstants.KEY_FARMERS_VERSION, farmersVersion[0]);
+    /**
+     * parses a page of farmers of a bundle and commits it, see {@link FarmersDownloader#processPage(InputStream)}.
+     *
+     * @return the parsed page or null if the page could not be processed.
+     */
+    private FarmersDownloader.Page processFarmers(FarmersDownloader downloader, InputStream inputStream)
+            throws IOException {
+        try {
+            FarmersDownloader.Page page = downloader.processPage(inputStream);
+            pendingChanges = pendingChanges || downloader.hasPendingChanges();
+            return page;
+        } catch (SynchronizationCancelledException ex) {
+            throw ex;
         } catch (ParseException ex) {
             Log.e(SynchronizationManager.class.getName(), "Parsing Error", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_processing_farmers)));
+            notifySynchronizationListeners(SynchronizationEvent.failed(
+                    new Throwable(applicationContext.getString(R.string.error_processing_farmers))));
         } catch (IOException ex) {
-            Log.e(SynchronizationManager.class.getName(), "IOException Error", ex);
-            notifySynchronizationListeners("onSynchronizationError",
-                    new Throwable(applicationContext.getString(R.string.error_connecting_to_server)));
+            throw ex;
         } catch (Exception ex) {
             Log.e(SynchronizationManager.class.getName(), "Exception", ex);
         }
+        return null;
     }
 
-    private void populateFarmer(Farmer farmer, String property, String value) {
-        if ("farmerId".equalsIgnoreCase(property)) {
-            farmer.setId(value);
-        } else if ("firstName".equalsIgnoreCase(property)) {
-            farmer.setFirstName (value);
-        } else if ("lastName".equalsIgnoreCase(property)) {
-            farmer.setLastName (value);
-        } else if ("creationDate".equalsIgnoreCase(property)) {
-            farmer.setCreationDate (value);
-        } else if ("subcounty".equalsIgnoreCase(property)) {
-            farmer.setSubcounty (value);
-        } else if ("village".equalsIgnoreCase(property)) {
-            farmer.setVillage (value);
+    /**
+     * saves the given farmers, removes the deleted farmers and saves the continuation token in one
+     * transaction.
+     *
+     * @param farmers           changed farmers to save
+     * @param deletedFarmerIds  identifiers of the deleted farmers
+     * @param continuationToken token of the next page, null when the last page has been committed.
+     */
+    private void commitFarmers(List<Farmer> farmers, List<String> deletedFarmerIds, String continuationToken) {
+        StorageManager.getInstance().beginTransaction();
+        try {
+            if (!farmers.isEmpty()) {
+                menuItemService.save(farmers.toArray(new Farmer[farmers.size()]));
+            }
+            menuItemService.deleteFarmers(deletedFarmerIds);
+
+            if (continuationToken != null) {
+                checkpointService.setCheckpoint(CHECKPOINT_FARMERS_TOKEN, continuationToken);
+            } else {
+                checkpointService.clearCheckpoint(CHECKPOINT_FARMERS_TOKEN);
+            }
+
+            StorageManager.getInstance().setTransactionSuccessful();
+        } finally {
+            StorageManager.getInstance().endTransaction();
         }
     }
 
@@ -865,34 +1648,37 @@ public class SynchronizationManager {
     protected void downloadCountryCode() {
         String countryCode = SettingsManager.getInstance().getValue(SettingsConstants.KEY_COUNTRY_CODE, "NONE");
         if ("NONE".equalsIgnoreCase(countryCode)) {
-            String url = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
+            final String url = SettingsManager.getInstance().getValue(SettingsConstants.KEY_SERVER);
 
             try {
-                GeneralRequestWrapper request = new GeneralRequestWrapper();
+                final GeneralRequestWrapper request = new GeneralRequestWrapper();
                 request.setRequest(SettingsConstants.REQUEST_GET_COUNTRY_CODE);
                 request.setImei(DeviceMetadata.getDeviceImei(ApplicationRegistry.getApplicationContext()));
 
-                Gson gson = new Gson();
-                String jsonRequest = gson.toJson(request);
-
-                int networkTimeout = 10 * 60 * 1000;
-                List<NameValuePair> params = new ArrayList<NameValuePair>(2);
-                params.add(new BasicNameValuePair(SettingsConstants.REQUEST_METHODNAME,
-                        SettingsConstants.REQUEST_GET_COUNTRY_CODE));
-                params.add(new BasicNameValuePair(SettingsConstants.REQUEST_DATA, jsonRequest));
-
-                InputStream inputStream = HttpHelpers.postFormRequestAndGetStream(url, new UrlEncodedFormEntity(params),
-                        networkTimeout);
-
-                if (inputStream != null) {
-                    countryCode = parseCountryCode(inputStream);
-                    SettingsManager.getInstance().setValue(SettingsConstants.KEY_COUNTRY_CODE, countryCode);
-
-                    inputStream.close();
-                }
+                final Gson gson = new Gson();
+
+                countryCode = requestExecutor.execute(SettingsConstants.REQUEST_GET_COUNTRY_CODE, url,
+                        new RequestExecutor.Call<String>() {
+                            @Override
+                            public String call(int networkTimeout) throws IOException, ParseException {
+                                HttpResponse response = HttpHelpers.postJsonFormRequest(url,
+                                        SettingsConstants.REQUEST_GET_COUNTRY_CODE, request, gson, networkTimeout,
+                                        new HashMap<String, String>(), false);
+                                RequestExecutor.checkStatus(response);
+                                InputStream inputStream = HttpHelpers.getInputStream(response);
+                                try {
+                                    return parseCountryCode(inputStream);
+                                } finally {
+                                    inputStream.close();
+                                }
+                            }
+                        });
+                SettingsManager.getInstance().setValue(SettingsConstants.KEY_COUNTRY_CODE, countryCode);
+            } catch (SynchronizationCancelledException ex) {
+                throw ex;
             } catch (Exception ex) {
                 Log.e(SynchronizationManager.class.getName(), "Error downloading country code", ex);
-                notifySynchronizationListeners("onSynchronizationError", new Throwable(ex));
+                notifySynchronizationListeners(SynchronizationEvent.failed(new Throwable(ex)));
             }
         }
     }
@@ -902,9 +1688,10 @@ public class SynchronizationManager {
      *
      * @param inputStream
      * @return country code
-     * @throws Exception
+     * @throws IOException
+     * @throws ParseException
      */
-    private String parseCountryCode(InputStream inputStream) throws Exception {
+    private String parseCountryCode(InputStream inputStream) throws IOException, ParseException {
         final String[] countryCodeHolder = new String[1];
 
         new JSONParser().parse(new InputStreamReader(inputStream), new JsonSimpleBaseParser() {
@@ -935,33 +1722,34 @@ public class SynchronizationManager {
         return xmlRequest.getEntity();
     }
 
-    protected void notifySynchronizationListeners(String methodName, Object... args) {
-        //synchronized (synchronizationListenerList) {
-            for (SynchronizationListener listener : synchronizationListenerList.values()) {
-                try {
-                    Class[] argTypes = null;
-                    if (args != null) {
-                        argTypes = new Class[args.length];
-                        for (int index = 0; index < args.length; index++) {
-                            argTypes[index] = args[index].getClass();
-                        }
-                    }
-
-                    SynchronizationListener.class.
-                            getMethod(methodName, argTypes).invoke(listener, args);
-                } catch (Exception ex) {
-                    Log.e(SynchronizationManager.class.getName(),
-                            "Error executing listener method", ex);
-                }
-            }
-        //}
+    /**
+     * delivers the given event to the registered synchronization listeners. Progress events within
+     * a stage are coalesced by the {@link SynchronizationEventDispatcher} so that they do not flood
+     * the listeners.
+     *
+     * @param event
+     */
+    protected void notifySynchronizationListeners(SynchronizationEvent event) {
+        if (event.isFailure()) {
+            stageFailed = true;
+            runFailed = true;
+        } else if (event.isProgress()) {
+            telemetry.sampleHeap();
+        }
+        eventDispatcher.dispatch(event);
     }
 
     /**
-     * called to stop an on going synchronization process.
+     * called to stop an on going synchronization process. The synchronization stops at its next
+     * cancellation check, keeping everything it has committed so far, and the listeners are
+     * notified through {@link SynchronizationListener#onSynchronizationError(Throwable)}.
+     * <p/>
+     * This method is non-blocking and therefore returns immediately.
      */
     public synchronized void stop() {
-        //TODO stop the synchronization process here.
+        if (state.compareAndSet(State.RUNNING, State.STOPPING)) {
+            cancellationToken.cancel();
+        }
     }
 
     /**
@@ -971,7 +1759,7 @@ public class SynchronizationManager {
      * @param listener
      */
     public synchronized void registerListener(SynchronizationListener listener) {
-        synchronizationListenerList.put(listener.getClass().getName(), listener);
+        eventDispatcher.register(listener);
     }
 
     /**
@@ -980,9 +1768,7 @@ public class SynchronizationManager {
      * @param listener
      */
     public synchronized void unRegisterListener(SynchronizationListener listener) {
-        //synchronized (synchronizationListenerList) {
-            synchronizationListenerList.remove(listener.getClass().getName());
-        //}
+        eventDispatcher.unRegister(listener);
     }
 
     /**
@@ -992,7 +1778,72 @@ public class SynchronizationManager {
      * @return
      */
     public boolean isSynchronizing() {
-        return synchronizing;
+        return state.get() != State.IDLE;
+    }
+
+    /**
+     * checks whether the server reported, during the last synchronization, that it has more
+     * changes for this device than it returned, e.g. because the catalogue is being updated.
+     *
+     * @return
+     */
+    public boolean hasPendingChanges() {
+        return pendingChanges;
+    }
+
+    private enum State {
+        IDLE, RUNNING, STOPPING
+    }
+
+    /**
+     * work that is run in the background like a synchronization, see
+     * {@link #startTask(String, int, int, Task)}.
+     */
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * the stages of a synchronization in the order in which they are run. A stage that is skipped on
+     * resume is not run again after an interrupted synchronization committed it, the others are
+     * cheap or resume from their own checkpoints.
+     */
+    private enum Stage {
+        COUNTRY_CODE(R.string.country_code_download_msg, false),
+        SEARCH_LOGS(R.string.upload_search_logs_download_msg, false),
+        KEYWORDS(R.string.keyword_download_msg, true),
+        FARMERS(R.string.farmer_download_msg, false);
+
+        private final int messageId;
+        private final boolean skippedOnResume;
+
+        Stage(int messageId, boolean skippedOnResume) {
+            this.messageId = messageId;
+            this.skippedOnResume = skippedOnResume;
+        }
+    }
+
+    public class MenuTreeRequestWrapper {
+        private String request;
+        private String imei;
+        private List<MenuTreeReconciler.NodeHash> nodes;
+
+        public void setRequest(String request) {
+            this.request = request;
+        }
+
+        public void setImei(String imei) {
+            this.imei = imei;
+        }
+
+        /**
+         * sets the hashes of the nodes that the client wants to compare with those of the server.
+         *
+         * @param nodes
+         */
+        void setNodes(List<MenuTreeReconciler.NodeHash> nodes) {
+            this.nodes = nodes;
+        }
     }
 
     public class KeywordsRequestWrapper {
@@ -1001,6 +1852,8 @@ public class SynchronizationManager {
         private String ImagesLastUpdatedDate;
         private String request;
         private String imei;
+        private String responseFormat;
+        private boolean progressive;
 
         public void setRequest(String request) {
             this.request = request;
@@ -1022,6 +1875,26 @@ public class SynchronizationManager {
             ImagesLastUpdatedDate = imagesLastUpdatedDate;
         }
 
+        /**
+         * sets the format in which the client would like the response, see {@link BinaryFeedFormat}.
+         * A server that does not support it answers with JSON.
+         *
+         * @param responseFormat
+         */
+        public void setResponseFormat(String responseFormat) {
+            this.responseFormat = responseFormat;
+        }
+
+        /**
+         * asks the server to send the menus and the top level menu items before the deeper levels,
+         * so that they can be shown while the rest is downloaded.
+         *
+         * @param progressive
+         */
+        public void setProgressive(boolean progressive) {
+            this.progressive = progressive;
+        }
+
         public String getKeywordsVersion() {
             return keywordsVersion;
         }
@@ -1046,7 +1919,9 @@ public class SynchronizationManager {
     public class SearchLogRequest {
         private String request;
         private String imei;
+        private String idempotencyKey;
         private List<SearchLog> searchLogs;
+        private List<SyncStageMetrics> syncTelemetry;
 
         public void setRequest(String request) {
             this.request = request;
@@ -1059,12 +1934,23 @@ public class SynchronizationManager {
         public void setSearchLogs(List<SearchLog> searchLogs) {
             this.searchLogs = searchLogs;
         }
+
+        public void setIdempotencyKey(String idempotencyKey) {
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        public void setSyncTelemetry(List<SyncStageMetrics> syncTelemetry) {
+            this.syncTelemetry = syncTelemetry;
+        }
     }
 
     public class FarmersRequestWrapper {
         private String farmersVersion;
         private String request;
         private String imei;
+        private int pageSize;
+        private String continuationToken;
+        private String responseFormat;
 
         public void setRequest(String request) {
             this.request = request;
@@ -1077,6 +1963,18 @@ public class SynchronizationManager {
         public void setFarmersVersion(String farmersVersion) {
             this.farmersVersion = farmersVersion;
         }
+
+        public void setPageSize(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        public void setContinuationToken(String continuationToken) {
+            this.continuationToken = continuationToken;
+        }
+
+        public void setResponseFormat(String responseFormat) {
+            this.responseFormat = responseFormat;
+        }
     }
 
     public class GeneralRequestWrapper {
@@ -1113,7 +2011,7 @@ public class SynchronizationManager {
         }
     }
 
-    public class ImagesRequestWrapper {
+    public static class ImagesRequestWrapper {
         private String request;
         private String imei;
         private List<String> imageIds;
@@ -1143,36 +2041,6 @@ public class SynchronizationManager {
         }
     }
 
-    public class ImagesResponseWrapper {
-        private String resultCode;
-        private String resultMassage;
-        private List<ImageData> imageResults;
-
-        public String getResultCode() {
-            return resultCode;
-        }
-
-        public void setResultCode(String resultCode) {
-            this.resultCode = resultCode;
-        }
-
-        public String getResultMassage() {
-            return resultMassage;
-        }
-
-        public void setResultMassage(String resultMassage) {
-            this.resultMassage = resultMassage;
-        }
-
-        public List<ImageData> getImageResults() {
-            return imageResults;
-        }
-
-        public void setImageResults(List<ImageData> imageResults) {
-            this.imageResults = imageResults;
-        }
-    }
-
     public class ImageData {
         private String imageId;
         private String imageData;
@@ -0,0 +1,19 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+/**
+ * Interface implemented by synchronization listeners that keep the result of each
+ * synchronization, e.g. to decide when the next one should run.
+ */
+public interface SynchronizationResultListener extends SynchronizationListener {
+
+    /**
+     * called once at the end of every synchronization started with
+     * {@link SynchronizationManager#start()}, after {@link #synchronizationComplete()} or after the
+     * error that ended it. A synchronization whose stages failed still completes, it is only
+     * successful if none of them failed.
+     *
+     * @param successful whether the synchronization completed without a failed stage.
+     * @param cancelled  whether the synchronization was stopped before it completed.
+     */
+    void synchronizationEnded(boolean successful, boolean cancelled);
+}
@@ -0,0 +1,64 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.utils.Clock;
+
+import java.util.Random;
+
+/**
+ * Decides when the next background synchronization should run.
+ * <p/>
+ * After a successful synchronization the next one runs after the configured interval, or after a
+ * quarter of it if the server reported that it has more changes for the device. After failed
+ * synchronizations the device backs off exponentially, starting at {@link #MIN_RETRY_DELAY} and
+ * doubling with every consecutive failure up to {@link #MAX_RETRY_DELAY}. Half of every retry delay
+ * is random, so that devices that failed at the same time, e.g. because the server was down, do
+ * not all retry at the same time.
+ */
+class SynchronizationSchedule {
+    static final long MIN_INTERVAL = 60 * 1000L;
+    static final long MIN_RETRY_DELAY = 2 * 60 * 1000L;
+    static final long MAX_RETRY_DELAY = 6 * 60 * 60 * 1000L;
+    static final int PENDING_CHANGES_INTERVAL_DIVISOR = 4;
+
+    private final Clock clock;
+    private final Random random;
+
+    SynchronizationSchedule() {
+        this(Clock.SYSTEM, new Random());
+    }
+
+    SynchronizationSchedule(Clock clock, Random random) {
+        this.clock = clock;
+        this.random = random;
+    }
+
+    /**
+     * gets the time at which the next synchronization should run.
+     *
+     * @param interval            the configured synchronization interval in milliseconds.
+     * @param consecutiveFailures the number of synchronizations that failed since the last one that
+     *                            succeeded.
+     * @param pendingChanges      whether the server reported more changes in the last successful
+     *                            synchronization.
+     * @return the time in milliseconds since the epoch.
+     */
+    long getNextSynchronizationTime(long interval, int consecutiveFailures, boolean pendingChanges) {
+        return clock.currentTimeMillis() + getDelay(interval, consecutiveFailures, pendingChanges);
+    }
+
+    long getDelay(long interval, int consecutiveFailures, boolean pendingChanges) {
+        interval = Math.max(interval, MIN_INTERVAL);
+        if (consecutiveFailures <= 0) {
+            return pendingChanges ? Math.max(interval / PENDING_CHANGES_INTERVAL_DIVISOR, MIN_INTERVAL) : interval;
+        }
+
+        long retryDelay = MIN_RETRY_DELAY;
+        for (int failure = 1; failure < consecutiveFailures && retryDelay < MAX_RETRY_DELAY; failure++) {
+            retryDelay *= 2;
+        }
+        retryDelay = Math.min(retryDelay, MAX_RETRY_DELAY);
+
+        long jitter = (long) (random.nextDouble() * (retryDelay / 2));
+        return retryDelay / 2 + jitter;
+    }
+}
@@ -0,0 +1,203 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.model.SyncStageMetrics;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+import org.grameenfoundation.consulteca.utils.HttpStatistics;
+import org.grameenfoundation.consulteca.utils.NetworkStatistics;
+import org.grameenfoundation.consulteca.utils.PerformanceCounters;
+import org.grameenfoundation.consulteca.utils.RequestMetrics;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the stages of one synchronization run: wall time, bytes transferred, rows written,
+ * peak heap and the requests that were retried, timed out or rejected. Stages can be nested, e.g.
+ * the download and the parsing of the keywords are measured within the keywords stage, and the
+ * measurements of a stage include those of its nested stages.
+ * <p/>
+ * The requests of the run are also measured by endpoint, see {@link #recordNetworkStatistics()}.
+ * Added as a {@link HttpHelpers.RequestListener}, it records the time to the first byte of the
+ * first request of the run, see {@link #requestCompleted(RequestMetrics)}.
+ */
+class SynchronizationTelemetry implements HttpHelpers.RequestListener {
+    private final long runStarted = System.currentTimeMillis();
+    private final Map<String, HttpStatistics> networkStatisticsAtStart = NetworkStatistics.getInstance().getSnapshot();
+    private final List<SyncStageMetrics> stages = new ArrayList<SyncStageMetrics>();
+    private final LinkedList<OpenStage> openStages = new LinkedList<OpenStage>();
+    private boolean firstRequestRecorded = false;
+
+    /**
+     * starts measuring the stage with the given name, nested in the stage that is currently open.
+     *
+     * @param name
+     */
+    synchronized void startStage(String name) {
+        OpenStage stage = new OpenStage();
+        stage.name = name;
+        stage.fullName = openStages.isEmpty() ? name : openStages.getLast().fullName + "." + name;
+        stage.startTime = System.currentTimeMillis();
+        stage.bytesReceived = PerformanceCounters.getBytesReceived();
+        stage.bytesSent = PerformanceCounters.getBytesSent();
+        stage.rowsWritten = PerformanceCounters.getRowsWritten();
+        stage.requestRetries = PerformanceCounters.getRequestRetries();
+        stage.requestTimeouts = PerformanceCounters.getRequestTimeouts();
+        stage.requestsRejected = PerformanceCounters.getRequestsRejected();
+        stage.peakHeapBytes = getUsedHeap();
+        openStages.addLast(stage);
+    }
+
+    /**
+     * stops measuring the innermost open stage with the given name. The stages nested within it
+     * that are still open, because the code that measures them did not complete, are ended as
+     * unsuccessful.
+     *
+     * @param name
+     * @param successful
+     */
+    synchronized void endStage(String name, boolean successful) {
+        boolean open = false;
+        for (OpenStage stage : openStages) {
+            open = open || stage.name.equals(name);
+        }
+        if (!open) {
+            return;
+        }
+
+        while (!openStages.getLast().name.equals(name)) {
+            endInnermostStage(false);
+        }
+        endInnermostStage(successful);
+    }
+
+    /**
+     * records that the run reached the given milestone, e.g. the first content that can be shown,
+     * as a stage that lasted from the start of the run until now.
+     *
+     * @param name
+     */
+    synchronized void recordMilestone(String name) {
+        SyncStageMetrics metrics = new SyncStageMetrics();
+        metrics.setRunStarted(runStarted);
+        metrics.setStage(name);
+        metrics.setDurationMillis(System.currentTimeMillis() - runStarted);
+        metrics.setPeakHeapBytes(getUsedHeap());
+        metrics.setSuccessful(true);
+        stages.add(metrics);
+    }
+
+    /**
+     * records the time to the first byte of the first request of the run that got a response, as
+     * the stage firstRequest.warm if it was sent on a connection that was already open, e.g. by
+     * {@link HttpHelpers#warmUp(String)}, or firstRequest.cold if it had to connect first.
+     *
+     * @param metrics
+     */
+    @Override
+    public synchronized void requestCompleted(RequestMetrics metrics) {
+        if (firstRequestRecorded || metrics.getFirstByteMillis() < 0) {
+            return;
+        }
+
+        firstRequestRecorded = true;
+        SyncStageMetrics stage = new SyncStageMetrics();
+        stage.setRunStarted(runStarted);
+        stage.setStage(metrics.getConnectMillis() < 0 ? "firstRequest.warm" : "firstRequest.cold");
+        stage.setDurationMillis(metrics.getFirstByteMillis());
+        stage.setBytesReceived(metrics.getBytesReceived());
+        stage.setBytesSent(metrics.getBytesSent());
+        stage.setSuccessful(!metrics.isFailed());
+        stages.add(stage);
+    }
+
+    /**
+     * records the {@link NetworkStatistics} of the requests made since the run started as one
+     * stage per endpoint, named http.&lt;endpoint&gt;. Its duration is the time spent in the
+     * requests and it is successful if all the requests got a response.
+     */
+    synchronized void recordNetworkStatistics() {
+        Map<String, HttpStatistics> statistics = NetworkStatistics.difference(networkStatisticsAtStart,
+                NetworkStatistics.getInstance().getSnapshot());
+        for (Map.Entry<String, HttpStatistics> entry : statistics.entrySet()) {
+            HttpStatistics endpointStatistics = entry.getValue();
+            SyncStageMetrics metrics = new SyncStageMetrics();
+            metrics.setRunStarted(runStarted);
+            metrics.setStage("http." + entry.getKey());
+            metrics.setDurationMillis(endpointStatistics.getTotalMillis().getSum());
+            metrics.setBytesReceived(endpointStatistics.getBytesReceived());
+            metrics.setBytesSent(endpointStatistics.getBytesSent());
+            metrics.setSuccessful(endpointStatistics.getFailures() == 0);
+            metrics.setHttpStatistics(endpointStatistics);
+            stages.add(metrics);
+        }
+    }
+
+    /**
+     * stops measuring all the open stages, e.g. when the synchronization has been cancelled.
+     */
+    synchronized void endAllStages(boolean successful) {
+        while (!openStages.isEmpty()) {
+            endInnermostStage(successful);
+        }
+    }
+
+    private void endInnermostStage(boolean successful) {
+        sampleHeap();
+        OpenStage stage = openStages.removeLast();
+        SyncStageMetrics metrics = new SyncStageMetrics();
+        metrics.setRunStarted(runStarted);
+        metrics.setStage(stage.fullName);
+        metrics.setDurationMillis(System.currentTimeMillis() - stage.startTime);
+        metrics.setBytesReceived(PerformanceCounters.getBytesReceived() - stage.bytesReceived);
+        metrics.setBytesSent(PerformanceCounters.getBytesSent() - stage.bytesSent);
+        metrics.setRowsWritten(PerformanceCounters.getRowsWritten() - stage.rowsWritten);
+        metrics.setRequestRetries(PerformanceCounters.getRequestRetries() - stage.requestRetries);
+        metrics.setRequestTimeouts(PerformanceCounters.getRequestTimeouts() - stage.requestTimeouts);
+        metrics.setRequestsRejected(PerformanceCounters.getRequestsRejected() - stage.requestsRejected);
+        metrics.setPeakHeapBytes(stage.peakHeapBytes);
+        metrics.setSuccessful(successful);
+        stages.add(metrics);
+    }
+
+    /**
+     * records the heap currently in use as the peak of the open stages if it is higher than their
+     * current peak.
+     */
+    synchronized void sampleHeap() {
+        long usedHeap = getUsedHeap();
+        for (OpenStage stage : openStages) {
+            if (usedHeap > stage.peakHeapBytes) {
+                stage.peakHeapBytes = usedHeap;
+            }
+        }
+    }
+
+    /**
+     * gets the measurements of the stages that have ended, in the order in which they ended.
+     *
+     * @return
+     */
+    synchronized List<SyncStageMetrics> getStages() {
+        return new ArrayList<SyncStageMetrics>(stages);
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class OpenStage {
+        private String name;
+        private String fullName;
+        private long startTime;
+        private long bytesReceived;
+        private long bytesSent;
+        private long rowsWritten;
+        private long requestRetries;
+        private long requestTimeouts;
+        private long requestsRejected;
+        private long peakHeapBytes;
+    }
+}
@@ -5,6 +5,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.view.MenuItem;
+import android.view.View;
 import android.widget.TextView;
 import org.grameenfoundation.consulteca.R;
 
@@ -22,6 +23,13 @@ public class AboutActivity extends Activity {
             String versionName = getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
             TextView textView = (TextView) findViewById(R.id.about_version);
             textView.setText(getResources().getString(R.string.app_version_about) + " " + versionName);
+            textView.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View view) {
+                    startActivity(new Intent().setClass(AboutActivity.this, DiagnosticsActivity.class));
+                    return true;
+                }
+            });
 
         } catch (PackageManager.NameNotFoundException e) {
             e.printStackTrace();
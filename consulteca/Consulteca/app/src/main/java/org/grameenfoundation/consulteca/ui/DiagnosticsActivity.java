@@ -0,0 +1,130 @@
+package org.grameenfoundation.consulteca.ui;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.widget.TextView;
+import org.grameenfoundation.consulteca.R;
+import org.grameenfoundation.consulteca.model.SyncStageMetrics;
+import org.grameenfoundation.consulteca.services.TelemetryService;
+import org.grameenfoundation.consulteca.utils.Histogram;
+import org.grameenfoundation.consulteca.utils.HttpStatistics;
+import org.grameenfoundation.consulteca.utils.NetworkScheduler;
+import org.grameenfoundation.consulteca.utils.ResponseCache;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A hidden Activity that shows the performance measurements of the last synchronization runs.
+ * It is opened with a long press on the version in the about screen. The http.&lt;endpoint&gt;
+ * stages show the statistics of the requests to an endpoint, with the median and the 90th
+ * percentile of their timings. The requests of each priority since the application started are
+ * shown first, see {@link NetworkScheduler}, followed by the hits and misses of the
+ * {@link ResponseCache}.
+ */
+public class DiagnosticsActivity extends Activity {
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+
+        TextView textView = (TextView) findViewById(R.id.diagnostics_text);
+        StringBuilder builder = new StringBuilder();
+        appendSchedulerStatistics(builder);
+        appendCacheStatistics(builder);
+        List<SyncStageMetrics> stages = new TelemetryService().getRecentStages();
+        if (stages.isEmpty()) {
+            builder.append("\n").append(getString(R.string.diagnostics_empty));
+            textView.setText(builder.toString());
+            return;
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        long runStarted = -1;
+        for (SyncStageMetrics stage : stages) {
+            if (stage.getRunStarted() != runStarted) {
+                runStarted = stage.getRunStarted();
+                if (builder.length() > 0) {
+                    builder.append("\n");
+                }
+                builder.append(dateFormat.format(new Date(runStarted))).append("\n");
+            }
+
+            builder.append(stage.isSuccessful() ? "  " : "! ").append(stage.getStage()).append("\n");
+            if (stage.getHttpStatistics() != null) {
+                appendHttpStatistics(builder, stage.getHttpStatistics());
+                continue;
+            }
+            builder.append("    ").append(stage.getDurationMillis()).append(" ms, ");
+            builder.append(stage.getBytesReceived() / 1024).append(" KB in, ");
+            builder.append(stage.getBytesSent() / 1024).append(" KB out\n");
+            builder.append("    ").append(stage.getRowsWritten()).append(" rows, ");
+            builder.append(stage.getRowsPerSecond()).append(" rows/s, ");
+            builder.append(stage.getPeakHeapBytes() / (1024 * 1024)).append(" MB peak heap\n");
+            if (stage.getRequestRetries() + stage.getRequestTimeouts() + stage.getRequestsRejected() > 0) {
+                builder.append("    ").append(stage.getRequestRetries()).append(" retries, ");
+                builder.append(stage.getRequestTimeouts()).append(" timeouts, ");
+                builder.append(stage.getRequestsRejected()).append(" rejected\n");
+            }
+        }
+        textView.setText(builder.toString());
+    }
+
+    private static void appendSchedulerStatistics(StringBuilder builder) {
+        for (NetworkScheduler.Priority priority : NetworkScheduler.Priority.values()) {
+            NetworkScheduler.Statistics statistics = NetworkScheduler.getInstance().getStatistics(priority);
+            builder.append(priority.name().toLowerCase()).append("\n");
+            builder.append("    ").append(statistics.getInFlight()).append(" in flight, ");
+            builder.append(statistics.getRequests()).append(" requests\n");
+            builder.append("    ").append(statistics.getBytes() / 1024).append(" KB, ");
+            builder.append(statistics.getBytesPerSecond() / 1024).append(" KB/s");
+            if (statistics.getRateLimit() > 0) {
+                builder.append(" (limit ").append(statistics.getRateLimit() / 1024).append(" KB/s, ");
+                builder.append(statistics.getThrottledMillis()).append(" ms throttled)");
+            }
+            builder.append("\n");
+        }
+    }
+
+    private static void appendCacheStatistics(StringBuilder builder) {
+        ResponseCache.Statistics statistics = ResponseCache.getInstance().getStatistics();
+        builder.append("cache\n");
+        builder.append("    ").append(statistics.getEntries()).append(" responses, ");
+        builder.append(statistics.getSize() / 1024).append(" of ");
+        builder.append(statistics.getMaxSize() / 1024).append(" KB, ");
+        builder.append(statistics.getEvictions()).append(" evicted\n");
+        builder.append("    ").append(statistics.getHits()).append(" hits, ");
+        builder.append(statistics.getConditionalHits()).append(" not modified, ");
+        builder.append(statistics.getStaleHits()).append(" offline, ");
+        builder.append(statistics.getMisses()).append(" misses (");
+        builder.append(statistics.getHitPercentage()).append("% hits)\n");
+    }
+
+    private static void appendHttpStatistics(StringBuilder builder, HttpStatistics statistics) {
+        builder.append("    ").append(statistics.getRequests()).append(" requests, ");
+        builder.append(statistics.getFailures()).append(" failed, ");
+        builder.append(statistics.getStatusCount(4)).append(" 4xx, ");
+        builder.append(statistics.getStatusCount(5)).append(" 5xx\n");
+        builder.append("    ").append(statistics.getBytesSent() / 1024).append(" KB out (");
+        builder.append(statistics.getGzippedRequests()).append(" gzipped), ");
+        builder.append(statistics.getBytesReceived() / 1024).append(" KB in (");
+        builder.append(statistics.getGzippedResponses()).append(" gzipped), ");
+        builder.append(statistics.getContentBytesReceived() / 1024).append(" KB content\n");
+        appendHistogram(builder, "total", statistics.getTotalMillis());
+        appendHistogram(builder, "first byte", statistics.getFirstByteMillis());
+        appendHistogram(builder, "connect", statistics.getConnectMillis());
+        appendHistogram(builder, "dns", statistics.getDnsMillis());
+    }
+
+    private static void appendHistogram(StringBuilder builder, String name, Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        builder.append("    ").append(name).append(": ").append(histogram.getCount()).append(" x, ");
+        builder.append("mean ").append(histogram.getMean()).append(" ms, ");
+        builder.append("p50 ").append(histogram.getPercentile(50)).append(" ms, ");
+        builder.append("p90 ").append(histogram.getPercentile(90)).append(" ms\n");
+    }
+}
@@ -0,0 +1,78 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that decodes the Base64 characters written to it and writes the decoded
+ * bytes to the underlying stream. Only a few bits are held between writes so any amount of
+ * data can be decoded in constant memory.
+ * <p/>
+ * Line breaks and white space are ignored and both the standard and the url safe alphabets
+ * are accepted.
+ */
+public class Base64DecodingOutputStream extends FilterOutputStream {
+    private static final int[] DECODE_TABLE = new int[128];
+
+    static {
+        for (int index = 0; index < DECODE_TABLE.length; index++) {
+            DECODE_TABLE[index] = -1;
+        }
+
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int index = 0; index < alphabet.length(); index++) {
+            DECODE_TABLE[alphabet.charAt(index)] = index;
+        }
+        DECODE_TABLE['-'] = 62;
+        DECODE_TABLE['_'] = 63;
+    }
+
+    private int buffer = 0;
+    private int bufferedBits = 0;
+    private boolean padded = false;
+
+    public Base64DecodingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * decodes a character. Unlike other output streams the whole value is used rather than its
+     * low eight bits, so that a character above 0x7F, e.g. from a decoded JSON string, is rejected
+     * instead of being taken for the Base64 character in its low byte.
+     *
+     * @param character
+     * @throws IOException if the character is not part of the Base64 alphabets or follows the padding.
+     */
+    @Override
+    public void write(int character) throws IOException {
+        if (character == ' ' || character == '\n' || character == '\r' || character == '\t') {
+            return;
+        }
+
+        if (character == '=') {
+            padded = true;
+            return;
+        }
+
+        int value = character >= 0 && character < DECODE_TABLE.length ? DECODE_TABLE[character] : -1;
+        if (value < 0 || padded) {
+            throw new IOException("Invalid Base64 character: 0x" + Integer.toHexString(character));
+        }
+
+        buffer = (buffer << 6) | value;
+        bufferedBits += 6;
+        if (bufferedBits >= 8) {
+            bufferedBits -= 8;
+            out.write((buffer >> bufferedBits) & 0xFF);
+            buffer &= (1 << bufferedBits) - 1;
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        for (int index = offset; index < offset + length; index++) {
+            write(bytes[index] & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.grameenfoundation.consulteca.utils;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * A compact binary encoding of the JSON feeds sent by the server. A binary feed starts with the
+ * {@link #MAGIC} bytes and then has one token per JSON event:
+ * <ul>
+ * <li>the structure tokens {@link #START_OBJECT}, {@link #END_OBJECT}, {@link #START_ARRAY},
+ * {@link #END_ARRAY} and {@link #KEY}, which is followed by the key as a string value.</li>
+ * <li>the value tokens. Integers are zig-zag varints, strings are prefixed by their length in
+ * bytes as a varint. A {@link #STRING_DEFINE} string is added to a string table that both sides
+ * build as the feed is written and read, so that a repeated string, e.g. a key or the id of a
+ * parent menu item, is sent as a {@link #STRING_REF} varint index into the table. Dates are sent
+ * as the number of days or seconds since the epoch.</li>
+ * </ul>
+ * The client asks for it with the {@link #NAME} response format, a server that does not support
+ * it answers with JSON. {@link #parse(InputStream, ContentHandler)} reads either.
+ */
+public final class BinaryFeedFormat {
+    public static final String NAME = "cbf1";
+    static final byte[] MAGIC = new byte[]{'C', 'B', 'F', '1'};
+
+    static final int START_OBJECT = 0x01;
+    static final int END_OBJECT = 0x02;
+    static final int START_ARRAY = 0x03;
+    static final int END_ARRAY = 0x04;
+    static final int KEY = 0x05;
+
+    static final int NULL = 0x10;
+    static final int TRUE = 0x11;
+    static final int FALSE = 0x12;
+    static final int INTEGER = 0x13;
+    static final int DOUBLE = 0x14;
+    static final int STRING = 0x15;
+    static final int STRING_DEFINE = 0x16;
+    static final int STRING_REF = 0x17;
+    static final int DATE = 0x18;
+    static final int DATE_TIME = 0x19;
+
+    static final String DATE_PATTERN = "yyyy-MM-dd";
+    static final String DATE_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
+
+    private BinaryFeedFormat() {
+    }
+
+    /**
+     * parses the given feed, in the binary format or in JSON, and reports its content to the
+     * given handler the same way {@link JSONParser} does.
+     *
+     * @param inputStream
+     * @param handler
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static void parse(InputStream inputStream, ContentHandler handler) throws IOException, ParseException {
+        if (!inputStream.markSupported()) {
+            inputStream = new BufferedInputStream(inputStream);
+        }
+
+        if (isBinary(inputStream)) {
+            new BinaryFeedReader(inputStream).parse(handler);
+        } else {
+            new JSONParser().parse(new InputStreamReader(inputStream), handler);
+        }
+    }
+
+    private static boolean isBinary(InputStream inputStream) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        inputStream.mark(header.length);
+        int length = 0;
+        int read;
+        while (length < header.length && (read = inputStream.read(header, length, header.length - length)) != -1) {
+            length += read;
+        }
+        inputStream.reset();
+        return Arrays.equals(header, MAGIC);
+    }
+}
@@ -0,0 +1,183 @@
+package org.grameenfoundation.consulteca.utils;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Reads a feed in the {@link BinaryFeedFormat} and reports its content to a json-simple
+ * {@link ContentHandler}, with the same events that the {@link org.json.simple.parser.JSONParser}
+ * reports for the equivalent JSON feed, so that the same handler processes either.
+ */
+public class BinaryFeedReader {
+    private final DataInputStream input;
+    private final List<String> strings = new ArrayList<String>();
+    private final SimpleDateFormat dateFormat = createDateFormat(BinaryFeedFormat.DATE_PATTERN);
+    private final SimpleDateFormat dateTimeFormat = createDateFormat(BinaryFeedFormat.DATE_TIME_PATTERN);
+
+    public BinaryFeedReader(InputStream inputStream) {
+        this.input = new DataInputStream(inputStream);
+    }
+
+    /**
+     * reads the feed to its end, or until the handler returns false.
+     *
+     * @param handler
+     * @throws IOException    if the stream cannot be read or is not a valid binary feed.
+     * @throws ParseException if thrown by the handler.
+     */
+    public void parse(ContentHandler handler) throws IOException, ParseException {
+        byte[] magic = new byte[BinaryFeedFormat.MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, BinaryFeedFormat.MAGIC)) {
+            throw new IOException("Not a binary feed");
+        }
+
+        // true for an object, false for an array
+        LinkedList<Boolean> containers = new LinkedList<Boolean>();
+        handler.startJSON();
+        int token;
+        while ((token = input.read()) != -1) {
+            switch (token) {
+                case BinaryFeedFormat.START_OBJECT:
+                    containers.push(Boolean.TRUE);
+                    if (!handler.startObject()) {
+                        return;
+                    }
+                    continue;
+                case BinaryFeedFormat.START_ARRAY:
+                    containers.push(Boolean.FALSE);
+                    if (!handler.startArray()) {
+                        return;
+                    }
+                    continue;
+                case BinaryFeedFormat.KEY:
+                    if (containers.isEmpty() || !containers.peek()) {
+                        throw new IOException("Key outside of an object in the binary feed");
+                    }
+                    if (!handler.startObjectEntry(readString(input.read()))) {
+                        return;
+                    }
+                    continue;
+                case BinaryFeedFormat.END_OBJECT:
+                    if (containers.isEmpty() || !containers.pop()) {
+                        throw new IOException("Unexpected end of object in the binary feed");
+                    }
+                    if (!handler.endObject()) {
+                        return;
+                    }
+                    break;
+                case BinaryFeedFormat.END_ARRAY:
+                    if (containers.isEmpty() || containers.pop()) {
+                        throw new IOException("Unexpected end of array in the binary feed");
+                    }
+                    if (!handler.endArray()) {
+                        return;
+                    }
+                    break;
+                default:
+                    if (!handler.primitive(readValue(token))) {
+                        return;
+                    }
+                    break;
+            }
+
+            // a value has been read, it ends the entry of the object that contains it
+            if (!containers.isEmpty() && containers.peek() && !handler.endObjectEntry()) {
+                return;
+            }
+        }
+
+        if (!containers.isEmpty()) {
+            throw new EOFException("The binary feed ended within an object or an array");
+        }
+        handler.endJSON();
+    }
+
+    private Object readValue(int token) throws IOException {
+        switch (token) {
+            case BinaryFeedFormat.NULL:
+                return null;
+            case BinaryFeedFormat.TRUE:
+                return Boolean.TRUE;
+            case BinaryFeedFormat.FALSE:
+                return Boolean.FALSE;
+            case BinaryFeedFormat.INTEGER:
+                return readSignedVarLong();
+            case BinaryFeedFormat.DOUBLE:
+                return input.readDouble();
+            case BinaryFeedFormat.DATE:
+                return dateFormat.format(new Date(readSignedVarLong() * 24 * 60 * 60 * 1000L));
+            case BinaryFeedFormat.DATE_TIME:
+                return dateTimeFormat.format(new Date(readSignedVarLong() * 1000L));
+            default:
+                return readString(token);
+        }
+    }
+
+    private String readString(int token) throws IOException {
+        switch (token) {
+            case BinaryFeedFormat.STRING:
+                return readUtf8();
+            case BinaryFeedFormat.STRING_DEFINE:
+                String value = readUtf8();
+                strings.add(value);
+                return value;
+            case BinaryFeedFormat.STRING_REF:
+                long index = readVarLong();
+                if (index >= strings.size()) {
+                    throw new IOException("Undefined string " + index + " in the binary feed");
+                }
+                return strings.get((int) index);
+            case -1:
+                throw new EOFException();
+            default:
+                throw new IOException("Unknown token " + token + " in the binary feed");
+        }
+    }
+
+    private String readUtf8() throws IOException {
+        long length = readVarLong();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("String too long in the binary feed");
+        }
+        byte[] bytes = new byte[(int) length];
+        input.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in the binary feed");
+    }
+
+    private long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static SimpleDateFormat createDateFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+}
@@ -0,0 +1,165 @@
+package org.grameenfoundation.consulteca.utils;
+
+import org.json.simple.parser.ContentHandler;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a feed in the {@link BinaryFeedFormat}. It is a json-simple {@link ContentHandler}, so a
+ * JSON feed is converted by parsing it with this writer as the handler, e.g. by a server that
+ * builds its feeds in JSON:
+ * <pre>
+ *     new JSONParser().parse(jsonReader, new BinaryFeedWriter(outputStream));
+ * </pre>
+ * Keys and strings of up to {@link #MAX_SHARED_STRING_LENGTH} characters, such as ids, are added
+ * to the string table and sent by reference when repeated. Longer strings, such as labels and
+ * contents, are sent as they are.
+ */
+public class BinaryFeedWriter implements ContentHandler {
+    static final int MAX_SHARED_STRING_LENGTH = 64;
+    static final int MAX_SHARED_STRINGS = 64 * 1024;
+
+    private final DataOutputStream output;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final SimpleDateFormat dateFormat = BinaryFeedReader.createDateFormat(BinaryFeedFormat.DATE_PATTERN);
+    private final SimpleDateFormat dateTimeFormat =
+            BinaryFeedReader.createDateFormat(BinaryFeedFormat.DATE_TIME_PATTERN);
+
+    public BinaryFeedWriter(OutputStream outputStream) {
+        this.output = new DataOutputStream(outputStream);
+    }
+
+    @Override
+    public void startJSON() throws IOException {
+        output.write(BinaryFeedFormat.MAGIC);
+    }
+
+    @Override
+    public void endJSON() throws IOException {
+        output.flush();
+    }
+
+    @Override
+    public boolean startObject() throws IOException {
+        output.write(BinaryFeedFormat.START_OBJECT);
+        return true;
+    }
+
+    @Override
+    public boolean endObject() throws IOException {
+        output.write(BinaryFeedFormat.END_OBJECT);
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) throws IOException {
+        output.write(BinaryFeedFormat.KEY);
+        writeString(key, true);
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        return true;
+    }
+
+    @Override
+    public boolean startArray() throws IOException {
+        output.write(BinaryFeedFormat.START_ARRAY);
+        return true;
+    }
+
+    @Override
+    public boolean endArray() throws IOException {
+        output.write(BinaryFeedFormat.END_ARRAY);
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) throws IOException {
+        if (value == null) {
+            output.write(BinaryFeedFormat.NULL);
+        } else if (value instanceof Boolean) {
+            output.write((Boolean) value ? BinaryFeedFormat.TRUE : BinaryFeedFormat.FALSE);
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            output.write(BinaryFeedFormat.INTEGER);
+            writeSignedVarLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            output.write(BinaryFeedFormat.DOUBLE);
+            output.writeDouble(((Number) value).doubleValue());
+        } else if (!writeDate(value.toString())) {
+            writeString(value.toString(), value.toString().length() <= MAX_SHARED_STRING_LENGTH);
+        }
+        return true;
+    }
+
+    /**
+     * writes the given string as a date if it is a date in one of the supported formats that reads
+     * back exactly the same.
+     */
+    private boolean writeDate(String value) throws IOException {
+        if (value.length() == BinaryFeedFormat.DATE_PATTERN.length() && value.charAt(4) == '-') {
+            Date date = parseDate(dateFormat, value);
+            if (date != null) {
+                output.write(BinaryFeedFormat.DATE);
+                writeSignedVarLong(date.getTime() / (24 * 60 * 60 * 1000L));
+                return true;
+            }
+        } else if (value.length() == "yyyy-MM-ddTHH:mm:ss".length() && value.charAt(10) == 'T') {
+            Date date = parseDate(dateTimeFormat, value);
+            if (date != null) {
+                output.write(BinaryFeedFormat.DATE_TIME);
+                writeSignedVarLong(date.getTime() / 1000L);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Date parseDate(SimpleDateFormat format, String value) {
+        try {
+            Date date = format.parse(value);
+            return format.format(date).equals(value) ? date : null;
+        } catch (java.text.ParseException ex) {
+            return null;
+        }
+    }
+
+    private void writeString(String value, boolean shared) throws IOException {
+        Integer index = strings.get(value);
+        if (index != null) {
+            output.write(BinaryFeedFormat.STRING_REF);
+            writeVarLong(index);
+            return;
+        }
+
+        if (shared && strings.size() < MAX_SHARED_STRINGS) {
+            strings.put(value, strings.size());
+            output.write(BinaryFeedFormat.STRING_DEFINE);
+        } else {
+            output.write(BinaryFeedFormat.STRING);
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarLong(bytes.length);
+        output.write(bytes);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private void writeSignedVarLong(long value) throws IOException {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+}
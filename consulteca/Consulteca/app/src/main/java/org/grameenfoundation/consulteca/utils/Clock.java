@@ -0,0 +1,25 @@
+package org.grameenfoundation.consulteca.utils;
+
+/**
+ * A source of the current time. Code that schedules work takes a Clock instead of calling
+ * {@link System#currentTimeMillis()} so that it can be tested with a clock whose time is set
+ * by the test.
+ */
+public interface Clock {
+    /**
+     * the clock of the system.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * gets the current time in milliseconds since the epoch.
+     *
+     * @return
+     */
+    long currentTimeMillis();
+}
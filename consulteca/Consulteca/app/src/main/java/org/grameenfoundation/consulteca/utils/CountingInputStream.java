@@ -0,0 +1,62 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An input stream that adds the bytes read from the underlying network stream to the
+ * {@link PerformanceCounters}, and to the {@link RequestMetrics} of its request if it has them.
+ * The reads of a request are scheduled by the {@link NetworkScheduler}.
+ */
+public class CountingInputStream extends FilterInputStream {
+    private final RequestMetrics metrics;
+
+    public CountingInputStream(InputStream in) {
+        this(in, null);
+    }
+
+    CountingInputStream(InputStream in, RequestMetrics metrics) {
+        super(in);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value != -1) {
+            count(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = super.skip(count);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long count) throws InterruptedIOException {
+        PerformanceCounters.addBytesReceived(count);
+        if (metrics != null) {
+            metrics.addBytesReceived(count);
+            NetworkScheduler.getInstance().transferred(metrics.getPriority(), count);
+        }
+    }
+}
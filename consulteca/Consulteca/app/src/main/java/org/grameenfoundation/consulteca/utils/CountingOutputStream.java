@@ -0,0 +1,44 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that adds the bytes written to the underlying network stream to the
+ * {@link PerformanceCounters}, and to the {@link RequestMetrics} of its request if it has them.
+ * The writes of a request are scheduled by the {@link NetworkScheduler}.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+    private final RequestMetrics metrics;
+
+    public CountingOutputStream(OutputStream out) {
+        this(out, null);
+    }
+
+    CountingOutputStream(OutputStream out, RequestMetrics metrics) {
+        super(out);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        out.write(value);
+        count(1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        out.write(buffer, offset, count);
+        count(count);
+    }
+
+    private void count(long count) throws InterruptedIOException {
+        PerformanceCounters.addBytesSent(count);
+        if (metrics != null) {
+            metrics.addBytesSent(count);
+            NetworkScheduler.getInstance().transferred(metrics.getPriority(), count);
+        }
+    }
+}
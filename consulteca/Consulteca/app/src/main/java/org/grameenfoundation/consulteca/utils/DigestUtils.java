@@ -0,0 +1,60 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Contains methods for computing message digests of streamed content.
+ */
+public class DigestUtils {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * creates a new SHA-1 message digest.
+     *
+     * @return
+     */
+    public static MessageDigest newSha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * reads the given input stream to the end and returns its SHA-1 digest as a 40 character
+     * lowercase hex string. The stream is read in small chunks and is not closed.
+     *
+     * @param inputStream
+     * @return
+     * @throws IOException
+     */
+    public static String sha1Hex(InputStream inputStream) throws IOException {
+        MessageDigest digest = newSha1Digest();
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHexString(digest.digest());
+    }
+
+    /**
+     * converts the given digest to a lowercase hex string.
+     *
+     * @param digest
+     * @return
+     */
+    public static String toHexString(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int index = 0; index < digest.length; index++) {
+            hex[index * 2] = HEX_DIGITS[(digest[index] >> 4) & 0x0F];
+            hex[index * 2 + 1] = HEX_DIGITS[digest[index] & 0x0F];
+        }
+        return new String(hex);
+    }
+}
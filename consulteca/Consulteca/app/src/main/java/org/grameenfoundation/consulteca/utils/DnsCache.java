@@ -0,0 +1,193 @@
+package org.grameenfoundation.consulteca.utils;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.grameenfoundation.consulteca.ApplicationRegistry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the addresses of the servers {@link HttpHelpers} connects to in a file, so that the first
+ * connection after the application starts does not wait for the name of the server to be resolved
+ * on a slow link.
+ * <ul>
+ * <li>The addresses of a server are used for {@link #TTL_MILLIS} after they were resolved. The
+ * platform resolver does not give the time to live of the records, so it is the same for all.</li>
+ * <li>When the name of a server cannot be resolved, e.g. on a flaky network, its addresses are
+ * used for up to {@link #MAX_STALE_MILLIS} after they were resolved.</li>
+ * </ul>
+ * Without the application context, e.g. in tests, the addresses are only cached in memory.
+ */
+public class DnsCache {
+    static final long TTL_MILLIS = 60 * 60 * 1000L;
+    static final long MAX_STALE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String FILE_NAME = "dns.cache";
+    private static final String CHARSET = "UTF-8";
+
+    private static DnsCache instance;
+
+    private final File file;
+    private final Map<String, Entry> entries;
+
+    DnsCache(File file) {
+        this.file = file;
+        this.entries = load(file);
+    }
+
+    public static synchronized DnsCache getInstance() {
+        if (instance == null) {
+            File file = ApplicationRegistry.getApplicationContext() == null ? null
+                    : new File(ApplicationRegistry.getApplicationContext().getCacheDir(), FILE_NAME);
+            instance = new DnsCache(file);
+        }
+        return instance;
+    }
+
+    /**
+     * gets the addresses of the given host, from the cache if they were resolved less than
+     * {@link #TTL_MILLIS} ago, otherwise by resolving its name.
+     *
+     * @param host
+     * @return
+     * @throws UnknownHostException if the name cannot be resolved and the cache has no addresses
+     *                              for it, or only expired ones.
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(host);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.resolvedAt < TTL_MILLIS) {
+            return entry.getAddresses(host);
+        }
+
+        InetAddress[] addresses;
+        try {
+            addresses = lookUp(host);
+        } catch (UnknownHostException ex) {
+            if (entry != null && now - entry.resolvedAt < MAX_STALE_MILLIS) {
+                Log.w(DnsCache.class.getName(), "Could not resolve " + host + ", using the addresses resolved "
+                        + (now - entry.resolvedAt) / 1000 + " seconds ago");
+                return entry.getAddresses(host);
+            }
+            throw ex;
+        }
+
+        Entry resolved = new Entry();
+        resolved.resolvedAt = now;
+        for (InetAddress address : addresses) {
+            resolved.addresses.add(address.getHostAddress());
+        }
+        synchronized (this) {
+            entries.put(host, resolved);
+            save();
+        }
+        return addresses;
+    }
+
+    /**
+     * removes the addresses of the given host, e.g. when a connection to them failed, so that its
+     * name is resolved again.
+     *
+     * @param host
+     */
+    public synchronized void invalidate(String host) {
+        if (entries.remove(host) != null) {
+            save();
+        }
+    }
+
+    /**
+     * resolves the given name with the platform resolver.
+     */
+    InetAddress[] lookUp(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    private static Map<String, Entry> load(File file) {
+        if (file == null || !file.exists()) {
+            return new HashMap<String, Entry>();
+        }
+
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(file), CHARSET);
+            try {
+                Map<String, Entry> entries = new Gson().fromJson(reader, new TypeToken<HashMap<String, Entry>>() {
+                }.getType());
+                if (entries != null) {
+                    return entries;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            Log.w(DnsCache.class.getName(), "Could not read the dns cache", ex);
+        } catch (JsonParseException ex) {
+            Log.w(DnsCache.class.getName(), "Invalid dns cache", ex);
+        }
+        return new HashMap<String, Entry>();
+    }
+
+    /**
+     * writes the entries to a temporary file that then replaces the file, so that a process killed
+     * while writing does not leave half a file behind.
+     */
+    private void save() {
+        if (file == null) {
+            return;
+        }
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), CHARSET);
+            try {
+                new Gson().toJson(entries, writer);
+            } finally {
+                writer.close();
+            }
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Could not rename " + temporaryFile);
+            }
+        } catch (IOException ex) {
+            Log.w(DnsCache.class.getName(), "Could not write the dns cache", ex);
+            temporaryFile.delete();
+        }
+    }
+
+    /**
+     * The addresses of a host and when they were resolved.
+     */
+    private static class Entry {
+        private long resolvedAt;
+        private List<String> addresses = new ArrayList<String>();
+
+        InetAddress[] getAddresses(String host) throws UnknownHostException {
+            InetAddress[] result = new InetAddress[addresses.size()];
+            for (int index = 0; index < result.length; index++) {
+                // the address is a literal, it is parsed without a look up
+                result[index] = InetAddress.getByAddress(host, InetAddress.getByName(addresses.get(index)).getAddress());
+            }
+            if (result.length == 0) {
+                throw new UnknownHostException(host);
+            }
+            return result;
+        }
+    }
+}
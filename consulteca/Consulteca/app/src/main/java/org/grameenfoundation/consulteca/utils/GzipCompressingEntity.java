@@ -0,0 +1,62 @@
+package org.grameenfoundation.consulteca.utils;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A request entity that compresses the wrapped entity with gzip as it is written to the
+ * connection. The compressed length is not known in advance, so the entity is sent chunked.
+ */
+public class GzipCompressingEntity extends HttpEntityWrapper {
+
+    public GzipCompressingEntity(HttpEntity entity) {
+        super(entity);
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader(HTTP.CONTENT_ENCODING, HttpHelpers.GZIP);
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    /**
+     * gets the content of the entity. The client sends the entity with {@link #writeTo(OutputStream)},
+     * only the code that reads a request, e.g. to log it, gets its content, so this compresses the wrapped entity to
+     * memory.
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeTo(outputStream);
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+        wrappedEntity.writeTo(gzipOutputStream);
+        gzipOutputStream.finish();
+    }
+}
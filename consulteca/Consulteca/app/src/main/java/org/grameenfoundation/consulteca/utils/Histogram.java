@@ -0,0 +1,105 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.io.Serializable;
+
+/**
+ * A histogram of durations in milliseconds with fixed buckets that grow roughly by 2.5 times, so
+ * that it takes the same small space for any number of values and two histograms can be added or
+ * subtracted bucket by bucket. The percentiles are those of the buckets, i.e. the upper bound of
+ * the bucket the percentile falls in.
+ */
+public class Histogram implements Serializable {
+    // the upper bounds of the buckets, the last bucket holds the values above the last bound
+    static final long[] BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 60000};
+
+    private long[] counts = new long[BOUNDS.length + 1];
+    private long count;
+    private long sum;
+
+    /**
+     * adds the given value.
+     *
+     * @param value the value, values below 0 are not added.
+     */
+    public void add(long value) {
+        if (value < 0) {
+            return;
+        }
+
+        int bucket = 0;
+        while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        count++;
+        sum += value;
+    }
+
+    /**
+     * adds the values of the given histogram to this one.
+     *
+     * @param histogram
+     */
+    public void add(Histogram histogram) {
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] += histogram.counts[bucket];
+        }
+        count += histogram.count;
+        sum += histogram.sum;
+    }
+
+    /**
+     * removes the values of the given histogram, which must have been added to this one, e.g.
+     * those of an earlier copy of this histogram.
+     *
+     * @param histogram
+     */
+    public void subtract(Histogram histogram) {
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] -= histogram.counts[bucket];
+        }
+        count -= histogram.count;
+        sum -= histogram.sum;
+    }
+
+    public Histogram copy() {
+        Histogram histogram = new Histogram();
+        histogram.add(this);
+        return histogram;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * gets the given percentile.
+     *
+     * @param percentile between 0 and 100.
+     * @return the upper bound of the bucket the percentile falls in, the last bound if it falls
+     * above it, or 0 if there are no values.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return BOUNDS[bucket];
+            }
+        }
+        return BOUNDS[BOUNDS.length - 1];
+    }
+}
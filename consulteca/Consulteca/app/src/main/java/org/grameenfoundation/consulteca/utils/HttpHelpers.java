@@ -14,31 +14,79 @@ package org.grameenfoundation.consulteca.utils;
 
 import android.util.Log;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import com.google.gson.Gson;
 import org.grameenfoundation.consulteca.ApplicationRegistry;
 import org.grameenfoundation.consulteca.GlobalConstants;
+import org.grameenfoundation.consulteca.settings.SettingsConstants;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 /**
- * Set of helper methods to abstract out network pain
+ * Set of helper methods to abstract out network pain.
+ * <p/>
+ * All the requests go through one shared {@link HttpClient} with a thread safe pool of keep-alive
+ * connections, so consecutive requests to the server reuse the same connection instead of paying
+ * for a new TCP (and TLS) handshake each. A connection goes back to the pool once the content of
+ * its response has been read to the end or closed, so callers must always close the streams they
+ * get, or consume the entity of a response they do not read.
+ * <p/>
+ * Each request is measured, see {@link RequestMetrics}, and its measurements are given to the
+ * {@link RequestListener}s once its response has been read, consumed or closed, or the request
+ * has failed. The {@link NetworkStatistics} are always listening.
+ * <p/>
+ * Each request is scheduled by the {@link NetworkScheduler} with the priority of the thread that
+ * makes it, from the moment it starts until its response has been read, consumed or closed.
  */
 public class HttpHelpers {
 
@@ -50,8 +98,37 @@ public class HttpHelpers {
     // Network connection and read timeout (in milliseconds)
     public static final int NETWORK_TIMEOUT = 30 * 1000;
 
+    // a server that does not accept a connection in this time is not going to, whatever the
+    // timeout of the request
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+
     public static final String LOCATION_HEADER = "x-applab-location";
 
+    public static final String GZIP = "gzip";
+
+    // the image downloads run up to 4 requests at once, the other stages one at a time, with one
+    // connection to spare
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 5;
+    private static final int MAX_CONNECTIONS = 8;
+
+    // how long an idle connection is kept for reuse, unless the server asks for less
+    private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    // the buffer of a download to a file, the only memory a download takes whatever its size
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    // the attribute of the context of a request that holds its measurements
+    private static final String METRICS_ATTRIBUTE = "consulteca.metrics";
+
+    private static HttpClient httpClient;
+    private static final List<RequestListener> requestListeners = new CopyOnWriteArrayList<RequestListener>();
+    // the hosts that answered a chunked request with 411 Length Required
+    private static final Set<String> lengthRequiredHosts = Collections.synchronizedSet(new HashSet<String>());
+
+    static {
+        requestListeners.add(NetworkStatistics.getInstance());
+    }
+
     public HttpHelpers() {
     }
 
@@ -106,12 +183,10 @@ public class HttpHelpers {
      */
     public static HttpResponse fetchResponseObject(URI remoteAddress, HashMap<String, String> headers) {
         try {
-            HttpParams httpParameters = HttpHelpers.getConnectionParameters();
-            HttpClient client = new DefaultHttpClient(httpParameters);
             HttpGet getMethod = new HttpGet(remoteAddress);
             addCommonHeaders(getMethod);
             addHeaders(getMethod, headers);
-            return client.execute(getMethod);
+            return execute(getMethod, NETWORK_TIMEOUT);
         } catch (IOException e) {
             Log.e("HttpHelpers", e.getMessage(), e);
             return null;
@@ -132,7 +207,7 @@ public class HttpHelpers {
     }
 
     private static InputStream getInputStream(HttpURLConnection httpUrlConnection) throws IOException {
-        InputStream inputStream = httpUrlConnection.getInputStream();
+        InputStream inputStream = new CountingInputStream(httpUrlConnection.getInputStream());
         String contentEncoding = httpUrlConnection.getHeaderField("Content-Encoding");
         if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
             inputStream = new GZIPInputStream(inputStream);
@@ -140,15 +215,48 @@ public class HttpHelpers {
         return inputStream;
     }
 
-    private static InputStream getInputStream(HttpResponse httpResponse) throws IllegalStateException, IOException {
-        InputStream inputStream = httpResponse.getEntity().getContent();
+    /**
+     * gets the content of the given response, uncompressed if it is g-zipped.
+     */
+    public static InputStream getInputStream(HttpResponse httpResponse) throws IllegalStateException, IOException {
+        HttpEntity entity = httpResponse.getEntity();
+        // the content of a response of execute is already counted by its entity, and the content
+        // of a cached response was counted when it was received
+        InputStream inputStream = entity instanceof MeteredEntity || entity instanceof ResponseCache.CachedEntity
+                ? entity.getContent() : new CountingInputStream(entity.getContent());
         Header contentEncoding = httpResponse.getFirstHeader("Content-Encoding");
         if (contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase("gzip")) {
-            inputStream = new GZIPInputStream(inputStream);
+            try {
+                inputStream = new GZIPInputStream(inputStream);
+            } catch (IOException ex) {
+                // the caller never gets a stream to close, so release the connection here
+                inputStream.close();
+                throw ex;
+            }
+        }
+        if (entity instanceof MeteredEntity) {
+            inputStream = new ContentCountingInputStream(inputStream, ((MeteredEntity) entity).metrics);
         }
         return inputStream;
     }
 
+    /**
+     * consumes what is left of the content of the given response, so that its connection can be
+     * reused. Call it for a response whose content is not read, e.g. one with an error status.
+     *
+     * @param httpResponse the response, or null.
+     */
+    public static void consume(HttpResponse httpResponse) {
+        if (httpResponse == null || httpResponse.getEntity() == null) {
+            return;
+        }
+        try {
+            httpResponse.getEntity().consumeContent();
+        } catch (IOException ex) {
+            Log.w(TAG, "Problem consuming a response", ex);
+        }
+    }
+
     /**
      * Constructs HTTP POST JSON request entity
      *
@@ -201,26 +309,22 @@ public class HttpHelpers {
 
     public static InputStream postDataRequestAndGetStream(String url, StringEntity stringEntity, String contentType)
             throws IllegalStateException, ClientProtocolException, IOException {
-        HttpParams httpParameters = HttpHelpers.getConnectionParameters();
-        HttpClient httpClient = new DefaultHttpClient(httpParameters);
         HttpPost httpPost = new HttpPost(url);
         HttpHelpers.addCommonHeaders(httpPost);
         stringEntity.setContentType(contentType);
         httpPost.setEntity(stringEntity);
-        return getInputStream(httpClient.execute(httpPost));
+        return getInputStream(execute(httpPost, NETWORK_TIMEOUT));
     }
 
     public static InputStream postDataRequestAndGetStream(String url, StringEntity stringEntity, String contentType,
                                                           int networkTimeout)
             throws IllegalStateException, ClientProtocolException, IOException {
-        HttpParams httpParameters = HttpHelpers.getConnectionParameters(networkTimeout);
-        HttpClient httpClient = new DefaultHttpClient(httpParameters);
         HttpPost httpPost = new HttpPost(url);
         HttpHelpers.addCommonHeaders(httpPost);
         stringEntity.setContentType(contentType);
         httpPost.setEntity(stringEntity);
         httpPost.addHeader("Accept-Encoding", "gzip");
-        return getInputStream(httpClient.execute(httpPost));
+        return getInputStream(execute(httpPost, networkTimeout));
     }
 
     public static InputStream postDataRequestAndGetStream(String url, String contentType, int networkTimeout,
@@ -229,47 +333,417 @@ public class HttpHelpers {
         UrlEncodedFormEntity entity = new UrlEncodedFormEntity(params);
         entity.setContentType(contentType);
 
-        HttpParams httpParameters = HttpHelpers.getConnectionParameters(networkTimeout);
-        HttpClient httpClient = new DefaultHttpClient(httpParameters);
         HttpPost httpPost = new HttpPost(url);
         httpPost.addHeader("Accept-Encoding", "gzip");
 
         httpPost.setEntity(entity);
-        return getInputStream(httpClient.execute(httpPost));
+        return getInputStream(execute(httpPost, networkTimeout));
     }
 
     public static InputStream postDataRequestAndGetStream(String url, UrlEncodedFormEntity formEntity,
                                                           String contentType, int networkTimeout)
             throws IllegalStateException, ClientProtocolException, IOException {
-        HttpParams httpParameters = HttpHelpers.getConnectionParameters(networkTimeout);
-        HttpClient httpClient = new DefaultHttpClient(httpParameters);
         HttpPost httpPost = new HttpPost(url);
         HttpHelpers.addCommonHeaders(httpPost);
         formEntity.setContentType(contentType);
         formEntity.setContentEncoding(HTTP.UTF_8);
         httpPost.setEntity(formEntity);
-        httpPost.addHeader("HTTP-Version", "HTTP/1.0");
         httpPost.addHeader("Accept-Encoding", "gzip");
         httpPost.addHeader("Content-Type", "application/x-www-form-urlencoded; charset = UTF-8");
 
-        HttpResponse res = httpClient.execute(httpPost);
+        HttpResponse res = execute(httpPost, networkTimeout);
 
         return getInputStream(res);
     }
 
+    /**
+     * posts the given form parameters with the given additional headers, e.g. the validators of a
+     * conditional request, and returns the response so that its status and headers can be checked
+     * before its content is read with {@link #getInputStream(HttpResponse)}.
+     *
+     * @param url
+     * @param params
+     * @param networkTimeout
+     * @param headers        additional http headers, or null.
+     * @return
+     * @throws IOException
+     */
+    public static HttpResponse postFormRequest(String url, List<NameValuePair> params, int networkTimeout,
+                                               HashMap<String, String> headers) throws IOException {
+        return postFormRequest(url, params, networkTimeout, headers, false);
+    }
+
+    /**
+     * posts the given form parameters like {@link #postFormRequest(String, List, int, HashMap)},
+     * compressing the request body with gzip if asked to. Only compress the request for a server
+     * that accepts it, see {@link #acceptsGzipRequests(HttpResponse)}.
+     *
+     * @param url
+     * @param params
+     * @param networkTimeout
+     * @param headers         additional http headers, or null.
+     * @param compressRequest whether to compress the request body.
+     * @return
+     * @throws IOException
+     */
+    public static HttpResponse postFormRequest(String url, List<NameValuePair> params, int networkTimeout,
+                                               HashMap<String, String> headers, boolean compressRequest)
+            throws IOException {
+        UrlEncodedFormEntity formEntity = new UrlEncodedFormEntity(params, HTTP.UTF_8);
+        formEntity.setContentType("application/x-www-form-urlencoded; charset = UTF-8");
+        return execute(createPost(url, formEntity, headers, compressRequest), networkTimeout,
+                getEndpoint(params, url));
+    }
+
+    /**
+     * posts a request of the synchronization protocol, i.e. the given method with the given object
+     * as its JSON data, like {@link #postFormRequest(String, List, int, HashMap, boolean)} would
+     * post them as form parameters. The object is written as JSON straight to the connection, see
+     * {@link JsonFormEntity}, so the request never exists as a string.
+     * <p/>
+     * The request is sent with chunked transfer. If the server answers 411 Length Required, the
+     * length of the content is counted and the request is sent again with it, and so are the later
+     * requests to that server. A compressed request is not sent again, see
+     * {@link #acceptsGzipRequests(HttpResponse)}: its caller falls back to an uncompressed one.
+     *
+     * @param url
+     * @param method          the method of the request.
+     * @param data            the object to send as the data of the request.
+     * @param gson            the gson to write the object with.
+     * @param networkTimeout
+     * @param headers         additional http headers, or null.
+     * @param compressRequest whether to compress the request body.
+     * @return
+     * @throws IOException
+     */
+    public static HttpResponse postJsonFormRequest(String url, String method, Object data, Gson gson,
+                                                   int networkTimeout, HashMap<String, String> headers,
+                                                   boolean compressRequest) throws IOException {
+        JsonFormEntity formEntity = new JsonFormEntity(SettingsConstants.REQUEST_METHODNAME, method,
+                SettingsConstants.REQUEST_DATA, data, gson);
+        String host = URI.create(url).getHost();
+        if (!compressRequest && lengthRequiredHosts.contains(host)) {
+            formEntity.computeContentLength();
+        }
+
+        HttpResponse response = execute(createPost(url, formEntity, headers, compressRequest), networkTimeout, method);
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_LENGTH_REQUIRED && !compressRequest
+                && formEntity.isChunked()) {
+            consume(response);
+            Log.i(TAG, host + " requires the length of requests, sending it again with a Content-Length");
+            lengthRequiredHosts.add(host);
+            formEntity.computeContentLength();
+            response = execute(createPost(url, formEntity, headers, false), networkTimeout, method);
+        }
+        return response;
+    }
+
+    /**
+     * posts a request of the synchronization protocol like
+     * {@link #postJsonFormRequest(String, String, Object, Gson, int, HashMap, boolean)}, through the
+     * {@link ResponseCache} with the given policy. A fresh cached response is returned without a
+     * request, and a stale one is revalidated with the server. With
+     * {@link ResponseCache.Policy#OFFLINE_FIRST}, the cached response is returned if the server
+     * cannot be reached.
+     * <p/>
+     * Only small responses are cached, it is meant for lookups whose answer rarely changes, not for
+     * the content of the synchronization.
+     *
+     * @param url
+     * @param method          the method of the request.
+     * @param data            the object to send as the data of the request.
+     * @param gson            the gson to write the object with.
+     * @param networkTimeout
+     * @param headers         additional http headers, or null.
+     * @param compressRequest whether to compress the request body.
+     * @param cachePolicy     how to use the cache, or null not to.
+     * @return
+     * @throws IOException
+     */
+    public static HttpResponse postJsonFormRequest(String url, String method, Object data, Gson gson,
+                                                   int networkTimeout, HashMap<String, String> headers,
+                                                   boolean compressRequest, ResponseCache.Policy cachePolicy)
+            throws IOException {
+        if (cachePolicy == null) {
+            return postJsonFormRequest(url, method, data, gson, networkTimeout, headers, compressRequest);
+        }
+
+        ResponseCache cache = ResponseCache.getInstance();
+        String key = ResponseCache.getKey(url, method, data, gson);
+        HttpResponse response = cache.getFreshResponse(key);
+        if (response != null) {
+            return response;
+        }
+
+        try {
+            response = postJsonFormRequest(url, method, data, gson, networkTimeout, cache.addValidators(key, headers),
+                    compressRequest);
+        } catch (IOException ex) {
+            HttpResponse staleResponse = cachePolicy == ResponseCache.Policy.OFFLINE_FIRST
+                    ? cache.getStaleResponse(key) : null;
+            if (staleResponse == null) {
+                throw ex;
+            }
+            Log.i(TAG, "Could not reach " + url + ", answering " + method + " from the cache: " + ex);
+            return staleResponse;
+        }
+        return cache.update(key, response, cachePolicy);
+    }
+
+    private static HttpPost createPost(String url, HttpEntity entity, HashMap<String, String> headers,
+                                       boolean compressRequest) {
+        HttpPost httpPost = new HttpPost(url);
+        HttpHelpers.addCommonHeaders(httpPost);
+        addHeaders(httpPost, headers);
+        httpPost.addHeader("Accept-Encoding", GZIP);
+        httpPost.setEntity(compressRequest ? new GzipCompressingEntity(entity) : entity);
+        return httpPost;
+    }
+
+    /**
+     * checks whether the server that sent the given response accepts gzip compressed requests,
+     * which it announces with an Accept-Encoding header in its responses (RFC 7694).
+     *
+     * @param httpResponse
+     * @return
+     */
+    public static boolean acceptsGzipRequests(HttpResponse httpResponse) {
+        for (Header header : httpResponse.getHeaders("Accept-Encoding")) {
+            for (String coding : header.getValue().split(",")) {
+                String[] parts = coding.split(";");
+                if (!parts[0].trim().equalsIgnoreCase(GZIP)) {
+                    continue;
+                }
+
+                // a coding with a quality of 0 is not acceptable
+                float quality = 1;
+                for (int index = 1; index < parts.length; index++) {
+                    String parameter = parts[index].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Float.parseFloat(parameter.substring(2));
+                        } catch (NumberFormatException ex) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (quality > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public static String postXmlRequest(String url, StringEntity stringEntity) throws IOException {
-        HttpParams httpParameters = HttpHelpers.getConnectionParameters();
-        HttpClient httpClient = new DefaultHttpClient(httpParameters);
         HttpPost httpPost = new HttpPost(url);
         HttpHelpers.addCommonHeaders(httpPost);
         stringEntity.setContentType("text/xml");
         httpPost.setEntity(stringEntity);
-        return getUncompressedResponseString(httpClient.execute(httpPost));
+        return getUncompressedResponseString(execute(httpPost, NETWORK_TIMEOUT));
     }
 
-    private static Reader getUncompressedResponseReader(HttpResponse httpResponse) throws IllegalStateException, IOException {
-        InputStream inputStream = getInputStream(httpResponse);
-        return new BufferedReader(new InputStreamReader(inputStream));
+    /**
+     * gets the shared http client, creating it on first use.
+     *
+     * @return
+     */
+    public static synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            HttpParams httpParameters = new BasicHttpParams();
+            HttpProtocolParams.setVersion(httpParameters, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setContentCharset(httpParameters, HTTP.UTF_8);
+            HttpConnectionParams.setSoTimeout(httpParameters, NETWORK_TIMEOUT);
+            HttpConnectionParams.setConnectionTimeout(httpParameters, NETWORK_TIMEOUT);
+            // a pooled connection may have been closed by the server while it was idle
+            HttpConnectionParams.setStaleCheckingEnabled(httpParameters, true);
+            ConnManagerParams.setMaxTotalConnections(httpParameters, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(httpParameters,
+                    new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+            ConnManagerParams.setTimeout(httpParameters, NETWORK_TIMEOUT);
+
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+            ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager(httpParameters,
+                    schemeRegistry) {
+                @Override
+                protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemes) {
+                    return new MeteredConnectionOperator(schemes);
+                }
+            };
+            DefaultHttpClient client = new DefaultHttpClient(connectionManager, httpParameters);
+            client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = super.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, KEEP_ALIVE_MILLIS) : KEEP_ALIVE_MILLIS;
+                }
+            });
+            httpClient = client;
+        }
+        return httpClient;
+    }
+
+    /**
+     * adds a listener to give the measurements of each request to.
+     *
+     * @param listener
+     */
+    public static void addRequestListener(RequestListener listener) {
+        requestListeners.add(listener);
+    }
+
+    public static void removeRequestListener(RequestListener listener) {
+        requestListeners.remove(listener);
+    }
+
+    /**
+     * resolves the name of the server of the given url and opens a connection to it in the pool
+     * of the shared client, so that the first request to the server does not wait for either. The
+     * connection is kept for the keep-alive time. Nothing is done if the pool already has an open
+     * connection to the server, or if the server is reached through a proxy. It blocks, so it must
+     * not be called on the UI thread.
+     *
+     * @param url
+     * @return true if the pool has an open connection to the server.
+     */
+    public static boolean warmUp(String url) {
+        long start = System.currentTimeMillis();
+        try {
+            URI uri = new URI(url);
+            HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+            AbstractHttpClient client = (AbstractHttpClient) getHttpClient();
+            HttpContext context = new BasicHttpContext();
+            HttpRoute route = client.getRoutePlanner().determineRoute(target, new HttpPost(uri), context);
+            if (route.getHopCount() != 1) {
+                return false;
+            }
+
+            ClientConnectionManager manager = client.getConnectionManager();
+            ManagedClientConnection connection = manager.requestConnection(route, null)
+                    .getConnection(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            try {
+                if (!connection.isOpen()) {
+                    HttpParams params = client.getParams().copy();
+                    HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+                    connection.open(route, context, params);
+                    Log.i(TAG, "Opened a connection to " + target + " in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                }
+                connection.markReusable();
+            } finally {
+                manager.releaseConnection(connection, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            Log.w(TAG, "Could not warm up the connection to " + url + ": " + ex);
+        }
+        return false;
+    }
+
+    private static HttpResponse execute(HttpRequestBase request, int networkTimeout) throws IOException {
+        return execute(request, networkTimeout, getEndpoint(null, request.getURI().getPath()));
+    }
+
+    /**
+     * executes the given request with the shared client and the given timeouts, adding the size of
+     * the body of a post request to the {@link PerformanceCounters}. The body of an entity whose
+     * length is not known in advance is counted as it is written. The request is measured, the
+     * measurements are given to the listeners when the content of the response has been read.
+     */
+    private static HttpResponse execute(HttpRequestBase request, int networkTimeout, String endpoint)
+            throws IOException {
+        NetworkScheduler.Priority priority = NetworkScheduler.getInstance().getThreadPriority();
+        NetworkScheduler.getInstance().begin(priority);
+        final RequestMetrics metrics = new RequestMetrics(endpoint, priority);
+        // the request ends here unless its response has content, which ends it once it is read
+        boolean streaming = false;
+        try {
+            if (request instanceof HttpPost) {
+                HttpPost httpPost = (HttpPost) request;
+                HttpEntity entity = httpPost.getEntity();
+                if (entity != null) {
+                    Header contentEncoding = entity.getContentEncoding();
+                    metrics.setRequestGzipped(contentEncoding != null
+                            && contentEncoding.getValue().equalsIgnoreCase(GZIP));
+                }
+                if (entity != null && entity.getContentLength() >= 0) {
+                    PerformanceCounters.addBytesSent(entity.getContentLength());
+                    metrics.addBytesSent(entity.getContentLength());
+                } else if (entity != null) {
+                    httpPost.setEntity(new HttpEntityWrapper(entity) {
+                        @Override
+                        public void writeTo(OutputStream outputStream) throws IOException {
+                            super.writeTo(new CountingOutputStream(outputStream, metrics));
+                        }
+                    });
+                }
+            }
+
+            // the parameters of the request take precedence over those of the shared client
+            HttpConnectionParams.setSoTimeout(request.getParams(), networkTimeout);
+            HttpConnectionParams.setConnectionTimeout(request.getParams(), Math.min(networkTimeout, CONNECT_TIMEOUT));
+            BasicHttpContext context = new BasicHttpContext();
+            context.setAttribute(METRICS_ATTRIBUTE, metrics);
+
+            HttpResponse response = getHttpClient().execute(request, context);
+
+            Header contentEncoding = response.getFirstHeader("Content-Encoding");
+            metrics.responseReceived(response.getStatusLine().getStatusCode(),
+                    contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase(GZIP));
+            if (response.getEntity() != null) {
+                response.setEntity(new MeteredEntity(response.getEntity(), metrics));
+                streaming = true;
+            }
+            return response;
+        } finally {
+            if (!streaming) {
+                requestCompleted(metrics);
+            }
+        }
+    }
+
+    /**
+     * gets the endpoint of a request: the method of the synchronization protocol if the request
+     * has one, otherwise the last segment of the path of its url.
+     */
+    private static String getEndpoint(List<NameValuePair> params, String url) {
+        if (params != null) {
+            for (NameValuePair param : params) {
+                if (SettingsConstants.REQUEST_METHODNAME.equals(param.getName()) && param.getValue() != null) {
+                    return param.getValue();
+                }
+            }
+        }
+
+        String path = url == null ? "" : url;
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            path = path.substring(0, queryStart);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        String segment = path.substring(path.lastIndexOf('/') + 1);
+        return segment.length() == 0 ? "/" : segment;
+    }
+
+    private static void requestCompleted(RequestMetrics metrics) {
+        if (!metrics.complete()) {
+            return;
+        }
+        NetworkScheduler.getInstance().end(metrics.getPriority());
+        for (RequestListener listener : requestListeners) {
+            try {
+                listener.requestCompleted(metrics);
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Problem in a request listener", ex);
+            }
+        }
     }
 
     public static Reader getUncompressedResponseReader(HttpURLConnection con) throws IllegalStateException, IOException {
@@ -286,48 +760,107 @@ public class HttpHelpers {
      * @throws IllegalStateException
      */
     public static String getUncompressedResponseString(HttpResponse httpResponse) throws IllegalStateException, IOException {
-        BufferedReader reader = (BufferedReader) getUncompressedResponseReader(httpResponse);
-        StringBuilder stringBuilder = new StringBuilder();
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            stringBuilder.append(line).append("\n"); // TODO: Should this be \r\n or Environment.NewLine or something?
-        }
-        reader.close();
-        return stringBuilder.toString();
+        return getUncompressedResponseString(new BufferedReader(
+                new InputStreamReader(getInputStream(httpResponse), HTTP.UTF_8))).toString();
     }
 
     public static StringBuilder getUncompressedResponseString(BufferedReader reader) throws IOException {
         StringBuilder stringBuilder = new StringBuilder();
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            stringBuilder.append(line).append("\n"); // TODO: Should this be \r\n or Environment.NewLine or something?
+        try {
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                stringBuilder.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
         }
-        reader.close();
         return stringBuilder;
     }
 
     /**
-     * Creates HTTP client connection parameters
+     * gets the length of the content of the given response once it is uncompressed.
+     *
+     * @param httpResponse
+     * @return the length, or -1 if it is not known before the content has been read.
+     */
+    public static long getContentLength(HttpResponse httpResponse) {
+        Header contentEncoding = httpResponse.getFirstHeader("Content-Encoding");
+        if (httpResponse.getEntity() == null
+                || (contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase(GZIP))) {
+            return -1;
+        }
+        return httpResponse.getEntity().getContentLength();
+    }
+
+    /**
+     * writes the content of the given response to the given file, uncompressed if it is g-zipped,
+     * see {@link #copyToFile(InputStream, File, long, DownloadListener)}.
      *
-     * @return collection of HTTP socket and connection timeout parameters
+     * @param httpResponse
+     * @param file
+     * @param listener     the listener to report the progress to, or null.
+     * @return the number of bytes written.
+     * @throws IOException
      */
-    private static HttpParams getConnectionParameters() {
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setSoTimeout(httpParameters, NETWORK_TIMEOUT);
-        HttpConnectionParams.setConnectionTimeout(httpParameters, NETWORK_TIMEOUT);
-        return httpParameters;
+    public static long downloadToFile(HttpResponse httpResponse, File file, DownloadListener listener)
+            throws IOException {
+        return copyToFile(getInputStream(httpResponse), file, getContentLength(httpResponse), listener);
     }
 
     /**
-     * Creates HTTP client connection parameters
+     * writes the given stream to the given file through a channel and a direct buffer of a fixed
+     * size, so that a download takes the same memory whatever its size and the content is not
+     * copied again on its way to the file. The stream is closed, and the file is deleted if the
+     * copy fails.
      *
-     * @return collection of HTTP socket and connection timeout parameters
+     * @param inputStream
+     * @param file
+     * @param contentLength the number of bytes expected, or -1 if it is not known.
+     * @param listener      the listener to report the progress to after each buffer, or null.
+     * @return the number of bytes written.
+     * @throws IOException
      */
-    private static HttpParams getConnectionParameters(int networkTimeout) {
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setSoTimeout(httpParameters, networkTimeout);
-        HttpConnectionParams.setConnectionTimeout(httpParameters, networkTimeout);
-        return httpParameters;
+    public static long copyToFile(InputStream inputStream, File file, long contentLength, DownloadListener listener)
+            throws IOException {
+        ReadableByteChannel source = Channels.newChannel(inputStream);
+        FileOutputStream outputStream = null;
+        boolean copied = false;
+        try {
+            outputStream = new FileOutputStream(file);
+            FileChannel destination = outputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DOWNLOAD_BUFFER_SIZE);
+            long written = 0;
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                // fill the buffer first, a stream gives a few kilobytes at a time
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) == -1) {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += destination.write(buffer);
+                }
+                buffer.clear();
+                if (listener != null) {
+                    listener.progress(written, contentLength);
+                }
+            }
+            copied = true;
+            return written;
+        } finally {
+            source.close();
+            if (outputStream != null) {
+                outputStream.close();
+            }
+            if (!copied) {
+                file.delete();
+            }
+        }
     }
 
     /**
@@ -438,13 +971,15 @@ public class HttpHelpers {
             conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
             conn.setConnectTimeout(HttpHelpers.NETWORK_TIMEOUT);
             conn.setReadTimeout(HttpHelpers.NETWORK_TIMEOUT);
-            conn.setRequestProperty("Content-Length", "" + Integer.toString(data.getBytes().length));
 
-            OutputStreamWriter writer = new OutputStreamWriter(conn.getOutputStream());
+            // the data is encoded once, and written as it is instead of buffered by the connection
+            byte[] bytes = data.getBytes();
+            conn.setFixedLengthStreamingMode(bytes.length);
 
-            writer.write(data);
-            writer.flush();
-            writer.close();
+            OutputStream outputStream = conn.getOutputStream();
+            PerformanceCounters.addBytesSent(bytes.length);
+            outputStream.write(bytes);
+            outputStream.close();
 
             String line;
             BufferedReader reader = (BufferedReader) getUncompressedResponseReader(conn);
@@ -483,4 +1018,165 @@ public class HttpHelpers {
 
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * Receives the measurements of the requests.
+     */
+    public interface RequestListener {
+        /**
+         * called with the measurements of a request once its response has been read, consumed or
+         * closed, or the request has failed. It is called on the thread that made the request, so
+         * it must return quickly.
+         */
+        void requestCompleted(RequestMetrics metrics);
+    }
+
+    /**
+     * The entity of a response of {@link #execute(HttpRequestBase, int, String)}, which counts its
+     * content as it is received and completes the measurements of its request once it is read or
+     * consumed.
+     */
+    private static class MeteredEntity extends HttpEntityWrapper {
+        private final RequestMetrics metrics;
+
+        MeteredEntity(HttpEntity entity, RequestMetrics metrics) {
+            super(entity);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new CountingInputStream(super.getContent(), metrics) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        requestCompleted(metrics);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            try {
+                super.consumeContent();
+            } finally {
+                requestCompleted(metrics);
+            }
+        }
+    }
+
+    /**
+     * Counts the content of a response once it is uncompressed, and completes the measurements of
+     * its request when the content has been read to the end or the stream is closed.
+     */
+    private static class ContentCountingInputStream extends FilterInputStream {
+        private final RequestMetrics metrics;
+
+        ContentCountingInputStream(InputStream in, RequestMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value == -1) {
+                requestCompleted(metrics);
+            } else {
+                metrics.addContentBytesReceived(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read == -1) {
+                requestCompleted(metrics);
+            } else {
+                metrics.addContentBytesReceived(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            metrics.addContentBytesReceived(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                requestCompleted(metrics);
+            }
+        }
+    }
+
+    /**
+     * Opens the connections of the shared client, measuring the time it takes to resolve the name
+     * of the server and to connect to it for the request that opens the connection. The names are
+     * resolved through the {@link DnsCache}, a plain connection is made to the cached address
+     * without resolving the name again. A secure connection is made to the name, which the
+     * certificate of the server is checked against.
+     */
+    private static class MeteredConnectionOperator extends DefaultClientConnectionOperator {
+
+        MeteredConnectionOperator(SchemeRegistry schemes) {
+            super(schemes);
+        }
+
+        @Override
+        public void openConnection(OperatedClientConnection connection, HttpHost target, InetAddress local,
+                                   HttpContext context, HttpParams params) throws IOException {
+            long start = System.currentTimeMillis();
+            InetAddress[] addresses = DnsCache.getInstance().resolve(target.getHostName());
+            long resolved = System.currentTimeMillis();
+            if ("http".equalsIgnoreCase(target.getSchemeName())) {
+                HttpHost address = new HttpHost(addresses[0].getHostAddress(), target.getPort(),
+                        target.getSchemeName());
+                try {
+                    super.openConnection(connection, address, local, context, params);
+                } catch (ConnectException ex) {
+                    // the server may have moved, the name is resolved again
+                    Log.w(TAG, "Could not connect to " + address + ", resolving " + target.getHostName());
+                    DnsCache.getInstance().invalidate(target.getHostName());
+                    super.openConnection(connection, target, local, context, params);
+                } catch (ConnectTimeoutException ex) {
+                    DnsCache.getInstance().invalidate(target.getHostName());
+                    throw ex;
+                }
+            } else {
+                super.openConnection(connection, target, local, context, params);
+            }
+
+            Object metrics = context == null ? null : context.getAttribute(METRICS_ATTRIBUTE);
+            if (metrics instanceof RequestMetrics) {
+                ((RequestMetrics) metrics).connected(resolved - start, System.currentTimeMillis() - resolved);
+            }
+        }
+    }
+
+    /**
+     * Receives the progress of a download to a file.
+     */
+    public interface DownloadListener {
+
+        /**
+         * @param bytesWritten  the number of bytes written so far.
+         * @param contentLength the number of bytes expected, or -1 if it is not known.
+         */
+        void progress(long bytesWritten, long contentLength);
+    }
+}
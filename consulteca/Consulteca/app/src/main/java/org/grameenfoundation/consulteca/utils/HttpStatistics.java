@@ -0,0 +1,166 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.io.Serializable;
+
+/**
+ * The measurements of the requests to one endpoint, added up: the number of requests by status
+ * class, the bytes sent and received and how often gzip was applied, and histograms of the
+ * timings of the requests.
+ */
+public class HttpStatistics implements Serializable {
+    private long requests;
+    private long failures;
+    // the number of responses by status class, 1xx to 5xx
+    private long[] statusCounts = new long[5];
+    private long bytesSent;
+    private long bytesReceived;
+    private long contentBytesReceived;
+    private long gzippedRequests;
+    private long gzippedResponses;
+    private Histogram dnsMillis = new Histogram();
+    private Histogram connectMillis = new Histogram();
+    private Histogram firstByteMillis = new Histogram();
+    private Histogram totalMillis = new Histogram();
+
+    /**
+     * adds the measurements of the given request.
+     *
+     * @param metrics
+     */
+    public void add(RequestMetrics metrics) {
+        requests++;
+        if (metrics.isFailed()) {
+            failures++;
+        } else if (metrics.getStatusCode() >= 100 && metrics.getStatusCode() < 600) {
+            statusCounts[metrics.getStatusCode() / 100 - 1]++;
+        }
+        bytesSent += metrics.getBytesSent();
+        bytesReceived += metrics.getBytesReceived();
+        contentBytesReceived += metrics.getContentBytesReceived();
+        gzippedRequests += metrics.isRequestGzipped() ? 1 : 0;
+        gzippedResponses += metrics.isResponseGzipped() ? 1 : 0;
+        dnsMillis.add(metrics.getDnsMillis());
+        connectMillis.add(metrics.getConnectMillis());
+        firstByteMillis.add(metrics.getFirstByteMillis());
+        totalMillis.add(metrics.getTotalMillis());
+    }
+
+    /**
+     * adds the measurements of the given statistics.
+     *
+     * @param statistics
+     */
+    public void add(HttpStatistics statistics) {
+        combine(statistics, 1);
+    }
+
+    /**
+     * removes the measurements of the given statistics, e.g. those of an earlier copy, so that
+     * only the requests made since remain.
+     *
+     * @param statistics
+     */
+    public void subtract(HttpStatistics statistics) {
+        combine(statistics, -1);
+    }
+
+    public HttpStatistics copy() {
+        HttpStatistics statistics = new HttpStatistics();
+        statistics.add(this);
+        return statistics;
+    }
+
+    private void combine(HttpStatistics statistics, int sign) {
+        requests += sign * statistics.requests;
+        failures += sign * statistics.failures;
+        for (int index = 0; index < statusCounts.length; index++) {
+            statusCounts[index] += sign * statistics.statusCounts[index];
+        }
+        bytesSent += sign * statistics.bytesSent;
+        bytesReceived += sign * statistics.bytesReceived;
+        contentBytesReceived += sign * statistics.contentBytesReceived;
+        gzippedRequests += sign * statistics.gzippedRequests;
+        gzippedResponses += sign * statistics.gzippedResponses;
+        if (sign > 0) {
+            dnsMillis.add(statistics.dnsMillis);
+            connectMillis.add(statistics.connectMillis);
+            firstByteMillis.add(statistics.firstByteMillis);
+            totalMillis.add(statistics.totalMillis);
+        } else {
+            dnsMillis.subtract(statistics.dnsMillis);
+            connectMillis.subtract(statistics.connectMillis);
+            firstByteMillis.subtract(statistics.firstByteMillis);
+            totalMillis.subtract(statistics.totalMillis);
+        }
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * gets the number of requests that failed without a response.
+     *
+     * @return
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * gets the number of responses with a status of the given class.
+     *
+     * @param statusClass from 1 for 1xx to 5 for 5xx.
+     * @return
+     */
+    public long getStatusCount(int statusClass) {
+        return statusCounts[statusClass - 1];
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getContentBytesReceived() {
+        return contentBytesReceived;
+    }
+
+    public long getGzippedRequests() {
+        return gzippedRequests;
+    }
+
+    public long getGzippedResponses() {
+        return gzippedResponses;
+    }
+
+    /**
+     * gets the times it took to resolve the name of the server, for the requests that opened a
+     * connection.
+     *
+     * @return
+     */
+    public Histogram getDnsMillis() {
+        return dnsMillis;
+    }
+
+    /**
+     * gets the times it took to open a connection, for the requests that opened one.
+     *
+     * @return
+     */
+    public Histogram getConnectMillis() {
+        return connectMillis;
+    }
+
+    public Histogram getFirstByteMillis() {
+        return firstByteMillis;
+    }
+
+    public Histogram getTotalMillis() {
+        return totalMillis;
+    }
+}
@@ -20,19 +20,23 @@ import android.graphics.drawable.shapes.RectShape;
 import android.os.Environment;
 import android.util.Log;
 import org.grameenfoundation.consulteca.R;
+import org.grameenfoundation.consulteca.services.ImageService;
 
 import java.io.*;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Random;
 
 /**
  * Contains methods for managing image files on the file system.
+ * <p/>
+ * Downloaded images are kept in a content-addressable store under {@link #IMAGE_STORE_ROOT}: each
+ * file is named after the SHA-1 digest of its content and the {@link ImageService} maps image ids to
+ * digests, so images that are shared by several menu items are only stored once. Image files that
+ * were written by id directly under {@link #IMAGE_ROOT} are still found.
  */
 public class ImageUtils {
     public static final String IMAGE_ROOT = Environment.getExternalStorageDirectory() + "/gfsearch/";
+    public static final String IMAGE_STORE_ROOT = IMAGE_ROOT + "store/";
     private static final String LOG_TAG = "ImageFilesUtility";
     private static String[] SUPPORTED_FORMATS = {".jpg", ".jpeg"};
 
@@ -50,7 +54,7 @@ public class ImageUtils {
 
     public static boolean createRootFolder() {
         if (storageReady()) {
-            File dir = new File(IMAGE_ROOT);
+            File dir = new File(IMAGE_STORE_ROOT);
             if (!dir.exists()) {
                 return dir.mkdirs();
             }
@@ -147,7 +151,25 @@ public class ImageUtils {
         }
     }
 
+    /**
+     * gets the file in the image store that holds the image with the given digest.
+     *
+     * @param digest SHA-1 digest of the image content
+     * @return
+     */
+    public static File getStoredImageFile(String digest) {
+        return new File(IMAGE_STORE_ROOT, digest + ".jpg");
+    }
+
     public static String getFullPath(String fileName) {
+        String digest = new ImageService().getDigest(fileName);
+        if (digest != null) {
+            File file = getStoredImageFile(digest);
+            if (file.exists()) {
+                return file.getAbsolutePath();
+            }
+        }
+
         for (String format : SUPPORTED_FORMATS) {
             String path = IMAGE_ROOT + fileName + format;
             File file = new File(path);
@@ -163,6 +185,17 @@ public class ImageUtils {
         if (!isPartialName) {
             return getFullPath(fileName);
         }
+
+        if (fileName != null) {
+            String digest = new ImageService().findDigest(fileName);
+            if (digest != null) {
+                File file = getStoredImageFile(digest);
+                if (file.exists()) {
+                    return file.getAbsolutePath();
+                }
+            }
+        }
+
         File dir = new File(IMAGE_ROOT);
         File[] files = dir.listFiles();
 
@@ -179,18 +212,72 @@ public class ImageUtils {
 
     }
 
+    /**
+     * determines the format of the given image file from its leading (magic) bytes.
+     *
+     * @param file the image file to check
+     * @return jpeg, png, gif or webp; null if the file is not a supported image.
+     */
+    public static String getImageFormat(File file) {
+        byte[] header = new byte[12];
+        int length = 0;
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            int read;
+            while (length < header.length && (read = is.read(header, length, header.length - length)) > 0) {
+                length += read;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot read " + file.getName(), e);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Cannot close input stream for " + file.getName());
+                }
+            }
+        }
+
+        if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) {
+            return "jpeg";
+        } else if (length >= 8 && (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N'
+                && header[3] == 'G' && header[4] == 0x0D && header[5] == 0x0A && header[6] == 0x1A && header[7] == 0x0A) {
+            return "png";
+        } else if (length >= 4 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8') {
+            return "gif";
+        } else if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return "webp";
+        }
+        return null;
+    }
+
+    /**
+     * gets the SHA-1 digest of the given file as a 40 character hex string. The file is hashed
+     * as it is read rather than being loaded into memory.
+     *
+     * @param file
+     * @return the digest or null if the file cannot be read.
+     */
     public static String getSHA1Hash(File file) {
+        InputStream is = null;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA1");
-            byte[] messageDigest = md.digest(getFileAsBytes(file));
-            BigInteger number = new BigInteger(1, messageDigest);
-            String sha1 = number.toString(16);
-            while (sha1.length() < 32)
-                sha1 = "0" + sha1;
-            return sha1;
-        } catch (NoSuchAlgorithmException e) {
-            Log.e("SHA1", e.getMessage());
+            is = new BufferedInputStream(new FileInputStream(file));
+            return DigestUtils.sha1Hex(is);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Cannot read " + file.getName(), e);
             return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Cannot close input stream for " + file.getName());
+                }
+            }
         }
     }
 
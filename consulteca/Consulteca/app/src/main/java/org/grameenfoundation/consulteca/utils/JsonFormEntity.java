@@ -0,0 +1,180 @@
+package org.grameenfoundation.consulteca.utils;
+
+import com.google.gson.Gson;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+
+/**
+ * A request entity with the form of a request of the synchronization protocol, i.e. the method
+ * and data parameters, whose data is an object written as JSON straight to the connection. The
+ * content is the same as that of a {@link org.apache.http.client.entity.UrlEncodedFormEntity} of
+ * the JSON string, but the object is never turned into a string: Gson writes it through a form
+ * encoding stream as it serializes it, so sending a request takes the same memory whatever its
+ * size.
+ * <p/>
+ * The entity is sent with chunked transfer, its length is not known before it has been written.
+ * For a server that requires the length, {@link #computeContentLength()} writes the content once
+ * without keeping it to count it.
+ */
+public class JsonFormEntity extends AbstractHttpEntity {
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private final String methodParameter;
+    private final String method;
+    private final String dataParameter;
+    private final Object data;
+    private final Gson gson;
+    private long contentLength = -1;
+
+    /**
+     * @param methodParameter the name of the method parameter.
+     * @param method          the method of the request.
+     * @param dataParameter   the name of the data parameter.
+     * @param data            the object to send as the JSON data.
+     * @param gson            the gson to write the object with.
+     */
+    public JsonFormEntity(String methodParameter, String method, String dataParameter, Object data, Gson gson) {
+        this.methodParameter = methodParameter;
+        this.method = method;
+        this.dataParameter = dataParameter;
+        this.data = data;
+        this.gson = gson;
+        setContentType("application/x-www-form-urlencoded; charset = UTF-8");
+        setChunked(true);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * counts the length of the content, so that the entity is sent with a Content-Length header
+     * instead of chunked.
+     *
+     * @throws IOException
+     */
+    public void computeContentLength() throws IOException {
+        final long[] length = new long[1];
+        writeTo(new OutputStream() {
+            @Override
+            public void write(int value) {
+                length[0]++;
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) {
+                length[0] += count;
+            }
+        });
+        contentLength = length[0];
+        setChunked(false);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * gets the content of the entity. The client sends the entity with {@link #writeTo(OutputStream)},
+     * only the code that reads a request, e.g. to log it, gets its content, so this writes the form to
+     * memory.
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeTo(outputStream);
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        String parameters = URLEncoder.encode(methodParameter, CHARSET) + "=" + URLEncoder.encode(method, CHARSET)
+                + "&" + URLEncoder.encode(dataParameter, CHARSET) + "=";
+        outputStream.write(parameters.getBytes(CHARSET));
+
+        // the strings gson writes are copied to the buffer, an OutputStreamWriter would copy each to a new array
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FormEncodingOutputStream(outputStream), CHARSET),
+                BUFFER_SIZE);
+        gson.toJson(data, writer);
+        // the connection is closed by the client, not by the entity
+        writer.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Encodes the bytes written to it as application/x-www-form-urlencoded, like {@link URLEncoder}.
+     */
+    private static class FormEncodingOutputStream extends FilterOutputStream {
+        private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = 0;
+
+        FormEncodingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            if (position > buffer.length - 3) {
+                flushBuffer();
+            }
+
+            int octet = value & 0xff;
+            if ((octet >= 'a' && octet <= 'z') || (octet >= 'A' && octet <= 'Z') || (octet >= '0' && octet <= '9')
+                    || octet == '.' || octet == '-' || octet == '*' || octet == '_') {
+                buffer[position++] = (byte) octet;
+            } else if (octet == ' ') {
+                buffer[position++] = '+';
+            } else {
+                buffer[position++] = '%';
+                buffer[position++] = HEX_DIGITS[octet >> 4];
+                buffer[position++] = HEX_DIGITS[octet & 0x0f];
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            for (int index = offset; index < offset + count; index++) {
+                write(bytes[index]);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            super.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Shares the link between the requests of {@link HttpHelpers} by priority, so that a background
+ * synchronization does not take all of it from the other applications of the device.
+ * <ul>
+ * <li>Each request has the {@link Priority} of the thread that makes it, see
+ * {@link #setThreadPriority(Priority)}. A thread that has none makes foreground requests.</li>
+ * <li>Each priority can be given a rate limit, the transfers of its requests then wait as long as
+ * it takes to keep to the limit.</li>
+ * </ul>
+ * The scheduler counts the requests in flight and the bytes transferred for each priority, see
+ * {@link #getStatistics(Priority)}.
+ */
+public class NetworkScheduler {
+    /**
+     * The priority classes of the requests, from the most to the least urgent.
+     */
+    public enum Priority {
+        // a synchronization the user started
+        FOREGROUND,
+        // a scheduled synchronization
+        BACKGROUND
+    }
+
+    // the priority of the requests of a thread that has none
+    private static final Priority DEFAULT_PRIORITY = Priority.FOREGROUND;
+
+    // the transfers of a priority may go over its rate limit for this long, e.g. after an idle time
+    private static final long BURST_NANOS = 1000 * 1000 * 1000L;
+
+    private static final NetworkScheduler INSTANCE = new NetworkScheduler();
+
+    private final ThreadLocal<Priority> threadPriority = new ThreadLocal<Priority>();
+    private final PriorityState[] states = new PriorityState[Priority.values().length];
+
+    NetworkScheduler() {
+        for (int index = 0; index < states.length; index++) {
+            states[index] = new PriorityState();
+        }
+    }
+
+    public static NetworkScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * sets the priority of the requests made by the current thread.
+     *
+     * @param priority the priority, or null for foreground requests.
+     */
+    public void setThreadPriority(Priority priority) {
+        if (priority == null) {
+            threadPriority.remove();
+        } else {
+            threadPriority.set(priority);
+        }
+    }
+
+    public Priority getThreadPriority() {
+        Priority priority = threadPriority.get();
+        return priority == null ? DEFAULT_PRIORITY : priority;
+    }
+
+    /**
+     * sets the rate limit of the given priority.
+     *
+     * @param priority
+     * @param bytesPerSecond the limit, or 0 for none.
+     */
+    public synchronized void setRateLimit(Priority priority, long bytesPerSecond) {
+        PriorityState state = states[priority.ordinal()];
+        state.rateLimit = Math.max(0, bytesPerSecond);
+        state.availableAt = 0;
+    }
+
+    public synchronized long getRateLimit(Priority priority) {
+        return states[priority.ordinal()].rateLimit;
+    }
+
+    /**
+     * starts a request of the given priority.
+     *
+     * @param priority
+     */
+    synchronized void begin(Priority priority) {
+        PriorityState state = states[priority.ordinal()];
+        if (state.inFlight++ == 0) {
+            state.activeSince = System.nanoTime();
+        }
+        state.requests++;
+    }
+
+    /**
+     * ends a request of the given priority.
+     *
+     * @param priority
+     */
+    synchronized void end(Priority priority) {
+        PriorityState state = states[priority.ordinal()];
+        if (--state.inFlight == 0) {
+            state.activeNanos += System.nanoTime() - state.activeSince;
+        }
+    }
+
+    /**
+     * records the given bytes sent or received by a request of the given priority, waiting as its
+     * rate limit requires.
+     *
+     * @param priority
+     * @param bytes
+     * @throws InterruptedIOException if the thread is interrupted while it waits.
+     */
+    void transferred(Priority priority, long bytes) throws InterruptedIOException {
+        long delayNanos;
+        synchronized (this) {
+            PriorityState state = states[priority.ordinal()];
+            state.bytes += bytes;
+            if (state.rateLimit == 0) {
+                return;
+            }
+
+            // the transfers of the priority are given consecutive slots of time at its rate, a
+            // transfer waits for the end of its slot
+            long now = System.nanoTime();
+            long start = Math.max(state.availableAt, now - BURST_NANOS);
+            state.availableAt = start + bytes * 1000 * 1000 * 1000L / state.rateLimit;
+            delayNanos = state.availableAt - now;
+            if (delayNanos > 0) {
+                state.throttledNanos += delayNanos;
+            }
+        }
+        if (delayNanos > 0) {
+            try {
+                Thread.sleep(delayNanos / (1000 * 1000), (int) (delayNanos % (1000 * 1000)));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /**
+     * gets the statistics of the requests of the given priority since the process started.
+     *
+     * @param priority
+     * @return
+     */
+    public synchronized Statistics getStatistics(Priority priority) {
+        PriorityState state = states[priority.ordinal()];
+        long activeNanos = state.activeNanos + (state.inFlight > 0 ? System.nanoTime() - state.activeSince : 0);
+        return new Statistics(priority, state.rateLimit, state.inFlight, state.requests, state.bytes,
+                activeNanos / (1000 * 1000), state.throttledNanos / (1000 * 1000));
+    }
+
+    /**
+     * The state of the requests of one priority.
+     */
+    private static class PriorityState {
+        private long rateLimit;
+        private long availableAt;
+        private int inFlight;
+        private long requests;
+        private long bytes;
+        private long activeSince;
+        private long activeNanos;
+        private long throttledNanos;
+    }
+
+    /**
+     * The requests of one priority: those in flight now, and the requests and transfers since the
+     * process started.
+     */
+    public static class Statistics {
+        private final Priority priority;
+        private final long rateLimit;
+        private final int inFlight;
+        private final long requests;
+        private final long bytes;
+        private final long activeMillis;
+        private final long throttledMillis;
+
+        Statistics(Priority priority, long rateLimit, int inFlight, long requests, long bytes, long activeMillis,
+                   long throttledMillis) {
+            this.priority = priority;
+            this.rateLimit = rateLimit;
+            this.inFlight = inFlight;
+            this.requests = requests;
+            this.bytes = bytes;
+            this.activeMillis = activeMillis;
+            this.throttledMillis = throttledMillis;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * gets the rate limit of the priority.
+         *
+         * @return the limit in bytes per second, or 0 for none.
+         */
+        public long getRateLimit() {
+            return rateLimit;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * gets the bytes sent and received on the network.
+         *
+         * @return
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * gets the time during which requests of the priority were in flight.
+         *
+         * @return
+         */
+        public long getActiveMillis() {
+            return activeMillis;
+        }
+
+        /**
+         * gets the throughput of the requests while they were in flight.
+         *
+         * @return the throughput in bytes per second.
+         */
+        public long getBytesPerSecond() {
+            return activeMillis == 0 ? 0 : bytes * 1000 / activeMillis;
+        }
+
+        /**
+         * gets the time the transfers waited to keep to the rate limit.
+         *
+         * @return
+         */
+        public long getThrottledMillis() {
+            return throttledMillis;
+        }
+    }
+}
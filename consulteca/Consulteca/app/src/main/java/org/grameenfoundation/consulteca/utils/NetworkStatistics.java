@@ -0,0 +1,68 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process wide {@link HttpStatistics} of the requests made by {@link HttpHelpers}, by endpoint.
+ * Like the {@link PerformanceCounters} the statistics only ever grow, the requests made during an
+ * operation are the difference between the snapshots taken before and after it, see
+ * {@link #difference(Map, Map)}.
+ */
+public class NetworkStatistics implements HttpHelpers.RequestListener {
+    private static final NetworkStatistics INSTANCE = new NetworkStatistics();
+
+    private final Map<String, HttpStatistics> statistics = new TreeMap<String, HttpStatistics>();
+
+    NetworkStatistics() {
+    }
+
+    public static NetworkStatistics getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public synchronized void requestCompleted(RequestMetrics metrics) {
+        HttpStatistics endpointStatistics = statistics.get(metrics.getEndpoint());
+        if (endpointStatistics == null) {
+            endpointStatistics = new HttpStatistics();
+            statistics.put(metrics.getEndpoint(), endpointStatistics);
+        }
+        endpointStatistics.add(metrics);
+    }
+
+    /**
+     * gets a copy of the statistics of each endpoint.
+     *
+     * @return the statistics by endpoint, in the order of the endpoints.
+     */
+    public synchronized Map<String, HttpStatistics> getSnapshot() {
+        Map<String, HttpStatistics> snapshot = new TreeMap<String, HttpStatistics>();
+        for (Map.Entry<String, HttpStatistics> entry : statistics.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().copy());
+        }
+        return snapshot;
+    }
+
+    /**
+     * gets the statistics of the requests made between the given snapshots.
+     *
+     * @param before
+     * @param after
+     * @return the statistics by endpoint, for the endpoints that were requested in between.
+     */
+    public static Map<String, HttpStatistics> difference(Map<String, HttpStatistics> before,
+                                                         Map<String, HttpStatistics> after) {
+        Map<String, HttpStatistics> difference = new TreeMap<String, HttpStatistics>();
+        for (Map.Entry<String, HttpStatistics> entry : after.entrySet()) {
+            HttpStatistics endpointStatistics = entry.getValue().copy();
+            if (before.containsKey(entry.getKey())) {
+                endpointStatistics.subtract(before.get(entry.getKey()));
+            }
+            if (endpointStatistics.getRequests() > 0) {
+                difference.put(entry.getKey(), endpointStatistics);
+            }
+        }
+        return difference;
+    }
+}
@@ -0,0 +1,99 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters of the bytes transferred over the network, the rows written to the
+ * database and the requests that were retried, timed out or rejected by a circuit breaker. The
+ * counters only ever grow, the work done by an operation is the difference between the values
+ * read before and after it.
+ */
+public class PerformanceCounters {
+    private static final AtomicLong bytesReceived = new AtomicLong(0);
+    private static final AtomicLong bytesSent = new AtomicLong(0);
+    private static final AtomicLong rowsWritten = new AtomicLong(0);
+    private static final AtomicLong requestRetries = new AtomicLong(0);
+    private static final AtomicLong requestTimeouts = new AtomicLong(0);
+    private static final AtomicLong requestsRejected = new AtomicLong(0);
+
+    public static void addBytesReceived(long count) {
+        bytesReceived.addAndGet(count);
+    }
+
+    public static void addBytesSent(long count) {
+        if (count > 0) {
+            bytesSent.addAndGet(count);
+        }
+    }
+
+    public static void addRowsWritten(long count) {
+        rowsWritten.addAndGet(count);
+    }
+
+    public static void addRequestRetry() {
+        requestRetries.incrementAndGet();
+    }
+
+    public static void addRequestTimeout() {
+        requestTimeouts.incrementAndGet();
+    }
+
+    public static void addRequestRejected() {
+        requestsRejected.incrementAndGet();
+    }
+
+    /**
+     * gets the number of bytes read from network responses, as they were sent over the wire.
+     *
+     * @return
+     */
+    public static long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * gets the number of bytes sent in network request bodies.
+     *
+     * @return
+     */
+    public static long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * gets the number of rows inserted, replaced or updated in the database.
+     *
+     * @return
+     */
+    public static long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    /**
+     * gets the number of requests that were sent again after a failure.
+     *
+     * @return
+     */
+    public static long getRequestRetries() {
+        return requestRetries.get();
+    }
+
+    /**
+     * gets the number of requests that failed because the server did not answer in time.
+     *
+     * @return
+     */
+    public static long getRequestTimeouts() {
+        return requestTimeouts.get();
+    }
+
+    /**
+     * gets the number of requests that were not sent because the circuit breaker of their server
+     * was open.
+     *
+     * @return
+     */
+    public static long getRequestsRejected() {
+        return requestsRejected.get();
+    }
+}
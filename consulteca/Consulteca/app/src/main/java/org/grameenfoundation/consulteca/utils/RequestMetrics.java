@@ -0,0 +1,180 @@
+package org.grameenfoundation.consulteca.utils;
+
+/**
+ * The measurements of one request made by {@link HttpHelpers}, given to its
+ * {@link HttpHelpers.RequestListener}s once the response has been read or the request has failed.
+ * The times are in milliseconds from the start of the request.
+ */
+public class RequestMetrics {
+    private final String endpoint;
+    private final NetworkScheduler.Priority priority;
+    private final long startTime = System.currentTimeMillis();
+    private long dnsMillis = -1;
+    private long connectMillis = -1;
+    private long firstByteMillis = -1;
+    private long totalMillis = -1;
+    private int statusCode = -1;
+    private long bytesSent;
+    private long bytesReceived;
+    private long contentBytesReceived;
+    private boolean requestGzipped;
+    private boolean responseGzipped;
+    private boolean completed;
+
+    RequestMetrics(String endpoint, NetworkScheduler.Priority priority) {
+        this.endpoint = endpoint;
+        this.priority = priority;
+    }
+
+    /**
+     * gets the endpoint of the request: the method of the synchronization protocol, e.g. keywords,
+     * or the last segment of the path of the url for the other requests.
+     *
+     * @return
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * gets the priority the request was scheduled with, see {@link NetworkScheduler}.
+     *
+     * @return
+     */
+    public NetworkScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * gets the time it took to resolve the name of the server.
+     *
+     * @return the time, or -1 if the request went over a pooled connection.
+     */
+    public long getDnsMillis() {
+        return dnsMillis;
+    }
+
+    /**
+     * gets the time it took to open the connection, including the TLS handshake, after the name of
+     * the server was resolved.
+     *
+     * @return the time, or -1 if the request went over a pooled connection.
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * gets the time until the headers of the response were received.
+     *
+     * @return the time, or -1 if the request failed before.
+     */
+    public long getFirstByteMillis() {
+        return firstByteMillis;
+    }
+
+    /**
+     * gets the time until the content of the response was read or the request failed.
+     *
+     * @return
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * gets the status of the response.
+     *
+     * @return the status, or -1 if no response was received.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * gets the number of bytes of the body of the request, as they were sent over the wire.
+     *
+     * @return
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * gets the number of bytes of the content of the response, as they were received over the wire.
+     *
+     * @return
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * gets the number of bytes of the content of the response once it was uncompressed. It is the
+     * same as {@link #getBytesReceived()} for a response that was not compressed, and 0 for a
+     * response whose content was not read.
+     *
+     * @return
+     */
+    public long getContentBytesReceived() {
+        return contentBytesReceived;
+    }
+
+    public boolean isRequestGzipped() {
+        return requestGzipped;
+    }
+
+    public boolean isResponseGzipped() {
+        return responseGzipped;
+    }
+
+    /**
+     * gets a value indicating whether the request failed without a response.
+     *
+     * @return
+     */
+    public boolean isFailed() {
+        return statusCode < 0;
+    }
+
+    synchronized void connected(long dnsMillis, long connectMillis) {
+        this.dnsMillis = dnsMillis;
+        this.connectMillis = connectMillis;
+    }
+
+    synchronized void setRequestGzipped(boolean requestGzipped) {
+        this.requestGzipped = requestGzipped;
+    }
+
+    synchronized void addBytesSent(long count) {
+        bytesSent += count;
+    }
+
+    synchronized void responseReceived(int statusCode, boolean responseGzipped) {
+        this.firstByteMillis = System.currentTimeMillis() - startTime;
+        this.statusCode = statusCode;
+        this.responseGzipped = responseGzipped;
+    }
+
+    synchronized void addBytesReceived(long count) {
+        bytesReceived += count;
+    }
+
+    synchronized void addContentBytesReceived(long count) {
+        contentBytesReceived += count;
+    }
+
+    /**
+     * ends the measurements.
+     *
+     * @return false if they had already been ended.
+     */
+    synchronized boolean complete() {
+        if (completed) {
+            return false;
+        }
+        completed = true;
+        totalMillis = System.currentTimeMillis() - startTime;
+        return true;
+    }
+}
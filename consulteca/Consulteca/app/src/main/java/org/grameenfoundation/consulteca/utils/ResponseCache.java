@@ -0,0 +1,742 @@
+package org.grameenfoundation.consulteca.utils;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.grameenfoundation.consulteca.ApplicationRegistry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the responses of the requests of {@link HttpHelpers} that ask for it on disk, so that a
+ * request whose response has not changed is answered without the network or with a short 304 Not
+ * Modified, see {@link HttpHelpers#postJsonFormRequest(String, String, Object, Gson, int, HashMap,
+ * boolean, Policy)}.
+ * <ul>
+ * <li>A response is kept under its endpoint and the canonical form of the data of its request,
+ * i.e. with the keys of its objects sorted, so the same data gives the same key whatever the
+ * order of its fields.</li>
+ * <li>A response is fresh for the max-age of its Cache-Control header, or until its Expires
+ * header, and is answered from the cache without a request meanwhile. A response without them,
+ * or with no-cache, is stale at once. A stale response with validators (ETag or Last-Modified)
+ * is revalidated with a conditional request, and a response with no-store is not kept.</li>
+ * <li>The responses take at most {@link #MAX_SIZE} bytes, the least recently used ones are
+ * removed to make room. A response larger than a quarter of that is not kept.</li>
+ * <li>With {@link Policy#OFFLINE_FIRST}, a stale response is answered when the server cannot be
+ * reached, unless it has must-revalidate.</li>
+ * </ul>
+ * The cache counts its hits and misses, see {@link #getStatistics()}. Without the application
+ * context, e.g. in tests, there is no cache directory and nothing is kept.
+ */
+public class ResponseCache {
+    /**
+     * How a request uses the cache.
+     */
+    public enum Policy {
+        // fresh responses are answered from the cache, stale ones are revalidated with the server
+        DEFAULT,
+        // as DEFAULT, and stale responses are answered when the server cannot be reached
+        OFFLINE_FIRST
+    }
+
+    static final long MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final String DIRECTORY_NAME = "http";
+    private static final String METADATA_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static ResponseCache instance;
+
+    private final File directory;
+    private final long maxSize;
+    private final Clock clock;
+    // the entries from the least to the most recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long conditionalHits;
+    private long staleHits;
+    private long misses;
+    private long stores;
+    private long evictions;
+
+    ResponseCache(File directory, long maxSize, Clock clock) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.clock = clock;
+        if (directory != null) {
+            load();
+        }
+    }
+
+    public static synchronized ResponseCache getInstance() {
+        if (instance == null) {
+            File directory = ApplicationRegistry.getApplicationContext() == null ? null
+                    : new File(ApplicationRegistry.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+            instance = new ResponseCache(directory, MAX_SIZE, Clock.SYSTEM);
+        }
+        return instance;
+    }
+
+    /**
+     * gets the key of a request of the synchronization protocol: the digest of its url, its method
+     * and the canonical JSON of its data.
+     *
+     * @param url
+     * @param method
+     * @param data
+     * @param gson
+     * @return
+     */
+    public static String getKey(String url, String method, Object data, Gson gson) {
+        MessageDigest digest = DigestUtils.newSha1Digest();
+        try {
+            digest.update((url + "\n" + method + "\n").getBytes(CHARSET));
+            digest.update(canonicalize(gson.toJsonTree(data)).toString().getBytes(CHARSET));
+        } catch (UnsupportedEncodingException ex) {
+            // every java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+        return DigestUtils.toHexString(digest.digest());
+    }
+
+    private static JsonElement canonicalize(JsonElement element) {
+        if (element.isJsonObject()) {
+            TreeMap<String, JsonElement> members = new TreeMap<String, JsonElement>();
+            for (Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+                members.put(member.getKey(), member.getValue());
+            }
+            JsonObject result = new JsonObject();
+            for (Map.Entry<String, JsonElement> member : members.entrySet()) {
+                result.add(member.getKey(), canonicalize(member.getValue()));
+            }
+            return result;
+        }
+        if (element.isJsonArray()) {
+            JsonArray result = new JsonArray();
+            for (JsonElement item : element.getAsJsonArray()) {
+                result.add(canonicalize(item));
+            }
+            return result;
+        }
+        return element;
+    }
+
+    /**
+     * gets the response kept under the given key if it is still fresh.
+     *
+     * @param key
+     * @return the response, or null if there is none or it is stale.
+     */
+    public synchronized HttpResponse getFreshResponse(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || clock.currentTimeMillis() >= entry.expiresAt) {
+            return null;
+        }
+
+        HttpResponse response = open(key, entry, false);
+        if (response != null) {
+            hits++;
+        }
+        return response;
+    }
+
+    /**
+     * gets the response kept under the given key whatever its age, e.g. when the server cannot be
+     * reached. A response that must be revalidated is not given.
+     *
+     * @param key
+     * @return the response, with a Warning header if it is stale, or null if there is none.
+     */
+    public synchronized HttpResponse getStaleResponse(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || (entry.mustRevalidate && clock.currentTimeMillis() >= entry.expiresAt)) {
+            return null;
+        }
+
+        HttpResponse response = open(key, entry, clock.currentTimeMillis() >= entry.expiresAt);
+        if (response != null) {
+            staleHits++;
+        }
+        return response;
+    }
+
+    /**
+     * adds the validators of the response kept under the given key to the given headers, so that
+     * the server can answer 304 Not Modified if it has not changed.
+     *
+     * @param key
+     * @param headers the headers of the request, or null.
+     * @return a copy of the headers with the validators.
+     */
+    public synchronized HashMap<String, String> addValidators(String key, HashMap<String, String> headers) {
+        HashMap<String, String> result = headers == null ? new HashMap<String, String>()
+                : new HashMap<String, String>(headers);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return result;
+        }
+
+        String entityTag = entry.getHeader("ETag");
+        if (entityTag != null && !result.containsKey("If-None-Match")) {
+            result.put("If-None-Match", entityTag);
+        }
+        String lastModified = entry.getHeader("Last-Modified");
+        if (lastModified != null && !result.containsKey("If-Modified-Since")) {
+            result.put("If-Modified-Since", lastModified);
+        }
+        return result;
+    }
+
+    /**
+     * updates the cache with the response of the server to the request with the given key.
+     * <ul>
+     * <li>A 304 Not Modified refreshes the kept response, which is returned instead.</li>
+     * <li>A 200 OK that can be kept is read and kept, and is returned from the cache. If it turns
+     * out to be too large, it is returned as it is read instead.</li>
+     * <li>Any other response is returned as it is.</li>
+     * </ul>
+     *
+     * @param key
+     * @param response the response of the server, its content must not have been read.
+     * @param policy
+     * @return the response to give to the caller.
+     * @throws IOException if the response cannot be read.
+     */
+    public HttpResponse update(String key, HttpResponse response, Policy policy) throws IOException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            HttpResponse cachedResponse = refresh(key, response);
+            if (cachedResponse != null) {
+                HttpHelpers.consume(response);
+                return cachedResponse;
+            }
+        }
+
+        synchronized (this) {
+            misses++;
+        }
+        if (directory == null || statusCode != HttpStatus.SC_OK || response.getEntity() == null) {
+            return response;
+        }
+
+        Entry entry = new Entry();
+        entry.statusCode = statusCode;
+        entry.reasonPhrase = response.getStatusLine().getReasonPhrase();
+        for (Header header : response.getAllHeaders()) {
+            entry.headers.add(header.getName() + ": " + header.getValue());
+        }
+        entry.storedAt = clock.currentTimeMillis();
+        CacheControl cacheControl = new CacheControl(response);
+        entry.expiresAt = entry.storedAt + cacheControl.getFreshMillis();
+        entry.mustRevalidate = cacheControl.mustRevalidate;
+        boolean useful = entry.expiresAt > entry.storedAt || policy == Policy.OFFLINE_FIRST
+                || entry.getHeader("ETag") != null || entry.getHeader("Last-Modified") != null;
+        long contentLength = response.getEntity().getContentLength();
+        if (cacheControl.noStore || !useful || "*".equals(entry.getHeader("Vary")) || contentLength > getMaxEntrySize()) {
+            return response;
+        }
+
+        return store(key, entry, response);
+    }
+
+    private long getMaxEntrySize() {
+        return maxSize / 4;
+    }
+
+    /**
+     * reads the content of the given response to the body file of the given entry. If the content
+     * is larger than an entry can be, the response is returned with what has been read so far
+     * followed by the rest of its content.
+     */
+    private HttpResponse store(String key, Entry entry, HttpResponse response) throws IOException {
+        File temporaryFile = new File(directory, key + BODY_SUFFIX + TEMPORARY_SUFFIX);
+        InputStream inputStream = response.getEntity().getContent();
+        boolean complete = false;
+        try {
+            directory.mkdirs();
+            OutputStream outputStream = new FileOutputStream(temporaryFile);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while (entry.length <= getMaxEntrySize() && (read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                    entry.length += read;
+                }
+            } finally {
+                outputStream.close();
+            }
+
+            if (entry.length > getMaxEntrySize()) {
+                Log.i(ResponseCache.class.getName(), "Not caching a response larger than "
+                        + getMaxEntrySize() + " bytes");
+                // the file can be deleted while it is read
+                InputStream readContent = new FileInputStream(temporaryFile);
+                temporaryFile.delete();
+                complete = true;
+                return createResponse(entry, new SequenceInputStream(readContent, inputStream), -1, false);
+            }
+            inputStream.close();
+            complete = true;
+        } finally {
+            if (!complete) {
+                inputStream.close();
+                temporaryFile.delete();
+            }
+        }
+
+        synchronized (this) {
+            remove(key);
+            File bodyFile = new File(directory, key + BODY_SUFFIX);
+            if (!temporaryFile.renameTo(bodyFile) || !writeMetadata(key, entry)) {
+                // the response is still given from the file that was read
+                File readFile = bodyFile.exists() ? bodyFile : temporaryFile;
+                InputStream content = new FileInputStream(readFile);
+                readFile.delete();
+                return createResponse(entry, content, entry.length, false);
+            }
+            bodyFile.setLastModified(clock.currentTimeMillis());
+            entries.put(key, entry);
+            size += entry.length;
+            stores++;
+            trim();
+            return open(key, entry, false);
+        }
+    }
+
+    /**
+     * refreshes the response kept under the given key with the headers of the given 304 Not
+     * Modified response.
+     *
+     * @return the kept response, or null if there is none.
+     */
+    private synchronized HttpResponse refresh(String key, HttpResponse notModified) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        // the headers of the 304 replace those of the kept response
+        for (Header header : notModified.getAllHeaders()) {
+            Iterator<String> iterator = entry.headers.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().toLowerCase().startsWith(header.getName().toLowerCase() + ":")) {
+                    iterator.remove();
+                }
+            }
+        }
+        for (Header header : notModified.getAllHeaders()) {
+            entry.headers.add(header.getName() + ": " + header.getValue());
+        }
+        entry.storedAt = clock.currentTimeMillis();
+        CacheControl cacheControl = new CacheControl(notModified);
+        entry.expiresAt = entry.storedAt + cacheControl.getFreshMillis();
+        entry.mustRevalidate = cacheControl.mustRevalidate;
+        writeMetadata(key, entry);
+
+        HttpResponse response = open(key, entry, false);
+        if (response != null) {
+            conditionalHits++;
+        }
+        return response;
+    }
+
+    /**
+     * opens the kept response of the given entry and marks it as the most recently used.
+     *
+     * @return the response, or null if its body cannot be opened.
+     */
+    private HttpResponse open(String key, Entry entry, boolean stale) {
+        if (entry == null) {
+            return null;
+        }
+
+        File bodyFile = new File(directory, key + BODY_SUFFIX);
+        try {
+            InputStream inputStream = new FileInputStream(bodyFile);
+            // the last modification time of the body is the last time it was used
+            bodyFile.setLastModified(clock.currentTimeMillis());
+            return createResponse(entry, inputStream, entry.length, stale);
+        } catch (IOException ex) {
+            Log.w(ResponseCache.class.getName(), "Could not open a cached response", ex);
+            remove(key);
+            return null;
+        }
+    }
+
+    private static HttpResponse createResponse(Entry entry, InputStream content, long length, boolean stale) {
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1,
+                entry.statusCode, entry.reasonPhrase));
+        for (String header : entry.headers) {
+            int separator = header.indexOf(':');
+            response.addHeader(header.substring(0, separator), header.substring(separator + 1).trim());
+        }
+        if (stale) {
+            response.addHeader("Warning", "110 - \"Response is Stale\"");
+        }
+
+        CachedEntity entity = new CachedEntity(content, length);
+        Header contentType = response.getFirstHeader("Content-Type");
+        if (contentType != null) {
+            entity.setContentType(contentType.getValue());
+        }
+        Header contentEncoding = response.getFirstHeader("Content-Encoding");
+        if (contentEncoding != null) {
+            entity.setContentEncoding(contentEncoding.getValue());
+        }
+        response.setEntity(entity);
+        return response;
+    }
+
+    /**
+     * removes the least recently used entries until the cache is within its size.
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            deleteFiles(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            deleteFiles(key, entry);
+        }
+    }
+
+    private void deleteFiles(String key, Entry entry) {
+        size -= entry.length;
+        new File(directory, key + METADATA_SUFFIX).delete();
+        new File(directory, key + BODY_SUFFIX).delete();
+    }
+
+    /**
+     * writes the metadata of the given entry to a temporary file that then replaces its file, so
+     * that a process killed while writing does not leave half a file behind.
+     */
+    private boolean writeMetadata(String key, Entry entry) {
+        File metadataFile = new File(directory, key + METADATA_SUFFIX);
+        File temporaryFile = new File(directory, key + METADATA_SUFFIX + TEMPORARY_SUFFIX);
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), CHARSET);
+            try {
+                new Gson().toJson(entry, writer);
+            } finally {
+                writer.close();
+            }
+            if (!temporaryFile.renameTo(metadataFile)) {
+                throw new IOException("Could not rename " + temporaryFile);
+            }
+            return true;
+        } catch (IOException ex) {
+            Log.w(ResponseCache.class.getName(), "Could not write a cached response", ex);
+            temporaryFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * reads the entries in the cache directory, from the least to the most recently used. The
+     * files of an incomplete entry are deleted.
+     */
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long difference = first.lastModified() - second.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(BODY_SUFFIX)) {
+                if (!name.endsWith(METADATA_SUFFIX)
+                        || !new File(directory, name.replace(METADATA_SUFFIX, BODY_SUFFIX)).exists()) {
+                    file.delete();
+                }
+                continue;
+            }
+
+            String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+            Entry entry = readMetadata(new File(directory, key + METADATA_SUFFIX));
+            if (entry == null || entry.length != file.length()) {
+                file.delete();
+                new File(directory, key + METADATA_SUFFIX).delete();
+                continue;
+            }
+            entries.put(key, entry);
+            size += entry.length;
+        }
+        trim();
+    }
+
+    private static Entry readMetadata(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(file), CHARSET);
+            try {
+                return new Gson().fromJson(reader, Entry.class);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            Log.w(ResponseCache.class.getName(), "Could not read a cached response", ex);
+        } catch (JsonParseException ex) {
+            Log.w(ResponseCache.class.getName(), "Invalid cached response", ex);
+        }
+        return null;
+    }
+
+    /**
+     * gets the statistics of the cache since the process started.
+     *
+     * @return
+     */
+    public synchronized Statistics getStatistics() {
+        return new Statistics(entries.size(), size, maxSize, hits, conditionalHits, staleHits, misses, stores,
+                evictions);
+    }
+
+    /**
+     * The content of a response from the cache, which is not counted as received from the
+     * network by {@link HttpHelpers#getInputStream(HttpResponse)}.
+     */
+    static class CachedEntity extends InputStreamEntity {
+        CachedEntity(InputStream content, long length) {
+            super(content, length);
+        }
+    }
+
+    /**
+     * The directives of the Cache-Control and Expires headers of a response that the cache
+     * follows.
+     */
+    private static class CacheControl {
+        private boolean noStore;
+        private boolean noCache;
+        private boolean mustRevalidate;
+        private long maxAgeMillis = -1;
+        private long expiresMillis = -1;
+
+        CacheControl(HttpResponse response) {
+            for (Header header : response.getHeaders("Cache-Control")) {
+                for (String directive : header.getValue().split(",")) {
+                    String[] parts = directive.trim().split("=", 2);
+                    String name = parts[0].trim().toLowerCase();
+                    if ("no-store".equals(name)) {
+                        noStore = true;
+                    } else if ("no-cache".equals(name)) {
+                        noCache = true;
+                    } else if ("must-revalidate".equals(name)) {
+                        mustRevalidate = true;
+                    } else if ("max-age".equals(name) && parts.length == 2) {
+                        try {
+                            maxAgeMillis = Long.parseLong(parts[1].trim().replace("\"", "")) * 1000;
+                        } catch (NumberFormatException ex) {
+                            // an invalid max-age makes the response stale
+                            maxAgeMillis = 0;
+                        }
+                    }
+                }
+            }
+
+            Header expires = response.getFirstHeader("Expires");
+            if (expires != null) {
+                Header date = response.getFirstHeader("Date");
+                try {
+                    long dateMillis = date == null ? System.currentTimeMillis()
+                            : DateUtils.parseDate(date.getValue()).getTime();
+                    expiresMillis = DateUtils.parseDate(expires.getValue()).getTime() - dateMillis;
+                } catch (DateParseException ex) {
+                    // an invalid date, e.g. 0, is in the past
+                    expiresMillis = 0;
+                }
+            }
+        }
+
+        /**
+         * gets how long the response is fresh after it was received.
+         */
+        long getFreshMillis() {
+            if (noCache) {
+                return 0;
+            }
+            if (maxAgeMillis >= 0) {
+                return maxAgeMillis;
+            }
+            return Math.max(0, expiresMillis);
+        }
+    }
+
+    /**
+     * The metadata of a kept response, its body is in a file of its own.
+     */
+    private static class Entry {
+        private int statusCode;
+        private String reasonPhrase;
+        private List<String> headers = new ArrayList<String>();
+        private long storedAt;
+        private long expiresAt;
+        private boolean mustRevalidate;
+        private long length;
+
+        String getHeader(String name) {
+            for (String header : headers) {
+                if (header.toLowerCase().startsWith(name.toLowerCase() + ":")) {
+                    return header.substring(name.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The entries of the cache and how the requests that use it were answered.
+     */
+    public static class Statistics {
+        private final int entries;
+        private final long size;
+        private final long maxSize;
+        private final long hits;
+        private final long conditionalHits;
+        private final long staleHits;
+        private final long misses;
+        private final long stores;
+        private final long evictions;
+
+        Statistics(int entries, long size, long maxSize, long hits, long conditionalHits, long staleHits,
+                   long misses, long stores, long evictions) {
+            this.entries = entries;
+            this.size = size;
+            this.maxSize = maxSize;
+            this.hits = hits;
+            this.conditionalHits = conditionalHits;
+            this.staleHits = staleHits;
+            this.misses = misses;
+            this.stores = stores;
+            this.evictions = evictions;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * gets the bytes taken by the bodies of the entries.
+         *
+         * @return
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * gets the number of requests answered from the cache without the network.
+         *
+         * @return
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * gets the number of requests answered from the cache after the server answered 304 Not
+         * Modified.
+         *
+         * @return
+         */
+        public long getConditionalHits() {
+            return conditionalHits;
+        }
+
+        /**
+         * gets the number of requests answered from the cache because the server could not be
+         * reached.
+         *
+         * @return
+         */
+        public long getStaleHits() {
+            return staleHits;
+        }
+
+        /**
+         * gets the number of requests answered with the content of the server.
+         *
+         * @return
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getStores() {
+            return stores;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * gets the share of the requests answered from the cache, whether or not the server was
+         * asked first.
+         *
+         * @return the share in percent.
+         */
+        public int getHitPercentage() {
+            long requests = hits + conditionalHits + staleHits + misses;
+            return requests == 0 ? 0 : (int) ((hits + conditionalHits + staleHits) * 100 / requests);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Uploads with a {@link CompressedUploader} to a local server that announces whether it accepts
+ * compressed requests and may reject them, and checks which requests it receives.
+ */
+public class CompressedUploaderTest {
+    private static final int NETWORK_TIMEOUT = 30 * 1000;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean acceptsGzip = true;
+    private volatile int compressedStatus = 200;
+    private String compressedUploadUrl;
+    private CompressedUploader uploader;
+    private Map<String, String> data;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+
+        uploader = new CompressedUploader(new CompressedUploader.Listener() {
+            @Override
+            public String getCompressedUploadUrl() {
+                return compressedUploadUrl;
+            }
+
+            @Override
+            public void setCompressedUploadUrl(String url) {
+                compressedUploadUrl = url;
+            }
+        });
+        data = new HashMap<String, String>();
+        data.put("request", "searchLogs");
+        data.put("imei", "35 & 7");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void compressesOnceTheServerAcceptsIt() throws Exception {
+        assertEquals("ok", post(getUrl("/upload")));
+        assertEquals(getUrl("/upload"), compressedUploadUrl);
+        assertEquals("ok", post(getUrl("/upload")));
+
+        // another server is not known to accept them
+        assertEquals("ok", post(getUrl("/other")));
+        assertEquals(Arrays.asList("plain " + getForm(), "gzip " + getForm(), "plain " + getForm()), requests);
+    }
+
+    @Test
+    public void sendsTheRequestAgainUncompressedWhenItIsUnsupported() throws Exception {
+        assertRejectedCompressedRequestIsSentAgain(415);
+    }
+
+    @Test
+    public void sendsTheRequestAgainUncompressedWhenTheLengthIsRequired() throws Exception {
+        assertRejectedCompressedRequestIsSentAgain(411);
+    }
+
+    private void assertRejectedCompressedRequestIsSentAgain(int status) throws Exception {
+        compressedUploadUrl = getUrl("/upload");
+        compressedStatus = status;
+        acceptsGzip = false;
+
+        assertEquals("ok", post(getUrl("/upload")));
+        assertNull(compressedUploadUrl);
+        assertEquals(Arrays.asList(status + " " + getForm(), "plain " + getForm()), requests);
+
+        // the next request is not compressed, until the server announces again that it accepts them
+        acceptsGzip = true;
+        assertEquals("ok", post(getUrl("/upload")));
+        assertEquals(getUrl("/upload"), compressedUploadUrl);
+        assertEquals("plain " + getForm(), requests.get(2));
+    }
+
+    private String post(String url) throws IOException {
+        HttpResponse response = uploader.post(url, "searchLogs", data, new Gson(), NETWORK_TIMEOUT);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        return read(HttpHelpers.getInputStream(response));
+    }
+
+    private String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private String getForm() {
+        return "method=searchLogs data=" + new Gson().toJson(data);
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * records the encoding of the request and its decoded parameters, and answers with the status
+     * for compressed requests or ok.
+     */
+    private void respond(HttpExchange exchange) throws IOException {
+        boolean compressed = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        InputStream body = compressed ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody();
+        StringBuilder form = new StringBuilder();
+        for (String parameter : read(body).split("&")) {
+            String[] parts = parameter.split("=", 2);
+            form.append(form.length() == 0 ? "" : " ").append(URLDecoder.decode(parts[0], "UTF-8"))
+                    .append('=').append(URLDecoder.decode(parts[1], "UTF-8"));
+        }
+
+        if (acceptsGzip) {
+            exchange.getResponseHeaders().set("Accept-Encoding", "gzip");
+        }
+        if (compressed && compressedStatus != 200) {
+            requests.add(compressedStatus + " " + form);
+            exchange.sendResponseHeaders(compressedStatus, -1);
+            return;
+        }
+        requests.add((compressed ? "gzip " : "plain ") + form);
+
+        byte[] bytes = "ok".getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(bytes);
+        outputStream.close();
+    }
+}
@@ -0,0 +1,120 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.apache.http.HttpResponse;
+import org.grameenfoundation.consulteca.settings.SettingsConstants;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads the farmers of a {@link LocalSyncServer} with a {@link FarmersDownloader}, into an
+ * {@link InMemoryFarmersStore}.
+ */
+public class FarmersDownloaderTest {
+    private static final long BASE_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 100;
+
+    private SyntheticDataset dataset;
+    private LocalSyncServer server;
+    private InMemoryFarmersStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dataset = new SyntheticDataset();
+        dataset.farmers = 2500;
+        server = new LocalSyncServer(dataset, FarmersDownloader.PAGE_SIZE);
+        store = new InMemoryFarmersStore();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void downloadsAllThePages() throws Exception {
+        FarmersDownloader.Page page = download(FarmersDownloader.PAGE_SIZE);
+
+        assertEquals(SyntheticDataset.VERSION, page.getFarmersVersion());
+        assertNull(page.getNextToken());
+        assertEquals(dataset.farmers, store.farmers.size());
+        assertNull(store.continuationToken);
+        assertEquals(Arrays.asList(null, "1000", "2000"), server.getFarmersTokens());
+
+        // each page is committed with its tombstones and its token, in one transaction
+        assertEquals(0, store.batches);
+        assertEquals(3, store.pages);
+    }
+
+    @Test
+    public void resumesAnInterruptedDownloadFromTheLastCommittedPage() throws Exception {
+        // the second page breaks off after its farmers, on every attempt
+        server.breakFarmersPage("1000");
+        try {
+            download(FarmersDownloader.PAGE_SIZE);
+            fail("the download should have failed");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        // the first page was committed whole with its token, none of the farmers of the broken page was saved
+        assertEquals("1000", store.continuationToken);
+        assertEquals(FarmersDownloader.PAGE_SIZE, store.farmers.size());
+        assertEquals(0, store.batches);
+        assertEquals(1, store.pages);
+
+        server.breakFarmersPage(null);
+        int requests = server.getFarmersTokens().size();
+        FarmersDownloader.Page page = download(FarmersDownloader.PAGE_SIZE);
+
+        assertNotNull(page);
+        List<String> tokens = server.getFarmersTokens();
+        assertEquals(Arrays.asList("1000", "2000"), tokens.subList(requests, tokens.size()));
+        assertEquals(dataset.farmers, store.farmers.size());
+        assertNull(store.continuationToken);
+        assertEquals(0, store.batches);
+        assertEquals(3, store.pages);
+    }
+
+    @Test
+    public void savesALargePageInBatchesAndCommitsItsTokenWithTheLastBatch() throws Exception {
+        // a server that does not page sends all the farmers in one page
+        FarmersDownloader.Page page = download(dataset.farmers);
+
+        assertNull(page.getNextToken());
+        assertEquals(2, store.batches);
+        assertEquals(1, store.pages);
+        assertEquals(dataset.farmers, store.farmers.size());
+    }
+
+    private FarmersDownloader.Page download(final int pageSize) throws Exception {
+        RequestExecutor requestExecutor = new RequestExecutor(new CancellationToken(), BASE_BACKOFF_MILLIS,
+                MAX_BACKOFF_MILLIS);
+        FarmersDownloader downloader = new FarmersDownloader(new CancellationToken(), store);
+        return downloader.download(requestExecutor, server.getUrl(), new FarmersDownloader.Exchange() {
+            @Override
+            public InputStream requestPage(String continuationToken, int networkTimeout) throws IOException {
+                JsonObject request = new JsonObject();
+                request.addProperty("request", SettingsConstants.REQUEST_DOWNLOAD_FARMERS);
+                request.addProperty("farmersVersion", "2010-04-04 18:49:24");
+                request.addProperty("pageSize", pageSize);
+                request.addProperty("continuationToken", continuationToken);
+
+                HttpResponse response = HttpHelpers.postJsonFormRequest(server.getUrl(),
+                        SettingsConstants.REQUEST_DOWNLOAD_FARMERS, request, new Gson(), networkTimeout, null, false);
+                RequestExecutor.checkStatus(response);
+                return HttpHelpers.getInputStream(response);
+            }
+        });
+    }
+}
@@ -0,0 +1,135 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local http server that answers its requests with scripted faults, in order, and with an OK
+ * response once the script is done. Each server listens on its own port, so it gets its own
+ * circuit breaker in {@link RequestExecutor}.
+ */
+class FaultInjectingServer {
+    static final String OK_CONTENT = "ok";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Queue<Fault> faults = new LinkedList<Fault>();
+    private final AtomicInteger requests = new AtomicInteger(0);
+
+    FaultInjectingServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * answers the next request with the given status.
+     *
+     * @param retryAfterSeconds the value of the Retry-After header, or -1 for none.
+     */
+    FaultInjectingServer status(int statusCode, int retryAfterSeconds) {
+        return add(new Fault(statusCode, retryAfterSeconds, false, 0));
+    }
+
+    /**
+     * closes the connection of the next request without answering it.
+     */
+    FaultInjectingServer drop() {
+        return add(new Fault(0, -1, true, 0));
+    }
+
+    /**
+     * answers the next request with OK after the given delay.
+     */
+    FaultInjectingServer delay(long millis) {
+        return add(new Fault(200, -1, false, millis));
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private synchronized FaultInjectingServer add(Fault fault) {
+        faults.add(fault);
+        return this;
+    }
+
+    private synchronized Fault nextFault() {
+        Fault fault = faults.poll();
+        return fault == null ? new Fault(200, -1, false, 0) : fault;
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        InputStream inputStream = exchange.getRequestBody();
+        byte[] buffer = new byte[4096];
+        while (inputStream.read(buffer) != -1) {
+            // the request is read to the end before it is answered, like a real server does
+        }
+
+        Fault fault = nextFault();
+        if (fault.drop) {
+            return;
+        }
+        if (fault.delayMillis > 0) {
+            try {
+                Thread.sleep(fault.delayMillis);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+        if (fault.retryAfterSeconds >= 0) {
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(fault.retryAfterSeconds));
+        }
+
+        byte[] content = OK_CONTENT.getBytes("UTF-8");
+        exchange.sendResponseHeaders(fault.statusCode, content.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(content);
+        outputStream.close();
+    }
+
+    private static class Fault {
+        final int statusCode;
+        final int retryAfterSeconds;
+        final boolean drop;
+        final long delayMillis;
+
+        Fault(int statusCode, int retryAfterSeconds, boolean drop, long delayMillis) {
+            this.statusCode = statusCode;
+            this.retryAfterSeconds = retryAfterSeconds;
+            this.drop = drop;
+            this.delayMillis = delayMillis;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.utils.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams images responses of a {@link SyntheticDataset} through an {@link ImageResponseParser} and
+ * checks the decoded files against the images that were encoded.
+ */
+public class ImageResponseParserTest {
+    private SyntheticDataset dataset;
+    private File directory;
+    private final Map<String, byte[]> images = new LinkedHashMap<String, byte[]>();
+    private final List<String> digests = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        dataset = new SyntheticDataset();
+        dataset.images = 5;
+        dataset.imageSize = 10001;
+        directory = File.createTempFile("images", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void decodesTheImagesOfAResponseReadAByteAtATime() throws IOException {
+        List<String> imageIds = dataset.getImageIds();
+        byte[] response = dataset.getImages(imageIds);
+
+        assertTrue(parse(new TrickleInputStream(response)));
+
+        assertEquals(imageIds, new ArrayList<String>(images.keySet()));
+        for (int index = 0; index < imageIds.size(); index++) {
+            byte[] data = dataset.getImageData(imageIds.get(index));
+            assertArrayEquals(data, images.get(imageIds.get(index)));
+            assertEquals(DigestUtils.toHexString(DigestUtils.newSha1Digest().digest(data)), digests.get(index));
+        }
+        // the listener took every file, nothing is left behind
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void decodesEscapedImageDataAndAnImageIdThatFollowsIt() throws IOException {
+        // "Man is" with a line break and escaped characters, including the padding
+        String response = "{\"resultCode\":\"0\",\"imageResults\":[{\"imageData\":\"TWFu\\nIGl\\u007a\\u003d\","
+                + "\"imageId\":\"img0\"}]}";
+
+        assertTrue(parse(new ByteArrayInputStream(response.getBytes("UTF-8"))));
+
+        assertArrayEquals("Man is".getBytes("US-ASCII"), images.get("img0"));
+    }
+
+    @Test
+    public void stopsAtAFailedResultCode() throws IOException {
+        String response = "{\"resultCode\":\"1\",\"imageResults\":[{\"imageId\":\"img0\",\"imageData\":\"TWFu\"}]}";
+
+        assertFalse(parse(new ByteArrayInputStream(response.getBytes("UTF-8"))));
+
+        assertTrue(images.isEmpty());
+    }
+
+    @Test
+    public void rejectsImageDataOutsideTheBase64AlphabetAndDeletesItsFile() throws IOException {
+        // U+0141 would be taken for an 'A' if only its low byte was decoded
+        String response = "{\"resultCode\":\"0\",\"imageResults\":[{\"imageId\":\"img0\",\"imageData\":\"TW\u0141u\"}]}";
+
+        try {
+            parse(new ByteArrayInputStream(response.getBytes("UTF-8")));
+            fail("the image data should have been rejected");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        assertTrue(images.isEmpty());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private boolean parse(InputStream inputStream) throws IOException {
+        return new ImageResponseParser(directory).parse(inputStream, new ImageResponseParser.ImageListener() {
+            @Override
+            public void imageParsed(String imageId, File file, String digest) throws IOException {
+                images.put(imageId, read(file));
+                digests.add(digest);
+                assertTrue(file.delete());
+            }
+        });
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * An input stream that returns at most one byte per read, like a slow connection.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+
+        TrickleInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(byte[] bytes, int offset, int length) {
+            return super.read(bytes, offset, Math.min(length, 1));
+        }
+    }
+}
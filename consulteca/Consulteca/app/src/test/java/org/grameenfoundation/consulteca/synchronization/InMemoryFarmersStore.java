@@ -0,0 +1,51 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.model.Farmer;
+import org.grameenfoundation.consulteca.utils.PerformanceCounters;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stands in for the farmers table and the continuation token checkpoint of a device, with the
+ * same commit rules as the {@link FarmersDownloader.Listener} of {@link SynchronizationManager}.
+ */
+class InMemoryFarmersStore implements FarmersDownloader.Listener {
+    final Map<String, Farmer> farmers = new HashMap<String, Farmer>();
+    String continuationToken;
+    int batches = 0;
+    int pages = 0;
+
+    @Override
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    @Override
+    public void saveFarmers(List<Farmer> batch) {
+        save(batch);
+        batches++;
+    }
+
+    @Override
+    public void commitPage(List<Farmer> batch, List<String> deletedFarmerIds, String nextToken) {
+        save(batch);
+        for (String farmerId : deletedFarmerIds) {
+            farmers.remove(farmerId);
+        }
+        continuationToken = nextToken;
+        pages++;
+    }
+
+    @Override
+    public void progress(int step, int max) {
+    }
+
+    private void save(List<Farmer> batch) {
+        for (Farmer farmer : batch) {
+            farmers.put(farmer.getId(), farmer);
+        }
+        PerformanceCounters.addRowsWritten(batch.size());
+    }
+}
@@ -0,0 +1,209 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.grameenfoundation.consulteca.settings.SettingsConstants;
+import org.grameenfoundation.consulteca.utils.BinaryFeedFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An embedded HTTP server that stands in for the synchronization server. It answers the form posts
+ * of the keywords, farmers and images requests with the feeds of a {@link SyntheticDataset}, in
+ * JSON or in the binary format as requested, compressed with gzip if the client accepts it.
+ */
+class LocalSyncServer {
+    private static final int DEFAULT_FARMERS_PAGE_SIZE = 1000;
+
+    private final SyntheticDataset dataset;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final Map<Boolean, byte[]> keywordsFeeds = new HashMap<Boolean, byte[]>();
+    private final Map<String, byte[]> farmersPages = new HashMap<String, byte[]>();
+    private final List<String> farmersTokens = Collections.synchronizedList(new ArrayList<String>());
+    private volatile String brokenFarmersToken;
+
+    /**
+     * @param dataset
+     * @param farmersPageSize the page size of the farmers pages that are generated up front, other
+     *                        page sizes are generated when they are requested.
+     * @throws IOException
+     */
+    LocalSyncServer(SyntheticDataset dataset, int farmersPageSize) throws IOException {
+        this.dataset = dataset;
+        // generated up front, so that the generation is not measured with the downloads
+        for (boolean binary : new boolean[]{false, true}) {
+            keywordsFeeds.put(binary, dataset.getKeywordsFeed(binary));
+            for (int offset = 0; offset < dataset.farmers; offset += farmersPageSize) {
+                farmersPages.put(getPageKey(offset, farmersPageSize, binary),
+                        dataset.getFarmersPage(offset, farmersPageSize, binary));
+            }
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * gets the number of bytes sent in response bodies, after compression.
+     *
+     * @return
+     */
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * gets the continuation tokens of the farmers pages that were requested, in the order of the
+     * requests, null for the first page.
+     *
+     * @return
+     */
+    List<String> getFarmersTokens() {
+        return new ArrayList<String>(farmersTokens);
+    }
+
+    /**
+     * breaks off the connection of the requests for the farmers page with the given continuation
+     * token after all its farmers have been sent, but before the end of the page.
+     *
+     * @param continuationToken the token of the page, or null to send all the pages in full.
+     */
+    void breakFarmersPage(String continuationToken) {
+        brokenFarmersToken = continuationToken;
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Map<String, String> form = readForm(exchange.getRequestBody());
+        String method = form.get(SettingsConstants.REQUEST_METHODNAME);
+        JsonObject data = form.containsKey(SettingsConstants.REQUEST_DATA)
+                ? new Gson().fromJson(form.get(SettingsConstants.REQUEST_DATA), JsonObject.class) : new JsonObject();
+        boolean binary = BinaryFeedFormat.NAME.equals(getString(data, "responseFormat"));
+
+        byte[] body;
+        boolean broken = false;
+        if (SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS.equals(method)) {
+            body = keywordsFeeds.get(binary);
+        } else if (SettingsConstants.REQUEST_DOWNLOAD_FARMERS.equals(method)) {
+            String token = getString(data, "continuationToken");
+            farmersTokens.add(token);
+            broken = token != null && token.equals(brokenFarmersToken);
+            int pageSize = data.has("pageSize") && data.get("pageSize").getAsInt() > 0
+                    ? data.get("pageSize").getAsInt() : DEFAULT_FARMERS_PAGE_SIZE;
+            int offset = token == null ? 0 : Integer.parseInt(token);
+            body = farmersPages.get(getPageKey(offset, pageSize, binary));
+            if (body == null) {
+                body = dataset.getFarmersPage(offset, pageSize, binary);
+            }
+        } else if (SettingsConstants.REQUEST_DOWNLOAD_IMAGES.equals(method)) {
+            List<String> imageIds = new ArrayList<String>();
+            if (data.has("imageIds")) {
+                for (JsonElement imageId : data.getAsJsonArray("imageIds")) {
+                    imageIds.add(imageId.getAsString());
+                }
+            }
+            body = dataset.getImages(imageIds);
+        } else {
+            body = "{\"resultCode\":\"1\",\"resultMessage\":\"Unknown method\"}".getBytes("UTF-8");
+        }
+
+        if (broken) {
+            // the end of the page, after the farmers, is not sent and the connection is closed
+            exchange.getResponseHeaders().set("Content-Type", binary ? "application/octet-stream" : "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream outputStream = exchange.getResponseBody();
+            outputStream.write(body, 0, body.length - 4);
+            outputStream.flush();
+            bytesSent.addAndGet(body.length - 4);
+            return;
+        }
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed);
+            gzipOutputStream.write(body);
+            gzipOutputStream.close();
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", binary ? "application/octet-stream" : "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(body);
+        outputStream.close();
+        bytesSent.addAndGet(body.length);
+    }
+
+    private static String getPageKey(int offset, int pageSize, boolean binary) {
+        return offset + "/" + pageSize + "/" + binary;
+    }
+
+    private static String getString(JsonObject data, String name) {
+        return data.has(name) && !data.get(name).isJsonNull() ? data.get(name).getAsString() : null;
+    }
+
+    private static Map<String, String> readForm(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+
+        Map<String, String> form = new HashMap<String, String>();
+        for (String pair : outputStream.toString("UTF-8").split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return form;
+    }
+}
@@ -0,0 +1,173 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.Gson;
+import org.grameenfoundation.consulteca.model.SearchMenu;
+import org.grameenfoundation.consulteca.model.SearchMenuItem;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reconciles the menus of a device with those of a {@link MenuTreeServer} and measures the bytes
+ * exchanged, as JSON, against those of a full download.
+ */
+public class MenuTreeReconcilerTest {
+    private final Gson gson = new Gson();
+    private MenuTreeServer server;
+    private MenuTreeServer device;
+    private long bytesExchanged;
+
+    @Before
+    public void setUp() {
+        server = new MenuTreeServer();
+        device = new MenuTreeServer();
+        Random random = new Random(42);
+        for (int menu = 0; menu < 4; menu++) {
+            SearchMenu searchMenu = new SearchMenu();
+            searchMenu.setId("menu" + menu);
+            searchMenu.setLabel("Menu " + menu);
+            server.save(searchMenu);
+            device.save(searchMenu);
+            addItems(searchMenu.getId(), "", "menu" + menu + ".", 3, random);
+        }
+    }
+
+    private void addItems(String menuId, String parentId, String prefix, int depth, Random random) {
+        for (int index = 0; index < (depth == 1 ? 5 : 10); index++) {
+            SearchMenuItem searchMenuItem = createItem(prefix + index, menuId, parentId, random);
+            server.save(searchMenuItem);
+            device.save(copy(searchMenuItem));
+            if (depth > 1) {
+                addItems(menuId, searchMenuItem.getId(), prefix + index + ".", depth - 1, random);
+            }
+        }
+    }
+
+    private static SearchMenuItem createItem(String id, String menuId, String parentId, Random random) {
+        SearchMenuItem searchMenuItem = new SearchMenuItem();
+        searchMenuItem.setId(id);
+        searchMenuItem.setMenuId(menuId);
+        searchMenuItem.setParentId(parentId);
+        searchMenuItem.setLabel("Item " + id);
+        searchMenuItem.setPosition(random.nextInt(100));
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 400) {
+            content.append(Long.toString(random.nextLong(), 36)).append(' ');
+        }
+        searchMenuItem.setContent(content.toString());
+        return searchMenuItem;
+    }
+
+    private static SearchMenuItem copy(SearchMenuItem searchMenuItem) {
+        SearchMenuItem copy = new SearchMenuItem();
+        copy.setId(searchMenuItem.getId());
+        copy.setMenuId(searchMenuItem.getMenuId());
+        copy.setParentId(searchMenuItem.getParentId());
+        copy.setLabel(searchMenuItem.getLabel());
+        copy.setPosition(searchMenuItem.getPosition());
+        copy.setContent(searchMenuItem.getContent());
+        copy.setAttachmentId(searchMenuItem.getAttachmentId());
+        return copy;
+    }
+
+    private MenuTreeReconciler reconcile() throws IOException {
+        MenuTreeReconciler reconciler = new MenuTreeReconciler(device.getMenuTree(), new MenuTreeReconciler.Exchange() {
+            @Override
+            public MenuTreeReconciler.Response send(List<MenuTreeReconciler.NodeHash> nodes) {
+                String request = gson.toJson(nodes);
+                String response = gson.toJson(server.handle(nodes));
+                bytesExchanged += request.length() + response.length();
+                return gson.fromJson(response, MenuTreeReconciler.Response.class);
+            }
+        });
+        assertTrue(reconciler.reconcile());
+
+        for (SearchMenu searchMenu : reconciler.getChangedMenus()) {
+            device.save(searchMenu);
+        }
+        for (SearchMenuItem searchMenuItem : reconciler.getChangedMenuItems()) {
+            device.save(searchMenuItem);
+        }
+        for (String id : reconciler.getDeletedMenuIds()) {
+            device.delete(id);
+        }
+        for (String id : reconciler.getDeletedMenuItemIds()) {
+            device.delete(id);
+        }
+        return reconciler;
+    }
+
+    @Test
+    public void unchangedMenusTakeOneRound() throws Exception {
+        MenuTreeReconciler reconciler = reconcile();
+
+        assertEquals(1, reconciler.getRounds());
+        assertTrue(reconciler.getChangedMenuItems().isEmpty());
+        assertTrue(reconciler.getDeletedMenuItemIds().isEmpty());
+    }
+
+    @Test
+    public void onePercentChangeSendsOnlyChangedBranches() throws Exception {
+        List<String> ids = new ArrayList<String>(server.getSearchMenuItems().keySet());
+        int changes = ids.size() / 100;
+        Random random = new Random(7);
+        for (int change = 0; change < changes; change++) {
+            String id = ids.get(random.nextInt(ids.size()));
+            SearchMenuItem searchMenuItem = server.getSearchMenuItems().get(id);
+            if (searchMenuItem == null) {
+                continue;
+            }
+
+            if (change % 3 == 0) {
+                searchMenuItem = createItem(id, searchMenuItem.getMenuId(), searchMenuItem.getParentId(), random);
+                server.save(searchMenuItem);
+            } else if (change % 3 == 1) {
+                server.save(createItem("new" + change, searchMenuItem.getMenuId(), id, random));
+            } else if (server.getMenuTree().getChildren(id).isEmpty()) {
+                server.delete(id);
+            }
+        }
+
+        reconcile();
+
+        assertEquals(server.getMenuTree().getHash(MenuTree.ROOT_ID), device.getMenuTree().getHash(MenuTree.ROOT_ID));
+        long fullDownload = gson.toJson(server.getAll()).length();
+        assertTrue(ids.size() + " menu items, " + changes + " changes: " + bytesExchanged
+                + " bytes reconciled against " + fullDownload + " bytes downloaded in full",
+                bytesExchanged * 10 < fullDownload);
+    }
+
+    @Test
+    public void movedAndRemovedBranchesAreApplied() throws Exception {
+        // move a branch to another menu, and remove a menu
+        SearchMenuItem moved = server.getSearchMenuItems().get("menu0.1");
+        moved = createItem(moved.getId(), "menu1", "menu1.2.3", new Random(1));
+        server.save(moved);
+        for (String id : new ArrayList<String>(server.getSearchMenuItems().keySet())) {
+            if (id.startsWith("menu0.1.")) {
+                SearchMenuItem child = server.getSearchMenuItems().get(id);
+                child.setMenuId("menu1");
+                server.save(child);
+            }
+        }
+        server.delete("menu3");
+        for (String id : new ArrayList<String>(server.getSearchMenuItems().keySet())) {
+            if (id.startsWith("menu3.")) {
+                server.delete(id);
+            }
+        }
+
+        reconcile();
+
+        assertEquals(server.getMenuTree().getHash(MenuTree.ROOT_ID), device.getMenuTree().getHash(MenuTree.ROOT_ID));
+        assertNotNull(device.getSearchMenuItems().get("menu0.1.2"));
+        assertNull(device.getSearchMenus().get("menu3"));
+        assertNull(device.getSearchMenuItems().get("menu3.0"));
+    }
+}
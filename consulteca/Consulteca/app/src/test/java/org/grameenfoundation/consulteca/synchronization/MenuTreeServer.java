@@ -0,0 +1,151 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.model.SearchMenu;
+import org.grameenfoundation.consulteca.model.SearchMenuItem;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A reference implementation of the server side of the menu reconciliation, see
+ * {@link MenuTreeReconciler}, used as a local stand-in for the server in tests.
+ */
+class MenuTreeServer {
+    private final Map<String, SearchMenu> searchMenus = new LinkedHashMap<String, SearchMenu>();
+    private final Map<String, SearchMenuItem> searchMenuItems = new LinkedHashMap<String, SearchMenuItem>();
+    private MenuTree menuTree = null;
+    private String version = "2010-04-04 00:00:00";
+
+    void save(SearchMenu searchMenu) {
+        searchMenus.put(searchMenu.getId(), searchMenu);
+        menuTree = null;
+    }
+
+    void save(SearchMenuItem searchMenuItem) {
+        searchMenuItems.put(searchMenuItem.getId(), searchMenuItem);
+        menuTree = null;
+    }
+
+    void delete(String id) {
+        searchMenus.remove(id);
+        searchMenuItems.remove(id);
+        menuTree = null;
+    }
+
+    void setVersion(String version) {
+        this.version = version;
+    }
+
+    Map<String, SearchMenu> getSearchMenus() {
+        return searchMenus;
+    }
+
+    Map<String, SearchMenuItem> getSearchMenuItems() {
+        return searchMenuItems;
+    }
+
+    MenuTree getMenuTree() {
+        if (menuTree == null) {
+            menuTree = new MenuTree();
+            for (SearchMenu searchMenu : searchMenus.values()) {
+                menuTree.addMenu(searchMenu);
+            }
+            for (SearchMenuItem searchMenuItem : searchMenuItems.values()) {
+                menuTree.addMenuItem(searchMenuItem);
+            }
+        }
+        return menuTree;
+    }
+
+    /**
+     * answers a round of the reconciliation.
+     *
+     * @param nodes the hashes sent by the client.
+     * @return
+     */
+    MenuTreeReconciler.Response handle(List<MenuTreeReconciler.NodeHash> nodes) {
+        MenuTree tree = getMenuTree();
+        MenuTreeReconciler.Response response = new MenuTreeReconciler.Response();
+        response.resultCode = MenuTreeReconciler.RESULT_CODE_SUCCESS;
+        response.version = version;
+        response.nodes = new ArrayList<MenuTreeReconciler.Node>();
+        response.menus = new ArrayList<MenuTreeReconciler.MenuRecord>();
+        response.menuItems = new ArrayList<MenuTreeReconciler.MenuItemRecord>();
+
+        for (MenuTreeReconciler.NodeHash requested : nodes) {
+            String hash = tree.getHash(requested.id);
+            if (hash == null || hash.equals(requested.hash)) {
+                continue;
+            }
+
+            // the client does not have the node, it gets the whole subtree
+            if (requested.hash == null) {
+                List<String> ids = new ArrayList<String>();
+                tree.collectSubtree(requested.id, ids);
+                for (String id : ids) {
+                    addRecord(response, id);
+                }
+                continue;
+            }
+
+            if (!tree.getRowHash(requested.id).equals(requested.rowHash)) {
+                addRecord(response, requested.id);
+            }
+
+            MenuTreeReconciler.Node node = new MenuTreeReconciler.Node();
+            node.id = requested.id;
+            node.children = new ArrayList<MenuTreeReconciler.NodeHash>();
+            for (String childId : tree.getChildren(requested.id)) {
+                node.children.add(new MenuTreeReconciler.NodeHash(childId, tree.getHash(childId), null));
+            }
+            response.nodes.add(node);
+        }
+        return response;
+    }
+
+    /**
+     * gets the response of a full download, with every menu and menu item.
+     *
+     * @return
+     */
+    MenuTreeReconciler.Response getAll() {
+        MenuTreeReconciler.Response response = new MenuTreeReconciler.Response();
+        response.resultCode = MenuTreeReconciler.RESULT_CODE_SUCCESS;
+        response.version = version;
+        response.menus = new ArrayList<MenuTreeReconciler.MenuRecord>();
+        response.menuItems = new ArrayList<MenuTreeReconciler.MenuItemRecord>();
+        for (String id : searchMenus.keySet()) {
+            addRecord(response, id);
+        }
+        for (String id : searchMenuItems.keySet()) {
+            addRecord(response, id);
+        }
+        return response;
+    }
+
+    private void addRecord(MenuTreeReconciler.Response response, String id) {
+        SearchMenu searchMenu = searchMenus.get(id);
+        if (searchMenu != null) {
+            MenuTreeReconciler.MenuRecord record = new MenuTreeReconciler.MenuRecord();
+            record.id = searchMenu.getId();
+            record.label = searchMenu.getLabel();
+            response.menus.add(record);
+            return;
+        }
+
+        SearchMenuItem searchMenuItem = searchMenuItems.get(id);
+        if (searchMenuItem != null) {
+            MenuTreeReconciler.MenuItemRecord record = new MenuTreeReconciler.MenuItemRecord();
+            record.id = searchMenuItem.getId();
+            record.label = searchMenuItem.getLabel();
+            record.position = searchMenuItem.getPosition();
+            record.content = searchMenuItem.getContent();
+            record.menuId = searchMenuItem.getMenuId();
+            record.parentId = searchMenuItem.getParentId();
+            record.attachmentId = searchMenuItem.getAttachmentId();
+            response.menuItems.add(record);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.message.BasicNameValuePair;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+import org.grameenfoundation.consulteca.utils.PerformanceCounters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs requests through a {@link RequestExecutor} against a {@link FaultInjectingServer}, with
+ * backoffs short enough for a unit test.
+ */
+public class RequestExecutorTest {
+    private static final long BASE_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 100;
+
+    private FaultInjectingServer server;
+    private CancellationToken cancellationToken;
+    private RequestExecutor requestExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FaultInjectingServer();
+        cancellationToken = new CancellationToken();
+        requestExecutor = new RequestExecutor(cancellationToken, BASE_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void retriesTransientFailuresUntilTheySucceed() throws Exception {
+        server.status(503, -1).drop().status(429, 0);
+        long retries = PerformanceCounters.getRequestRetries();
+
+        String content = post(new RequestExecutor.Policy(5000, 4, true));
+
+        assertEquals(FaultInjectingServer.OK_CONTENT, content);
+        assertEquals(4, server.getRequests());
+        assertEquals(3, PerformanceCounters.getRequestRetries() - retries);
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() throws Exception {
+        server.status(500, -1).status(502, -1).status(503, -1);
+
+        try {
+            post(new RequestExecutor.Policy(5000, 3, true));
+            fail("the request should have failed");
+        } catch (HttpStatusException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+        assertEquals(3, server.getRequests());
+    }
+
+    @Test
+    public void doesNotRetryAClientError() throws Exception {
+        server.status(400, -1);
+
+        try {
+            post(new RequestExecutor.Policy(5000, 3, true));
+            fail("the request should have failed");
+        } catch (HttpStatusException ex) {
+            assertEquals(400, ex.getStatusCode());
+        }
+        assertEquals(1, server.getRequests());
+        assertEquals(CircuitBreaker.State.CLOSED, RequestExecutor.getCircuitBreaker(server.getUrl()).getState());
+    }
+
+    @Test
+    public void doesNotRetryAContentThatCannotBeRead() throws Exception {
+        final String url = server.getUrl();
+        final int[] attempts = new int[1];
+        long retries = PerformanceCounters.getRequestRetries();
+
+        for (int index = 0; index < 10; index++) {
+            try {
+                requestExecutor.execute(new RequestExecutor.Policy(5000, 3, true), url,
+                        new RequestExecutor.Call<String>() {
+                            @Override
+                            public String call(int networkTimeout) throws IOException {
+                                attempts[0]++;
+                                throw new IOException("Malformed varint in the binary feed");
+                            }
+                        });
+                fail("the request should have failed");
+            } catch (IOException ex) {
+                assertEquals("Malformed varint in the binary feed", ex.getMessage());
+            }
+        }
+
+        // a healthy server is not suspended for the content it sent
+        assertEquals(10, attempts[0]);
+        assertEquals(0, PerformanceCounters.getRequestRetries() - retries);
+        assertEquals(CircuitBreaker.State.CLOSED, RequestExecutor.getCircuitBreaker(url).getState());
+    }
+
+    @Test
+    public void retriesOnlyTheFailuresOfTheConnection() {
+        assertTrue(RequestExecutor.isTransient(new ConnectException()));
+        assertTrue(RequestExecutor.isTransient(new SocketTimeoutException()));
+        assertTrue(RequestExecutor.isTransient(new SocketException("Connection reset")));
+        assertTrue(RequestExecutor.isTransient(new NoHttpResponseException("The target server failed to respond")));
+        assertTrue(RequestExecutor.isTransient(new EOFException("Unexpected end of images response")));
+        assertTrue(RequestExecutor.isTransient(new HttpStatusException(503, -1)));
+
+        assertFalse(RequestExecutor.isTransient(new HttpStatusException(404, -1)));
+        assertFalse(RequestExecutor.isTransient(new IOException("Not a binary feed")));
+        assertFalse(RequestExecutor.isTransient(new IOException("Invalid Base64 character: 0x2a")));
+        assertFalse(RequestExecutor.isTransient(new FileNotFoundException("1.jpg (No space left on device)")));
+        assertFalse(RequestExecutor.isTransient(new SSLException("Not trusted server certificate")));
+        assertFalse(RequestExecutor.isTransient(new CircuitOpenException("127.0.0.1", 1000)));
+    }
+
+    @Test
+    public void timesOutAtTheTimeoutOfTheEndpoint() throws Exception {
+        server.delay(3000);
+        long timeouts = PerformanceCounters.getRequestTimeouts();
+
+        long start = System.currentTimeMillis();
+        try {
+            post(new RequestExecutor.Policy(300, 1, true));
+            fail("the request should have timed out");
+        } catch (SocketTimeoutException ex) {
+            // expected
+        }
+        assertTrue("took " + (System.currentTimeMillis() - start) + " ms",
+                System.currentTimeMillis() - start < 2000);
+        assertEquals(1, PerformanceCounters.getRequestTimeouts() - timeouts);
+    }
+
+    @Test
+    public void doesNotResendARequestThatIsNotIdempotent() throws Exception {
+        server.status(503, -1);
+
+        try {
+            post(new RequestExecutor.Policy(5000, 3, false));
+            fail("the request should have failed");
+        } catch (HttpStatusException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void resendsARequestThatIsNotIdempotentWhenItWasNotSent() throws Exception {
+        server.stop();
+        long retries = PerformanceCounters.getRequestRetries();
+
+        try {
+            post(new RequestExecutor.Policy(5000, 2, false));
+            fail("the request should have failed");
+        } catch (ConnectException ex) {
+            // expected, nothing is listening any more
+        }
+        assertEquals(1, PerformanceCounters.getRequestRetries() - retries);
+    }
+
+    @Test
+    public void rejectsRequestsWhileTheCircuitIsOpen() throws Exception {
+        for (int index = 0; index < 5; index++) {
+            server.status(503, -1);
+        }
+        long rejected = PerformanceCounters.getRequestsRejected();
+
+        try {
+            post(new RequestExecutor.Policy(5000, 5, true));
+            fail("the request should have failed");
+        } catch (HttpStatusException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, RequestExecutor.getCircuitBreaker(server.getUrl()).getState());
+
+        try {
+            post(new RequestExecutor.Policy(5000, 5, true));
+            fail("the request should have been rejected");
+        } catch (CircuitOpenException ex) {
+            // expected
+        }
+        assertEquals(5, server.getRequests());
+        assertEquals(1, PerformanceCounters.getRequestsRejected() - rejected);
+    }
+
+    @Test
+    public void stopsBackingOffWhenCancelled() throws Exception {
+        server.status(503, 60);
+        requestExecutor = new RequestExecutor(cancellationToken, BASE_BACKOFF_MILLIS, 60 * 1000);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                cancellationToken.cancel();
+            }
+        }).start();
+
+        long start = System.currentTimeMillis();
+        try {
+            post(new RequestExecutor.Policy(5000, 3, true));
+            fail("the request should have been cancelled");
+        } catch (SynchronizationCancelledException ex) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void backsOffExponentiallyOrAsTheServerAsks() {
+        RequestExecutor executor = new RequestExecutor(cancellationToken, 100, 1000);
+        for (int index = 0; index < 20; index++) {
+            long first = executor.getBackoff(1, new IOException());
+            assertTrue(first >= 50 && first <= 100);
+            long third = executor.getBackoff(3, new IOException());
+            assertTrue(third >= 200 && third <= 400);
+            long last = executor.getBackoff(10, new IOException());
+            assertTrue(last >= 500 && last <= 1000);
+        }
+        assertEquals(500, executor.getBackoff(1, new HttpStatusException(503, 500)));
+        assertEquals(1000, executor.getBackoff(1, new HttpStatusException(503, 5000)));
+    }
+
+    @Test
+    public void closesTheCircuitAfterASuccessfulTrial() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 1000, 4000);
+        assertFalse(circuitBreaker.recordFailure(0));
+        assertTrue(circuitBreaker.recordFailure(0));
+        assertFalse(circuitBreaker.allowRequest(500));
+        assertEquals(500, circuitBreaker.getRemainingOpenMillis(500));
+
+        // only one trial request goes through once the open time is over
+        assertTrue(circuitBreaker.allowRequest(1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest(1000));
+
+        circuitBreaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest(1000));
+    }
+
+    @Test
+    public void staysOpenLongerAfterAFailedTrial() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1000, 3000);
+        circuitBreaker.recordFailure(0);
+
+        assertTrue(circuitBreaker.allowRequest(1000));
+        assertTrue(circuitBreaker.recordFailure(1000));
+        assertFalse(circuitBreaker.allowRequest(2500));
+        assertTrue(circuitBreaker.allowRequest(3000));
+
+        // the open time is capped
+        circuitBreaker.recordFailure(3000);
+        assertTrue(circuitBreaker.allowRequest(6000));
+        circuitBreaker.recordFailure(6000);
+        assertTrue(circuitBreaker.allowRequest(9000));
+
+        // a trial that did not reach the server lets the next one through
+        circuitBreaker.recordAbandoned();
+        assertTrue(circuitBreaker.allowRequest(9000));
+    }
+
+    private String post(RequestExecutor.Policy policy) throws Exception {
+        final String url = server.getUrl();
+        final List<NameValuePair> params = new ArrayList<NameValuePair>(1);
+        params.add(new BasicNameValuePair("method", "test"));
+        return requestExecutor.execute(policy, url, new RequestExecutor.Call<String>() {
+            @Override
+            public String call(int networkTimeout) throws IOException {
+                HttpResponse response = HttpHelpers.postFormRequest(url, params, networkTimeout, null);
+                RequestExecutor.checkStatus(response);
+                return HttpHelpers.getUncompressedResponseString(response);
+            }
+        });
+    }
+}
@@ -0,0 +1,269 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.model.Farmer;
+import org.grameenfoundation.consulteca.model.SearchMenu;
+import org.grameenfoundation.consulteca.model.SearchMenuItem;
+import org.grameenfoundation.consulteca.utils.BinaryFeedFormat;
+import org.grameenfoundation.consulteca.utils.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds bundles from the feeds of a {@link SyntheticDataset} with the {@link SyncBundleWriter} and
+ * reads them back with the {@link SyncBundleReader}.
+ */
+public class SyncBundleTest {
+    private static final int FARMERS_PAGE_SIZE = 1000;
+
+    private SyntheticDataset dataset;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        dataset = new SyntheticDataset();
+        directory = File.createTempFile("bundle", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void readsJsonFeeds() throws Exception {
+        readBundle(buildBundle(false));
+    }
+
+    @Test
+    public void readsBinaryFeeds() throws Exception {
+        readBundle(buildBundle(true));
+    }
+
+    @Test
+    public void storesEachImageContentOnce() throws Exception {
+        File bundleFile = new File(directory, "images.zip");
+        File image = new File(directory, "image.jpg");
+        write(image, dataset.getImageData(dataset.getImageIds().get(0)));
+
+        SyncBundleWriter writer = new SyncBundleWriter(new FileOutputStream(bundleFile));
+        String digest = writer.addImage("first", null, image);
+        assertEquals(digest, writer.addImage("second", null, image));
+        writer.finish("1", "1", "1");
+        writer.close();
+
+        SyncBundleReader bundle = new SyncBundleReader(bundleFile);
+        try {
+            assertEquals(digest, bundle.getImageDigest("first"));
+            assertEquals(digest, bundle.getImageDigest("second"));
+            assertNull(bundle.getImageDigest("third"));
+            assertNull(bundle.getKeywords());
+            assertTrue(bundle.getFarmersPages().isEmpty());
+        } finally {
+            bundle.close();
+        }
+
+        ZipFile zipFile = new ZipFile(bundleFile);
+        try {
+            // the manifest and one image
+            assertEquals(2, zipFile.size());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void rejectsAnImageThatDoesNotMatchItsDigest() throws Exception {
+        File bundleFile = new File(directory, "corrupt.zip");
+        String digest = "0123456789abcdef0123456789abcdef01234567";
+        ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(bundleFile));
+        zipOutputStream.putNextEntry(new ZipEntry(SyncBundle.MANIFEST_ENTRY));
+        zipOutputStream.write(("{\"format\":1,\"images\":{\"image\":\"" + digest + "\"}}").getBytes("UTF-8"));
+        zipOutputStream.putNextEntry(new ZipEntry(SyncBundle.IMAGES_ENTRY_PREFIX + digest));
+        zipOutputStream.write(new byte[]{1, 2, 3});
+        zipOutputStream.close();
+
+        SyncBundleReader bundle = new SyncBundleReader(bundleFile);
+        try {
+            File image = new File(directory, "image.jpg");
+            assertFalse(bundle.extractImage(bundle.getImageDigest("image"), image));
+            assertFalse(image.exists());
+        } finally {
+            bundle.close();
+        }
+    }
+
+    @Test
+    public void rejectsAFileThatIsNotABundle() throws Exception {
+        File zipFile = new File(directory, "other.zip");
+        ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zipFile));
+        zipOutputStream.putNextEntry(new ZipEntry("readme.txt"));
+        zipOutputStream.close();
+
+        try {
+            new SyncBundleReader(zipFile);
+            fail();
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private void readBundle(File bundleFile) throws Exception {
+        SyncBundleReader bundle = new SyncBundleReader(bundleFile);
+        try {
+            SyncBundle.Manifest manifest = bundle.getManifest();
+            assertEquals(SyntheticDataset.VERSION, manifest.keywordsVersion);
+            assertEquals(SyntheticDataset.VERSION, manifest.imagesVersion);
+            assertEquals(SyntheticDataset.VERSION, manifest.farmersVersion);
+
+            final List<SearchMenuItem> searchMenuItems = new ArrayList<SearchMenuItem>();
+            final List<String> imageIds = new ArrayList<String>();
+            InputStream keywords = bundle.getKeywords();
+            try {
+                BinaryFeedFormat.parse(keywords, new KeywordsFeedHandler(new CancellationToken(),
+                        new KeywordsListener() {
+                            @Override
+                            public void searchMenuItems(List<SearchMenuItem> items, boolean levelComplete) {
+                                searchMenuItems.addAll(items);
+                            }
+
+                            @Override
+                            public void image(String imageId, String digest) {
+                                imageIds.add(imageId);
+                            }
+                        }));
+            } finally {
+                keywords.close();
+            }
+            assertEquals(dataset.getMenuItemCount(), searchMenuItems.size());
+            assertEquals(dataset.getImageIds(), imageIds);
+
+            assertEquals(3, bundle.getFarmersPages().size());
+            final List<Farmer> farmers = new ArrayList<Farmer>();
+            for (String pageName : bundle.getFarmersPages()) {
+                InputStream page = bundle.getEntry(pageName);
+                try {
+                    int offset = farmers.size();
+                    FarmersFeedHandler handler = new FarmersFeedHandler(FARMERS_PAGE_SIZE, new CancellationToken(),
+                            new FarmersFeedHandler.Listener() {
+                                @Override
+                                public void farmers(List<Farmer> batch) {
+                                    farmers.addAll(batch);
+                                }
+
+                                @Override
+                                public void progress(int step, int max) {
+                                }
+                            });
+                    BinaryFeedFormat.parse(page, handler);
+                    farmers.addAll(handler.getFarmers());
+                    assertEquals("F" + offset, farmers.get(offset).getId());
+                } finally {
+                    page.close();
+                }
+            }
+            assertEquals(dataset.farmers, farmers.size());
+
+            for (String imageId : dataset.getImageIds()) {
+                String digest = bundle.getImageDigest(imageId.toUpperCase());
+                assertEquals(DigestUtils.toHexString(DigestUtils.newSha1Digest().digest(dataset.getImageData(imageId))),
+                        digest);
+                File image = new File(directory, imageId + ".extracted");
+                assertTrue(bundle.extractImage(digest, image));
+                assertEquals(dataset.imageSize, image.length());
+            }
+        } finally {
+            bundle.close();
+        }
+    }
+
+    private File buildBundle(boolean binary) throws Exception {
+        File bundleFile = new File(directory, SyncBundle.DEFAULT_FILE_NAME);
+        SyncBundleWriter writer = new SyncBundleWriter(new FileOutputStream(bundleFile));
+        try {
+            writer.startKeywords().write(dataset.getKeywordsFeed(binary));
+            for (int offset = 0; offset < dataset.farmers; offset += FARMERS_PAGE_SIZE) {
+                writer.startFarmersPage().write(dataset.getFarmersPage(offset, FARMERS_PAGE_SIZE, binary));
+            }
+            for (String imageId : dataset.getImageIds()) {
+                File image = new File(directory, imageId + ".jpg");
+                write(image, dataset.getImageData(imageId));
+                writer.addImage(imageId, null, image);
+            }
+            writer.finish(SyntheticDataset.VERSION, SyntheticDataset.VERSION, SyntheticDataset.VERSION);
+        } finally {
+            writer.close();
+        }
+        return bundleFile;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * ignores what the tests do not look at.
+     */
+    private static class KeywordsListener implements KeywordsFeedHandler.Listener {
+        @Override
+        public void searchMenu(SearchMenu searchMenu) {
+        }
+
+        @Override
+        public void searchMenusComplete() {
+        }
+
+        @Override
+        public void searchMenuItems(List<SearchMenuItem> searchMenuItems, boolean levelComplete) {
+        }
+
+        @Override
+        public void deletedSearchMenuItem(String id) {
+        }
+
+        @Override
+        public void deletedSearchMenuItemsComplete() {
+        }
+
+        @Override
+        public void image(String imageId, String digest) {
+        }
+
+        @Override
+        public void deletedImage(String imageId) {
+        }
+
+        @Override
+        public void progress(int step, int max) {
+        }
+    }
+}
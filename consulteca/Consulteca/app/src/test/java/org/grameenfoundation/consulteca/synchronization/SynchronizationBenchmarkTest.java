@@ -0,0 +1,379 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.apache.http.HttpResponse;
+import org.grameenfoundation.consulteca.model.SearchMenu;
+import org.grameenfoundation.consulteca.model.SearchMenuItem;
+import org.grameenfoundation.consulteca.model.SyncStageMetrics;
+import org.grameenfoundation.consulteca.settings.SettingsConstants;
+import org.grameenfoundation.consulteca.utils.BinaryFeedFormat;
+import org.grameenfoundation.consulteca.utils.HttpHelpers;
+import org.grameenfoundation.consulteca.utils.PerformanceCounters;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the keywords, farmers and images stages of a synchronization end to end against a
+ * {@link LocalSyncServer}. The requests go through the {@link RequestExecutor} and
+ * {@link HttpHelpers}, the farmers are downloaded by the {@link FarmersDownloader} and the feeds
+ * are parsed by the same handlers as on the device. The rows are stored in memory instead of
+ * SQLite, so the numbers measure the network, decoding and parsing path and not the database.
+ * <p/>
+ * It is a benchmark, not a check of the behaviour, so it only runs when the <code>benchmark</code>
+ * system property is set, e.g. <code>./gradlew testDebugUnitTest -Dbenchmark=true</code>. The
+ * shape of the dataset can be changed with system properties, see {@link SyntheticDataset}, and
+ * <code>-Dsync.benchmark.minRecordsPerSecond</code> fails the run when a stage is slower. The
+ * measurements of every run are written to the test output and to a file per test in the
+ * <code>benchmark.reportsDir</code> directory, <code>build/reports/benchmarks</code> by default.
+ */
+public class SynchronizationBenchmarkTest {
+    private static final long BASE_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    @Rule
+    public final TestName testName = new TestName();
+
+    private SyntheticDataset dataset;
+    private LocalSyncServer server;
+    private File imagesDirectory;
+    private File reportFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        dataset = SyntheticDataset.fromSystemProperties();
+        server = new LocalSyncServer(dataset, FarmersDownloader.PAGE_SIZE);
+        imagesDirectory = File.createTempFile("images", "");
+        assertTrue(imagesDirectory.delete() && imagesDirectory.mkdir());
+
+        File reportsDirectory = new File(System.getProperty("benchmark.reportsDir", "build/reports/benchmarks"));
+        assertTrue(reportsDirectory.isDirectory() || reportsDirectory.mkdirs());
+        reportFile = new File(reportsDirectory, getClass().getSimpleName() + "." + testName.getMethodName() + ".txt");
+        reportFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (server == null) {
+            return;
+        }
+
+        server.stop();
+        File[] files = imagesDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        imagesDirectory.delete();
+    }
+
+    @Test
+    public void synchronizesJsonFeeds() throws Exception {
+        assertFastEnough(new Run(false).synchronize());
+    }
+
+    @Test
+    public void synchronizesBinaryFeeds() throws Exception {
+        assertFastEnough(new Run(true).synchronize());
+    }
+
+    @Test
+    public void sendsFewerBytesWithBinaryFeeds() throws Exception {
+        Run json = new Run(false).synchronize();
+        Run binary = new Run(true).synchronize();
+
+        assertTrue(json.report() + binary.report(), binary.bytesSent < json.bytesSent);
+    }
+
+    private static void assertFastEnough(Run run) {
+        long minRecordsPerSecond = Long.getLong("sync.benchmark.minRecordsPerSecond", 0);
+        for (SyncStageMetrics metrics : run.telemetry.getStages()) {
+            assertTrue(run.report(), getRecordsPerSecond(metrics) >= minRecordsPerSecond);
+        }
+    }
+
+    /**
+     * writes the measurements of a run to the test output and adds them to the report file of the
+     * current test.
+     *
+     * @param report
+     * @throws IOException
+     */
+    private void writeReport(String report) throws IOException {
+        System.out.print(report);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile, true), "UTF-8");
+        try {
+            writer.write(report);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static double getRecordsPerSecond(SyncStageMetrics metrics) {
+        return metrics.getRowsWritten() / (Math.max(metrics.getDurationMillis(), 1) / 1000.0);
+    }
+
+    /**
+     * gets the number of bytes allocated by the current thread, or -1 if the virtual machine does
+     * not measure it.
+     *
+     * @return
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * One synchronization of the whole dataset, in JSON or in the binary format, into its own
+     * in memory tables.
+     */
+    private class Run {
+        private final boolean binary;
+        private final SynchronizationTelemetry telemetry = new SynchronizationTelemetry();
+        private final RequestExecutor requestExecutor = new RequestExecutor(new CancellationToken(),
+                BASE_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+        private final Map<String, Long> allocatedBytes = new HashMap<String, Long>();
+        private long bytesSent;
+        private long requests;
+
+        // the in memory stand-ins for the tables
+        private final Map<String, SearchMenu> searchMenus = new HashMap<String, SearchMenu>();
+        private final Map<String, SearchMenuItem> searchMenuItems = new HashMap<String, SearchMenuItem>();
+        private final Map<String, String> images = new LinkedHashMap<String, String>();
+        private final InMemoryFarmersStore farmers = new InMemoryFarmersStore();
+        private final Set<String> downloadedImages = new HashSet<String>();
+
+        Run(boolean binary) {
+            this.binary = binary;
+        }
+
+        Run synchronize() throws Exception {
+            long serverBytesSent = server.getBytesSent();
+            long serverRequests = server.getRequests();
+
+            startStage("keywords");
+            downloadKeywords();
+            endStage("keywords");
+
+            startStage("farmers");
+            downloadFarmers();
+            endStage("farmers");
+
+            startStage("images");
+            downloadImages(new ArrayList<String>(images.keySet()));
+            endStage("images");
+
+            bytesSent = server.getBytesSent() - serverBytesSent;
+            requests = server.getRequests() - serverRequests;
+            writeReport(report());
+
+            assertEquals(dataset.menus, searchMenus.size());
+            assertEquals(dataset.getMenuItemCount(), searchMenuItems.size());
+            assertEquals(dataset.farmers, farmers.farmers.size());
+            assertNull(farmers.continuationToken);
+            assertEquals(dataset.images, images.size());
+            assertEquals(dataset.images, downloadedImages.size());
+            return this;
+        }
+
+        private void downloadKeywords() throws Exception {
+            final JsonObject request = new JsonObject();
+            request.addProperty("request", SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS);
+            request.addProperty("keywordsVersion", "2010-04-04 18:49:24");
+            request.addProperty("progressive", true);
+            addResponseFormat(request);
+
+            final KeywordsFeedHandler handler = new KeywordsFeedHandler(new CancellationToken(),
+                    new KeywordsFeedHandler.Listener() {
+                        @Override
+                        public void searchMenu(SearchMenu searchMenu) {
+                            searchMenus.put(searchMenu.getId(), searchMenu);
+                            PerformanceCounters.addRowsWritten(1);
+                        }
+
+                        @Override
+                        public void searchMenusComplete() {
+                        }
+
+                        @Override
+                        public void searchMenuItems(List<SearchMenuItem> items, boolean levelComplete) {
+                            for (SearchMenuItem searchMenuItem : items) {
+                                searchMenuItems.put(searchMenuItem.getId(), searchMenuItem);
+                            }
+                            PerformanceCounters.addRowsWritten(items.size());
+                        }
+
+                        @Override
+                        public void deletedSearchMenuItem(String id) {
+                            searchMenuItems.remove(id);
+                        }
+
+                        @Override
+                        public void deletedSearchMenuItemsComplete() {
+                        }
+
+                        @Override
+                        public void image(String imageId, String digest) {
+                            images.put(imageId, digest);
+                            PerformanceCounters.addRowsWritten(1);
+                        }
+
+                        @Override
+                        public void deletedImage(String imageId) {
+                            images.remove(imageId);
+                        }
+
+                        @Override
+                        public void progress(int step, int max) {
+                        }
+                    });
+            requestExecutor.execute(SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS, server.getUrl(),
+                    new RequestExecutor.Call<Void>() {
+                        @Override
+                        public Void call(int networkTimeout) throws IOException, ParseException {
+                            InputStream inputStream = post(SettingsConstants.REQUEST_DOWNLOAD_KEYWORDS, request,
+                                    networkTimeout);
+                            try {
+                                BinaryFeedFormat.parse(inputStream, handler);
+                            } finally {
+                                inputStream.close();
+                            }
+                            return null;
+                        }
+                    });
+            assertTrue(handler.isSuccessful());
+            assertEquals(SyntheticDataset.VERSION, handler.getVersion());
+        }
+
+        private void downloadFarmers() throws Exception {
+            FarmersDownloader downloader = new FarmersDownloader(new CancellationToken(), farmers);
+            FarmersDownloader.Page page = downloader.download(requestExecutor, server.getUrl(),
+                    new FarmersDownloader.Exchange() {
+                        @Override
+                        public InputStream requestPage(String continuationToken, int networkTimeout)
+                                throws IOException {
+                            JsonObject request = new JsonObject();
+                            request.addProperty("request", SettingsConstants.REQUEST_DOWNLOAD_FARMERS);
+                            request.addProperty("farmersVersion", "2010-04-04 18:49:24");
+                            request.addProperty("pageSize", FarmersDownloader.PAGE_SIZE);
+                            request.addProperty("continuationToken", continuationToken);
+                            addResponseFormat(request);
+                            return post(SettingsConstants.REQUEST_DOWNLOAD_FARMERS, request, networkTimeout);
+                        }
+                    });
+            assertNotNull(page);
+        }
+
+        private void downloadImages(List<String> imageIds) throws Exception {
+            for (int index = 0; index < imageIds.size(); index += ImageDownloader.BATCH_SIZE) {
+                final SynchronizationManager.ImagesRequestWrapper request =
+                        new SynchronizationManager.ImagesRequestWrapper();
+                request.setRequest(SettingsConstants.REQUEST_DOWNLOAD_IMAGES);
+                request.setImageIds(imageIds.subList(index,
+                        Math.min(index + ImageDownloader.BATCH_SIZE, imageIds.size())));
+
+                requestExecutor.execute(SettingsConstants.REQUEST_DOWNLOAD_IMAGES, server.getUrl(),
+                        new RequestExecutor.Call<Void>() {
+                            @Override
+                            public Void call(int networkTimeout) throws IOException {
+                                HttpResponse response = HttpHelpers.postJsonFormRequest(server.getUrl(),
+                                        SettingsConstants.REQUEST_DOWNLOAD_IMAGES, request, new Gson(),
+                                        networkTimeout, null, false);
+                                RequestExecutor.checkStatus(response);
+                                InputStream inputStream = HttpHelpers.getInputStream(response);
+                                try {
+                                    boolean successful = new ImageResponseParser(imagesDirectory).parse(inputStream,
+                                            new ImageResponseParser.ImageListener() {
+                                                @Override
+                                                public void imageParsed(String imageId, File file, String digest) {
+                                                    assertEquals(images.get(imageId), digest);
+                                                    downloadedImages.add(imageId);
+                                                    PerformanceCounters.addRowsWritten(1);
+                                                    file.delete();
+                                                }
+                                            });
+                                    assertTrue(successful);
+                                } finally {
+                                    inputStream.close();
+                                }
+                                return null;
+                            }
+                        });
+            }
+        }
+
+        private void addResponseFormat(JsonObject request) {
+            if (binary) {
+                request.addProperty("responseFormat", BinaryFeedFormat.NAME);
+            }
+        }
+
+        private InputStream post(String method, JsonObject request, int networkTimeout) throws IOException {
+            HttpResponse response = HttpHelpers.postJsonFormRequest(server.getUrl(), method, request, new Gson(),
+                    networkTimeout, null, false);
+            RequestExecutor.checkStatus(response);
+            return HttpHelpers.getInputStream(response);
+        }
+
+        private void startStage(String name) {
+            allocatedBytes.put(name, getAllocatedBytes());
+            telemetry.startStage(name);
+        }
+
+        private void endStage(String name) {
+            telemetry.endStage(name, true);
+            allocatedBytes.put(name, getAllocatedBytes() - allocatedBytes.get(name));
+        }
+
+        /**
+         * describes the measurements of this run, for the report and the assertion messages.
+         *
+         * @return
+         */
+        String report() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("Synchronization benchmark (").append(binary ? BinaryFeedFormat.NAME : "json")
+                    .append(", ").append(bytesSent / 1024).append(" KB sent by the server in ")
+                    .append(requests).append(" requests)\n");
+            for (SyncStageMetrics metrics : telemetry.getStages()) {
+                double seconds = Math.max(metrics.getDurationMillis(), 1) / 1000.0;
+                long allocated = allocatedBytes.get(metrics.getStage());
+                builder.append(String.format("  %-10s %6d ms %8d records %10.0f records/s %8.2f MB/s %8.1f MB allocated/s%n",
+                        metrics.getStage(), metrics.getDurationMillis(), metrics.getRowsWritten(),
+                        getRecordsPerSecond(metrics), metrics.getBytesReceived() / seconds / (1024 * 1024),
+                        allocated < 0 ? 0.0 : allocated / seconds / (1024 * 1024)));
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.utils.Clock;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Dispatches events with a {@link SynchronizationEventDispatcher} whose clock is set by the test
+ * and checks which of them the listener receives, in which order.
+ */
+public class SynchronizationEventDispatcherTest {
+    private static final long INTERVAL = SynchronizationEventDispatcher.MIN_PROGRESS_INTERVAL_MILLIS;
+
+    private SettableClock clock;
+    private SynchronizationEventDispatcher dispatcher;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        clock = new SettableClock();
+        dispatcher = new SynchronizationEventDispatcher(clock);
+        listener = new RecordingListener();
+        dispatcher.register(listener);
+    }
+
+    @Test
+    public void coalescesProgressThatArrivesWithinTheInterval() {
+        dispatcher.dispatch(SynchronizationEvent.progress(1, 100, "items", true));
+        clock.advance(INTERVAL / 4);
+        dispatcher.dispatch(SynchronizationEvent.progress(2, 100, "items", true));
+        clock.advance(INTERVAL / 4);
+        dispatcher.dispatch(SynchronizationEvent.progress("indexing", true));
+        clock.advance(INTERVAL / 2);
+        dispatcher.dispatch(SynchronizationEvent.progress(4, 100, "items", true));
+
+        assertEquals(Arrays.asList("update 1/100 items", "update 4/100 items"), listener.events);
+    }
+
+    @Test
+    public void deliversTheLastCoalescedProgressBeforeTheNextEvent() {
+        dispatcher.dispatch(SynchronizationEvent.started());
+        dispatcher.dispatch(SynchronizationEvent.progress(1, 3, "items", true));
+        dispatcher.dispatch(SynchronizationEvent.progress(2, 3, "items", true));
+        dispatcher.dispatch(SynchronizationEvent.progress(3, 3, "items", true));
+        dispatcher.dispatch(SynchronizationEvent.completed());
+
+        assertEquals(Arrays.asList("start", "update 1/3 items", "update 3/3 items", "complete"), listener.events);
+    }
+
+    @Test
+    public void neverCoalescesStageChanges() {
+        dispatcher.dispatch(SynchronizationEvent.stageProgress(1, 4, "stage 1", false));
+        dispatcher.dispatch(SynchronizationEvent.progress(1, 10, "items", true));
+        dispatcher.dispatch(SynchronizationEvent.progress(2, 10, "items", true));
+        dispatcher.dispatch(SynchronizationEvent.stageProgress(2, 4, "stage 2", false));
+        dispatcher.dispatch(SynchronizationEvent.stageProgress(3, 4, "stage 3", false));
+        dispatcher.dispatch(SynchronizationEvent.progress(1, 10, "items", true));
+        dispatcher.dispatch(SynchronizationEvent.stageProgress(4, 4, "done", true));
+
+        // the time never advances, yet every stage arrives, each after the progress of the one before it
+        assertEquals(Arrays.asList("update 1/4 stage 1", "update 1/10 items", "update 2/10 items",
+                "update 2/4 stage 2", "update 3/4 stage 3", "update 1/10 items", "update 4/4 done"),
+                listener.events);
+    }
+
+    @Test
+    public void neverCoalescesTerminalEvents() {
+        dispatcher.dispatch(SynchronizationEvent.progress(1, 10, "items", true));
+        dispatcher.dispatch(SynchronizationEvent.progress(2, 10, "items", true));
+        dispatcher.dispatch(SynchronizationEvent.failed(new Throwable("stage failed")));
+        dispatcher.dispatch(SynchronizationEvent.completed());
+        dispatcher.dispatch(SynchronizationEvent.failed(new Throwable("run failed")));
+        dispatcher.dispatch(SynchronizationEvent.ended(false, false));
+
+        assertEquals(Arrays.asList("update 1/10 items", "update 2/10 items", "error stage failed",
+                "complete", "error run failed", "ended false false"), listener.events);
+    }
+
+    @Test
+    public void deliversProgressAgainOnceTheIntervalHasPassed() {
+        for (int step = 1; step <= 20; step++) {
+            dispatcher.dispatch(SynchronizationEvent.progress(step, 20, "items", true));
+            clock.advance(INTERVAL / 2);
+        }
+
+        // every other event arrives
+        assertEquals(10, listener.events.size());
+        assertEquals("update 19/20 items", listener.events.get(9));
+        assertEquals("dispatched 10 events, coalesced 10 progress events", dispatcher.resetStatistics());
+    }
+
+    @Test
+    public void doesNotHoldProgressBackWhenTheClockIsSetBack() {
+        dispatcher.dispatch(SynchronizationEvent.progress(1, 3, "items", true));
+        clock.advance(-60 * 1000L);
+        dispatcher.dispatch(SynchronizationEvent.progress(2, 3, "items", true));
+
+        assertEquals(Arrays.asList("update 1/3 items", "update 2/3 items"), listener.events);
+    }
+
+    /**
+     * A clock whose time is moved by the test.
+     */
+    private static class SettableClock implements Clock {
+        private long time = 1000000000000L;
+
+        void advance(long millis) {
+            time += millis;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return time;
+        }
+    }
+
+    /**
+     * Records the events it receives as strings.
+     */
+    private static class RecordingListener implements SynchronizationResultListener {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void synchronizationStart() {
+            events.add("start");
+        }
+
+        @Override
+        public void synchronizationUpdate(Integer step, Integer max, String message, Boolean reset) {
+            events.add("update " + step + "/" + max + " " + message);
+        }
+
+        @Override
+        public void synchronizationUpdate(String message, Boolean indeterminate) {
+            events.add("update " + message);
+        }
+
+        @Override
+        public void synchronizationComplete() {
+            events.add("complete");
+        }
+
+        @Override
+        public void onSynchronizationError(Throwable throwable) {
+            events.add("error " + throwable.getMessage());
+        }
+
+        @Override
+        public void synchronizationEnded(boolean successful, boolean cancelled) {
+            events.add("ended " + successful + " " + cancelled);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.utils.Clock;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SynchronizationScheduleTest {
+    private static final long NOW = 1000000000000L;
+    private static final long INTERVAL = 60 * 60 * 1000L;
+
+    @Test
+    public void runsAfterTheIntervalWhenTheLastSynchronizationSucceeded() {
+        SynchronizationSchedule schedule = new SynchronizationSchedule(new FixedClock(), new FixedRandom(0.5));
+        assertEquals(NOW + INTERVAL, schedule.getNextSynchronizationTime(INTERVAL, 0, false));
+        // the interval is never shorter than the minimum
+        assertEquals(SynchronizationSchedule.MIN_INTERVAL, schedule.getDelay(1000, 0, false));
+    }
+
+    @Test
+    public void runsSoonerWhenTheServerHasPendingChanges() {
+        SynchronizationSchedule schedule = new SynchronizationSchedule(new FixedClock(), new FixedRandom(0.5));
+        assertEquals(INTERVAL / SynchronizationSchedule.PENDING_CHANGES_INTERVAL_DIVISOR,
+                schedule.getDelay(INTERVAL, 0, true));
+        assertEquals(SynchronizationSchedule.MIN_INTERVAL,
+                schedule.getDelay(2 * SynchronizationSchedule.MIN_INTERVAL, 0, true));
+        // the pending changes do not shorten the retries after a failure
+        assertEquals(schedule.getDelay(INTERVAL, 1, false), schedule.getDelay(INTERVAL, 1, true));
+    }
+
+    @Test
+    public void doublesTheRetryDelayWithEveryConsecutiveFailure() {
+        // without jitter the delay is the upper bound of the retry delay
+        SynchronizationSchedule schedule = new SynchronizationSchedule(new FixedClock(), new FixedRandom(1.0));
+        long expected = SynchronizationSchedule.MIN_RETRY_DELAY;
+        for (int failures = 1; expected < SynchronizationSchedule.MAX_RETRY_DELAY; failures++) {
+            assertEquals(expected, schedule.getDelay(INTERVAL, failures, false));
+            expected *= 2;
+        }
+    }
+
+    @Test
+    public void capsTheRetryDelayAtSixHours() {
+        SynchronizationSchedule schedule = new SynchronizationSchedule(new FixedClock(), new FixedRandom(1.0));
+        assertEquals(6 * 60 * 60 * 1000L, SynchronizationSchedule.MAX_RETRY_DELAY);
+        assertEquals(SynchronizationSchedule.MAX_RETRY_DELAY, schedule.getDelay(INTERVAL, 9, false));
+        assertEquals(SynchronizationSchedule.MAX_RETRY_DELAY, schedule.getDelay(INTERVAL, 1000, false));
+    }
+
+    @Test
+    public void keepsTheJitterWithinTheUpperHalfOfTheRetryDelay() {
+        SynchronizationSchedule lowest = new SynchronizationSchedule(new FixedClock(), new FixedRandom(0.0));
+        assertEquals(SynchronizationSchedule.MIN_RETRY_DELAY / 2, lowest.getDelay(INTERVAL, 1, false));
+        assertEquals(SynchronizationSchedule.MAX_RETRY_DELAY / 2, lowest.getDelay(INTERVAL, 1000, false));
+
+        SynchronizationSchedule schedule = new SynchronizationSchedule(new FixedClock(), new Random(42));
+        for (int failures = 1; failures <= 12; failures++) {
+            long retryDelay = Math.min(SynchronizationSchedule.MIN_RETRY_DELAY << (failures - 1),
+                    SynchronizationSchedule.MAX_RETRY_DELAY);
+            for (int run = 0; run < 100; run++) {
+                long delay = schedule.getDelay(INTERVAL, failures, false);
+                assertTrue(delay >= retryDelay / 2);
+                assertTrue(delay <= retryDelay);
+            }
+        }
+    }
+
+    /**
+     * A clock that is always at the same time.
+     */
+    private static class FixedClock implements Clock {
+        @Override
+        public long currentTimeMillis() {
+            return NOW;
+        }
+    }
+
+    /**
+     * A random source that always draws the same double.
+     */
+    private static class FixedRandom extends Random {
+        private final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.stream.JsonWriter;
+import org.grameenfoundation.consulteca.utils.BinaryFeedWriter;
+import org.grameenfoundation.consulteca.utils.DigestUtils;
+import org.json.simple.parser.JSONParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the feeds of a synthetic server: a keywords feed for menu trees of a configurable shape,
+ * pages of farmers and images of a configurable size. The same seed always generates the same feeds.
+ * The shape is read from system properties, e.g. <code>-Dsync.benchmark.farmers=100000</code>, so
+ * that the benchmark can be run against larger datasets than the default.
+ */
+class SyntheticDataset {
+    static final String VERSION = "2016-01-01 00:00:00";
+
+    int menus = 3;
+    int branching = 6;
+    int depth = 3;
+    int contentLength = 600;
+    int farmers = 3000;
+    int images = 40;
+    int imageSize = 16 * 1024;
+    long seed = 42;
+
+    private final List<String> imageIds = new ArrayList<String>();
+    private final List<byte[]> imageData = new ArrayList<byte[]>();
+
+    /**
+     * creates a dataset whose shape is read from the <code>sync.benchmark.*</code> system
+     * properties, or the defaults.
+     *
+     * @return
+     */
+    static SyntheticDataset fromSystemProperties() {
+        SyntheticDataset dataset = new SyntheticDataset();
+        dataset.menus = Integer.getInteger("sync.benchmark.menus", dataset.menus);
+        dataset.branching = Integer.getInteger("sync.benchmark.branching", dataset.branching);
+        dataset.depth = Integer.getInteger("sync.benchmark.depth", dataset.depth);
+        dataset.contentLength = Integer.getInteger("sync.benchmark.contentLength", dataset.contentLength);
+        dataset.farmers = Integer.getInteger("sync.benchmark.farmers", dataset.farmers);
+        dataset.images = Integer.getInteger("sync.benchmark.images", dataset.images);
+        dataset.imageSize = Integer.getInteger("sync.benchmark.imageSize", dataset.imageSize);
+        dataset.seed = Long.getLong("sync.benchmark.seed", dataset.seed);
+        return dataset;
+    }
+
+    /**
+     * gets the number of menu items in the keywords feed.
+     *
+     * @return
+     */
+    int getMenuItemCount() {
+        int count = 0;
+        int level = 1;
+        for (int index = 0; index < depth; index++) {
+            level *= branching;
+            count += level;
+        }
+        return count * menus;
+    }
+
+    List<String> getImageIds() {
+        generateImages();
+        return imageIds;
+    }
+
+    byte[] getImageData(String imageId) {
+        generateImages();
+        return imageData.get(imageIds.indexOf(imageId));
+    }
+
+    /**
+     * writes the keywords feed, with the top level menu items first as in a progressive feed.
+     *
+     * @param binary whether to write the feed in the binary format instead of JSON.
+     * @return
+     * @throws IOException
+     */
+    byte[] getKeywordsFeed(boolean binary) throws IOException {
+        generateImages();
+        Random random = new Random(seed);
+        StringWriter stringWriter = new StringWriter();
+        JsonWriter writer = new JsonWriter(stringWriter);
+        writer.beginObject();
+        writer.name("resultCode").value("0");
+        writer.name("resultMessage").value("Synthetic keywords");
+        writer.name("total").value(getMenuItemCount());
+        writer.name("version").value(VERSION);
+
+        writer.name("menus").beginArray();
+        for (int menu = 0; menu < menus; menu++) {
+            writer.beginObject().name("id").value("menu" + menu).name("label").value("Menu " + menu).endObject();
+        }
+        writer.endArray();
+
+        // breadth first, so that each level comes before the next
+        writer.name("menuItems").beginArray();
+        LinkedList<String[]> pending = new LinkedList<String[]>();
+        for (int menu = 0; menu < menus; menu++) {
+            pending.add(new String[]{"menu" + menu, "", "m" + menu + "-", "1"});
+        }
+        while (!pending.isEmpty()) {
+            String[] parent = pending.removeFirst();
+            for (int index = 0; index < branching; index++) {
+                String id = parent[2] + index;
+                writer.beginObject();
+                writer.name("id").value(id);
+                writer.name("label").value("Item " + id);
+                writer.name("position").value(index);
+                writer.name("content").value(randomText(random, contentLength));
+                writer.name("menu_id").value(parent[0]);
+                writer.name("parent_id").value(parent[1]);
+                writer.endObject();
+                int level = Integer.parseInt(parent[3]);
+                if (level < depth) {
+                    pending.add(new String[]{parent[0], id, id + ".", String.valueOf(level + 1)});
+                }
+            }
+        }
+        writer.endArray();
+        writer.name("deletedMenuItems").beginArray().endArray();
+
+        writer.name("images").beginArray();
+        MessageDigest digest = DigestUtils.newSha1Digest();
+        for (int index = 0; index < imageIds.size(); index++) {
+            writer.beginObject().name("id").value(imageIds.get(index))
+                    .name("sha1").value(DigestUtils.toHexString(digest.digest(imageData.get(index)))).endObject();
+        }
+        writer.endArray();
+        writer.name("deletedImages").beginArray().endArray();
+        writer.endObject();
+        writer.close();
+
+        return encode(stringWriter.toString(), binary);
+    }
+
+    /**
+     * writes the page of farmers that starts at the given offset.
+     *
+     * @param offset
+     * @param pageSize
+     * @param binary   whether to write the page in the binary format instead of JSON.
+     * @return
+     * @throws IOException
+     */
+    byte[] getFarmersPage(int offset, int pageSize, boolean binary) throws IOException {
+        Random random = new Random(seed + offset);
+        int end = Math.min(farmers, offset + pageSize);
+        StringWriter stringWriter = new StringWriter();
+        JsonWriter writer = new JsonWriter(stringWriter);
+        writer.beginObject();
+        writer.name("resultCode").value("0");
+        writer.name("farmerVersion").value(VERSION);
+        writer.name("farmerCount").value(farmers);
+        writer.name("nextToken").value(end < farmers ? String.valueOf(end) : "");
+        writer.name("afarmerResults").beginArray();
+        for (int index = offset; index < end; index++) {
+            writer.beginObject();
+            writer.name("farmerId").value("F" + index);
+            writer.name("firstName").value(randomText(random, 8).trim());
+            writer.name("lastName").value(randomText(random, 10).trim());
+            writer.name("creationDate").value("2015-0" + (1 + index % 9) + "-1" + (index % 10));
+            writer.name("subcounty").value("Subcounty " + index % 40);
+            writer.name("village").value("Village " + index % 400);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name("deletedFarmers").beginArray().endArray();
+        writer.endObject();
+        writer.close();
+
+        return encode(stringWriter.toString(), binary);
+    }
+
+    /**
+     * writes the images response for the given image ids.
+     *
+     * @param requestedIds
+     * @return
+     * @throws IOException
+     */
+    byte[] getImages(List<String> requestedIds) throws IOException {
+        generateImages();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+        writer.beginObject();
+        writer.name("resultCode").value("0");
+        writer.name("imageResults").beginArray();
+        for (String id : requestedIds) {
+            int index = imageIds.indexOf(id);
+            if (index >= 0) {
+                writer.beginObject().name("imageId").value(id)
+                        .name("imageData").value(base64(imageData.get(index))).endObject();
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+        return outputStream.toByteArray();
+    }
+
+    private void generateImages() {
+        if (!imageIds.isEmpty() || images == 0) {
+            return;
+        }
+
+        Random random = new Random(seed);
+        for (int index = 0; index < images; index++) {
+            byte[] data = new byte[imageSize];
+            random.nextBytes(data);
+            // a JPEG header, so that the data is taken for an image
+            data[0] = (byte) 0xFF;
+            data[1] = (byte) 0xD8;
+            data[2] = (byte) 0xFF;
+            imageIds.add("img" + index);
+            imageData.add(data);
+        }
+    }
+
+    private static byte[] encode(String json, boolean binary) throws IOException {
+        if (!binary) {
+            return json.getBytes("UTF-8");
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            new JSONParser().parse(new InputStreamReader(new ByteArrayInputStream(json.getBytes("UTF-8")), "UTF-8"),
+                    new BinaryFeedWriter(outputStream));
+        } catch (org.json.simple.parser.ParseException ex) {
+            throw new IOException(ex.toString());
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length + 12);
+        while (builder.length() < length) {
+            builder.append(Long.toString(random.nextLong() & Long.MAX_VALUE, 36)).append(' ');
+        }
+        builder.setLength(length);
+        return builder.toString();
+    }
+
+    private static String base64(byte[] data) {
+        char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+        StringBuilder builder = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int index = 0; index < data.length; index += 3) {
+            int chunk = (data[index] & 0xFF) << 16;
+            if (index + 1 < data.length) {
+                chunk |= (data[index + 1] & 0xFF) << 8;
+            }
+            if (index + 2 < data.length) {
+                chunk |= data[index + 2] & 0xFF;
+            }
+            builder.append(alphabet[(chunk >> 18) & 0x3F]).append(alphabet[(chunk >> 12) & 0x3F]);
+            builder.append(index + 1 < data.length ? alphabet[(chunk >> 6) & 0x3F] : '=');
+            builder.append(index + 2 < data.length ? alphabet[chunk & 0x3F] : '=');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package org.grameenfoundation.consulteca.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes Base64 with a {@link Base64DecodingOutputStream} and checks the result against the
+ * bytes that were encoded.
+ */
+public class Base64DecodingOutputStreamTest {
+
+    @Test
+    public void decodesAcrossEveryChunkBoundary() throws IOException {
+        byte[] data = randomBytes(301, 1);
+        byte[] encoded = encode(data).getBytes("US-ASCII");
+
+        for (int chunkSize = 1; chunkSize <= 9; chunkSize++) {
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            Base64DecodingOutputStream out = new Base64DecodingOutputStream(decoded);
+            for (int offset = 0; offset < encoded.length; offset += chunkSize) {
+                out.write(encoded, offset, Math.min(chunkSize, encoded.length - offset));
+            }
+            out.close();
+            assertArrayEquals("chunks of " + chunkSize, data, decoded.toByteArray());
+        }
+    }
+
+    @Test
+    public void decodesEveryPaddingLength() throws IOException {
+        for (int length = 0; length <= 6; length++) {
+            byte[] data = randomBytes(length, length);
+            String encoded = encode(data);
+            assertArrayEquals(encoded, data, decode(encoded));
+
+            // the padding is optional
+            assertArrayEquals(encoded, data, decode(encoded.replace("=", "")));
+        }
+        assertArrayEquals(new byte[]{'M', 'a'}, decode("TWE="));
+        assertArrayEquals(new byte[]{'M'}, decode("TQ=="));
+    }
+
+    @Test
+    public void ignoresWhiteSpaceAndLineBreaks() throws IOException {
+        byte[] data = randomBytes(200, 2);
+        // the line length of MIME
+        StringBuilder encoded = new StringBuilder(encode(data));
+        for (int index = 76; index < encoded.length(); index += 78) {
+            encoded.insert(index, "\r\n");
+        }
+        assertArrayEquals(data, decode(encoded.toString()));
+
+        assertArrayEquals(new byte[]{'M', 'a', 'n'}, decode(" T\tW\n\rF u "));
+    }
+
+    @Test
+    public void acceptsTheUrlSafeAlphabet() throws IOException {
+        byte[] data = randomBytes(300, 3);
+        String encoded = encode(data).replace('+', '-').replace('/', '_');
+        assertTrue(encoded.contains("-") || encoded.contains("_"));
+        assertArrayEquals(data, decode(encoded));
+    }
+
+    @Test
+    public void rejectsCharactersOutsideTheAlphabet() {
+        assertInvalid("TW*u");
+        assertInvalid("TWE=TWFu");
+        // characters above 0x7F whose low byte is a Base64 character
+        assertInvalid("TW\u0141u");
+        assertInvalid("TW\u0157u");
+        assertInvalid("TW\u0175u");
+    }
+
+    @Test
+    public void rejectsBytesAboveTheAsciiRange() throws IOException {
+        Base64DecodingOutputStream out = new Base64DecodingOutputStream(new ByteArrayOutputStream());
+        try {
+            out.write(new byte[]{'T', 'W', (byte) 0xC1, 'u'}, 0, 4);
+            fail("0xC1 should have been rejected");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private static void assertInvalid(String encoded) {
+        try {
+            decode(encoded);
+            fail(encoded + " should have been rejected");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private static byte[] decode(String encoded) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        Base64DecodingOutputStream out = new Base64DecodingOutputStream(decoded);
+        for (int index = 0; index < encoded.length(); index++) {
+            out.write(encoded.charAt(index));
+        }
+        out.close();
+        return decoded.toByteArray();
+    }
+
+    private static String encode(byte[] data) {
+        char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+        StringBuilder builder = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int index = 0; index < data.length; index += 3) {
+            int chunk = (data[index] & 0xFF) << 16;
+            if (index + 1 < data.length) {
+                chunk |= (data[index + 1] & 0xFF) << 8;
+            }
+            if (index + 2 < data.length) {
+                chunk |= data[index + 2] & 0xFF;
+            }
+            builder.append(alphabet[(chunk >> 18) & 0x3F]).append(alphabet[(chunk >> 12) & 0x3F]);
+            builder.append(index + 1 < data.length ? alphabet[(chunk >> 6) & 0x3F] : '=');
+            builder.append(index + 2 < data.length ? alphabet[chunk & 0x3F] : '=');
+        }
+        return builder.toString();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
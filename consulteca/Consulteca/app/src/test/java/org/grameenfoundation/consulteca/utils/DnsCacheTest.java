@@ -0,0 +1,127 @@
+package org.grameenfoundation.consulteca.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+public class DnsCacheTest {
+    private static final String HOST = "sync.example.org";
+    private static final String ADDRESS = "192.0.2.10";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("dns", ".cache");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void keepsTheAddressesAcrossRestarts() throws Exception {
+        FakeDnsCache cache = new FakeDnsCache(file);
+        assertEquals(ADDRESS, cache.resolve(HOST)[0].getHostAddress());
+        assertEquals(ADDRESS, cache.resolve(HOST)[0].getHostAddress());
+        assertEquals(1, cache.lookUps);
+        assertTrue(file.exists());
+
+        FakeDnsCache restarted = new FakeDnsCache(file);
+        InetAddress[] addresses = restarted.resolve(HOST);
+        assertEquals(0, restarted.lookUps);
+        assertEquals(HOST, addresses[0].getHostName());
+        assertEquals(ADDRESS, addresses[0].getHostAddress());
+    }
+
+    @Test
+    public void resolvesExpiredAddressesAgain() throws Exception {
+        write(System.currentTimeMillis() - DnsCache.TTL_MILLIS - 1000);
+        FakeDnsCache cache = new FakeDnsCache(file);
+        cache.resolve(HOST);
+        assertEquals(1, cache.lookUps);
+
+        // the new addresses are kept
+        FakeDnsCache restarted = new FakeDnsCache(file);
+        restarted.resolve(HOST);
+        assertEquals(0, restarted.lookUps);
+    }
+
+    @Test
+    public void usesExpiredAddressesWhenTheNameCannotBeResolved() throws Exception {
+        write(System.currentTimeMillis() - DnsCache.TTL_MILLIS - 1000);
+        FakeDnsCache cache = new FakeDnsCache(file);
+        cache.offline = true;
+        assertEquals(ADDRESS, cache.resolve(HOST)[0].getHostAddress());
+        assertEquals(1, cache.lookUps);
+
+        write(System.currentTimeMillis() - DnsCache.MAX_STALE_MILLIS - 1000);
+        cache = new FakeDnsCache(file);
+        cache.offline = true;
+        try {
+            cache.resolve(HOST);
+            fail();
+        } catch (UnknownHostException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void resolvesInvalidatedAddressesAgain() throws Exception {
+        FakeDnsCache cache = new FakeDnsCache(file);
+        cache.resolve(HOST);
+        cache.invalidate(HOST);
+        cache.resolve(HOST);
+        assertEquals(2, cache.lookUps);
+    }
+
+    @Test
+    public void ignoresAnInvalidFile() throws Exception {
+        OutputStream outputStream = new FileOutputStream(file);
+        outputStream.write("{\"sync.example.org\":".getBytes("UTF-8"));
+        outputStream.close();
+
+        FakeDnsCache cache = new FakeDnsCache(file);
+        assertEquals(ADDRESS, cache.resolve(HOST)[0].getHostAddress());
+        assertEquals(1, cache.lookUps);
+    }
+
+    private void write(long resolvedAt) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(("{\"" + HOST + "\":{\"resolvedAt\":" + resolvedAt
+                + ",\"addresses\":[\"" + ADDRESS + "\"]}}").getBytes("UTF-8"));
+        outputStream.close();
+    }
+
+    /**
+     * A cache that resolves the host to a fixed address, or fails to as if the device were offline.
+     */
+    private static class FakeDnsCache extends DnsCache {
+        private int lookUps = 0;
+        private boolean offline = false;
+
+        FakeDnsCache(File file) {
+            super(file);
+        }
+
+        @Override
+        InetAddress[] lookUp(String host) throws UnknownHostException {
+            lookUps++;
+            if (offline) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[]{InetAddress.getByAddress(host, InetAddress.getByName(ADDRESS).getAddress())};
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.grameenfoundation.consulteca.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares a new http client per request, as {@link HttpHelpers} used to do, with its shared pool of
+ * keep-alive connections, for small requests through a {@link LatencyProxy}. The number of requests
+ * and the round trip time can be changed with the http.benchmark.requests and http.benchmark.rtt
+ * system properties. It also compares the time to the first byte of the first request to a server
+ * with and without {@link HttpHelpers#warmUp(String)}.
+ * <p/>
+ * It only runs when the <code>benchmark</code> system property is set, e.g.
+ * <code>./gradlew testDebugUnitTest -Dbenchmark=true</code>, and reports its measurements in the
+ * assertion messages.
+ */
+public class HttpClientBenchmarkTest {
+    private static final int NETWORK_TIMEOUT = 30 * 1000;
+    private static final int RESPONSE_SIZE = 2 * 1024;
+
+    private final int requests = Integer.getInteger("http.benchmark.requests", 40);
+    private final long roundTripMillis = Long.getLong("http.benchmark.rtt", 50L);
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private LatencyProxy proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        proxy = new LatencyProxy(server.getAddress(), roundTripMillis);
+    }
+
+    @After
+    public void tearDown() {
+        if (proxy == null) {
+            return;
+        }
+
+        proxy.stop();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void reusesConnections() throws Exception {
+        // warms up both paths, so that class loading is not measured
+        postWithNewClient();
+        postWithSharedClient();
+
+        int connections = proxy.getConnections();
+        long start = System.nanoTime();
+        for (int index = 0; index < requests; index++) {
+            postWithNewClient();
+        }
+        long newClientMillis = (System.nanoTime() - start) / 1000000;
+        int newClientConnections = proxy.getConnections() - connections;
+
+        connections = proxy.getConnections();
+        start = System.nanoTime();
+        for (int index = 0; index < requests; index++) {
+            postWithSharedClient();
+        }
+        long sharedClientMillis = (System.nanoTime() - start) / 1000000;
+        int sharedClientConnections = proxy.getConnections() - connections;
+
+        String report = String.format("Http client benchmark (%d requests, %d ms round trip)%n"
+                        + "  new client     %6d ms %6.1f ms/request %4d connections%n"
+                        + "  shared client  %6d ms %6.1f ms/request %4d connections",
+                requests, roundTripMillis,
+                newClientMillis, (double) newClientMillis / requests, newClientConnections,
+                sharedClientMillis, (double) sharedClientMillis / requests, sharedClientConnections);
+
+        assertEquals(report, requests, newClientConnections);
+        // the warm up request left its connection in the pool
+        assertEquals(report, 0, sharedClientConnections);
+        assertTrue(report, sharedClientMillis < newClientMillis);
+    }
+
+    @Test
+    public void warmUpSavesTheHandshakeOfTheFirstRequest() throws Exception {
+        // loads the classes of the shared client, so that the first request of each proxy only
+        // pays for its connection
+        postWithSharedClient();
+
+        final List<RequestMetrics> completed = new ArrayList<RequestMetrics>();
+        HttpHelpers.RequestListener listener = new HttpHelpers.RequestListener() {
+            @Override
+            public void requestCompleted(RequestMetrics metrics) {
+                completed.add(metrics);
+            }
+        };
+        HttpHelpers.addRequestListener(listener);
+        LatencyProxy coldProxy = new LatencyProxy(server.getAddress(), roundTripMillis);
+        LatencyProxy warmProxy = new LatencyProxy(server.getAddress(), roundTripMillis);
+        try {
+            postWithSharedClient(coldProxy);
+            RequestMetrics cold = completed.get(0);
+
+            assertTrue(HttpHelpers.warmUp(warmProxy.getUrl("/")));
+            // the application starts while the connection is made
+            Thread.sleep(2 * roundTripMillis);
+            completed.clear();
+            postWithSharedClient(warmProxy);
+            RequestMetrics warm = completed.get(0);
+
+            String report = String.format("First request (%d ms round trip)%n"
+                            + "  cold  %6d ms to first byte, %4d ms connecting%n"
+                            + "  warm  %6d ms to first byte",
+                    roundTripMillis, cold.getFirstByteMillis(), cold.getConnectMillis(), warm.getFirstByteMillis());
+
+            assertTrue(report, cold.getConnectMillis() >= 0);
+            assertEquals(report, -1, warm.getConnectMillis());
+            assertEquals(report, 1, warmProxy.getConnections());
+            // the handshake of the proxy takes a round trip
+            assertTrue(report, cold.getFirstByteMillis() - warm.getFirstByteMillis() >= roundTripMillis * 3 / 4);
+
+            // the connection is already in the pool, there is nothing to warm up
+            assertTrue(HttpHelpers.warmUp(warmProxy.getUrl("/")));
+            assertEquals(1, warmProxy.getConnections());
+        } finally {
+            HttpHelpers.removeRequestListener(listener);
+            coldProxy.stop();
+            warmProxy.stop();
+        }
+    }
+
+    private void postWithSharedClient() throws IOException {
+        postWithSharedClient(proxy);
+    }
+
+    private static void postWithSharedClient(LatencyProxy proxy) throws IOException {
+        HttpResponse response = HttpHelpers.postFormRequest(proxy.getUrl("/"), getParams(), NETWORK_TIMEOUT, null);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(RESPONSE_SIZE, read(HttpHelpers.getInputStream(response)));
+    }
+
+    private void postWithNewClient() throws IOException {
+        HttpParams httpParameters = new BasicHttpParams();
+        HttpConnectionParams.setSoTimeout(httpParameters, NETWORK_TIMEOUT);
+        HttpConnectionParams.setConnectionTimeout(httpParameters, NETWORK_TIMEOUT);
+        HttpClient httpClient = new DefaultHttpClient(httpParameters);
+        HttpPost httpPost = new HttpPost(proxy.getUrl("/"));
+        httpPost.setEntity(new UrlEncodedFormEntity(getParams(), "UTF-8"));
+        HttpResponse response = httpClient.execute(httpPost);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(RESPONSE_SIZE, read(HttpHelpers.getInputStream(response)));
+        httpClient.getConnectionManager().shutdown();
+    }
+
+    private static List<NameValuePair> getParams() {
+        List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+        params.add(new BasicNameValuePair("method", "ping"));
+        params.add(new BasicNameValuePair("data", "{\"request\":\"ping\"}"));
+        return params;
+    }
+
+    private static int read(InputStream inputStream) throws IOException {
+        try {
+            byte[] buffer = new byte[4096];
+            int length = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                length += read;
+            }
+            return length;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        InputStream inputStream = exchange.getRequestBody();
+        while (inputStream.read() != -1) {
+            // the request is read to the end so that the connection can be reused
+        }
+        byte[] body = new byte[RESPONSE_SIZE];
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(body);
+        outputStream.close();
+    }
+}
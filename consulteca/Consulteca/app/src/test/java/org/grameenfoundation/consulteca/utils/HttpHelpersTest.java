@@ -0,0 +1,209 @@
+package org.grameenfoundation.consulteca.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.io.OutputStream;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class HttpHelpersTest {
+    private static final int NETWORK_TIMEOUT = 30 * 1000;
+    private static final long SLOW_RESPONSE_MILLIS = 1000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("download", "");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void copiesGzippedContentToFile() throws Exception {
+        final byte[] content = new byte[3 * 1024 * 1024 + 17];
+        Random random = new Random(42);
+        for (int index = 0; index < content.length; index++) {
+            content[index] = (byte) ('a' + random.nextInt(8));
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed);
+        gzipOutputStream.write(content);
+        gzipOutputStream.close();
+
+        final long[] progress = new long[]{0, 0};
+        long written = HttpHelpers.copyToFile(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())),
+                file, content.length, new HttpHelpers.DownloadListener() {
+                    @Override
+                    public void progress(long bytesWritten, long contentLength) {
+                        assertTrue(bytesWritten >= progress[0]);
+                        assertEquals((long) content.length, contentLength);
+                        progress[0] = bytesWritten;
+                        progress[1]++;
+                    }
+                });
+
+        assertEquals(content.length, written);
+        assertEquals(content.length, progress[0]);
+        assertTrue(progress[1] > 1);
+        assertTrue(Arrays.equals(content, read(file)));
+    }
+
+    @Test
+    public void takesTheSameMemoryForAnySize() throws Exception {
+        long size = 64L * 1024 * 1024;
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+
+        long allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        assertEquals(size, HttpHelpers.copyToFile(new PatternInputStream(size), file, size, null));
+        allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+
+        assertEquals(size, file.length());
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024 * 1024);
+    }
+
+    @Test
+    public void deletesTheFileWhenTheCopyFails() throws Exception {
+        InputStream inputStream = new PatternInputStream(1024 * 1024) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (getPosition() > 200 * 1024) {
+                    throw new IOException("connection reset");
+                }
+                return super.read(buffer, offset, length);
+            }
+        };
+
+        try {
+            HttpHelpers.copyToFile(inputStream, file, -1, null);
+            fail();
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void appliesTheTimeoutOfEachRequest() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    InputStream inputStream = exchange.getRequestBody();
+                    while (inputStream.read() != -1) {
+                        // the request is read to the end so that the connection can be reused
+                    }
+                    Thread.sleep(SLOW_RESPONSE_MILLIS);
+                    exchange.sendResponseHeaders(200, 2);
+                    OutputStream outputStream = exchange.getResponseBody();
+                    outputStream.write("{}".getBytes("UTF-8"));
+                    outputStream.close();
+                } catch (InterruptedException ex) {
+                    // the server is stopping
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        List<NameValuePair> params = new ArrayList<NameValuePair>(1);
+        params.add(new BasicNameValuePair("method", "ping"));
+
+        try {
+            try {
+                HttpHelpers.postFormRequest(url, params, (int) SLOW_RESPONSE_MILLIS / 2, null);
+                fail();
+            } catch (SocketTimeoutException ex) {
+                // expected
+            }
+
+            // the short timeout must not stay with the shared client
+            HttpResponse response = HttpHelpers.postFormRequest(url, params, NETWORK_TIMEOUT, null);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            HttpHelpers.getInputStream(response).close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * A stream of the given length that is generated as it is read, so that it takes no memory.
+     */
+    private static class PatternInputStream extends InputStream {
+        private final long length;
+        private long position = 0;
+
+        PatternInputStream(long length) {
+            this.length = length;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return position < length ? (int) (position++ & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= this.length) {
+                return -1;
+            }
+            int count = (int) Math.min(length, this.length - position);
+            for (int index = 0; index < count; index++) {
+                buffer[offset + index] = (byte) (position++ & 0xff);
+            }
+            return count;
+        }
+    }
+}
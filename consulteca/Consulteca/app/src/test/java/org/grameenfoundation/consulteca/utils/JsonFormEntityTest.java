@@ -0,0 +1,262 @@
+package org.grameenfoundation.consulteca.utils;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a {@link JsonFormEntity} sends the same form as a {@link UrlEncodedFormEntity} of the
+ * JSON string, without ever holding the string, and that {@link HttpHelpers} falls back to sending
+ * its length to a server that does not take chunked requests.
+ */
+public class JsonFormEntityTest {
+    private static final int NETWORK_TIMEOUT = 30 * 1000;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean lengthRequired = false;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void writesTheSameContentAsAnEncodedForm() throws Exception {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("request", "searchLogs");
+        data.put("text", "maize & beans = 100% \"organic\"\nna\u00efve caf\u00e9 \u2713 \ud834\udd1e");
+        data.put("ids", Arrays.asList("a/b", "c+d", "e f", "*-._~"));
+        Gson gson = new Gson();
+
+        List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+        params.add(new BasicNameValuePair("method", "searchLogs"));
+        params.add(new BasicNameValuePair("data", gson.toJson(data)));
+        String expected = read(new UrlEncodedFormEntity(params, "UTF-8").getContent());
+
+        JsonFormEntity entity = new JsonFormEntity("method", "searchLogs", "data", data, gson);
+        assertTrue(entity.isChunked());
+        assertEquals(-1, entity.getContentLength());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        entity.writeTo(outputStream);
+        assertEquals(expected, outputStream.toString("UTF-8"));
+
+        // the entity can be written again, e.g. to count its length
+        entity.computeContentLength();
+        assertFalse(entity.isChunked());
+        assertEquals(outputStream.size(), entity.getContentLength());
+        outputStream.reset();
+        entity.writeTo(outputStream);
+        assertEquals(expected, outputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void readsTheContentOfTheFormCompressedOrNot() throws Exception {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("request", "searchLogs");
+        data.put("imei", "35 & 7");
+        JsonFormEntity entity = new JsonFormEntity("method", "searchLogs", "data", data, new Gson());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        entity.writeTo(outputStream);
+        String expected = outputStream.toString("UTF-8");
+
+        // the content is read e.g. to log a request, it is the same as the content written
+        assertEquals(expected, read(entity.getContent()));
+        GzipCompressingEntity compressingEntity = new GzipCompressingEntity(entity);
+        assertEquals(expected, read(new GZIPInputStream(compressingEntity.getContent())));
+        assertEquals(expected, read(new GZIPInputStream(compressingEntity.getContent())));
+    }
+
+    @Test
+    public void takesTheSameMemoryForAnySize() throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+
+        char[] chars = new char[1024];
+        Arrays.fill(chars, '\u00e9');
+        JsonFormEntity entity = new JsonFormEntity("method", "searchLogs", "data",
+                new RepeatedCollection(new String(chars), 32 * 1024), new Gson());
+        // the first write loads the type adapters of gson
+        entity.computeContentLength();
+
+        long allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        entity.computeContentLength();
+        allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+
+        assertTrue(entity.getContentLength() > 192L * 1024 * 1024);
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024 * 1024);
+    }
+
+    @Test
+    public void postsTheFormChunked() throws Exception {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("request", "keywords");
+        data.put("imei", "35 & 7");
+
+        HttpResponse response = HttpHelpers.postJsonFormRequest(getUrl("127.0.0.1"), "keywords", data, new Gson(),
+                NETWORK_TIMEOUT, null, false);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("chunked method=keywords data=" + new Gson().toJson(data),
+                read(HttpHelpers.getInputStream(response)));
+    }
+
+    @Test
+    public void sendsTheLengthToAServerThatRequiresIt() throws Exception {
+        lengthRequired = true;
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("request", "farmers");
+
+        // the host name is not used by the other tests, which send to a server that takes chunked requests
+        HttpResponse response = HttpHelpers.postJsonFormRequest(getUrl("localhost"), "farmers", data, new Gson(),
+                NETWORK_TIMEOUT, null, false);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        String expected = "length method=farmers data=" + new Gson().toJson(data);
+        assertEquals(expected, read(HttpHelpers.getInputStream(response)));
+
+        // the server is remembered, the next request is sent with its length at once
+        response = HttpHelpers.postJsonFormRequest(getUrl("localhost"), "farmers", data, new Gson(),
+                NETWORK_TIMEOUT, null, false);
+        assertEquals(expected, read(HttpHelpers.getInputStream(response)));
+        assertEquals(Arrays.asList("411", expected, expected), requests);
+    }
+
+    private String getUrl(String host) {
+        return "http://" + host + ":" + server.getAddress().getPort() + "/";
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * answers with the transfer of the request and its decoded parameters, or with 411 for a
+     * chunked request if the server requires the length.
+     */
+    private void respond(HttpExchange exchange) throws IOException {
+        boolean chunked = "chunked".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+        String form = read(exchange.getRequestBody());
+        if (chunked && lengthRequired) {
+            requests.add("411");
+            exchange.sendResponseHeaders(411, -1);
+            return;
+        }
+
+        StringBuilder content = new StringBuilder(chunked ? "chunked" : "length");
+        for (String parameter : form.split("&")) {
+            String[] parts = parameter.split("=", 2);
+            content.append(' ').append(URLDecoder.decode(parts[0], "UTF-8"))
+                    .append('=').append(URLDecoder.decode(parts[1], "UTF-8"));
+        }
+        requests.add(content.toString());
+
+        byte[] bytes = content.toString().getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(bytes);
+        outputStream.close();
+    }
+
+    /**
+     * A collection of the same string repeated, so that it takes no memory whatever its size.
+     */
+    private static class RepeatedCollection extends AbstractCollection<String> {
+        private final String value;
+        private final int size;
+
+        RepeatedCollection(String value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public String next() {
+                    index++;
+                    return value;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
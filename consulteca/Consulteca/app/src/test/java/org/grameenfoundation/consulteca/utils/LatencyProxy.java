@@ -0,0 +1,169 @@
+package org.grameenfoundation.consulteca.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TCP proxy that simulates the round trip time of a mobile network in front of a local server.
+ * Every chunk of data is delivered half a round trip after it was received, in both directions, and
+ * a new connection only starts forwarding after a full round trip, the cost of the TCP handshake.
+ */
+class LatencyProxy {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final byte[] END = new byte[0];
+
+    private final InetSocketAddress target;
+    private final long roundTripMillis;
+    private final ServerSocket serverSocket;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param target          the address of the server the proxy forwards to.
+     * @param roundTripMillis the simulated round trip time.
+     * @throws IOException
+     */
+    LatencyProxy(InetSocketAddress target, long roundTripMillis) throws IOException {
+        this.target = target;
+        this.roundTripMillis = roundTripMillis;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    /**
+     * gets the number of connections the proxy has accepted.
+     *
+     * @return
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // stopping anyway
+        }
+    }
+
+    private void accept() {
+        while (!stopped) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException ex) {
+                return;
+            }
+            connections.incrementAndGet();
+            startThread(new Runnable() {
+                @Override
+                public void run() {
+                    connect(client);
+                }
+            });
+        }
+    }
+
+    private void connect(Socket client) {
+        try {
+            Thread.sleep(roundTripMillis);
+            Socket server = new Socket(target.getAddress(), target.getPort());
+            // the delay is simulated, the proxy must not add its own
+            client.setTcpNoDelay(true);
+            server.setTcpNoDelay(true);
+            AtomicInteger directionsDone = new AtomicInteger();
+            forward(client, server, directionsDone);
+            forward(server, client, directionsDone);
+        } catch (Exception ex) {
+            close(client);
+        }
+    }
+
+    /**
+     * forwards what is received from the given source to the given destination, half a round trip
+     * later. Reading and writing run on their own threads, so a chunk is not held up by the delay
+     * of the chunk before it.
+     */
+    private void forward(final Socket source, final Socket destination, final AtomicInteger directionsDone) {
+        final BlockingQueue<Object[]> chunks = new LinkedBlockingQueue<Object[]>();
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    InputStream inputStream = source.getInputStream();
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        byte[] chunk = new byte[read];
+                        System.arraycopy(buffer, 0, chunk, 0, read);
+                        chunks.add(new Object[]{System.currentTimeMillis() + roundTripMillis / 2, chunk});
+                    }
+                } catch (IOException ex) {
+                    // the connection is closed below
+                }
+                chunks.add(new Object[]{System.currentTimeMillis() + roundTripMillis / 2, END});
+            }
+        });
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream outputStream = destination.getOutputStream();
+                    while (true) {
+                        Object[] chunk = chunks.take();
+                        long delay = (Long) chunk[0] - System.currentTimeMillis();
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                        if (chunk[1] == END) {
+                            break;
+                        }
+                        outputStream.write((byte[]) chunk[1]);
+                        outputStream.flush();
+                    }
+                    destination.shutdownOutput();
+                    if (directionsDone.incrementAndGet() == 2) {
+                        close(source);
+                        close(destination);
+                    }
+                } catch (Exception ex) {
+                    close(destination);
+                    close(source);
+                }
+            }
+        });
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // closing anyway
+        }
+    }
+
+    private static void startThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "LatencyProxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,48 @@
+package org.grameenfoundation.consulteca.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NetworkSchedulerTest {
+    private NetworkScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new NetworkScheduler();
+    }
+
+    @Test
+    public void keepsToTheRateLimit() throws Exception {
+        scheduler.setRateLimit(NetworkScheduler.Priority.BACKGROUND, 64 * 1024);
+        scheduler.begin(NetworkScheduler.Priority.BACKGROUND);
+        long start = System.currentTimeMillis();
+        for (int index = 0; index < 24; index++) {
+            scheduler.transferred(NetworkScheduler.Priority.BACKGROUND, 8 * 1024);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        scheduler.end(NetworkScheduler.Priority.BACKGROUND);
+
+        // 192 KB at 64 KB/s, less the burst of a second
+        assertTrue("took " + elapsed + " ms", elapsed >= 1900 && elapsed < 4000);
+        NetworkScheduler.Statistics statistics = scheduler.getStatistics(NetworkScheduler.Priority.BACKGROUND);
+        assertEquals(192 * 1024, statistics.getBytes());
+        assertTrue(statistics.getThrottledMillis() >= 1900);
+        assertEquals(0, statistics.getInFlight());
+
+        // the other priorities are not limited
+        start = System.currentTimeMillis();
+        scheduler.transferred(NetworkScheduler.Priority.FOREGROUND, 1024 * 1024);
+        assertTrue(System.currentTimeMillis() - start < 500);
+    }
+
+    @Test
+    public void givesTheThreadPriorityToTheRequests() {
+        assertEquals(NetworkScheduler.Priority.FOREGROUND, scheduler.getThreadPriority());
+        scheduler.setThreadPriority(NetworkScheduler.Priority.BACKGROUND);
+        assertEquals(NetworkScheduler.Priority.BACKGROUND, scheduler.getThreadPriority());
+        scheduler.setThreadPriority(null);
+        assertEquals(NetworkScheduler.Priority.FOREGROUND, scheduler.getThreadPriority());
+    }
+}
@@ -0,0 +1,284 @@
+package org.grameenfoundation.consulteca.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the measurements {@link HttpHelpers} gives to its {@link HttpHelpers.RequestListener}s for
+ * requests to a local server, and how they add up in the {@link NetworkStatistics}.
+ */
+public class RequestMetricsTest {
+    private static final int NETWORK_TIMEOUT = 30 * 1000;
+    private static final int CONTENT_SIZE = 64 * 1024;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final List<RequestMetrics> completed = new ArrayList<RequestMetrics>();
+    private final HttpHelpers.RequestListener listener = new HttpHelpers.RequestListener() {
+        @Override
+        public void requestCompleted(RequestMetrics metrics) {
+            synchronized (completed) {
+                completed.add(metrics);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        HttpHelpers.addRequestListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        HttpHelpers.removeRequestListener(listener);
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void measuresAGzippedResponse() throws Exception {
+        HttpResponse response = HttpHelpers.postFormRequest(getUrl("/gzip"), getParams("keywords"),
+                NETWORK_TIMEOUT, null);
+        assertTrue(getCompleted().isEmpty());
+        assertEquals(CONTENT_SIZE, read(HttpHelpers.getInputStream(response)));
+
+        RequestMetrics metrics = getOnlyCompleted();
+        assertEquals("keywords", metrics.getEndpoint());
+        assertEquals(200, metrics.getStatusCode());
+        assertTrue(metrics.isResponseGzipped());
+        assertFalse(metrics.isRequestGzipped());
+        assertEquals(CONTENT_SIZE, metrics.getContentBytesReceived());
+        assertTrue(metrics.getBytesReceived() > 0 && metrics.getBytesReceived() < CONTENT_SIZE / 10);
+        assertTrue(metrics.getBytesSent() > 0);
+        assertTrue(metrics.getDnsMillis() >= 0);
+        assertTrue(metrics.getConnectMillis() >= 0);
+        assertTrue(metrics.getFirstByteMillis() >= 0);
+        assertTrue(metrics.getTotalMillis() >= metrics.getFirstByteMillis());
+    }
+
+    @Test
+    public void measuresAGzippedRequest() throws Exception {
+        HttpResponse response = HttpHelpers.postFormRequest(getUrl("/plain"), getParams("searchLogs"),
+                NETWORK_TIMEOUT, null, true);
+        assertEquals(CONTENT_SIZE, read(HttpHelpers.getInputStream(response)));
+
+        RequestMetrics metrics = getOnlyCompleted();
+        assertEquals("searchLogs", metrics.getEndpoint());
+        assertTrue(metrics.isRequestGzipped());
+        assertFalse(metrics.isResponseGzipped());
+        assertTrue(metrics.getBytesSent() > 0);
+        assertEquals(CONTENT_SIZE, metrics.getBytesReceived());
+        assertEquals(CONTENT_SIZE, metrics.getContentBytesReceived());
+    }
+
+    @Test
+    public void measuresTheConnectionOnlyWhenItIsOpened() throws Exception {
+        read(HttpHelpers.getInputStream(HttpHelpers.postFormRequest(getUrl("/plain"), getParams("farmers"),
+                NETWORK_TIMEOUT, null)));
+        read(HttpHelpers.getInputStream(HttpHelpers.postFormRequest(getUrl("/plain"), getParams("farmers"),
+                NETWORK_TIMEOUT, null)));
+
+        List<RequestMetrics> metrics = getCompleted();
+        assertEquals(2, metrics.size());
+        assertTrue(metrics.get(0).getConnectMillis() >= 0);
+        // the second request went over the pooled connection
+        assertEquals(-1, metrics.get(1).getConnectMillis());
+        assertEquals(-1, metrics.get(1).getDnsMillis());
+    }
+
+    @Test
+    public void measuresAConsumedResponse() throws Exception {
+        HttpResponse response = HttpHelpers.postFormRequest(getUrl("/missing"), getParams("images"),
+                NETWORK_TIMEOUT, null);
+        HttpHelpers.consume(response);
+
+        RequestMetrics metrics = getOnlyCompleted();
+        assertEquals("images", metrics.getEndpoint());
+        assertEquals(404, metrics.getStatusCode());
+        assertFalse(metrics.isFailed());
+    }
+
+    @Test
+    public void measuresAFailedRequest() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        try {
+            HttpHelpers.postFormRequest("http://127.0.0.1:" + port + "/", getParams("keywords"), NETWORK_TIMEOUT, null);
+            fail("nothing should be listening");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        RequestMetrics metrics = getOnlyCompleted();
+        assertTrue(metrics.isFailed());
+        assertEquals(-1, metrics.getFirstByteMillis());
+        assertTrue(metrics.getTotalMillis() >= 0);
+    }
+
+    @Test
+    public void schedulesTheRequestWithThePriorityOfTheThread() throws Exception {
+        NetworkScheduler scheduler = NetworkScheduler.getInstance();
+        long requests = scheduler.getStatistics(NetworkScheduler.Priority.BACKGROUND).getRequests();
+        scheduler.setThreadPriority(NetworkScheduler.Priority.BACKGROUND);
+        try {
+            HttpResponse response = HttpHelpers.postFormRequest(getUrl("/plain"), getParams("farmers"),
+                    NETWORK_TIMEOUT, null);
+            assertEquals(1, scheduler.getStatistics(NetworkScheduler.Priority.BACKGROUND).getInFlight());
+            read(HttpHelpers.getInputStream(response));
+        } finally {
+            scheduler.setThreadPriority(null);
+        }
+
+        assertEquals(NetworkScheduler.Priority.BACKGROUND, getOnlyCompleted().getPriority());
+        NetworkScheduler.Statistics statistics = scheduler.getStatistics(NetworkScheduler.Priority.BACKGROUND);
+        assertEquals(requests + 1, statistics.getRequests());
+        assertEquals(0, statistics.getInFlight());
+    }
+
+    @Test
+    public void addsUpTheRequestsOfEachEndpoint() throws Exception {
+        Map<String, HttpStatistics> before = NetworkStatistics.getInstance().getSnapshot();
+        for (int index = 0; index < 3; index++) {
+            read(HttpHelpers.getInputStream(HttpHelpers.postFormRequest(getUrl("/gzip"), getParams("keywords"),
+                    NETWORK_TIMEOUT, null)));
+        }
+        HttpHelpers.consume(HttpHelpers.postFormRequest(getUrl("/missing"), getParams("farmers"),
+                NETWORK_TIMEOUT, null));
+
+        Map<String, HttpStatistics> statistics = NetworkStatistics.difference(before,
+                NetworkStatistics.getInstance().getSnapshot());
+        assertEquals(2, statistics.size());
+        HttpStatistics keywords = statistics.get("keywords");
+        assertEquals(3, keywords.getRequests());
+        assertEquals(3, keywords.getStatusCount(2));
+        assertEquals(3, keywords.getGzippedResponses());
+        assertEquals(3 * CONTENT_SIZE, keywords.getContentBytesReceived());
+        assertEquals(3, keywords.getTotalMillis().getCount());
+        assertEquals(1, keywords.getConnectMillis().getCount());
+        assertEquals(1, statistics.get("farmers").getStatusCount(4));
+    }
+
+    @Test
+    public void computesThePercentilesOfTheBuckets() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int value = 1; value <= 100; value++) {
+            histogram.add(value * 10);
+        }
+        histogram.add(-1);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(505, histogram.getMean());
+        assertEquals(10, histogram.getPercentile(1));
+        assertEquals(500, histogram.getPercentile(50));
+        assertEquals(1000, histogram.getPercentile(90));
+        assertEquals(1000, histogram.getPercentile(100));
+
+        Histogram earlier = histogram.copy();
+        histogram.add(120000);
+        histogram.subtract(earlier);
+        assertEquals(1, histogram.getCount());
+        assertEquals(60000, histogram.getPercentile(50));
+    }
+
+    private String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private List<RequestMetrics> getCompleted() {
+        synchronized (completed) {
+            return new ArrayList<RequestMetrics>(completed);
+        }
+    }
+
+    private RequestMetrics getOnlyCompleted() {
+        List<RequestMetrics> metrics = getCompleted();
+        assertEquals(1, metrics.size());
+        return metrics.get(0);
+    }
+
+    private static List<NameValuePair> getParams(String method) {
+        List<NameValuePair> params = new ArrayList<NameValuePair>(2);
+        params.add(new BasicNameValuePair("method", method));
+        params.add(new BasicNameValuePair("data", "{\"request\":\"" + method + "\"}"));
+        return params;
+    }
+
+    private static int read(InputStream inputStream) throws IOException {
+        try {
+            byte[] buffer = new byte[4096];
+            int length = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                length += read;
+            }
+            return length;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        InputStream inputStream = exchange.getRequestBody();
+        while (inputStream.read() != -1) {
+            // the request is read to the end so that the connection can be reused
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/missing")) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        byte[] content = new byte[CONTENT_SIZE];
+        if (path.equals("/gzip")) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            GZIPOutputStream outputStream = new GZIPOutputStream(exchange.getResponseBody());
+            outputStream.write(content);
+            outputStream.close();
+        } else {
+            exchange.sendResponseHeaders(200, content.length);
+            OutputStream outputStream = exchange.getResponseBody();
+            outputStream.write(content);
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.grameenfoundation.consulteca.utils;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+    private static final int NETWORK_TIMEOUT = 30 * 1000;
+    private static final String ENTITY_TAG = "\"v1\"";
+
+    private File directory;
+    private final TestClock clock = new TestClock();
+    private HttpServer server;
+    private ExecutorService executor;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("http", "");
+        directory.delete();
+        directory.mkdirs();
+
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void keysTheDataWhateverTheOrderOfItsFields() {
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("request", "countryCode");
+        data.put("imei", "35");
+        data.put("menus", Arrays.asList("b", "a"));
+        Map<String, Object> reordered = new LinkedHashMap<String, Object>();
+        reordered.put("menus", Arrays.asList("b", "a"));
+        reordered.put("imei", "35");
+        reordered.put("request", "countryCode");
+        Gson gson = new Gson();
+
+        String key = ResponseCache.getKey("http://server/", "countryCode", data, gson);
+        assertEquals(key, ResponseCache.getKey("http://server/", "countryCode", reordered, gson));
+
+        reordered.put("menus", Arrays.asList("a", "b"));
+        assertFalse(key.equals(ResponseCache.getKey("http://server/", "countryCode", reordered, gson)));
+        assertFalse(key.equals(ResponseCache.getKey("http://server/", "keywords", data, gson)));
+        assertFalse(key.equals(ResponseCache.getKey("http://other/", "countryCode", data, gson)));
+    }
+
+    @Test
+    public void answersFreshResponsesAndRevalidatesStaleOnes() throws Exception {
+        ResponseCache cache = new ResponseCache(directory, ResponseCache.MAX_SIZE, clock);
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("request", "countryCode");
+        String key = ResponseCache.getKey(getUrl(), "countryCode", data, new Gson());
+
+        assertNull(cache.getFreshResponse(key));
+        assertEquals("{\"countryCode\":\"UG\"}", read(post(cache, key, data)));
+        assertEquals(Arrays.asList("200"), requests);
+
+        // fresh for a minute
+        clock.advance(59 * 1000);
+        assertEquals("{\"countryCode\":\"UG\"}", read(cache.getFreshResponse(key)));
+
+        clock.advance(2 * 1000);
+        assertNull(cache.getFreshResponse(key));
+        assertEquals("{\"countryCode\":\"UG\"}", read(post(cache, key, data)));
+        assertEquals(Arrays.asList("200", "304"), requests);
+
+        // the 304 made it fresh again, and the cache is kept across restarts
+        cache = new ResponseCache(directory, ResponseCache.MAX_SIZE, clock);
+        assertEquals("{\"countryCode\":\"UG\"}", read(cache.getFreshResponse(key)));
+
+        ResponseCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getEntries());
+        assertEquals(1, statistics.getHits());
+    }
+
+    @Test
+    public void countsTheHitsAndMisses() throws Exception {
+        ResponseCache cache = new ResponseCache(directory, ResponseCache.MAX_SIZE, clock);
+        Map<String, String> data = new HashMap<String, String>();
+        String key = ResponseCache.getKey(getUrl(), "countryCode", data, new Gson());
+
+        read(post(cache, key, data));
+        read(cache.getFreshResponse(key));
+        clock.advance(61 * 1000);
+        read(post(cache, key, data));
+
+        ResponseCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getMisses());
+        assertEquals(1, statistics.getHits());
+        assertEquals(1, statistics.getConditionalHits());
+        assertEquals(1, statistics.getStores());
+        assertEquals(66, statistics.getHitPercentage());
+    }
+
+    @Test
+    public void answersStaleResponsesOffline() throws Exception {
+        ResponseCache cache = new ResponseCache(directory, ResponseCache.MAX_SIZE, clock);
+        // a response without freshness or validators is only kept to be answered offline
+        assertEquals("stale", read(cache.update("a", createResponse("stale"), ResponseCache.Policy.DEFAULT)));
+        assertNull(cache.getStaleResponse("a"));
+        cache.update("a", createResponse("stale"), ResponseCache.Policy.OFFLINE_FIRST);
+        assertNull(cache.getFreshResponse("a"));
+
+        HttpResponse response = cache.getStaleResponse("a");
+        assertNotNull(response.getFirstHeader("Warning"));
+        assertEquals("stale", read(response));
+        assertEquals(1, cache.getStatistics().getStaleHits());
+
+        HttpResponse mustRevalidate = createResponse("revalidated");
+        mustRevalidate.addHeader("Cache-Control", "max-age=60, must-revalidate");
+        cache.update("b", mustRevalidate, ResponseCache.Policy.OFFLINE_FIRST);
+        assertEquals("revalidated", read(cache.getStaleResponse("b")));
+        clock.advance(61 * 1000);
+        assertNull(cache.getStaleResponse("b"));
+    }
+
+    @Test
+    public void doesNotKeepResponsesThatMustNotBeStored() throws Exception {
+        ResponseCache cache = new ResponseCache(directory, ResponseCache.MAX_SIZE, clock);
+        HttpResponse response = createResponse("private");
+        response.addHeader("Cache-Control", "no-store");
+        assertEquals("private", read(cache.update("a", response, ResponseCache.Policy.OFFLINE_FIRST)));
+        assertNull(cache.getStaleResponse("a"));
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedResponses() throws Exception {
+        char[] chars = new char[900];
+        Arrays.fill(chars, 'x');
+        String content = new String(chars);
+        ResponseCache cache = new ResponseCache(directory, 4 * 1000, clock);
+        for (String key : Arrays.asList("a", "b", "c", "d")) {
+            cache.update(key, createFreshResponse(content), ResponseCache.Policy.DEFAULT);
+            clock.advance(1000);
+        }
+        read(cache.getFreshResponse("a"));
+        cache.update("e", createFreshResponse(content), ResponseCache.Policy.DEFAULT);
+
+        assertNull(cache.getFreshResponse("b"));
+        for (String key : Arrays.asList("a", "c", "d", "e")) {
+            assertEquals(content, read(cache.getFreshResponse(key)));
+        }
+        assertEquals(1, cache.getStatistics().getEvictions());
+        assertEquals(4 * 900, cache.getStatistics().getSize());
+
+        // the order of use is kept across restarts
+        read(cache.getFreshResponse("c"));
+        new File(directory, "a.body").setLastModified(clock.currentTimeMillis() - 60 * 1000);
+        cache = new ResponseCache(directory, 4 * 1000, clock);
+        cache.update("f", createFreshResponse(content), ResponseCache.Policy.DEFAULT);
+        assertNull(cache.getFreshResponse("a"));
+        assertNotNull(cache.getFreshResponse("c"));
+    }
+
+    @Test
+    public void answersAResponseTooLargeToKeep() throws Exception {
+        char[] chars = new char[1500];
+        Arrays.fill(chars, 'x');
+        String content = new String(chars);
+        ResponseCache cache = new ResponseCache(directory, 4 * 1000, clock);
+
+        // the length of the chunked response is only known once it has been read
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+        response.addHeader("Cache-Control", "max-age=60");
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(content.getBytes("UTF-8")), -1));
+        assertEquals(content, read(cache.update("a", response, ResponseCache.Policy.DEFAULT)));
+
+        assertNull(cache.getFreshResponse("a"));
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private HttpResponse post(ResponseCache cache, String key, Object data) throws IOException {
+        HttpResponse response = HttpHelpers.postJsonFormRequest(getUrl(), "countryCode", data, new Gson(),
+                NETWORK_TIMEOUT, cache.addValidators(key, null), false);
+        return cache.update(key, response, ResponseCache.Policy.DEFAULT);
+    }
+
+    private String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private static HttpResponse createResponse(String content) throws IOException {
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+        response.addHeader("Content-Type", "text/plain");
+        response.setEntity(new ByteArrayEntity(content.getBytes("UTF-8")));
+        return response;
+    }
+
+    private static HttpResponse createFreshResponse(String content) throws IOException {
+        HttpResponse response = createResponse(content);
+        response.addHeader("Cache-Control", "max-age=3600");
+        return response;
+    }
+
+    private static String read(HttpResponse response) throws IOException {
+        InputStream inputStream = HttpHelpers.getInputStream(response);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * answers with the country code, fresh for a minute, or with 304 Not Modified if the request
+     * has its entity tag.
+     */
+    private void respond(HttpExchange exchange) throws IOException {
+        InputStream inputStream = exchange.getRequestBody();
+        while (inputStream.read() != -1) {
+            // the request is read to the end so that the connection can be reused
+        }
+        exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+        exchange.getResponseHeaders().set("ETag", ENTITY_TAG);
+        if (ENTITY_TAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            requests.add("304");
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        requests.add("200");
+        byte[] body = "{\"countryCode\":\"UG\"}".getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(body);
+        outputStream.close();
+    }
+
+    /**
+     * A clock whose time is moved on by the test.
+     */
+    private static class TestClock implements Clock {
+        private long now = System.currentTimeMillis();
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        void advance(long millis) {
+            now += millis;
+        }
+    }
+}
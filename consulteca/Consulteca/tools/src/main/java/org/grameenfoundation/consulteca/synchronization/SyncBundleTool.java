@@ -0,0 +1,178 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import org.grameenfoundation.consulteca.utils.BinaryFeedFormat;
+import org.grameenfoundation.consulteca.utils.JsonSimpleBaseParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a {@link SyncBundle} on a workstation from responses saved from the server, to provision
+ * devices that have no data connection. It is part of the tools module, so that it is not packaged
+ * in the application, and is run with:
+ * <pre>
+ *     ./gradlew :tools:run -PbundleArgs="consulteca-bundle.zip keywords.json images farmers-1.json farmers-2.json"
+ * </pre>
+ * The relative paths are resolved against the tools directory, <code>./gradlew :tools:installDist</code>
+ * builds a start script that runs it from anywhere.
+ * The keywords feed and the farmers pages are stored as they are, in JSON or in the binary format.
+ * The images directory holds the images of the keywords feed, each named after its image id with
+ * or without the .jpg extension.
+ */
+public class SyncBundleTool {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: SyncBundleTool <bundle> <keywords feed> <images directory> [<farmers page>...]");
+            System.exit(1);
+        }
+
+        List<File> farmersPages = new ArrayList<File>();
+        for (int index = 3; index < args.length; index++) {
+            farmersPages.add(new File(args[index]));
+        }
+        System.out.println(writeBundle(new File(args[0]), new File(args[1]), new File(args[2]), farmersPages));
+    }
+
+    /**
+     * writes a bundle of the given keywords feed, its images and the given farmers pages.
+     *
+     * @param bundleFile
+     * @param keywordsFile
+     * @param imagesDirectory the directory of the images, named after their image ids.
+     * @param farmersPages
+     * @return a summary of the bundle, with the number of images that were not found.
+     * @throws IOException
+     * @throws ParseException
+     */
+    static String writeBundle(File bundleFile, File keywordsFile, File imagesDirectory, List<File> farmersPages)
+            throws IOException, ParseException {
+        FeedSummary keywords = readSummary(keywordsFile);
+        SyncBundleWriter writer = new SyncBundleWriter(new FileOutputStream(bundleFile));
+        try {
+            copy(keywordsFile, writer.startKeywords());
+
+            String farmersVersion = null;
+            for (File pageFile : farmersPages) {
+                FeedSummary page = readSummary(pageFile);
+                if (page.version != null && page.version.length() > 0) {
+                    farmersVersion = page.version;
+                }
+                copy(pageFile, writer.startFarmersPage());
+            }
+
+            int missing = 0;
+            for (String imageId : keywords.images.keySet()) {
+                File imageFile = new File(imagesDirectory, imageId);
+                if (!imageFile.exists()) {
+                    imageFile = new File(imagesDirectory, imageId + ".jpg");
+                }
+                if (imageFile.exists()) {
+                    writer.addImage(imageId, keywords.images.get(imageId), imageFile);
+                } else {
+                    missing++;
+                }
+            }
+
+            writer.finish(keywords.version, keywords.version, farmersVersion);
+            return "Wrote " + bundleFile + ": keywords version " + keywords.version + ", "
+                    + farmersPages.size() + " farmers pages, farmers version " + farmersVersion + ", "
+                    + (keywords.images.size() - missing) + " images" + (missing > 0 ? ", " + missing
+                    + " images were not found in " + imagesDirectory : "");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void copy(File file, OutputStream outputStream) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * reads the version of the given keywords feed or farmers page, and the images of a keywords feed.
+     */
+    private static FeedSummary readSummary(File file) throws IOException, ParseException {
+        final FeedSummary summary = new FeedSummary();
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            BinaryFeedFormat.parse(inputStream, new JsonSimpleBaseParser() {
+                private String arrayName = "";
+                private int depth = 0;
+                private String imageId = null;
+                private String imageDigest = null;
+
+                @Override
+                public boolean startObject() {
+                    depth++;
+                    return true;
+                }
+
+                @Override
+                public boolean endObject() {
+                    depth--;
+                    if (imageId != null) {
+                        summary.images.put(imageId, imageDigest);
+                    }
+                    imageId = null;
+                    imageDigest = null;
+                    return true;
+                }
+
+                @Override
+                public boolean startArray() {
+                    arrayName = key;
+                    return true;
+                }
+
+                @Override
+                public boolean endArray() {
+                    arrayName = "";
+                    return true;
+                }
+
+                @Override
+                public boolean primitive(Object value) {
+                    if (key != null && value != null) {
+                        if (depth == 1 && ("version".equals(key) || "farmerVersion".equals(key))) {
+                            summary.version = value.toString();
+                        } else if ("images".equalsIgnoreCase(arrayName) && "id".equalsIgnoreCase(key)) {
+                            imageId = value.toString();
+                        } else if ("images".equalsIgnoreCase(arrayName) && "sha1".equalsIgnoreCase(key)) {
+                            imageDigest = value.toString();
+                        }
+                    }
+                    key = null;
+                    return true;
+                }
+            });
+        } finally {
+            inputStream.close();
+        }
+        return summary;
+    }
+
+    private static class FeedSummary {
+        String version;
+        // the SHA-1 digests by image id, or null where the feed does not carry the digest
+        Map<String, String> images = new LinkedHashMap<String, String>();
+    }
+}
@@ -0,0 +1,127 @@
+package org.grameenfoundation.consulteca.synchronization;
+
+import com.google.gson.Gson;
+import org.grameenfoundation.consulteca.utils.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds a bundle with the {@link SyncBundleTool} from saved responses and checks its entries and
+ * its manifest.
+ */
+public class SyncBundleToolTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("bundle", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void bundlesTheFeedsAndTheImagesThatAreFound() throws Exception {
+        byte[] image = "image".getBytes("UTF-8");
+        String digest = DigestUtils.toHexString(DigestUtils.newSha1Digest().digest(image));
+
+        byte[] keywordsFeed = ("{\"version\":\"7\",\"menus\":[{\"id\":\"m1\"}],\"images\":[{\"id\":\"First\","
+                + "\"sha1\":\"" + digest + "\"},{\"id\":\"second\"},{\"id\":\"third\"}]}").getBytes("UTF-8");
+        File keywordsFile = write("keywords.json", keywordsFeed);
+        File farmersFile = write("farmers.json", "{\"farmerVersion\":\"8\",\"farmers\":[{\"id\":\"F0\"}]}");
+        File imagesDirectory = new File(directory, "images");
+        assertTrue(imagesDirectory.mkdir());
+        write("images/First", image);
+        write("images/second.jpg", image);
+
+        File bundleFile = new File(directory, SyncBundle.DEFAULT_FILE_NAME);
+        String summary = SyncBundleTool.writeBundle(bundleFile, keywordsFile, imagesDirectory,
+                Arrays.asList(farmersFile, farmersFile));
+        assertTrue(summary, summary.contains("2 farmers pages"));
+        assertTrue(summary, summary.contains("1 images were not found"));
+
+        ZipFile zipFile = new ZipFile(bundleFile);
+        try {
+            // the manifest, the keywords, two farmers pages and one image
+            assertEquals(5, zipFile.size());
+            assertNotNull(zipFile.getEntry(SyncBundle.IMAGES_ENTRY_PREFIX + digest));
+
+            SyncBundle.Manifest manifest;
+            Reader reader = new InputStreamReader(zipFile.getInputStream(zipFile.getEntry(SyncBundle.MANIFEST_ENTRY)),
+                    "UTF-8");
+            try {
+                manifest = new Gson().fromJson(reader, SyncBundle.Manifest.class);
+            } finally {
+                reader.close();
+            }
+            assertEquals("7", manifest.keywordsVersion);
+            assertEquals("7", manifest.imagesVersion);
+            assertEquals("8", manifest.farmersVersion);
+            assertEquals(2, manifest.images.size());
+            assertEquals(digest, manifest.images.get("first"));
+            assertEquals(digest, manifest.images.get("second"));
+
+            InputStream keywords = zipFile.getInputStream(zipFile.getEntry(SyncBundle.KEYWORDS_ENTRY));
+            try {
+                // the feed is stored as it is
+                assertArrayEquals(keywordsFeed, read(keywords));
+            } finally {
+                keywords.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private File write(String name, String content) throws IOException {
+        return write(name, content.getBytes("UTF-8"));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}